@@ -0,0 +1,44 @@
+package com.liorkn.elasticsearch.benchmark;
+
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.store.ByteArrayDataOutput;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * {@link BinaryDocValues} over a pool of pre-encoded documents, laid out the same way
+ * elasticsearch's {@code binary} field writes them (a VInt values count, a VInt length, then the payload).
+ * Doc ids wrap around the pool so millions of docs can be scored without millions of vectors on heap.
+ */
+final class InMemoryBinaryDocValues extends BinaryDocValues {
+
+    private final byte[][] docs;
+    private final BytesRef ref = new BytesRef();
+
+    InMemoryBinaryDocValues(byte[][] payloads) {
+        docs = new byte[payloads.length][];
+        for (int i = 0; i < payloads.length; i++) {
+            docs[i] = wrap(payloads[i]);
+        }
+    }
+
+    @Override
+    public BytesRef get(int docID) {
+        // same contract as lucene: the returned BytesRef is reused between calls
+        final byte[] doc = docs[docID % docs.length];
+        ref.bytes = doc;
+        ref.offset = 0;
+        ref.length = doc.length;
+        return ref;
+    }
+
+    private static byte[] wrap(byte[] payload) {
+        final byte[] bytes = new byte[payload.length + 10];
+        final ByteArrayDataOutput out = new ByteArrayDataOutput(bytes);
+        out.writeVInt(1); // number of values
+        out.writeVInt(payload.length);
+        out.writeBytes(payload, 0, payload.length);
+        final byte[] doc = new byte[out.getPosition()];
+        System.arraycopy(bytes, 0, doc, 0, doc.length);
+        return doc;
+    }
+}
@@ -0,0 +1,103 @@
+package com.liorkn.elasticsearch.benchmark;
+
+import com.liorkn.elasticsearch.Util;
+import com.liorkn.elasticsearch.script.VectorScoreScript;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link VectorScoreScript#runAsDouble()} over {@link #DOCS} synthetic documents.
+ * Scores are reported in ns/doc; run with {@code -prof gc} (the default in the jmh profile)
+ * to get the allocation rate, where {@code gc.alloc.rate.norm} is per {@link #DOCS} docs.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+@State(Scope.Benchmark)
+public class VectorScoreScriptBenchmark {
+
+    public static final int DOCS = 2_000_000;
+
+    // distinct vectors backing the docs, 64k x 1024 dims is 256mb of floats
+    private static final int POOL_SIZE = 65_536;
+
+    @Param({"64", "128", "300", "768", "1024"})
+    public int dims;
+
+    @Param({"cosine", "dot_product"})
+    public String metric;
+
+    @Param({"vector", "encoded_vector"})
+    public String input;
+
+    private InMemoryBinaryDocValues docValues;
+    private Map<String, Object> params;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        final Random random = new Random(42);
+
+        final byte[][] payloads = new byte[POOL_SIZE][];
+        for (int i = 0; i < POOL_SIZE; i++) {
+            final ByteBuffer bb = ByteBuffer.allocate(Float.BYTES * dims);
+            for (int d = 0; d < dims; d++) {
+                bb.putFloat((float) random.nextGaussian());
+            }
+            payloads[i] = bb.array();
+        }
+        docValues = new InMemoryBinaryDocValues(payloads);
+
+        final float[] query = new float[dims];
+        for (int d = 0; d < dims; d++) {
+            query[d] = (float) random.nextGaussian();
+        }
+
+        params = new HashMap<>();
+        params.put("field", "embedding_vector");
+        params.put("metric", metric);
+        if ("vector".equals(input)) {
+            // the json parser hands the script a list of doubles
+            final ArrayList<Double> vector = new ArrayList<>(dims);
+            for (float v : query) {
+                vector.add((double) v);
+            }
+            params.put("vector", vector);
+        } else {
+            params.put("encoded_vector", Util.convertArrayToBase64(query));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(DOCS)
+    public double score() {
+        final VectorScoreScript script = new VectorScoreScript(params);
+        script.setBinaryEmbeddingReader(docValues);
+
+        double sum = 0;
+        for (int docId = 0; docId < DOCS; docId++) {
+            script.setDocument(docId);
+            sum += script.runAsDouble();
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,315 @@
+package com.liorkn.elasticsearch.load;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.liorkn.elasticsearch.EmbeddedElasticsearchServer;
+import com.liorkn.elasticsearch.Util;
+import org.apache.http.HttpHost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.entity.NStringEntity;
+import org.elasticsearch.client.RestClient;
+
+import java.io.File;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * End to end load test of knn searches on an {@link EmbeddedElasticsearchServer}: bulk indexes synthetic vectors, then
+ * sends searches at a fixed rate from concurrent clients, optionally while documents keep being indexed and refreshed,
+ * and writes the throughput, latency percentiles and heap/GC usage of the query phase to a JSON file.
+ * <p>
+ * Searches are scheduled at a fixed rate whatever the response times, and each latency is measured from the time the
+ * search was scheduled, so a slow node shows up in the percentiles instead of lowering the rate.
+ * <p>
+ * Options are {@code key=value} arguments, see {@link #DEFAULTS}. Run with: {@code mvn -Pload test-compile exec:exec}
+ */
+public class KnnLoadBenchmark {
+
+    static final Map<String, String> DEFAULTS = new LinkedHashMap<>();
+    static {
+        DEFAULTS.put("docs", "1000000");
+        DEFAULTS.put("dims", "128");
+        DEFAULTS.put("shards", "5");
+        DEFAULTS.put("metric", "cosine");
+        // function_score (the knn script) or knn (the knn query with k)
+        DEFAULTS.put("query", "function_score");
+        DEFAULTS.put("k", "10");
+        // target searches per second, and the number of clients sending them
+        DEFAULTS.put("rate", "50");
+        DEFAULTS.put("clients", "8");
+        DEFAULTS.put("warmup_seconds", "10");
+        DEFAULTS.put("duration_seconds", "60");
+        // docs indexed per second during the query phase, refreshed every second, to measure under segment churn
+        DEFAULTS.put("index_rate", "0");
+        DEFAULTS.put("bulk_size", "5000");
+        DEFAULTS.put("seed", "42");
+        DEFAULTS.put("output", "target/knn-load-result.json");
+    }
+
+    private static final String INDEX = "knn_load";
+    private static final ContentType NDJSON = ContentType.create("application/x-ndjson", "UTF-8");
+    // distinct query vectors, cycled through
+    private static final int QUERY_POOL = 1000;
+
+    private final Map<String, String> options;
+    private final int dims;
+    private final Random random;
+    // the id of the next doc indexed during a query phase
+    private final AtomicLong nextId = new AtomicLong();
+
+    KnnLoadBenchmark(Map<String, String> options) {
+        this.options = options;
+        this.dims = intOption("dims");
+        this.random = new Random(Long.parseLong(options.get("seed")));
+        if (intOption("rate") <= 0 || intOption("clients") <= 0) {
+            throw new IllegalArgumentException("rate and clients must be positive");
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        final Map<String, String> options = new LinkedHashMap<>(DEFAULTS);
+        for (String arg : args) {
+            final int eq = arg.indexOf('=');
+            if (eq < 0 || DEFAULTS.containsKey(arg.substring(0, eq)) == false) {
+                throw new IllegalArgumentException("unknown option [" + arg + "], expected key=value with a key in " + DEFAULTS.keySet());
+            }
+            options.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+
+        final EmbeddedElasticsearchServer server = new EmbeddedElasticsearchServer();
+        try (RestClient client = RestClient.builder(new HttpHost("localhost", server.getPort(), "http")).build()) {
+            final Map<String, Object> result = new KnnLoadBenchmark(options).run(client);
+            final ObjectMapper mapper = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+            final File output = new File(options.get("output"));
+            if (output.getParentFile() != null) {
+                output.getParentFile().mkdirs();
+            }
+            mapper.writeValue(output, result);
+            System.out.println(mapper.writeValueAsString(result));
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    Map<String, Object> run(RestClient client) throws Exception {
+        createIndex(client);
+
+        final long indexStart = System.nanoTime();
+        final int docs = intOption("docs");
+        final int bulkSize = intOption("bulk_size");
+        for (int from = 0; from < docs; from += bulkSize) {
+            bulk(client, from, Math.min(bulkSize, docs - from));
+        }
+        client.performRequest("POST", "/" + INDEX + "/_refresh");
+        nextId.set(docs);
+        final double indexSeconds = (System.nanoTime() - indexStart) / 1e9;
+
+        final String[] queries = new String[QUERY_POOL];
+        for (int i = 0; i < queries.length; i++) {
+            queries[i] = searchBody(randomVector());
+        }
+
+        runQueries(client, queries, intOption("warmup_seconds"), null);
+        final Map<String, Object> queryPhase = new LinkedHashMap<>();
+        runQueries(client, queries, intOption("duration_seconds"), queryPhase);
+
+        final Map<String, Object> result = new LinkedHashMap<>();
+        result.put("options", options);
+        result.put("java_version", System.getProperty("java.version"));
+        final Map<String, Object> indexing = new LinkedHashMap<>();
+        indexing.put("docs", docs);
+        indexing.put("seconds", indexSeconds);
+        indexing.put("docs_per_second", docs / indexSeconds);
+        result.put("indexing", indexing);
+        result.put("queries", queryPhase);
+        return result;
+    }
+
+    private void createIndex(RestClient client) throws Exception {
+        final String index = "{" +
+                "  \"settings\": {\"number_of_shards\": " + intOption("shards") + ", \"number_of_replicas\": 0, \"refresh_interval\": \"-1\"}," +
+                "  \"mappings\": {\"type\": {\"properties\": {" +
+                "    \"embedding_vector\": {\"type\": \"binary\", \"doc_values\": true}" +
+                "  }}}" +
+                "}";
+        client.performRequest("PUT", "/" + INDEX, Collections.emptyMap(), new NStringEntity(index, ContentType.APPLICATION_JSON));
+    }
+
+    private void bulk(RestClient client, int from, int count) throws Exception {
+        final StringBuilder body = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            body.append("{\"index\": {\"_index\": \"" + INDEX + "\", \"_type\": \"type\", \"_id\": \"").append(from + i).append("\"}}\n");
+            body.append("{\"embedding_vector\": \"").append(Util.convertArrayToBase64WithNorm(randomVector())).append("\"}\n");
+        }
+        client.performRequest("POST", "/_bulk", Collections.emptyMap(), new NStringEntity(body.toString(), NDJSON));
+    }
+
+    private float[] randomVector() {
+        final float[] vector = new float[dims];
+        synchronized (random) {
+            for (int d = 0; d < dims; d++) {
+                vector[d] = (float) random.nextGaussian();
+            }
+        }
+        return vector;
+    }
+
+    private String searchBody(float[] vector) {
+        final String encoded = Util.convertArrayToBase64(vector);
+        final String metric = options.get("metric");
+        if ("knn".equals(options.get("query"))) {
+            return "{\"query\": {\"knn\": {\"field\": \"embedding_vector\", \"encoded_vector\": \"" + encoded
+                    + "\", \"metric\": \"" + metric + "\", \"k\": " + intOption("k") + "}}}";
+        }
+        return "{\"query\": {\"function_score\": {\"boost_mode\": \"replace\", \"script_score\": {\"script\": {" +
+                "\"source\": \"binary_vector_score\", \"lang\": \"knn\", \"params\": {" +
+                "\"field\": \"embedding_vector\", \"metric\": \"" + metric + "\", \"encoded_vector\": \"" + encoded + "\"}}}}}," +
+                " \"size\": " + intOption("k") + "}";
+    }
+
+    /**
+     * Sends searches at the configured rate for the given time.
+     * @param stats receives the results, null for a warmup
+     */
+    private void runQueries(RestClient client, String[] queries, int seconds, Map<String, Object> stats) throws Exception {
+        final int rate = intOption("rate");
+        final int indexRate = intOption("index_rate");
+        final ExecutorService clients = Executors.newFixedThreadPool(intOption("clients"));
+        final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2);
+        final ConcurrentLinkedQueue<Long> latencies = new ConcurrentLinkedQueue<>();
+        final AtomicLong errors = new AtomicLong();
+        final AtomicLong sent = new AtomicLong();
+        final AtomicLong indexed = new AtomicLong();
+
+        if (indexRate > 0) {
+            client.performRequest("PUT", "/" + INDEX + "/_settings", Collections.emptyMap(),
+                    new NStringEntity("{\"index\": {\"refresh_interval\": \"1s\"}}", ContentType.APPLICATION_JSON));
+            scheduler.scheduleAtFixedRate(() -> {
+                try {
+                    bulk(client, (int) nextId.getAndAdd(indexRate), indexRate);
+                    indexed.addAndGet(indexRate);
+                } catch (Exception e) {
+                    errors.incrementAndGet();
+                }
+            }, 0, 1, TimeUnit.SECONDS);
+        }
+
+        final GcSnapshot gcBefore = GcSnapshot.take();
+        final long start = System.nanoTime();
+        final long intervalNanos = TimeUnit.SECONDS.toNanos(1) / rate;
+        scheduler.scheduleAtFixedRate(() -> {
+            final long scheduled = System.nanoTime();
+            final String query = queries[(int) (sent.getAndIncrement() % queries.length)];
+            clients.execute(() -> {
+                try {
+                    client.performRequest("POST", "/" + INDEX + "/_search", Collections.emptyMap(),
+                            new NStringEntity(query, ContentType.APPLICATION_JSON));
+                    latencies.add(System.nanoTime() - scheduled);
+                } catch (Exception e) {
+                    errors.incrementAndGet();
+                }
+            });
+        }, 0, intervalNanos, TimeUnit.NANOSECONDS);
+
+        Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+        scheduler.shutdownNow();
+        clients.shutdown();
+        clients.awaitTermination(1, TimeUnit.MINUTES);
+        final double elapsed = (System.nanoTime() - start) / 1e9;
+        final GcSnapshot gcAfter = GcSnapshot.take();
+
+        if (indexRate > 0) {
+            client.performRequest("PUT", "/" + INDEX + "/_settings", Collections.emptyMap(),
+                    new NStringEntity("{\"index\": {\"refresh_interval\": \"-1\"}}", ContentType.APPLICATION_JSON));
+        }
+        if (stats == null) {
+            return;
+        }
+
+        final long[] sorted = new long[latencies.size()];
+        int i = 0;
+        for (Long latency : latencies) {
+            sorted[i++] = latency;
+        }
+        Arrays.sort(sorted);
+        stats.put("seconds", elapsed);
+        stats.put("sent", sent.get());
+        stats.put("completed", sorted.length);
+        stats.put("errors", errors.get());
+        stats.put("qps", sorted.length / elapsed);
+        stats.put("docs_indexed", indexed.get());
+        final Map<String, Object> latency = new LinkedHashMap<>();
+        latency.put("p50_ms", percentileMillis(sorted, 50));
+        latency.put("p99_ms", percentileMillis(sorted, 99));
+        latency.put("p999_ms", percentileMillis(sorted, 99.9));
+        latency.put("max_ms", sorted.length == 0 ? 0 : sorted[sorted.length - 1] / 1e6);
+        stats.put("latency", latency);
+        stats.put("jvm", gcAfter.since(gcBefore));
+    }
+
+    private static double percentileMillis(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        final int rank = (int) Math.ceil(percentile / 100 * sorted.length);
+        return sorted[Math.max(0, rank - 1)] / 1e6;
+    }
+
+    private int intOption(String name) {
+        return Integer.parseInt(options.get(name));
+    }
+
+    /**
+     * The heap and the collections of the JVM, which is also the node's.
+     */
+    private static final class GcSnapshot {
+        final MemoryUsage heap;
+        final List<long[]> collectors = new ArrayList<>();
+        final List<String> names = new ArrayList<>();
+
+        private GcSnapshot() {
+            heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                names.add(gc.getName());
+                collectors.add(new long[] {gc.getCollectionCount(), gc.getCollectionTime()});
+            }
+        }
+
+        static GcSnapshot take() {
+            return new GcSnapshot();
+        }
+
+        Map<String, Object> since(GcSnapshot before) {
+            final Map<String, Object> jvm = new LinkedHashMap<>();
+            jvm.put("heap_used_bytes", heap.getUsed());
+            jvm.put("heap_committed_bytes", heap.getCommitted());
+            jvm.put("heap_max_bytes", heap.getMax());
+            final Map<String, Object> gcs = new LinkedHashMap<>();
+            for (int i = 0; i < names.size(); i++) {
+                final int b = before.names.indexOf(names.get(i));
+                final long[] from = b < 0 ? new long[2] : before.collectors.get(b);
+                final Map<String, Object> gc = new LinkedHashMap<>();
+                gc.put("collections", collectors.get(i)[0] - from[0]);
+                gc.put("time_ms", collectors.get(i)[1] - from[1]);
+                gcs.put(names.get(i).toLowerCase(Locale.ROOT).replace(' ', '_'), gc);
+            }
+            jvm.put("gc", gcs);
+            return jvm;
+        }
+    }
+}
@@ -1,17 +1,82 @@
 package com.liorkn.elasticsearch;
 
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import java.util.Base64;
 
 /**
  * Created by Lior Knaany on 4/7/18.
+ *
+ * Vectors are stored as base64 of big-endian float32 values (see README).
+ * A stored vector may also start with a 4 bytes header: a quiet NaN pattern (0x7F 0xC0 0x56)
+ * followed by a format byte. No plain vector starts with that NaN, so old documents keep working.
+ * <ul>
+ *     <li>{@link #FORMAT_FLOAT_WITH_NORM}: header, the vector L2 norm as float32, then the float32 values.
+ *     Cosine scoring reads the norm instead of recomputing it for every document.</li>
+ *     <li>{@link #FORMAT_INT8}: header, scale, offset and the vector norm as float32, then one signed byte per dimension.
+ *     Value i is {@code offset + scale * byte[i]}, see {@link #convertArrayToBase64Int8(float[])}.</li>
+ *     <li>{@link #FORMAT_BITS}: header, then a bit vector packed into big-endian 64 bit words, for the hamming metric.</li>
+ *     <li>{@link #FORMAT_FLOAT_LE}: header, then little-endian float32 values. Only for query vectors, decoding it is
+ *     a plain copy on little-endian hardware.</li>
+ *     <li>{@link #FORMAT_FLOAT16} and {@link #FORMAT_BFLOAT16}: header, the norm of the rounded values as float32, then
+ *     one big-endian 16 bit value per dimension, half the float32 size.</li>
+ *     <li>{@link #FORMAT_SPARSE}: header, the norm as float32, the number of non-zero values as int32, then for each
+ *     non-zero value by increasing index: its index as a VInt delta from the previous one, and its float32 value.</li>
+ * </ul>
  */
 public class Util {
 
+    public static final int HEADER_BYTES = 4;
+
+    public static final byte FORMAT_FLOAT_WITH_NORM = 1;
+    public static final byte FORMAT_INT8 = 2;
+    public static final byte FORMAT_BITS = 3;
+    public static final byte FORMAT_FLOAT_LE = 4;
+    public static final byte FORMAT_FLOAT16 = 5;
+    public static final byte FORMAT_BFLOAT16 = 6;
+    public static final byte FORMAT_SPARSE = 7;
+
+    // norm and number of non-zero values
+    public static final int SPARSE_PREFIX_BYTES = Float.BYTES + Integer.BYTES;
+
+    /** the largest finite float16 value */
+    public static final float FLOAT16_MAX = 65504f;
+
+    // scale, offset and norm
+    public static final int INT8_PREFIX_BYTES = 3 * Float.BYTES;
+
+    private static final byte MAGIC_0 = (byte) 0x7F;
+    private static final byte MAGIC_1 = (byte) 0xC0;
+    private static final byte MAGIC_2 = (byte) 0x56;
+
     public static float[] convertBase64ToArray(String base64Str) {
         final byte[] decode = Base64.getDecoder().decode(base64Str.getBytes());
-        final FloatBuffer floatBuffer = ByteBuffer.wrap(decode).asFloatBuffer();
+        final ByteBuffer bb = ByteBuffer.wrap(decode);
+        ByteOrder order = ByteOrder.BIG_ENDIAN;
+        if (hasHeader(decode, 0, decode.length)) {
+            switch (format(decode, 0)) {
+                case FORMAT_FLOAT_WITH_NORM:
+                    bb.position(HEADER_BYTES + Float.BYTES); // skip the header and the norm
+                    break;
+                case FORMAT_FLOAT_LE:
+                    bb.position(HEADER_BYTES);
+                    order = ByteOrder.LITTLE_ENDIAN;
+                    break;
+                case FORMAT_INT8:
+                    return dequantizeInt8(bb);
+                case FORMAT_FLOAT16:
+                case FORMAT_BFLOAT16:
+                    return decodeHalf(bb, format(decode, 0) == FORMAT_BFLOAT16);
+                case FORMAT_BITS:
+                    throw new IllegalArgumentException("bit vectors should be decoded with convertBase64ToBits");
+                case FORMAT_SPARSE:
+                    return decodeSparse(decode).toDense();
+                default:
+                    throw new IllegalArgumentException("unknown vector format [" + format(decode, 0) + "]");
+            }
+        }
+        final FloatBuffer floatBuffer = bb.slice().order(order).asFloatBuffer();
         final float[] dims = new float[floatBuffer.capacity()];
         floatBuffer.get(dims);
 
@@ -29,4 +94,427 @@ public class Util {
 
         return new String(encodedBB.array());
     }
+
+    /**
+     * Same as {@link #convertArrayToBase64(float[])} but prefixed with the
+     * {@link #FORMAT_FLOAT_WITH_NORM} header and the vector norm.
+     * A vector normalized before encoding simply stores a norm of 1.
+     */
+    public static String convertArrayToBase64WithNorm(float[] array) {
+        final ByteBuffer bb = ByteBuffer.allocate(HEADER_BYTES + Float.BYTES * (array.length + 1));
+        putHeader(bb, FORMAT_FLOAT_WITH_NORM);
+        bb.putFloat(norm(array));
+        for (float v : array) {
+            bb.putFloat(v);
+        }
+        bb.rewind();
+        final ByteBuffer encodedBB = Base64.getEncoder().encode(bb);
+
+        return new String(encodedBB.array());
+    }
+
+    /**
+     * Encodes a query vector as {@link #FORMAT_FLOAT_LE}, the cheapest encoding to decode for {@code encoded_vector}.
+     * Documents can't be stored in this format.
+     */
+    public static String convertArrayToBase64LE(float[] array) {
+        final ByteBuffer bb = ByteBuffer.allocate(HEADER_BYTES + Float.BYTES * array.length);
+        putHeader(bb, FORMAT_FLOAT_LE);
+        bb.order(ByteOrder.LITTLE_ENDIAN);
+        for (float v : array) {
+            bb.putFloat(v);
+        }
+        bb.rewind();
+        final ByteBuffer encodedBB = Base64.getEncoder().encode(bb);
+
+        return new String(encodedBB.array());
+    }
+
+    /**
+     * Encodes the vector as {@link #FORMAT_INT8}, a quarter of the float32 size.
+     * The values are mapped linearly from [min, max] to [-127, 127], so each value is off by at most
+     * {@code (max - min) / 508}. For a query q the dot product error is bounded by
+     * {@code ||q||_1 * (max - min) / 508} plus the query's own quantization error, see the README.
+     */
+    public static String convertArrayToBase64Int8(float[] array) {
+        float min = Float.POSITIVE_INFINITY;
+        float max = Float.NEGATIVE_INFINITY;
+        for (float v : array) {
+            min = Math.min(min, v);
+            max = Math.max(max, v);
+        }
+        final float offset = array.length == 0 ? 0 : (max + min) / 2;
+        final float scale = array.length == 0 ? 0 : (max - min) / 254;
+
+        final ByteBuffer bb = ByteBuffer.allocate(HEADER_BYTES + INT8_PREFIX_BYTES + array.length);
+        putHeader(bb, FORMAT_INT8);
+        bb.putFloat(scale);
+        bb.putFloat(offset);
+        bb.putFloat(norm(array));
+        for (float v : array) {
+            bb.put(scale == 0 ? 0 : (byte) Math.max(-127, Math.min(127, Math.round((v - offset) / scale))));
+        }
+        bb.rewind();
+        final ByteBuffer encodedBB = Base64.getEncoder().encode(bb);
+
+        return new String(encodedBB.array());
+    }
+
+    /**
+     * Encodes the vector as {@link #FORMAT_FLOAT16}: 11 significant bits, so each value is off by at most 2^-11 of
+     * itself, for values within {@link #FLOAT16_MAX}. Use {@link #convertArrayToBase64BFloat16(float[])} for larger ones.
+     * @throws IllegalArgumentException if a value is out of the float16 range
+     */
+    public static String convertArrayToBase64Float16(float[] array) {
+        for (float v : array) {
+            if (Math.abs(v) > FLOAT16_MAX) {
+                throw new IllegalArgumentException("value [" + v + "] is out of the float16 range, use bfloat16 instead");
+            }
+        }
+        return encodeHalf(array, FORMAT_FLOAT16);
+    }
+
+    /**
+     * Encodes the vector as {@link #FORMAT_BFLOAT16}: the float32 range with 8 significant bits, so each value is off by
+     * at most 2^-8 of itself.
+     */
+    public static String convertArrayToBase64BFloat16(float[] array) {
+        return encodeHalf(array, FORMAT_BFLOAT16);
+    }
+
+    private static String encodeHalf(float[] array, byte format) {
+        final short[] values = new short[array.length];
+        float norm = 0.0f;
+        for (int i = 0; i < array.length; i++) {
+            values[i] = format == FORMAT_BFLOAT16 ? floatToBFloat16(array[i]) : floatToFloat16(array[i]);
+            // the norm of what is stored, so a vector still has a cosine of 1 with itself
+            final float rounded = format == FORMAT_BFLOAT16 ? bfloat16ToFloat(values[i]) : float16ToFloat(values[i]);
+            norm += rounded * rounded;
+        }
+        final ByteBuffer bb = ByteBuffer.allocate(HEADER_BYTES + Float.BYTES + Short.BYTES * array.length);
+        putHeader(bb, format);
+        bb.putFloat((float) Math.sqrt(norm));
+        for (short v : values) {
+            bb.putShort(v);
+        }
+        bb.rewind();
+        final ByteBuffer encodedBB = Base64.getEncoder().encode(bb);
+
+        return new String(encodedBB.array());
+    }
+
+    /**
+     * @return the IEEE 754 half precision value closest to value, ties to even, out of range values become infinite
+     */
+    public static short floatToFloat16(float value) {
+        final int bits = Float.floatToRawIntBits(value);
+        final int sign = (bits >>> 16) & 0x8000;
+        final int exponent = (bits >>> 23) & 0xFF;
+        final int mantissa = bits & 0x7FFFFF;
+        if (exponent == 0xFF) {
+            return (short) (sign | 0x7C00 | (mantissa == 0 ? 0 : 0x200)); // infinity or a quiet NaN
+        }
+        final int halfExponent = exponent - 127 + 15;
+        if (halfExponent >= 0x1F) {
+            return (short) (sign | 0x7C00);
+        }
+        if (halfExponent <= 0) {
+            if (halfExponent < -10) {
+                return (short) sign; // below half the smallest subnormal
+            }
+            // subnormal, the implicit leading bit becomes explicit; rounding up may give the smallest normal
+            return (short) (sign | roundShift(mantissa | 0x800000, 14 - halfExponent));
+        }
+        // a carry out of the mantissa correctly bumps the exponent, up to infinity
+        return (short) (sign | roundShift((halfExponent << 23) | mantissa, 13));
+    }
+
+    public static float float16ToFloat(short half) {
+        final int bits = half & 0xFFFF;
+        final int sign = (bits & 0x8000) << 16;
+        final int exponent = (bits >>> 10) & 0x1F;
+        final int mantissa = bits & 0x3FF;
+        if (exponent == 0x1F) {
+            return Float.intBitsToFloat(sign | 0x7F800000 | (mantissa << 13));
+        }
+        if (exponent == 0) {
+            final float value = mantissa * 0x1p-24f; // zero or subnormal
+            return sign == 0 ? value : -value;
+        }
+        return Float.intBitsToFloat(sign | ((exponent + 127 - 15) << 23) | (mantissa << 13));
+    }
+
+    /**
+     * @return the bfloat16 value closest to value, ties to even: the upper half of its float32 bits
+     */
+    public static short floatToBFloat16(float value) {
+        final int bits = Float.floatToRawIntBits(value);
+        if (Float.isNaN(value)) {
+            return (short) ((bits >>> 16) | 0x40); // stays a NaN once truncated
+        }
+        return (short) ((bits + 0x7FFF + ((bits >>> 16) & 1)) >>> 16);
+    }
+
+    public static float bfloat16ToFloat(short bfloat16) {
+        return Float.intBitsToFloat(bfloat16 << 16);
+    }
+
+    private static int roundShift(int value, int shift) {
+        final int result = value >>> shift;
+        final int remainder = value & ((1 << shift) - 1);
+        final int half = 1 << (shift - 1);
+        return remainder > half || (remainder == half && (result & 1) != 0) ? result + 1 : result;
+    }
+
+    /**
+     * Encodes a sparse vector as {@link #FORMAT_SPARSE}, scored in time proportional to its non-zero values.
+     * @param indices the indices of the non-zero values, strictly increasing
+     * @param values the values at these indices
+     */
+    public static String convertSparseToBase64(int[] indices, float[] values) {
+        if (indices.length != values.length) {
+            throw new IllegalArgumentException("a sparse vector needs as many indices as values but got [" + indices.length
+                    + "] and [" + values.length + "]");
+        }
+        float norm = 0.0f;
+        for (int i = 0; i < indices.length; i++) {
+            if (indices[i] < 0 || (i > 0 && indices[i] <= indices[i - 1])) {
+                throw new IllegalArgumentException("sparse vector indices must be positive and strictly increasing but index ["
+                        + i + "] is [" + indices[i] + "]");
+            }
+            norm += values[i] * values[i];
+        }
+        // a VInt takes at most 5 bytes
+        final ByteBuffer bb = ByteBuffer.allocate(HEADER_BYTES + SPARSE_PREFIX_BYTES + (5 + Float.BYTES) * indices.length);
+        putHeader(bb, FORMAT_SPARSE);
+        bb.putFloat((float) Math.sqrt(norm));
+        bb.putInt(indices.length);
+        int previous = 0;
+        for (int i = 0; i < indices.length; i++) {
+            int delta = indices[i] - previous;
+            while ((delta & ~0x7F) != 0) {
+                bb.put((byte) ((delta & 0x7F) | 0x80));
+                delta >>>= 7;
+            }
+            bb.put((byte) delta);
+            bb.putFloat(values[i]);
+            previous = indices[i];
+        }
+        bb.flip();
+        final ByteBuffer encodedBB = Base64.getEncoder().encode(bb);
+
+        return new String(encodedBB.array());
+    }
+
+    /**
+     * Encodes the non-zero values of a dense vector as {@link #FORMAT_SPARSE}.
+     */
+    public static String convertArrayToBase64Sparse(float[] array) {
+        int nnz = 0;
+        for (float v : array) {
+            if (v != 0) {
+                nnz++;
+            }
+        }
+        final int[] indices = new int[nnz];
+        final float[] values = new float[nnz];
+        for (int i = 0, j = 0; i < array.length; i++) {
+            if (array[i] != 0) {
+                indices[j] = i;
+                values[j++] = array[i];
+            }
+        }
+        return convertSparseToBase64(indices, values);
+    }
+
+    /**
+     * Decodes a {@link #FORMAT_SPARSE} vector.
+     */
+    public static SparseVector convertBase64ToSparse(String base64Str) {
+        final byte[] decode = Base64.getDecoder().decode(base64Str.getBytes());
+        if (hasHeader(decode, 0, decode.length) == false || format(decode, 0) != FORMAT_SPARSE) {
+            throw new IllegalArgumentException("expected a sparse vector");
+        }
+        return decodeSparse(decode);
+    }
+
+    /**
+     * @return true if the base64 vector is a {@link #FORMAT_SPARSE} one, only its header is decoded
+     */
+    public static boolean isSparse(String base64Str) {
+        if (base64Str.length() < 8) {
+            return false;
+        }
+        final byte[] header = Base64.getDecoder().decode(base64Str.substring(0, 8));
+        return hasHeader(header, 0, header.length) && format(header, 0) == FORMAT_SPARSE;
+    }
+
+    private static SparseVector decodeSparse(byte[] bytes) {
+        final ByteBuffer bb = ByteBuffer.wrap(bytes);
+        bb.position(HEADER_BYTES + Float.BYTES); // skip the header and the norm
+        final int nnz = bb.getInt();
+        final int[] indices = new int[nnz];
+        final float[] values = new float[nnz];
+        int index = 0;
+        for (int i = 0; i < nnz; i++) {
+            int delta = 0;
+            for (int shift = 0; ; shift += 7) {
+                final byte b = bb.get();
+                delta |= (b & 0x7F) << shift;
+                if (b >= 0) break;
+            }
+            index += delta;
+            indices[i] = index;
+            values[i] = bb.getFloat();
+        }
+        return new SparseVector(indices, values);
+    }
+
+    /**
+     * The non-zero values of a vector and their strictly increasing indices.
+     */
+    public static final class SparseVector {
+
+        private final int[] indices;
+        private final float[] values;
+
+        public SparseVector(int[] indices, float[] values) {
+            this.indices = indices;
+            this.values = values;
+        }
+
+        public int[] indices() {
+            return indices;
+        }
+
+        public float[] values() {
+            return values;
+        }
+
+        /**
+         * @return the vector with its zeros, up to its last non-zero value
+         */
+        public float[] toDense() {
+            final float[] dense = new float[indices.length == 0 ? 0 : indices[indices.length - 1] + 1];
+            for (int i = 0; i < indices.length; i++) {
+                dense[indices[i]] = values[i];
+            }
+            return dense;
+        }
+    }
+
+    /**
+     * Encodes a bit vector as {@link #FORMAT_BITS}, bit i of the vector is bit (i % 64) of word (i / 64).
+     */
+    public static String convertBitsToBase64(long[] words) {
+        final ByteBuffer bb = ByteBuffer.allocate(HEADER_BYTES + Long.BYTES * words.length);
+        putHeader(bb, FORMAT_BITS);
+        for (long word : words) {
+            bb.putLong(word);
+        }
+        bb.rewind();
+        final ByteBuffer encodedBB = Base64.getEncoder().encode(bb);
+
+        return new String(encodedBB.array());
+    }
+
+    /**
+     * Decodes packed 64 bit words, with or without the {@link #FORMAT_BITS} header.
+     */
+    public static long[] convertBase64ToBits(String base64Str) {
+        final byte[] decode = Base64.getDecoder().decode(base64Str.getBytes());
+        final ByteBuffer bb = ByteBuffer.wrap(decode);
+        if (hasBitsHeader(decode, 0, decode.length)) {
+            bb.position(HEADER_BYTES);
+        }
+        final long[] words = new long[bb.remaining() / Long.BYTES];
+        bb.slice().asLongBuffer().get(words);
+
+        return words;
+    }
+
+    /**
+     * Binarizes a vector: bit i is set when value i is positive.
+     */
+    public static long[] toBits(float[] array) {
+        final long[] words = new long[(array.length + Long.SIZE - 1) / Long.SIZE];
+        for (int i = 0; i < array.length; i++) {
+            if (array[i] > 0) {
+                words[i / Long.SIZE] |= 1L << (i % Long.SIZE);
+            }
+        }
+        return words;
+    }
+
+    /**
+     * @return true if the vector bytes at offset start with a format header
+     */
+    public static boolean hasHeader(byte[] bytes, int offset, int length) {
+        return length >= HEADER_BYTES
+                && bytes[offset] == MAGIC_0
+                && bytes[offset + 1] == MAGIC_1
+                && bytes[offset + 2] == MAGIC_2;
+    }
+
+    /**
+     * Tells a {@link #FORMAT_BITS} header from its length: packed words are a multiple of 8 bytes and the header makes it
+     * 4 more. Headerless words can start with any bytes, the magic included, so they are never told from their content.
+     * @return true if the bit vector bytes at offset start with the {@link #FORMAT_BITS} header
+     * @throws IllegalArgumentException if the bytes aren't whole 64 bit words, or have the header of another format
+     */
+    public static boolean hasBitsHeader(byte[] bytes, int offset, int length) {
+        if (length % Long.BYTES == 0) {
+            return false;
+        }
+        if (length % Long.BYTES != HEADER_BYTES || hasHeader(bytes, offset, length) == false) {
+            throw new IllegalArgumentException("bit vectors must be packed in 64 bit words but got [" + length + "] bytes");
+        }
+        if (format(bytes, offset) != FORMAT_BITS) {
+            throw new IllegalArgumentException("expected a bit vector but got vector format [" + format(bytes, offset) + "]");
+        }
+        return true;
+    }
+
+    /**
+     * @return the format byte of a vector that {@link #hasHeader has a header}
+     */
+    public static byte format(byte[] bytes, int offset) {
+        return bytes[offset + HEADER_BYTES - 1];
+    }
+
+    /**
+     * L2 norm accumulated in float, the same way the scoring script does.
+     */
+    public static float norm(float[] array) {
+        float norm = 0.0f;
+        for (float v : array) {
+            norm += v * v;
+        }
+        return (float) Math.sqrt(norm);
+    }
+
+    private static float[] dequantizeInt8(ByteBuffer bb) {
+        bb.position(HEADER_BYTES);
+        final float scale = bb.getFloat();
+        final float offset = bb.getFloat();
+        bb.getFloat(); // norm
+        final float[] dims = new float[bb.remaining()];
+        for (int i = 0; i < dims.length; i++) {
+            dims[i] = offset + scale * bb.get();
+        }
+        return dims;
+    }
+
+    private static float[] decodeHalf(ByteBuffer bb, boolean bfloat16) {
+        bb.position(HEADER_BYTES + Float.BYTES); // skip the header and the norm
+        final float[] dims = new float[bb.remaining() / Short.BYTES];
+        for (int i = 0; i < dims.length; i++) {
+            dims[i] = bfloat16 ? bfloat16ToFloat(bb.getShort()) : float16ToFloat(bb.getShort());
+        }
+        return dims;
+    }
+
+    private static void putHeader(ByteBuffer bb, byte format) {
+        bb.put(MAGIC_0).put(MAGIC_1).put(MAGIC_2).put(format);
+    }
 }
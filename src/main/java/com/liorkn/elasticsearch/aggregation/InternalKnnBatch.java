@@ -0,0 +1,176 @@
+package com.liorkn.elasticsearch.aggregation;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Writeable;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.search.aggregations.InternalAggregation;
+import org.elasticsearch.search.aggregations.pipeline.PipelineAggregator;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * The k best hits of each query vector of a {@code knn_batch} aggregation, in the order the vectors were given:
+ * <pre>
+ * "similar": {
+ *     "results": [
+ *         {"hits": [{"_index": "test", "_id": "1", "_score": 0.99}]},
+ *         {"hits": [{"_index": "test", "_id": "2", "_score": 0.95}]}
+ *     ]
+ * }
+ * </pre>
+ */
+public class InternalKnnBatch extends InternalAggregation {
+
+    private static final Comparator<Hit> BEST_FIRST = Comparator.comparing((Hit hit) -> hit.score).reversed()
+            .thenComparing(hit -> hit.index)
+            .thenComparing(hit -> hit.id);
+
+    private final int k;
+    private final List<List<Hit>> results;
+
+    InternalKnnBatch(String name, int k, List<List<Hit>> results, List<PipelineAggregator> pipelineAggregators,
+                     Map<String, Object> metaData) {
+        super(name, pipelineAggregators, metaData);
+        this.k = k;
+        this.results = results;
+    }
+
+    public InternalKnnBatch(StreamInput in) throws IOException {
+        super(in);
+        k = in.readVInt();
+        final int numQueries = in.readVInt();
+        results = new ArrayList<>(numQueries);
+        for (int q = 0; q < numQueries; q++) {
+            results.add(in.readList(Hit::new));
+        }
+    }
+
+    @Override
+    protected void doWriteTo(StreamOutput out) throws IOException {
+        out.writeVInt(k);
+        out.writeVInt(results.size());
+        for (List<Hit> hits : results) {
+            out.writeList(hits);
+        }
+    }
+
+    /**
+     * @return the hits of each query vector, best first
+     */
+    public List<List<Hit>> getResults() {
+        return results;
+    }
+
+    @Override
+    public InternalAggregation doReduce(List<InternalAggregation> aggregations, ReduceContext reduceContext) {
+        final List<List<Hit>> reduced = new ArrayList<>(results.size());
+        for (int q = 0; q < results.size(); q++) {
+            final List<Hit> hits = new ArrayList<>();
+            for (InternalAggregation aggregation : aggregations) {
+                hits.addAll(((InternalKnnBatch) aggregation).results.get(q));
+            }
+            hits.sort(BEST_FIRST);
+            reduced.add(new ArrayList<>(hits.subList(0, Math.min(k, hits.size()))));
+        }
+        return new InternalKnnBatch(name, k, reduced, pipelineAggregators(), getMetaData());
+    }
+
+    @Override
+    public Object getProperty(List<String> path) {
+        if (path.isEmpty()) {
+            return this;
+        }
+        throw new IllegalArgumentException("path not supported for [" + getName() + "]: " + path);
+    }
+
+    @Override
+    public XContentBuilder doXContentBody(XContentBuilder builder, Params params) throws IOException {
+        builder.startArray("results");
+        for (List<Hit> hits : results) {
+            builder.startObject();
+            builder.startArray("hits");
+            for (Hit hit : hits) {
+                builder.startObject();
+                builder.field("_index", hit.index);
+                builder.field("_id", hit.id);
+                builder.field("_score", hit.score);
+                builder.endObject();
+            }
+            builder.endArray();
+            builder.endObject();
+        }
+        builder.endArray();
+        return builder;
+    }
+
+    @Override
+    public String getWriteableName() {
+        return KnnBatchAggregationBuilder.NAME;
+    }
+
+    protected boolean doEquals(Object obj) {
+        final InternalKnnBatch other = (InternalKnnBatch) obj;
+        return k == other.k && results.equals(other.results);
+    }
+
+    protected int doHashCode() {
+        return Objects.hash(k, results);
+    }
+
+    public static final class Hit implements Writeable {
+
+        private final String index;
+        private final String id;
+        private final float score;
+
+        Hit(String index, String id, float score) {
+            this.index = index;
+            this.id = id;
+            this.score = score;
+        }
+
+        Hit(StreamInput in) throws IOException {
+            index = in.readString();
+            id = in.readString();
+            score = in.readFloat();
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            out.writeString(index);
+            out.writeString(id);
+            out.writeFloat(score);
+        }
+
+        public String getIndex() {
+            return index;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public float getScore() {
+            return score;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            final Hit hit = (Hit) o;
+            return Float.compare(hit.score, score) == 0 && index.equals(hit.index) && id.equals(hit.id);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(index, id, score);
+        }
+    }
+}
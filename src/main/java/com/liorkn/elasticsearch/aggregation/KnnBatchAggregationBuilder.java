@@ -0,0 +1,236 @@
+package com.liorkn.elasticsearch.aggregation;
+
+import com.liorkn.elasticsearch.Util;
+import com.liorkn.elasticsearch.cache.VectorCache;
+import com.liorkn.elasticsearch.script.Metric;
+import org.elasticsearch.common.ParsingException;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.index.query.QueryParseContext;
+import org.elasticsearch.search.aggregations.AbstractAggregationBuilder;
+import org.elasticsearch.search.aggregations.AggregationInitializationException;
+import org.elasticsearch.search.aggregations.AggregatorFactories;
+import org.elasticsearch.search.aggregations.AggregatorFactory;
+import org.elasticsearch.search.internal.SearchContext;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * A {@code knn_batch} aggregation scoring many query vectors in a single pass over the docs matched by the query:
+ * <pre>
+ * "aggs": {
+ *     "similar": {
+ *         "knn_batch": {
+ *             "field": "embedding_vector",
+ *             "vectors": [[0.1, 0.2, 0.3], [0.3, 0.2, 0.1]],
+ *             "metric": "cosine",
+ *             "k": 10
+ *         }
+ *     }
+ * }
+ * </pre>
+ * {@code encoded_vectors} can be used instead of {@code vectors}. The result has the k best hits of each query vector,
+ * in the order the vectors were given.
+ */
+public class KnnBatchAggregationBuilder extends AbstractAggregationBuilder<KnnBatchAggregationBuilder> {
+
+    public static final String NAME = "knn_batch";
+
+    private final String field;
+    private final float[][] vectors;
+    private Metric metric = Metric.COSINE;
+    private int k = 10;
+
+    // node level services, not serialized
+    private VectorCache vectorCache;
+
+    public KnnBatchAggregationBuilder(String name, String field, float[][] vectors) {
+        super(name);
+        if (field == null) {
+            throw new IllegalArgumentException("[" + NAME + "] requires a field");
+        }
+        if (vectors == null || vectors.length == 0) {
+            throw new IllegalArgumentException("[" + NAME + "] requires vectors or encoded_vectors");
+        }
+        for (float[] vector : vectors) {
+            if (vector.length != vectors[0].length) {
+                throw new IllegalArgumentException("[" + NAME + "] vectors must all have the same dims but got ["
+                        + vectors[0].length + "] and [" + vector.length + "]");
+            }
+        }
+        this.field = field;
+        this.vectors = vectors;
+    }
+
+    public KnnBatchAggregationBuilder(StreamInput in) throws IOException {
+        super(in);
+        field = in.readString();
+        vectors = new float[in.readVInt()][];
+        for (int i = 0; i < vectors.length; i++) {
+            vectors[i] = in.readFloatArray();
+        }
+        metric = Metric.fromString(in.readString());
+        k = in.readVInt();
+    }
+
+    @Override
+    protected void doWriteTo(StreamOutput out) throws IOException {
+        out.writeString(field);
+        out.writeVInt(vectors.length);
+        for (float[] vector : vectors) {
+            out.writeFloatArray(vector);
+        }
+        out.writeString(metric.toString());
+        out.writeVInt(k);
+    }
+
+    public KnnBatchAggregationBuilder metric(Metric metric) {
+        if (metric == Metric.HAMMING || metric == Metric.L2) {
+            throw new IllegalArgumentException("[" + NAME + "] only supports the cosine and dot_product metrics");
+        }
+        this.metric = Objects.requireNonNull(metric);
+        return this;
+    }
+
+    /**
+     * @param k the number of hits to return for each query vector
+     */
+    public KnnBatchAggregationBuilder k(int k) {
+        if (k <= 0) {
+            throw new IllegalArgumentException("[" + NAME + "] k must be greater than 0 but was [" + k + "]");
+        }
+        this.k = k;
+        return this;
+    }
+
+    public KnnBatchAggregationBuilder vectorCache(VectorCache vectorCache) {
+        this.vectorCache = vectorCache;
+        return this;
+    }
+
+    public String field() {
+        return field;
+    }
+
+    public float[][] vectors() {
+        return vectors;
+    }
+
+    public Metric metric() {
+        return metric;
+    }
+
+    public int k() {
+        return k;
+    }
+
+    @Override
+    public KnnBatchAggregationBuilder subAggregations(AggregatorFactories.Builder subFactories) {
+        throw new AggregationInitializationException("Aggregator [" + name + "] of type [" + getType() + "] cannot accept sub-aggregations");
+    }
+
+    @Override
+    protected AggregatorFactory<?> doBuild(SearchContext context, AggregatorFactory<?> parent,
+                                           AggregatorFactories.Builder subFactoriesBuilder) throws IOException {
+        return new KnnBatchAggregatorFactory(name, context, parent, subFactoriesBuilder, metaData,
+                field, vectors, metric, k, vectorCache);
+    }
+
+    @Override
+    protected XContentBuilder internalXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject();
+        builder.field("field", field);
+        builder.startArray("vectors");
+        for (float[] vector : vectors) {
+            builder.startArray();
+            for (float v : vector) {
+                builder.value(v);
+            }
+            builder.endArray();
+        }
+        builder.endArray();
+        builder.field("metric", metric.toString());
+        builder.field("k", k);
+        builder.endObject();
+        return builder;
+    }
+
+    public static KnnBatchAggregationBuilder parse(String aggregationName, QueryParseContext context) throws IOException {
+        final XContentParser parser = context.parser();
+
+        String field = null;
+        List<float[]> vectors = new ArrayList<>();
+        Metric metric = Metric.COSINE;
+        int k = 10;
+
+        String currentFieldName = null;
+        XContentParser.Token token;
+        while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+            if (token == XContentParser.Token.FIELD_NAME) {
+                currentFieldName = parser.currentName();
+            } else if (token == XContentParser.Token.START_ARRAY && "vectors".equals(currentFieldName)) {
+                while (parser.nextToken() == XContentParser.Token.START_ARRAY) {
+                    vectors.add(parseVector(parser));
+                }
+            } else if (token == XContentParser.Token.START_ARRAY && "encoded_vectors".equals(currentFieldName)) {
+                while (parser.nextToken() != XContentParser.Token.END_ARRAY) {
+                    vectors.add(Util.convertBase64ToArray(parser.text()));
+                }
+            } else if (token.isValue()) {
+                if ("field".equals(currentFieldName)) {
+                    field = parser.text();
+                } else if ("metric".equals(currentFieldName)) {
+                    metric = Metric.fromString(parser.text());
+                } else if ("k".equals(currentFieldName)) {
+                    k = parser.intValue();
+                } else {
+                    throw new ParsingException(parser.getTokenLocation(), "[" + NAME + "] aggregation does not support [" + currentFieldName + "]");
+                }
+            } else {
+                throw new ParsingException(parser.getTokenLocation(), "[" + NAME + "] unexpected token [" + token + "] after [" + currentFieldName + "]");
+            }
+        }
+
+        try {
+            return new KnnBatchAggregationBuilder(aggregationName, field, vectors.isEmpty() ? null : vectors.toArray(new float[0][]))
+                    .metric(metric)
+                    .k(k);
+        } catch (IllegalArgumentException e) {
+            throw new ParsingException(parser.getTokenLocation(), e.getMessage(), e);
+        }
+    }
+
+    private static float[] parseVector(XContentParser parser) throws IOException {
+        final List<Float> values = new ArrayList<>();
+        while (parser.nextToken() != XContentParser.Token.END_ARRAY) {
+            values.add(parser.floatValue());
+        }
+        final float[] vector = new float[values.size()];
+        for (int i = 0; i < vector.length; i++) {
+            vector[i] = values.get(i);
+        }
+        return vector;
+    }
+
+    @Override
+    protected boolean doEquals(Object obj) {
+        final KnnBatchAggregationBuilder other = (KnnBatchAggregationBuilder) obj;
+        return field.equals(other.field) && Arrays.deepEquals(vectors, other.vectors) && metric == other.metric && k == other.k;
+    }
+
+    @Override
+    protected int doHashCode() {
+        return Objects.hash(field, Arrays.deepHashCode(vectors), metric, k);
+    }
+
+    @Override
+    public String getType() {
+        return NAME;
+    }
+}
@@ -0,0 +1,220 @@
+package com.liorkn.elasticsearch.aggregation;
+
+import com.liorkn.elasticsearch.cache.SegmentVectors;
+import com.liorkn.elasticsearch.cache.VectorCache;
+import com.liorkn.elasticsearch.mapper.DenseVectorFieldMapper;
+import com.liorkn.elasticsearch.query.TopDocHeap;
+import com.liorkn.elasticsearch.script.Metric;
+import com.liorkn.elasticsearch.script.VectorKernels;
+import com.liorkn.elasticsearch.script.VectorPayload;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.index.mapper.Uid;
+import org.elasticsearch.index.mapper.UidFieldMapper;
+import org.elasticsearch.search.aggregations.InternalAggregation;
+import org.elasticsearch.search.aggregations.LeafBucketCollector;
+import org.elasticsearch.search.aggregations.LeafBucketCollectorBase;
+import org.elasticsearch.search.aggregations.metrics.MetricsAggregator;
+import org.elasticsearch.search.aggregations.pipeline.PipelineAggregator;
+import org.elasticsearch.search.internal.SearchContext;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Scores every query vector against the docs of a shard in one pass.
+ * <p>
+ * Each doc vector is decoded once into a block of {@link #BLOCK_SIZE} rows. When the block is full every query is
+ * scored against all of its rows, so a query row is read once per block instead of once per doc and the block stays
+ * in cache while the queries stream through. For cosine the rows and the queries are normalized up front and the
+ * kernel is a plain dot product.
+ */
+class KnnBatchAggregator extends MetricsAggregator {
+
+    static final int BLOCK_SIZE = 16;
+
+    private static final Set<String> UID_FIELD = Collections.singleton(UidFieldMapper.NAME);
+
+    private final String field;
+    private final Metric metric;
+    private final int k;
+    private final int dims;
+    private final int numQueries;
+    private final boolean denseVector;
+    @Nullable
+    private final VectorCache vectorCache;
+
+    // numQueries rows of dims values
+    private final float[] queries;
+    private final TopDocHeap[] topDocs;
+
+    // the pending block, doc ids are global
+    private final float[] block;
+    private final int[] blockDocs;
+    private int blockSize;
+
+    // the current leaf
+    private int docBase;
+    private SegmentVectors segmentVectors;
+    private BinaryDocValues values;
+    private final VectorPayload payload = new VectorPayload();
+
+    KnnBatchAggregator(String name, SearchContext context, List<PipelineAggregator> pipelineAggregators,
+                       Map<String, Object> metaData, String field, float[][] vectors, Metric metric, int k,
+                       boolean denseVector, @Nullable VectorCache vectorCache) throws IOException {
+        super(name, context, null, pipelineAggregators, metaData);
+        this.field = field;
+        this.metric = metric;
+        this.k = k;
+        this.dims = vectors[0].length;
+        this.numQueries = vectors.length;
+        this.denseVector = denseVector;
+        this.vectorCache = vectorCache;
+
+        queries = new float[numQueries * dims];
+        topDocs = new TopDocHeap[numQueries];
+        for (int q = 0; q < numQueries; q++) {
+            System.arraycopy(vectors[q], 0, queries, q * dims, dims);
+            if (metric == Metric.COSINE) {
+                normalize(queries, q * dims, norm(queries, q * dims));
+            }
+            topDocs[q] = new TopDocHeap(k);
+        }
+        block = new float[BLOCK_SIZE * dims];
+        blockDocs = new int[BLOCK_SIZE];
+    }
+
+    @Override
+    public LeafBucketCollector getLeafCollector(LeafReaderContext ctx, LeafBucketCollector sub) throws IOException {
+        flush(); // the block holds global doc ids, it can span segments but not outlive the reader it was read from
+        final LeafReader reader = ctx.reader();
+        final Bits docsWithField = reader.getDocsWithField(field);
+        if (docsWithField == null) {
+            return LeafBucketCollector.NO_OP_COLLECTOR;
+        }
+        docBase = ctx.docBase;
+        segmentVectors = vectorCache == null ? null : vectorCache.get(reader, field, dims, denseVector);
+        values = segmentVectors == null ? reader.getBinaryDocValues(field) : null;
+
+        return new LeafBucketCollectorBase(sub, null) {
+            @Override
+            public void collect(int doc, long bucket) throws IOException {
+                if (docsWithField.get(doc) && read(doc, block, blockSize * dims)) {
+                    blockDocs[blockSize++] = docBase + doc;
+                    if (blockSize == BLOCK_SIZE) {
+                        flush();
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Decodes the doc's vector into dest, normalized for cosine.
+     * @return false if the doc has no vector to score
+     */
+    private boolean read(int doc, float[] dest, int offset) {
+        final float norm;
+        if (segmentVectors != null) {
+            if (segmentVectors.hasVector(doc) == false) {
+                return false;
+            }
+            segmentVectors.get(doc, dest, offset);
+            norm = (float) segmentVectors.norm(doc);
+        } else if (denseVector) {
+            final BytesRef value = values.get(doc);
+            if (value.length == 0) {
+                return false;
+            }
+            norm = DenseVectorFieldMapper.decode(value, dest, offset, dims);
+        } else {
+            if (payload.reset(values.get(doc)) == false) {
+                return false;
+            }
+            norm = payload.readFloats(dest, offset, dims);
+        }
+        if (metric == Metric.COSINE) {
+            if (norm == 0) {
+                return false; // no direction, cosine is undefined
+            }
+            normalize(dest, offset, norm);
+        }
+        return true;
+    }
+
+    /**
+     * Scores all queries against the pending block.
+     */
+    private void flush() {
+        for (int q = 0; q < numQueries; q++) {
+            final TopDocHeap heap = topDocs[q];
+            final int queryOffset = q * dims;
+            for (int b = 0; b < blockSize; b++) {
+                heap.add(VectorKernels.dot(queries, queryOffset, block, b * dims, dims), blockDocs[b]);
+            }
+        }
+        blockSize = 0;
+    }
+
+    @Override
+    public InternalAggregation buildAggregation(long owningBucketOrdinal) throws IOException {
+        flush();
+        final String index = context.indexShard().shardId().getIndexName();
+        final Map<Integer, String> ids = new HashMap<>();
+        final float[] scores = new float[k];
+        final int[] docs = new int[k];
+        final List<List<InternalKnnBatch.Hit>> results = new ArrayList<>(numQueries);
+        for (TopDocHeap heap : topDocs) {
+            final int count = heap.drainTo(scores, docs);
+            final List<InternalKnnBatch.Hit> hits = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                String id = ids.get(docs[i]);
+                if (id == null) {
+                    final Document document = context.searcher().doc(docs[i], UID_FIELD);
+                    id = Uid.createUid(document.get(UidFieldMapper.NAME)).id();
+                    ids.put(docs[i], id);
+                }
+                hits.add(new InternalKnnBatch.Hit(index, id, scores[i]));
+            }
+            results.add(hits);
+        }
+        return new InternalKnnBatch(name, k, results, pipelineAggregators(), metaData());
+    }
+
+    @Override
+    public InternalAggregation buildEmptyAggregation() {
+        final List<List<InternalKnnBatch.Hit>> results = new ArrayList<>(numQueries);
+        for (int q = 0; q < numQueries; q++) {
+            results.add(Collections.emptyList());
+        }
+        return new InternalKnnBatch(name, k, results, pipelineAggregators(), metaData());
+    }
+
+    private float norm(float[] values, int offset) {
+        float norm = 0.0f;
+        for (int i = offset; i < offset + dims; i++) {
+            norm += values[i] * values[i];
+        }
+        return (float) Math.sqrt(norm);
+    }
+
+    private void normalize(float[] values, int offset, float norm) {
+        if (norm == 0) {
+            return;
+        }
+        final float inverse = 1f / norm;
+        for (int i = offset; i < offset + dims; i++) {
+            values[i] *= inverse;
+        }
+    }
+}
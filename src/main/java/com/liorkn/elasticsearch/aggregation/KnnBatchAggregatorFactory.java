@@ -0,0 +1,60 @@
+package com.liorkn.elasticsearch.aggregation;
+
+import com.liorkn.elasticsearch.cache.VectorCache;
+import com.liorkn.elasticsearch.mapper.DenseVectorFieldMapper.DenseVectorFieldType;
+import com.liorkn.elasticsearch.script.Metric;
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.index.mapper.MappedFieldType;
+import org.elasticsearch.search.aggregations.AggregationExecutionException;
+import org.elasticsearch.search.aggregations.Aggregator;
+import org.elasticsearch.search.aggregations.AggregatorFactories;
+import org.elasticsearch.search.aggregations.AggregatorFactory;
+import org.elasticsearch.search.aggregations.pipeline.PipelineAggregator;
+import org.elasticsearch.search.internal.SearchContext;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+class KnnBatchAggregatorFactory extends AggregatorFactory<KnnBatchAggregatorFactory> {
+
+    private final String field;
+    private final float[][] vectors;
+    private final Metric metric;
+    private final int k;
+    @Nullable
+    private final VectorCache vectorCache;
+
+    KnnBatchAggregatorFactory(String name, SearchContext context, AggregatorFactory<?> parent,
+                              AggregatorFactories.Builder subFactoriesBuilder, Map<String, Object> metaData,
+                              String field, float[][] vectors, Metric metric, int k,
+                              @Nullable VectorCache vectorCache) throws IOException {
+        super(name, context, parent, subFactoriesBuilder, metaData);
+        this.field = field;
+        this.vectors = vectors;
+        this.metric = metric;
+        this.k = k;
+        this.vectorCache = vectorCache;
+    }
+
+    @Override
+    protected Aggregator createInternal(Aggregator parent, boolean collectsFromSingleBucket,
+                                        List<PipelineAggregator> pipelineAggregators, Map<String, Object> metaData) throws IOException {
+        if (parent != null) {
+            throw new AggregationExecutionException("[" + KnnBatchAggregationBuilder.NAME + "] aggregation [" + name
+                    + "] must be a top level aggregation");
+        }
+        final MappedFieldType fieldType = context.smartNameFieldType(field);
+        if (fieldType == null) {
+            throw new AggregationExecutionException("[" + KnnBatchAggregationBuilder.NAME + "] field [" + field
+                    + "] does not exist in the mapping");
+        }
+        final int denseVectorDims = fieldType instanceof DenseVectorFieldType ? ((DenseVectorFieldType) fieldType).dims() : -1;
+        if (denseVectorDims >= 0 && denseVectorDims != vectors[0].length) {
+            throw new AggregationExecutionException("[" + KnnBatchAggregationBuilder.NAME + "] vectors have ["
+                    + vectors[0].length + "] dims but field [" + field + "] has [" + denseVectorDims + "]");
+        }
+        return new KnnBatchAggregator(name, context, pipelineAggregators, metaData,
+                field, vectors, metric, k, denseVectorDims >= 0, vectorCache);
+    }
+}
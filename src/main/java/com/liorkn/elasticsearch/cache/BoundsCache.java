@@ -0,0 +1,68 @@
+package com.liorkn.elasticsearch.cache;
+
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.LeafReader;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Setting.Property;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+
+import java.io.IOException;
+import java.util.Objects;
+
+/**
+ * Node level cache of {@link SegmentBounds}, keyed by segment core, field and number of dimensions. Bounds take two
+ * floats per dimension, so the cache holds those of many segments in little memory; entries are evicted LRU once they
+ * exceed {@link #SIZE}, and dropped when their segment is merged away or closed.
+ */
+public final class BoundsCache extends SegmentCache<BoundsCache.Key, SegmentBounds> {
+
+    public static final Setting<ByteSizeValue> SIZE =
+            Setting.byteSizeSetting("knn.bounds_cache.size", new ByteSizeValue(16, ByteSizeUnit.MB), Property.NodeScope);
+
+    public BoundsCache(Settings settings) {
+        super(SIZE.get(settings).getBytes(), (key, bounds) -> bounds.ramBytesUsed());
+    }
+
+    /**
+     * @param denseVector true if the field is a dense_vector
+     * @return the segment's bounds, computed on first use, or null if the segment can't be bounded
+     */
+    public SegmentBounds get(LeafReader reader, String field, int dims, boolean denseVector) throws IOException {
+        final SegmentBounds bounds = computeIfAbsent(reader, new Key(reader.getCoreCacheKey(), field, dims), key -> {
+            final BinaryDocValues values = reader.getBinaryDocValues(field);
+            return values == null ? SegmentBounds.NOT_BOUNDED : SegmentBounds.load(values, reader.maxDoc(), dims, denseVector);
+        });
+        return bounds == SegmentBounds.NOT_BOUNDED ? null : bounds;
+    }
+
+    static final class Key extends CoreKey {
+        final String field;
+        final int dims;
+
+        Key(Object coreKey, String field, int dims) {
+            super(coreKey);
+            this.field = field;
+            this.dims = dims;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            final Key key = (Key) o;
+            return dims == key.dims && coreKey == key.coreKey && field.equals(key.field);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(System.identityHashCode(coreKey), field, dims);
+        }
+
+        @Override
+        public String toString() {
+            return "bounds of field [" + field + "] with [" + dims + "] dims";
+        }
+    }
+}
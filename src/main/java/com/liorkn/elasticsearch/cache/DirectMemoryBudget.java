@@ -0,0 +1,81 @@
+package com.liorkn.elasticsearch.cache;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caps the direct memory of cached values. Direct buffers are only freed once the garbage collector collects them,
+ * so the bytes of a value stay reserved until its owner is collected, not when it leaves the cache.
+ */
+final class DirectMemoryBudget {
+
+    private final long maxBytes;
+    private final AtomicLong reservedBytes = new AtomicLong();
+    private final ReferenceQueue<Object> collected = new ReferenceQueue<>();
+    // the references have to stay reachable to be enqueued
+    private final Set<Allocation> allocations = ConcurrentHashMap.newKeySet();
+
+    DirectMemoryBudget(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return true if the bytes were reserved, false if they would take the reserved bytes over the budget
+     */
+    boolean tryReserve(long bytes) {
+        releaseCollected();
+        long reserved;
+        do {
+            reserved = reservedBytes.get();
+            if (reserved + bytes > maxBytes) {
+                return false;
+            }
+        } while (reservedBytes.compareAndSet(reserved, reserved + bytes) == false);
+        return true;
+    }
+
+    /**
+     * Gives back reserved bytes that were never allocated.
+     */
+    void release(long bytes) {
+        reservedBytes.addAndGet(-bytes);
+    }
+
+    /**
+     * Keeps the reserved bytes until the owner of the direct buffers they were allocated for is collected.
+     */
+    void track(Object owner, long bytes) {
+        allocations.add(new Allocation(owner, bytes, collected));
+    }
+
+    /**
+     * @return the bytes allocated and not yet collected, or reserved for an allocation
+     */
+    long reservedBytes() {
+        releaseCollected();
+        return reservedBytes.get();
+    }
+
+    private void releaseCollected() {
+        Reference<?> ref;
+        while ((ref = collected.poll()) != null) {
+            final Allocation allocation = (Allocation) ref;
+            if (allocations.remove(allocation)) {
+                release(allocation.bytes);
+            }
+        }
+    }
+
+    private static final class Allocation extends PhantomReference<Object> {
+        final long bytes;
+
+        Allocation(Object owner, long bytes, ReferenceQueue<Object> queue) {
+            super(owner, queue);
+            this.bytes = bytes;
+        }
+    }
+}
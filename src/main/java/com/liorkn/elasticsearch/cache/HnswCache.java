@@ -0,0 +1,145 @@
+package com.liorkn.elasticsearch.cache;
+
+import com.liorkn.elasticsearch.hnsw.HnswGraph;
+import com.liorkn.elasticsearch.script.Metric;
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.LeafReader;
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Setting.Property;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+
+import java.io.IOException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+/**
+ * Node level cache of the {@link HnswGraph}s of dense_vector fields, keyed by segment core, field and graph parameters.
+ * A graph is built on the {@link #THREAD_POOL} executor once a query needs it, and the queries score the segment
+ * exactly until it is ready. The graph shares the segment's vectors of the {@link VectorCache} when there is one,
+ * otherwise it holds its own copy, which counts towards {@link #SIZE}.
+ */
+public final class HnswCache extends SegmentCache<HnswCache.Key, HnswGraph> {
+
+    private static final Logger LOGGER = Loggers.getLogger(HnswCache.class);
+
+    /** the name of the bounded pool graphs are built on */
+    public static final String THREAD_POOL = "knn_hnsw_build";
+
+    public static final Setting<ByteSizeValue> SIZE =
+            Setting.byteSizeSetting("knn.hnsw_cache.size", new ByteSizeValue(1, ByteSizeUnit.GB), Property.NodeScope);
+
+    // the graphs queued or being built, so a segment is only built once
+    private final Set<Key> building = ConcurrentHashMap.newKeySet();
+
+    public HnswCache(Settings settings) {
+        super(SIZE.get(settings).getBytes(), (key, graph) -> graph.ramBytesUsed());
+    }
+
+    /**
+     * Reads the segment's vectors on the calling thread, while the reader is open, and builds the graph from them
+     * on the executor.
+     * @param vectorCache the cache the graph takes the segment's vectors from, or null to load a copy of its own
+     * @return the segment's graph, or null until it is built or if it doesn't fit in the cache
+     */
+    public HnswGraph get(LeafReader reader, String field, int dims, Metric metric, int m, int efConstruction,
+                         @Nullable VectorCache vectorCache, Executor executor) throws IOException {
+        final int maxDoc = reader.maxDoc();
+        final long vectorBytes = vectorCache == null ? SegmentVectors.estimateBytes(maxDoc, dims) : 0;
+        if (vectorBytes + HnswGraph.estimateBytes(maxDoc, m) > maxBytes()) {
+            return null; // would evict everything and still not fit
+        }
+
+        final Key key = new Key(reader.getCoreCacheKey(), field, dims, metric, m, efConstruction);
+        final HnswGraph graph = get(reader, key);
+        if (graph != null) {
+            return graph == HnswGraph.EMPTY ? null : graph;
+        }
+        if (building.add(key) == false) {
+            return null; // another query started the build
+        }
+        final SegmentVectors vectors;
+        try {
+            if (vectorCache != null) {
+                vectors = vectorCache.get(reader, field, dims, true);
+            } else {
+                final BinaryDocValues values = reader.getBinaryDocValues(field);
+                vectors = values == null ? SegmentVectors.NOT_CACHEABLE : SegmentVectors.load(values, maxDoc, dims, true);
+            }
+        } catch (IOException | RuntimeException e) {
+            building.remove(key);
+            throw e;
+        }
+        if (vectors == null) {
+            building.remove(key);
+            return null; // the vector cache is full for now, a later query tries again
+        }
+        if (vectors == SegmentVectors.NOT_CACHEABLE) {
+            put(key, HnswGraph.EMPTY);
+            building.remove(key);
+            return null;
+        }
+
+        try {
+            executor.execute(() -> {
+                try {
+                    final long start = System.nanoTime();
+                    final HnswGraph built = HnswGraph.build(vectors, maxDoc, metric, m, efConstruction, vectorCache == null);
+                    LOGGER.debug("built the {} for [{}] docs in [{}ms], [{}] bytes", key, maxDoc,
+                            (System.nanoTime() - start) / 1_000_000, built.ramBytesUsed());
+                    put(key, built);
+                } catch (RuntimeException e) {
+                    LOGGER.warn("failed to build the " + key, e);
+                } finally {
+                    building.remove(key);
+                }
+            });
+        } catch (EsRejectedExecutionException e) {
+            building.remove(key); // the queue is full, a later query tries again
+        }
+        return null;
+    }
+
+    static final class Key extends CoreKey {
+        final String field;
+        final int dims;
+        final Metric metric;
+        final int m;
+        final int efConstruction;
+
+        Key(Object coreKey, String field, int dims, Metric metric, int m, int efConstruction) {
+            super(coreKey);
+            this.field = field;
+            this.dims = dims;
+            this.metric = metric;
+            this.m = m;
+            this.efConstruction = efConstruction;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            final Key key = (Key) o;
+            return coreKey == key.coreKey && field.equals(key.field) && dims == key.dims && metric == key.metric
+                    && m == key.m && efConstruction == key.efConstruction;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(System.identityHashCode(coreKey), field, dims, metric, m, efConstruction);
+        }
+
+        @Override
+        public String toString() {
+            return "hnsw graph of field [" + field + "] with m [" + m + "] and ef_construction [" + efConstruction + "]";
+        }
+    }
+}
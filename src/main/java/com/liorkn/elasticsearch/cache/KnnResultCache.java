@@ -0,0 +1,88 @@
+package com.liorkn.elasticsearch.cache;
+
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Setting.Property;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+
+import java.io.IOException;
+import java.util.Objects;
+
+/**
+ * Node level LRU cache of the {@link SegmentTopDocs} of knn queries, keyed by the segment core and its number of deleted
+ * docs and by the query itself: field, vector, metric, k and min_score. A query repeated against segments that didn't
+ * change is a lookup per segment instead of a scan. The deletes of a segment only grow, so their count tells its readers
+ * apart without keeping a reader nor its live docs reachable. New deletes give the segment a new key, the entries of its
+ * former deletes age out of the cache, and all of a segment's entries are dropped when it is merged away or closed.
+ */
+public final class KnnResultCache extends SegmentCache<KnnResultCache.Key, SegmentTopDocs> {
+
+    public static final Setting<Boolean> ENABLED =
+            Setting.boolSetting("knn.result_cache.enabled", false, Property.NodeScope);
+
+    public static final Setting<ByteSizeValue> SIZE =
+            Setting.byteSizeSetting("knn.result_cache.size", new ByteSizeValue(64, ByteSizeUnit.MB), Property.NodeScope);
+
+    public KnnResultCache(Settings settings) {
+        super(SIZE.get(settings).getBytes(), (key, topDocs) -> key.ramBytesUsed() + topDocs.ramBytesUsed());
+    }
+
+    /**
+     * @param query the query scoring the segment, compared by equality
+     * @param queryBytes an estimate of the heap the query holds, it's kept in the key
+     * @param loader scores the segment when it's not cached
+     */
+    public SegmentTopDocs get(LeafReader reader, Query query, long queryBytes, Loader loader) throws IOException {
+        return computeIfAbsent(reader, new Key(reader.getCoreCacheKey(), reader.numDeletedDocs(), query, queryBytes),
+                key -> loader.load());
+    }
+
+    @FunctionalInterface
+    public interface Loader {
+        SegmentTopDocs load() throws IOException;
+    }
+
+    static final class Key extends CoreKey {
+        private static final long SHALLOW_SIZE = RamUsageEstimator.shallowSizeOfInstance(Key.class);
+
+        final int deletedDocs;
+        final Query query;
+        final long queryBytes;
+        // the query hashes its whole vector
+        private final int hash;
+
+        Key(Object coreKey, int deletedDocs, Query query, long queryBytes) {
+            super(coreKey);
+            this.deletedDocs = deletedDocs;
+            this.query = query;
+            this.queryBytes = queryBytes;
+            this.hash = Objects.hash(System.identityHashCode(coreKey), deletedDocs, query);
+        }
+
+        long ramBytesUsed() {
+            return SHALLOW_SIZE + queryBytes;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            final Key key = (Key) o;
+            return hash == key.hash && coreKey == key.coreKey && deletedDocs == key.deletedDocs && query.equals(key.query);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public String toString() {
+            return "top docs of " + query;
+        }
+    }
+}
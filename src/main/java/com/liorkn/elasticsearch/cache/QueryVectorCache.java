@@ -0,0 +1,118 @@
+package com.liorkn.elasticsearch.cache;
+
+import com.liorkn.elasticsearch.script.QueryVector;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.common.cache.RemovalNotification;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Setting.Property;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Node level LRU cache of parsed {@link QueryVector}s, keyed by their base64 encoding. A search fanned out to many
+ * shards of a node, or a vector queried again, is decoded once. Only encoded vectors are cached: hashing a JSON array
+ * of numbers costs about as much as parsing it.
+ */
+public final class QueryVectorCache {
+
+    public static final Setting<ByteSizeValue> SIZE =
+            Setting.byteSizeSetting("knn.query_vector_cache.size", new ByteSizeValue(16, ByteSizeUnit.MB), Property.NodeScope);
+
+    private final Cache<Key, QueryVector> cache;
+    private final LongAdder lookups = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public QueryVectorCache(Settings settings) {
+        cache = CacheBuilder.<Key, QueryVector>builder()
+                .setMaximumWeight(SIZE.get(settings).getBytes())
+                .weigher((key, vector) -> 2L * key.encoded.length() + vector.ramBytesUsed())
+                .removalListener(notification -> {
+                    if (notification.getRemovalReason() == RemovalNotification.RemovalReason.EVICTED) {
+                        evictions.increment();
+                    }
+                })
+                .build();
+    }
+
+    /**
+     * @param bits true for a query of the hamming metric, see {@link QueryVector#parse}
+     */
+    public QueryVector get(String encoded, boolean bits) {
+        lookups.increment();
+        try {
+            return cache.computeIfAbsent(new Key(encoded, bits), key -> {
+                misses.increment();
+                return QueryVector.parse(key.encoded, key.bits);
+            });
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause(); // e.g. invalid base64, as if it was parsed directly
+            }
+            throw new IllegalArgumentException("failed to parse the query vector", e.getCause());
+        }
+    }
+
+    /**
+     * @return the bytes used by the cached entries
+     */
+    public long ramBytesUsed() {
+        return cache.weight();
+    }
+
+    /**
+     * @return the number of cached entries
+     */
+    public int count() {
+        return cache.count();
+    }
+
+    /**
+     * @return the number of lookups that found their vector
+     */
+    public long hits() {
+        return lookups.sum() - misses.sum();
+    }
+
+    /**
+     * @return the number of lookups that parsed their vector
+     */
+    public long misses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return the number of vectors evicted to make room for others
+     */
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    private static final class Key {
+        final String encoded;
+        final boolean bits;
+
+        Key(String encoded, boolean bits) {
+            this.encoded = encoded;
+            this.bits = bits;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            final Key key = (Key) o;
+            return bits == key.bits && encoded.equals(key.encoded);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * encoded.hashCode() + Boolean.hashCode(bits);
+        }
+    }
+}
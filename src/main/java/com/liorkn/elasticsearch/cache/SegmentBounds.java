@@ -0,0 +1,191 @@
+package com.liorkn.elasticsearch.cache;
+
+import com.liorkn.elasticsearch.Util;
+import com.liorkn.elasticsearch.script.Metric;
+import com.liorkn.elasticsearch.script.VectorKernels;
+import com.liorkn.elasticsearch.script.VectorPayload;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.RamUsageEstimator;
+
+import java.util.Arrays;
+
+/**
+ * Summary of the vectors of one segment: the min and max of every dimension and the range of the norms. They bound the
+ * best score any doc of the segment can reach, so a query with a min score can skip a segment without reading its vectors.
+ * <p>
+ * The bounds are computed in double and widened by the worst rounding error of the float accumulation of the scripts, so
+ * a doc that reaches the min score is never skipped.
+ */
+public final class SegmentBounds {
+
+    /** marks a segment that can't be bounded, e.g. one with int8, bit or sparse vectors or with vectors shorter than the query */
+    static final SegmentBounds NOT_BOUNDED = new SegmentBounds(0);
+
+    // relative error of a float sum, per term
+    private static final double ROUNDING = 2 * Math.ulp(1.0f);
+
+    private final float[] min;
+    private final float[] max;
+    // stored norms, the smallest one above zero: docs with a norm of zero always score zero with the cosine metric
+    private double minPositiveNorm = Double.POSITIVE_INFINITY;
+    private double maxNorm = 0;
+    private boolean hasZeroNorm;
+    private int count;
+
+    private SegmentBounds(int dims) {
+        min = new float[dims];
+        max = new float[dims];
+        Arrays.fill(min, Float.POSITIVE_INFINITY);
+        Arrays.fill(max, Float.NEGATIVE_INFINITY);
+    }
+
+    public long ramBytesUsed() {
+        return RamUsageEstimator.NUM_BYTES_OBJECT_HEADER + 2 * RamUsageEstimator.sizeOf(min);
+    }
+
+    public int dims() {
+        return min.length;
+    }
+
+    /**
+     * @return the number of docs with a vector
+     */
+    public int count() {
+        return count;
+    }
+
+    /**
+     * @return an upper bound of the score of every doc of the segment with the given metric, positive infinity if the
+     * metric can't be bounded and negative infinity if the segment has no vector
+     */
+    public double maxScore(float[] query, Metric metric) {
+        if (count == 0) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        switch (metric) {
+            case DOT_PRODUCT:
+                return maxDot(query);
+            case COSINE: {
+                double magnitude = 0;
+                for (float q : query) {
+                    magnitude += (double) q * q;
+                }
+                magnitude = Math.sqrt(magnitude);
+                if (magnitude == 0) {
+                    return 0;
+                }
+                final double dot = maxDot(query);
+                double best = hasZeroNorm ? 0 : Double.NEGATIVE_INFINITY;
+                if (maxNorm > 0) {
+                    // a positive dot product is best against the shortest doc, a negative one against the longest
+                    final double cosine = dot / (magnitude * (dot > 0 ? minPositiveNorm : maxNorm));
+                    // the scripts divide by a float magnitude
+                    best = Math.max(best, cosine + Math.abs(cosine) * ROUNDING);
+                }
+                return best;
+            }
+            case L2: {
+                // the squared distance to the closest point of the box holding every vector
+                double distance = 0;
+                double error = 0;
+                for (int i = 0; i < query.length; i++) {
+                    final double q = query[i];
+                    final double d = q < min[i] ? min[i] - q : q > max[i] ? q - max[i] : 0;
+                    distance += d * d;
+                    error += Math.max((q - min[i]) * (q - min[i]), (q - max[i]) * (q - max[i]));
+                }
+                distance = Math.max(0, distance - error * ROUNDING * query.length);
+                return 1 / (1 + distance);
+            }
+            default:
+                return Double.POSITIVE_INFINITY;
+        }
+    }
+
+    private double maxDot(float[] query) {
+        double dot = 0;
+        double error = 0;
+        for (int i = 0; i < query.length; i++) {
+            final double q = query[i];
+            dot += Math.max(q * min[i], q * max[i]);
+            error += Math.abs(q) * Math.max(Math.abs(min[i]), Math.abs(max[i]));
+        }
+        return dot + error * ROUNDING * query.length;
+    }
+
+    private void add(float[] vector, double norm) {
+        for (int i = 0; i < vector.length; i++) {
+            min[i] = Math.min(min[i], vector[i]);
+            max[i] = Math.max(max[i], vector[i]);
+        }
+        if (norm == 0) {
+            hasZeroNorm = true;
+        } else {
+            minPositiveNorm = Math.min(minPositiveNorm, norm);
+        }
+        maxNorm = Math.max(maxNorm, norm);
+        count++;
+    }
+
+    /**
+     * Reads the first {@code dims} floats of every document, deleted ones included.
+     * @param denseVector true for a dense_vector field, false for base64 vectors in a binary field
+     * @return the segment's bounds or {@link #NOT_BOUNDED} if some document is not a float vector of at least dims
+     */
+    static SegmentBounds load(BinaryDocValues values, int maxDoc, int dims, boolean denseVector) {
+        final SegmentBounds bounds = new SegmentBounds(dims);
+        final float[] vector = new float[dims];
+        if (denseVector) {
+            for (int docId = 0; docId < maxDoc; docId++) {
+                final BytesRef value = values.get(docId);
+                if (value.length > 0) {
+                    // dims were validated at index time, the stored norm comes first
+                    bounds.add(vector, readDenseVector(value, vector));
+                }
+            }
+            return bounds;
+        }
+        final VectorPayload payload = new VectorPayload();
+        for (int docId = 0; docId < maxDoc; docId++) {
+            if (payload.reset(values.get(docId)) == false) {
+                continue;
+            }
+            final byte[] bytes = payload.bytes;
+            int offset = payload.offset;
+            int length = payload.length;
+
+            double norm = -1;
+            byte format = Util.FORMAT_FLOAT_WITH_NORM;
+            if (Util.hasHeader(bytes, offset, length)) {
+                format = Util.format(bytes, offset);
+                if (format != Util.FORMAT_FLOAT_WITH_NORM && format != Util.FORMAT_FLOAT16 && format != Util.FORMAT_BFLOAT16) {
+                    return NOT_BOUNDED;
+                }
+                // the scripts divide by the stored norm, not by the norm of the values
+                norm = VectorKernels.readFloat(bytes, offset + Util.HEADER_BYTES);
+                offset += Util.HEADER_BYTES + Float.BYTES;
+                length -= Util.HEADER_BYTES + Float.BYTES;
+            }
+            final boolean half = format != Util.FORMAT_FLOAT_WITH_NORM;
+            if (length < dims * (half ? Short.BYTES : Float.BYTES)) {
+                return NOT_BOUNDED;
+            }
+            double squaredNorm = 0;
+            for (int i = 0; i < dims; i++) {
+                vector[i] = half ? VectorKernels.readHalf(bytes, offset + i * Short.BYTES, format == Util.FORMAT_BFLOAT16)
+                        : VectorKernels.readFloat(bytes, offset + i * Float.BYTES);
+                squaredNorm += (double) vector[i] * vector[i];
+            }
+            bounds.add(vector, norm < 0 ? Math.sqrt(squaredNorm) : norm);
+        }
+        return bounds;
+    }
+
+    private static double readDenseVector(BytesRef value, float[] dest) {
+        for (int i = 0; i < dest.length; i++) {
+            dest[i] = VectorKernels.readFloatLE(value.bytes, value.offset + (i + 1) * Float.BYTES);
+        }
+        return VectorKernels.readFloatLE(value.bytes, value.offset);
+    }
+}
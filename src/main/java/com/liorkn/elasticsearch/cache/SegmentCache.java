@@ -0,0 +1,184 @@
+package com.liorkn.elasticsearch.cache;
+
+import org.apache.lucene.index.LeafReader;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.common.cache.CacheLoader;
+import org.elasticsearch.common.cache.RemovalNotification;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongBiFunction;
+
+/**
+ * Node level LRU cache of values computed per segment. Keys hold the segment core they were computed from, and
+ * all of a core's entries are dropped when its segment is merged away or closed.
+ */
+abstract class SegmentCache<K extends SegmentCache.CoreKey, V> {
+
+    // thrown through the cache when a loader returns null, so nothing is cached
+    private static final RuntimeException NOT_CACHED = new RuntimeException("not cached", null, false, false) {};
+
+    private final long maxBytes;
+    private final Cache<K, V> cache;
+    // cores we already registered a close listener on
+    private final Set<Object> listenedCores = ConcurrentHashMap.newKeySet();
+    private final LongAdder lookups = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    SegmentCache(long maxBytes, ToLongBiFunction<K, V> weigher) {
+        this.maxBytes = maxBytes;
+        cache = CacheBuilder.<K, V>builder()
+                .setMaximumWeight(maxBytes)
+                .weigher(weigher)
+                .removalListener(notification -> {
+                    if (notification.getRemovalReason() == RemovalNotification.RemovalReason.EVICTED) {
+                        evictions.increment();
+                    }
+                })
+                .build();
+    }
+
+    /**
+     * @return the byte budget of the cache
+     */
+    public long maxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @return the bytes used by the cached entries
+     */
+    public long ramBytesUsed() {
+        return cache.weight();
+    }
+
+    /**
+     * @return the number of cached entries
+     */
+    public int count() {
+        return cache.count();
+    }
+
+    /**
+     * @return the number of lookups that found their entry
+     */
+    public long hits() {
+        return lookups.sum() - misses.sum();
+    }
+
+    /**
+     * @return the number of lookups that didn't find their entry
+     */
+    public long misses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return the number of entries evicted to make room for others, entries of closed segments are not counted
+     */
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * @param loader computes the entry on a miss, it may return null to cache nothing
+     * @return the cached entry, or null if the loader returned null
+     */
+    V computeIfAbsent(LeafReader reader, K key, CacheLoader<K, V> loader) throws IOException {
+        listen(reader, key);
+        lookups.increment();
+        try {
+            return cache.computeIfAbsent(key, k -> {
+                misses.increment();
+                final V value = loader.load(k);
+                if (value == null) {
+                    throw NOT_CACHED;
+                }
+                return value;
+            });
+        } catch (ExecutionException e) {
+            if (e.getCause() == NOT_CACHED) {
+                return null;
+            }
+            throw new IOException("failed to load a cache entry for " + key, e.getCause());
+        }
+    }
+
+    /**
+     * @return the cached entry, or null for an entry that is computed off the searching thread and cached with {@link #put}
+     */
+    V get(LeafReader reader, K key) {
+        listen(reader, key);
+        lookups.increment();
+        final V value = cache.get(key);
+        if (value == null) {
+            misses.increment();
+        }
+        return value;
+    }
+
+    /**
+     * Caches an entry computed off the searching thread, unless its segment was closed in the meantime.
+     * The key must have been looked up with {@link #get} first.
+     */
+    void put(K key, V value) {
+        if (listenedCores.contains(key.coreKey)) {
+            cache.put(key, value);
+            if (listenedCores.contains(key.coreKey) == false) {
+                cache.invalidate(key); // closed while it was put
+            }
+        }
+    }
+
+    private void listen(LeafReader reader, K key) {
+        if (listenedCores.add(key.coreKey)) {
+            reader.addCoreClosedListener(this::onCoreClosed);
+        }
+    }
+
+    /**
+     * Evicts the least recently used entries until the cached entries and {@code bytes} more fit in {@link #maxBytes()}.
+     */
+    void evictFor(long bytes) {
+        // the keys come most recently used first
+        final List<K> keys = new ArrayList<>();
+        for (K key : cache.keys()) {
+            keys.add(key);
+        }
+        for (int i = keys.size() - 1; i >= 0 && cache.weight() + bytes > maxBytes; i--) {
+            cache.invalidate(keys.get(i));
+            evictions.increment();
+        }
+    }
+
+    private void onCoreClosed(Object coreKey) {
+        listenedCores.remove(coreKey);
+        final List<K> keys = new ArrayList<>();
+        for (K key : cache.keys()) {
+            if (key.coreKey == coreKey) {
+                keys.add(key);
+            }
+        }
+        for (K key : keys) {
+            cache.invalidate(key);
+        }
+    }
+
+    /**
+     * Base of the cache keys, the core is compared by identity.
+     */
+    abstract static class CoreKey {
+        final Object coreKey;
+
+        CoreKey(Object coreKey) {
+            this.coreKey = coreKey;
+        }
+    }
+}
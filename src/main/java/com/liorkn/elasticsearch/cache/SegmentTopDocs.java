@@ -0,0 +1,40 @@
+package com.liorkn.elasticsearch.cache;
+
+import org.apache.lucene.util.RamUsageEstimator;
+
+/**
+ * The best docs of one segment for one query, with segment level doc ids in increasing order and their scores.
+ */
+public final class SegmentTopDocs {
+
+    private final int[] docs;
+    private final float[] scores;
+
+    /**
+     * @param docs segment level doc ids in increasing order
+     * @param scores the score of each doc
+     */
+    public SegmentTopDocs(int[] docs, float[] scores) {
+        if (docs.length != scores.length) {
+            throw new IllegalArgumentException("[" + docs.length + "] docs but [" + scores.length + "] scores");
+        }
+        this.docs = docs;
+        this.scores = scores;
+    }
+
+    public int size() {
+        return docs.length;
+    }
+
+    public int doc(int i) {
+        return docs[i];
+    }
+
+    public float score(int i) {
+        return scores[i];
+    }
+
+    public long ramBytesUsed() {
+        return RamUsageEstimator.NUM_BYTES_OBJECT_HEADER + RamUsageEstimator.sizeOf(docs) + RamUsageEstimator.sizeOf(scores);
+    }
+}
@@ -0,0 +1,224 @@
+package com.liorkn.elasticsearch.cache;
+
+import com.liorkn.elasticsearch.Util;
+import com.liorkn.elasticsearch.script.VectorKernels;
+import com.liorkn.elasticsearch.script.VectorPayload;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+
+/**
+ * The float vectors of one segment decoded once into contiguous off-heap memory, {@code dims} floats per doc.
+ * Also keeps the norm of every vector so cosine scoring is a single dot product.
+ */
+public final class SegmentVectors {
+
+    // direct buffers are limited to 2gb, the vectors are split into pages holding a power of two docs
+    private static final long MAX_PAGE_BYTES = 1L << 30;
+
+    /** marks a segment that can't be cached, e.g. one with int8 vectors or with vectors shorter than the query */
+    static final SegmentVectors NOT_CACHEABLE = new SegmentVectors(0, 1);
+
+    private final int dims;
+    private final int pageShift;
+    private final int pageMask;
+    // floats in the native byte order
+    private final ByteBuffer[] pages;
+    // NaN for docs without a vector
+    private final DoubleBuffer norms;
+    // the docs widened from 16 bit values, scored like the doc values of 16 bit vectors; null if there are none
+    private FixedBitSet halfDocs;
+
+    private SegmentVectors(int maxDoc, int dims) {
+        this.dims = dims;
+        final long docsPerPage = Long.highestOneBit(Math.max(1, MAX_PAGE_BYTES / ((long) dims * Float.BYTES)));
+        pageShift = Long.numberOfTrailingZeros(docsPerPage);
+        pageMask = (int) docsPerPage - 1;
+
+        pages = new ByteBuffer[(int) ((maxDoc + docsPerPage - 1) / docsPerPage)];
+        for (int i = 0; i < pages.length; i++) {
+            final long docs = Math.min(docsPerPage, maxDoc - (long) i * docsPerPage);
+            pages[i] = ByteBuffer.allocateDirect((int) docs * dims * Float.BYTES).order(ByteOrder.nativeOrder());
+        }
+        norms = ByteBuffer.allocateDirect(maxDoc * Double.BYTES).order(ByteOrder.nativeOrder()).asDoubleBuffer();
+    }
+
+    /**
+     * @return the off-heap bytes needed to cache a segment
+     */
+    public static long estimateBytes(int maxDoc, int dims) {
+        return (long) maxDoc * ((long) dims * Float.BYTES + Double.BYTES);
+    }
+
+    public long ramBytesUsed() {
+        return this == NOT_CACHEABLE ? 0 : estimateBytes(norms.capacity(), dims) + (halfDocs == null ? 0 : halfDocs.ramBytesUsed());
+    }
+
+    public int dims() {
+        return dims;
+    }
+
+    public boolean hasVector(int docId) {
+        return Double.isNaN(norms.get(docId)) == false;
+    }
+
+    public double norm(int docId) {
+        return norms.get(docId);
+    }
+
+    /**
+     * @return the dot product of the doc's vector and the query, accumulated exactly like the doc values path, on the
+     * kernels that path uses for the doc's format
+     */
+    public float dot(int docId, float[] query) {
+        final ByteBuffer page = pages[docId >>> pageShift];
+        final int offset = (docId & pageMask) * dims;
+        if (halfDocs != null && halfDocs.get(docId)) {
+            return VectorKernels.dotHalf(page, offset, query);
+        }
+        return VectorKernels.dot(page, offset, query);
+    }
+
+    /**
+     * @return the squared euclidean distance of the doc's vector to the query, see
+     * {@link VectorKernels#squaredDistance(ByteBuffer, int, float[], float)} for the limit
+     */
+    public float squaredDistance(int docId, float[] query, float limit) {
+        final ByteBuffer page = pages[docId >>> pageShift];
+        final int offset = (docId & pageMask) * dims;
+        if (halfDocs != null && halfDocs.get(docId)) {
+            return VectorKernels.squaredDistanceHalf(page, offset, query, limit);
+        }
+        return VectorKernels.squaredDistance(page, offset, query, limit);
+    }
+
+    /**
+     * Copies the doc's vector into dest at destOffset.
+     */
+    public void get(int docId, float[] dest, int destOffset) {
+        final ByteBuffer page = pages[docId >>> pageShift];
+        final int base = (docId & pageMask) * dims * Float.BYTES;
+        for (int i = 0; i < dims; i++) {
+            dest[destOffset + i] = page.getFloat(base + i * Float.BYTES);
+        }
+    }
+
+    /**
+     * Checks every document before anything is allocated.
+     * @param denseVector true for a dense_vector field, false for base64 vectors in a binary field
+     * @return true if every document is a float vector of at least dims, or has no vector
+     */
+    static boolean isCacheable(BinaryDocValues values, int maxDoc, int dims, boolean denseVector) {
+        if (denseVector) {
+            return true; // dims were validated at index time
+        }
+        final VectorPayload payload = new VectorPayload();
+        for (int docId = 0; docId < maxDoc; docId++) {
+            if (payload.reset(values.get(docId)) == false) {
+                continue;
+            }
+            int length = payload.length;
+            boolean half = false;
+            if (Util.hasHeader(payload.bytes, payload.offset, length)) {
+                final byte format = Util.format(payload.bytes, payload.offset);
+                if (format != Util.FORMAT_FLOAT_WITH_NORM && format != Util.FORMAT_FLOAT16 && format != Util.FORMAT_BFLOAT16) {
+                    return false;
+                }
+                half = format != Util.FORMAT_FLOAT_WITH_NORM;
+                length -= Util.HEADER_BYTES + Float.BYTES;
+            }
+            if (length < dims * (half ? Short.BYTES : Float.BYTES)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Decodes the first {@code dims} floats of every document.
+     * @param denseVector true for a dense_vector field, false for base64 vectors in a binary field
+     * @return the segment's vectors or {@link #NOT_CACHEABLE} if some document is not a float vector of at least dims,
+     * checked with {@link #isCacheable} before anything is allocated
+     */
+    static SegmentVectors load(BinaryDocValues values, int maxDoc, int dims, boolean denseVector) {
+        if (isCacheable(values, maxDoc, dims, denseVector) == false) {
+            return NOT_CACHEABLE;
+        }
+        if (denseVector) {
+            return loadDenseVectors(values, maxDoc, dims);
+        }
+        final SegmentVectors vectors = new SegmentVectors(maxDoc, dims);
+        final VectorPayload payload = new VectorPayload();
+        final float[] zeros = new float[dims];
+        final float[] dotAndNorm = new float[2];
+
+        for (int docId = 0; docId < maxDoc; docId++) {
+            if (payload.reset(values.get(docId)) == false) {
+                vectors.norms.put(docId, Double.NaN);
+                continue;
+            }
+            final byte[] bytes = payload.bytes;
+            int offset = payload.offset;
+
+            double norm = -1;
+            byte format = Util.FORMAT_FLOAT_WITH_NORM;
+            if (Util.hasHeader(bytes, offset, payload.length)) {
+                format = Util.format(bytes, offset);
+                norm = VectorKernels.readFloat(bytes, offset + Util.HEADER_BYTES);
+                offset += Util.HEADER_BYTES + Float.BYTES;
+            }
+            final boolean half = format != Util.FORMAT_FLOAT_WITH_NORM;
+
+            if (norm < 0) {
+                // same accumulation as the doc values path, so cached and uncached scores are identical
+                VectorKernels.dotAndSquaredNorm(bytes, offset, zeros, dotAndNorm);
+                norm = Math.sqrt(dotAndNorm[1]);
+            }
+            vectors.norms.put(docId, norm);
+
+            final ByteBuffer page = vectors.pages[docId >>> vectors.pageShift];
+            final int base = (docId & vectors.pageMask) * dims * Float.BYTES;
+            if (half) {
+                // widened once here, the cached floats score exactly like the 16 bit values read in place
+                final boolean bfloat16 = format == Util.FORMAT_BFLOAT16;
+                for (int i = 0; i < dims; i++) {
+                    page.putFloat(base + i * Float.BYTES, VectorKernels.readHalf(bytes, offset + i * Short.BYTES, bfloat16));
+                }
+                if (vectors.halfDocs == null) {
+                    vectors.halfDocs = new FixedBitSet(maxDoc);
+                }
+                vectors.halfDocs.set(docId);
+            } else {
+                for (int i = 0; i < dims; i++) {
+                    page.putFloat(base + i * Float.BYTES, VectorKernels.readFloat(bytes, offset + i * Float.BYTES));
+                }
+            }
+        }
+        return vectors;
+    }
+
+    private static SegmentVectors loadDenseVectors(BinaryDocValues values, int maxDoc, int dims) {
+        final SegmentVectors vectors = new SegmentVectors(maxDoc, dims);
+        for (int docId = 0; docId < maxDoc; docId++) {
+            final BytesRef value = values.get(docId);
+            if (value.length == 0) {
+                vectors.norms.put(docId, Double.NaN);
+                continue;
+            }
+            // dims were validated at index time, the stored norm comes first
+            vectors.norms.put(docId, VectorKernels.readFloatLE(value.bytes, value.offset));
+
+            final ByteBuffer page = vectors.pages[docId >>> vectors.pageShift];
+            final int base = (docId & vectors.pageMask) * dims * Float.BYTES;
+            final int offset = value.offset + Float.BYTES;
+            for (int i = 0; i < dims; i++) {
+                page.putFloat(base + i * Float.BYTES, VectorKernels.readFloatLE(value.bytes, offset + i * Float.BYTES));
+            }
+        }
+        return vectors;
+    }
+}
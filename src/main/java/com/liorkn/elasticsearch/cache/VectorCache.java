@@ -0,0 +1,102 @@
+package com.liorkn.elasticsearch.cache;
+
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.LeafReader;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Setting.Property;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+
+import java.io.IOException;
+import java.util.Objects;
+
+/**
+ * Node level cache of {@link SegmentVectors}, keyed by segment core, field and number of dimensions.
+ * Entries are dropped when their segment is merged away or closed. {@link #SIZE} caps the direct memory of the
+ * vectors, including the vectors that left the cache but weren't collected yet: a segment that doesn't fit evicts
+ * the least recently used segments and is scored from the doc values until their memory is freed.
+ */
+public final class VectorCache extends SegmentCache<VectorCache.Key, SegmentVectors> {
+
+    public static final Setting<Boolean> ENABLED =
+            Setting.boolSetting("knn.vector_cache.enabled", false, Property.NodeScope);
+
+    public static final Setting<ByteSizeValue> SIZE =
+            Setting.byteSizeSetting("knn.vector_cache.size", new ByteSizeValue(1, ByteSizeUnit.GB), Property.NodeScope);
+
+    private final DirectMemoryBudget budget;
+
+    public VectorCache(Settings settings) {
+        super(SIZE.get(settings).getBytes(), (key, vectors) -> vectors.ramBytesUsed());
+        budget = new DirectMemoryBudget(maxBytes());
+    }
+
+    /**
+     * @return the direct memory of the cached vectors and of the evicted vectors not yet collected
+     */
+    public long directBytesUsed() {
+        return budget.reservedBytes();
+    }
+
+    /**
+     * @param denseVector true if the field is a dense_vector
+     * @return the segment's vectors, loading them on first use, or null if the segment can't be cached or doesn't fit yet
+     */
+    public SegmentVectors get(LeafReader reader, String field, int dims, boolean denseVector) throws IOException {
+        if (SegmentVectors.estimateBytes(reader.maxDoc(), dims) > maxBytes()) {
+            return null; // would evict everything and still not fit
+        }
+
+        final SegmentVectors vectors = computeIfAbsent(reader, new Key(reader.getCoreCacheKey(), field, dims), key -> {
+            final BinaryDocValues values = reader.getBinaryDocValues(field);
+            if (values == null || SegmentVectors.isCacheable(values, reader.maxDoc(), dims, denseVector) == false) {
+                return SegmentVectors.NOT_CACHEABLE;
+            }
+            final long bytes = SegmentVectors.estimateBytes(reader.maxDoc(), dims);
+            if (budget.tryReserve(bytes) == false) {
+                evictFor(bytes);
+                return null; // retried by the next query, once the evicted vectors are collected
+            }
+            final SegmentVectors loaded;
+            try {
+                loaded = SegmentVectors.load(values, reader.maxDoc(), dims, denseVector);
+            } catch (Throwable t) {
+                budget.release(bytes);
+                throw t;
+            }
+            budget.track(loaded, bytes);
+            return loaded;
+        });
+        return vectors == SegmentVectors.NOT_CACHEABLE ? null : vectors;
+    }
+
+    static final class Key extends CoreKey {
+        final String field;
+        final int dims;
+
+        Key(Object coreKey, String field, int dims) {
+            super(coreKey);
+            this.field = field;
+            this.dims = dims;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            final Key key = (Key) o;
+            return dims == key.dims && coreKey == key.coreKey && field.equals(key.field);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(System.identityHashCode(coreKey), field, dims);
+        }
+
+        @Override
+        public String toString() {
+            return "vectors of field [" + field + "] with [" + dims + "] dims";
+        }
+    }
+}
@@ -0,0 +1,341 @@
+package com.liorkn.elasticsearch.hnsw;
+
+import com.liorkn.elasticsearch.cache.SegmentVectors;
+import com.liorkn.elasticsearch.query.TopDocHeap;
+import com.liorkn.elasticsearch.script.Metric;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.SparseFixedBitSet;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * A hierarchical navigable small world graph over the vectors of one segment, nodes are the segment's doc ids.
+ * <p>
+ * Every node is linked to up to {@code m} of its most similar nodes on each level it belongs to, {@code 2 * m} on
+ * level 0. A node belongs to level l with probability {@code m^-l}, a search descends greedily from the single node
+ * of the top level and then explores level 0 best first, keeping the {@code ef} best nodes seen.
+ * The graph is immutable once built and safe to search from many threads.
+ */
+public final class HnswGraph {
+
+    /** scores a node against the vector being searched or inserted, higher is more similar */
+    public interface NodeScorer {
+        float score(int node);
+    }
+
+    /** the vectors a graph is built from */
+    public interface Vectors {
+        int maxDoc();
+
+        boolean hasVector(int doc);
+
+        /**
+         * @return a scorer of nodes against the vector of doc
+         */
+        NodeScorer scorer(int doc);
+    }
+
+    /** marks a segment without vectors to build a graph from */
+    public static final HnswGraph EMPTY = new HnswGraph(0, 1, null);
+
+    private static final long LIST_OVERHEAD_BYTES = 16 + 8; // array header and the reference to it
+
+    private final int maxConn;
+    private final int maxConn0;
+    // the vectors searched with this graph, or null when built from something else than a segment
+    private final SegmentVectors vectors;
+    // per doc, [count, neighbors...] or null for docs without a vector
+    private final int[][] level0;
+    // levels above 0, sparse since each holds 1/m of the nodes of the one below
+    private final List<Map<Integer, int[]>> upperLevels = new ArrayList<>();
+    private int entryPoint = -1;
+    private int maxLevel = -1;
+    private long ramBytesUsed;
+
+    private HnswGraph(int maxDoc, int m, SegmentVectors vectors) {
+        this.maxConn = m;
+        this.maxConn0 = 2 * m;
+        this.vectors = vectors;
+        this.level0 = new int[maxDoc][];
+    }
+
+    /**
+     * @return a rough upper bound of the heap used by the graph of a segment, not counting its vectors
+     */
+    public static long estimateBytes(int maxDoc, int m) {
+        // level 0 lists are full for most nodes, upper levels add about 1/m of that
+        return (long) maxDoc * (LIST_OVERHEAD_BYTES + Integer.BYTES * (2L * m + 1)) * (m + 1) / m;
+    }
+
+    /**
+     * Builds the graph of a segment's cached vectors, scoring nodes with the metric the queries use.
+     * @param countVectors true to count the off-heap bytes of the vectors in {@link #ramBytesUsed()}, false when they
+     * belong to the vector cache
+     */
+    public static HnswGraph build(SegmentVectors vectors, int maxDoc, Metric metric, int m, int efConstruction,
+                                  boolean countVectors) {
+        final HnswGraph graph = build(new Vectors() {
+            @Override
+            public int maxDoc() {
+                return maxDoc;
+            }
+
+            @Override
+            public boolean hasVector(int doc) {
+                return vectors.hasVector(doc);
+            }
+
+            @Override
+            public NodeScorer scorer(int doc) {
+                final float[] vector = new float[vectors.dims()];
+                vectors.get(doc, vector, 0);
+                if (metric == Metric.COSINE) {
+                    final double norm = vectors.norm(doc);
+                    return node -> {
+                        final double denominator = norm * vectors.norm(node);
+                        return denominator == 0 ? 0f : (float) (vectors.dot(node, vector) / denominator);
+                    };
+                }
+                if (metric == Metric.L2) {
+                    return node -> (float) (1 / (1 + (double) vectors.squaredDistance(node, vector, Float.POSITIVE_INFINITY)));
+                }
+                return node -> vectors.dot(node, vector);
+            }
+        }, m, efConstruction, vectors);
+        if (countVectors) {
+            graph.ramBytesUsed += vectors.ramBytesUsed();
+        }
+        return graph;
+    }
+
+    public static HnswGraph build(Vectors vectors, int m, int efConstruction) {
+        return build(vectors, m, efConstruction, null);
+    }
+
+    private static HnswGraph build(Vectors vectors, int m, int efConstruction, SegmentVectors segmentVectors) {
+        if (m < 2) {
+            throw new IllegalArgumentException("m must be at least 2 but was [" + m + "]");
+        }
+        final HnswGraph graph = new HnswGraph(vectors.maxDoc(), m, segmentVectors);
+        final Random random = new Random(42); // same segment, same graph
+        final double levelMultiplier = 1 / Math.log(m);
+        final NodeQueue candidates = new NodeQueue(true);
+        final NodeQueue results = new NodeQueue(false);
+        for (int doc = 0; doc < vectors.maxDoc(); doc++) {
+            if (vectors.hasVector(doc)) {
+                final int level = (int) (-Math.log(1 - random.nextDouble()) * levelMultiplier);
+                graph.insert(vectors, doc, level, Math.max(efConstruction, m), candidates, results);
+            }
+        }
+        graph.ramBytesUsed += graph.heapBytes();
+        return graph;
+    }
+
+    private void insert(Vectors vectors, int node, int level, int efConstruction, NodeQueue candidates, NodeQueue results) {
+        for (int l = 0; l <= level; l++) {
+            final int[] list = new int[1 + (l == 0 ? maxConn0 : maxConn)];
+            if (l == 0) {
+                level0[node] = list;
+            } else {
+                if (upperLevels.size() < l) {
+                    upperLevels.add(new HashMap<>());
+                }
+                upperLevels.get(l - 1).put(node, list);
+            }
+        }
+        if (entryPoint < 0) {
+            entryPoint = node;
+            maxLevel = level;
+            return;
+        }
+
+        final NodeScorer scorer = vectors.scorer(node);
+        int entry = entryPoint;
+        float entryScore = scorer.score(entry);
+        for (int l = maxLevel; l > level; l--) {
+            entry = greedy(scorer, entry, entryScore, l);
+            entryScore = scorer.score(entry);
+        }
+
+        results.clear();
+        results.push(entryScore, entry);
+        for (int l = Math.min(level, maxLevel); l >= 0; l--) {
+            searchLevel(scorer, results, efConstruction, l, candidates);
+            // link to the best nodes found, the results stay the entry points of the level below
+            final int connections = l == 0 ? maxConn0 : maxConn;
+            final float[] scores = new float[results.size()];
+            final int[] nodes = new int[results.size()];
+            for (int i = results.size() - 1; i >= 0; i--) {
+                scores[i] = results.topScore();
+                nodes[i] = results.topNode();
+                results.pop();
+            }
+            final int[] list = neighbors(node, l);
+            for (int i = 0; i < nodes.length && list[0] < connections; i++) {
+                list[++list[0]] = nodes[i];
+                link(vectors, nodes[i], node, scores[i], l);
+            }
+            for (int i = 0; i < nodes.length; i++) {
+                results.push(scores[i], nodes[i]);
+            }
+        }
+        if (level > maxLevel) {
+            entryPoint = node;
+            maxLevel = level;
+        }
+    }
+
+    /**
+     * Adds node to the neighbors of other, dropping the least similar neighbor when the list is full.
+     */
+    private void link(Vectors vectors, int other, int node, float score, int level) {
+        final int[] list = neighbors(other, level);
+        final int connections = list.length - 1;
+        if (list[0] < connections) {
+            list[++list[0]] = node;
+            return;
+        }
+        final NodeScorer scorer = vectors.scorer(other);
+        int worst = -1;
+        float worstScore = score;
+        for (int i = 1; i <= connections; i++) {
+            final float s = scorer.score(list[i]);
+            if (s < worstScore) {
+                worstScore = s;
+                worst = i;
+            }
+        }
+        if (worst > 0) {
+            list[worst] = node;
+        }
+    }
+
+    private int greedy(NodeScorer scorer, int entry, float entryScore, int level) {
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            final int[] list = neighbors(entry, level);
+            for (int i = 1; i <= list[0]; i++) {
+                final float score = scorer.score(list[i]);
+                if (score > entryScore) {
+                    entryScore = score;
+                    entry = list[i];
+                    changed = true;
+                }
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Best first search of one level, starting from the nodes in results and leaving the ef best nodes found in it.
+     */
+    private void searchLevel(NodeScorer scorer, NodeQueue results, int ef, int level, NodeQueue candidates) {
+        final SparseFixedBitSet visited = new SparseFixedBitSet(level0.length);
+        candidates.clear();
+        final float[] scores = new float[results.size()];
+        final int[] nodes = new int[results.size()];
+        for (int i = 0; results.size() > 0; i++) {
+            scores[i] = results.topScore();
+            nodes[i] = results.topNode();
+            results.pop();
+        }
+        for (int i = 0; i < nodes.length; i++) {
+            visited.set(nodes[i]);
+            candidates.push(scores[i], nodes[i]);
+            results.push(scores[i], nodes[i]);
+        }
+        while (results.size() > ef) {
+            results.pop();
+        }
+
+        while (candidates.size() > 0) {
+            final float candidateScore = candidates.topScore();
+            if (results.size() >= ef && candidateScore < results.topScore()) {
+                break; // nothing left can improve the results
+            }
+            final int candidate = candidates.topNode();
+            candidates.pop();
+            final int[] list = neighbors(candidate, level);
+            for (int i = 1; i <= list[0]; i++) {
+                final int neighbor = list[i];
+                if (visited.get(neighbor)) {
+                    continue;
+                }
+                visited.set(neighbor);
+                final float score = scorer.score(neighbor);
+                if (results.size() < ef || score > results.topScore()) {
+                    candidates.push(score, neighbor);
+                    results.push(score, neighbor);
+                    if (results.size() > ef) {
+                        results.pop();
+                    }
+                }
+            }
+        }
+    }
+
+    private int[] neighbors(int node, int level) {
+        return level == 0 ? level0[node] : upperLevels.get(level - 1).get(node);
+    }
+
+    /**
+     * Adds the ef best nodes found for the scorer's vector to the top docs, skipping deleted docs.
+     * @param docBase added to the node ids, to collect the docs of several segments into one heap
+     */
+    public void search(NodeScorer scorer, int ef, Bits liveDocs, TopDocHeap topDocs, int docBase) {
+        if (entryPoint < 0) {
+            return;
+        }
+        int entry = entryPoint;
+        float entryScore = scorer.score(entry);
+        for (int l = maxLevel; l > 0; l--) {
+            entry = greedy(scorer, entry, entryScore, l);
+            entryScore = scorer.score(entry);
+        }
+        final NodeQueue results = new NodeQueue(false);
+        results.push(entryScore, entry);
+        searchLevel(scorer, results, ef, 0, new NodeQueue(true));
+        while (results.size() > 0) {
+            final int node = results.topNode();
+            if (liveDocs == null || liveDocs.get(node)) {
+                topDocs.add(results.topScore(), docBase + node);
+            }
+            results.pop();
+        }
+    }
+
+    /**
+     * @return the vectors this graph was built from, for exact scoring while searching
+     */
+    public SegmentVectors vectors() {
+        return vectors;
+    }
+
+    /**
+     * @return the heap used by the graph plus the off-heap bytes of its vectors, if they were counted when it was built
+     */
+    public long ramBytesUsed() {
+        return ramBytesUsed;
+    }
+
+    private long heapBytes() {
+        long bytes = 16 + 8L * level0.length;
+        for (int[] list : level0) {
+            if (list != null) {
+                bytes += 16 + Integer.BYTES * (long) list.length;
+            }
+        }
+        for (Map<Integer, int[]> level : upperLevels) {
+            for (int[] list : level.values()) {
+                // hash map entry and boxed key
+                bytes += 48 + 16 + Integer.BYTES * (long) list.length;
+            }
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,80 @@
+package com.liorkn.elasticsearch.hnsw;
+
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.NumericUtils;
+
+/**
+ * Growable binary heap of (score, node) pairs, each encoded into a long so the heap is a single primitive array:
+ * the sortable bits of the score in the upper half and the node in the lower half.
+ */
+final class NodeQueue {
+
+    private final boolean maxHeap;
+    private long[] heap = new long[16];
+    private int size;
+
+    /**
+     * @param maxHeap true to pop the best score first, false to pop the worst first
+     */
+    NodeQueue(boolean maxHeap) {
+        this.maxHeap = maxHeap;
+    }
+
+    int size() {
+        return size;
+    }
+
+    void clear() {
+        size = 0;
+    }
+
+    void push(float score, int node) {
+        final long encoded = ((long) NumericUtils.floatToSortableInt(score) << 32) | (node & 0xFFFFFFFFL);
+        final long value = maxHeap ? ~encoded : encoded; // flipping the bits reverses the order
+        if (size == heap.length) {
+            heap = ArrayUtil.grow(heap, size + 1);
+        }
+        int i = size++;
+        while (i > 0) {
+            final int parent = (i - 1) >>> 1;
+            if (heap[parent] <= value) {
+                break;
+            }
+            heap[i] = heap[parent];
+            i = parent;
+        }
+        heap[i] = value;
+    }
+
+    float topScore() {
+        return NumericUtils.sortableIntToFloat((int) (top() >> 32));
+    }
+
+    int topNode() {
+        return (int) top();
+    }
+
+    void pop() {
+        final long last = heap[--size];
+        int i = 0;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && heap[child + 1] < heap[child]) {
+                child++;
+            }
+            if (heap[child] >= last) {
+                break;
+            }
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = last;
+    }
+
+    private long top() {
+        return maxHeap ? ~heap[0] : heap[0];
+    }
+}
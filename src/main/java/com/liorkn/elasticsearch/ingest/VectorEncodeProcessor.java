@@ -0,0 +1,164 @@
+package com.liorkn.elasticsearch.ingest;
+
+import com.liorkn.elasticsearch.Util;
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.ingest.AbstractProcessor;
+import org.elasticsearch.ingest.ConfigurationUtils;
+import org.elasticsearch.ingest.IngestDocument;
+import org.elasticsearch.ingest.Processor;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Ingest processor encoding a JSON array of floats into the base64 vector of a {@code binary} field, so clients can send
+ * plain arrays:
+ * <pre>
+ * {"vector_encode": {"field": "embedding", "target_field": "embedding_vector", "dims": 128, "normalize": true}}
+ * </pre>
+ * {@code format} is {@code float} (float32 with the norm, the default), {@code float16}, {@code bfloat16}, {@code int8},
+ * {@code sparse} (the non-zero values) or {@code bits} (a set bit for every positive value, for the hamming metric),
+ * see {@link Util}.
+ * With {@code normalize} the vector is scaled to a norm of 1 first, so dot_product scores are cosine similarities.
+ * Documents whose vector doesn't have {@code dims} values, when given, fail.
+ */
+public final class VectorEncodeProcessor extends AbstractProcessor {
+
+    public static final String TYPE = "vector_encode";
+
+    public enum Format {
+        FLOAT, FLOAT16, BFLOAT16, INT8, SPARSE, BITS;
+
+        public static Format fromString(String format) {
+            for (Format f : values()) {
+                if (f.toString().equals(format)) {
+                    return f;
+                }
+            }
+            throw new IllegalArgumentException("unknown vector format [" + format
+                    + "], expected one of [float, float16, bfloat16, int8, sparse, bits]");
+        }
+
+        @Override
+        public String toString() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    private final String field;
+    private final String targetField;
+    private final Format format;
+    private final boolean normalize;
+    // -1 to accept any number of dims
+    private final int dims;
+    private final boolean ignoreMissing;
+
+    VectorEncodeProcessor(String tag, String field, String targetField, Format format, boolean normalize, int dims,
+                          boolean ignoreMissing) {
+        super(tag);
+        this.field = field;
+        this.targetField = targetField;
+        this.format = format;
+        this.normalize = normalize;
+        this.dims = dims;
+        this.ignoreMissing = ignoreMissing;
+    }
+
+    @Override
+    public void execute(IngestDocument document) throws Exception {
+        if (document.hasField(field) == false || document.getFieldValue(field, Object.class) == null) {
+            if (ignoreMissing) {
+                return;
+            }
+            throw new IllegalArgumentException("field [" + field + "] is missing, it should hold the vector to encode");
+        }
+        final Object value = document.getFieldValue(field, Object.class);
+        if (value instanceof List == false) {
+            throw new IllegalArgumentException("field [" + field + "] should be an array of numbers but was ["
+                    + value.getClass().getSimpleName() + "]");
+        }
+        document.setFieldValue(targetField, encode(toVector((List<?>) value)));
+    }
+
+    private float[] toVector(List<?> values) {
+        if (dims >= 0 && values.size() != dims) {
+            throw new IllegalArgumentException("field [" + field + "] has [" + values.size() + "] dims but [" + dims + "] are expected");
+        }
+        final float[] vector = new float[values.size()];
+        for (int i = 0; i < vector.length; i++) {
+            final Object v = values.get(i);
+            if (v instanceof Number == false) {
+                throw new IllegalArgumentException("field [" + field + "] should be an array of numbers but value [" + i
+                        + "] is [" + v + "]");
+            }
+            vector[i] = ((Number) v).floatValue();
+        }
+        if (normalize) {
+            final float norm = Util.norm(vector);
+            if (norm > 0) {
+                for (int i = 0; i < vector.length; i++) {
+                    vector[i] /= norm;
+                }
+            }
+        }
+        return vector;
+    }
+
+    private String encode(float[] vector) {
+        switch (format) {
+            case FLOAT16:
+                return Util.convertArrayToBase64Float16(vector);
+            case BFLOAT16:
+                return Util.convertArrayToBase64BFloat16(vector);
+            case INT8:
+                return Util.convertArrayToBase64Int8(vector);
+            case SPARSE:
+                return Util.convertArrayToBase64Sparse(vector);
+            case BITS:
+                return Util.convertBitsToBase64(Util.toBits(vector));
+            default:
+                return Util.convertArrayToBase64WithNorm(vector);
+        }
+    }
+
+    @Override
+    public String getType() {
+        return TYPE;
+    }
+
+    public static final class Factory implements Processor.Factory {
+
+        @Override
+        public VectorEncodeProcessor create(Map<String, Processor.Factory> registry, String tag, Map<String, Object> config) {
+            final String field = ConfigurationUtils.readStringProperty(TYPE, tag, config, "field");
+            final String targetField = ConfigurationUtils.readStringProperty(TYPE, tag, config, "target_field", field);
+            final Format format;
+            try {
+                format = Format.fromString(ConfigurationUtils.readStringProperty(TYPE, tag, config, "format", "float"));
+            } catch (IllegalArgumentException e) {
+                throw ConfigurationUtils.newConfigurationException(TYPE, tag, "format", e.getMessage());
+            }
+            final boolean normalize = ConfigurationUtils.readBooleanProperty(TYPE, tag, config, "normalize", false);
+            final boolean ignoreMissing = ConfigurationUtils.readBooleanProperty(TYPE, tag, config, "ignore_missing", false);
+            final int dims = readDims(tag, config.remove("dims"));
+            return new VectorEncodeProcessor(tag, field, targetField, format, normalize, dims, ignoreMissing);
+        }
+
+        private static int readDims(String tag, @Nullable Object dims) {
+            if (dims == null) {
+                return -1;
+            }
+            final int value;
+            try {
+                value = dims instanceof Number ? ((Number) dims).intValue() : Integer.parseInt(dims.toString());
+            } catch (NumberFormatException e) {
+                throw ConfigurationUtils.newConfigurationException(TYPE, tag, "dims", "should be a number but was [" + dims + "]");
+            }
+            if (value <= 0) {
+                throw ConfigurationUtils.newConfigurationException(TYPE, tag, "dims", "should be positive but was [" + value + "]");
+            }
+            return value;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.liorkn.elasticsearch.ivf;
+
+import com.liorkn.elasticsearch.script.Metric;
+import com.liorkn.elasticsearch.script.VectorKernels;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * The coarse quantizer of an IVF (inverted file) index: a vector belongs to the cluster of its most similar centroid.
+ * For cosine the centroids are scored normalized, so the most similar one is the one with the highest dot product
+ * whatever the norm of the vector. For l2 the closest centroid is the one maximizing {@code v.c - |c|^2 / 2}.
+ */
+public final class Centroids {
+
+    private final Metric metric;
+    private final int dims;
+    private final int size;
+    // size rows of dims values, as given
+    private final float[] centroids;
+    // the rows scored against vectors, normalized for cosine
+    private final float[] scored;
+    // added to the dot product of each row, -|c|^2 / 2 for l2 and 0 otherwise
+    private final float[] bias;
+
+    public Centroids(Metric metric, float[][] centroids) {
+        if (metric == Metric.HAMMING) {
+            throw new IllegalArgumentException("ivf only supports float metrics");
+        }
+        if (centroids.length == 0) {
+            throw new IllegalArgumentException("ivf requires at least one centroid");
+        }
+        this.metric = metric;
+        this.dims = centroids[0].length;
+        this.size = centroids.length;
+        this.centroids = new float[size * dims];
+        for (int c = 0; c < size; c++) {
+            if (centroids[c].length != dims) {
+                throw new IllegalArgumentException("ivf centroids must all have [" + dims + "] dims but centroid ["
+                        + c + "] has [" + centroids[c].length + "]");
+            }
+            System.arraycopy(centroids[c], 0, this.centroids, c * dims, dims);
+        }
+        this.scored = this.centroids.clone();
+        if (metric == Metric.COSINE) {
+            for (int c = 0; c < size; c++) {
+                KMeans.normalize(scored, c * dims, dims);
+            }
+        }
+        this.bias = new float[size];
+        if (metric == Metric.L2) {
+            for (int c = 0; c < size; c++) {
+                bias[c] = -VectorKernels.dot(scored, c * dims, scored, c * dims, dims) / 2;
+            }
+        }
+    }
+
+    public Metric metric() {
+        return metric;
+    }
+
+    public int dims() {
+        return dims;
+    }
+
+    /**
+     * @return the number of clusters
+     */
+    public int size() {
+        return size;
+    }
+
+    public float[] get(int cluster) {
+        return Arrays.copyOfRange(centroids, cluster * dims, (cluster + 1) * dims);
+    }
+
+    /**
+     * @return the cluster the vector belongs to
+     */
+    public int nearest(float[] vector) {
+        int best = 0;
+        float bestScore = Float.NEGATIVE_INFINITY;
+        for (int c = 0; c < size; c++) {
+            final float score = VectorKernels.dot(vector, 0, scored, c * dims, dims) + bias[c];
+            if (score > bestScore) {
+                bestScore = score;
+                best = c;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @return the nprobe clusters closest to the vector, closest first
+     */
+    public int[] nearest(float[] vector, int nprobe) {
+        final int n = Math.min(nprobe, size);
+        final int[] clusters = new int[n];
+        final float[] scores = new float[n];
+        int count = 0;
+        for (int c = 0; c < size; c++) {
+            final float score = VectorKernels.dot(vector, 0, scored, c * dims, dims) + bias[c];
+            if (count == n && score <= scores[n - 1]) {
+                continue;
+            }
+            // insertion into the sorted top n, nprobe is small
+            int i = count < n ? count++ : n - 1;
+            while (i > 0 && scores[i - 1] < score) {
+                scores[i] = scores[i - 1];
+                clusters[i] = clusters[i - 1];
+                i--;
+            }
+            scores[i] = score;
+            clusters[i] = c;
+        }
+        return clusters;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        final Centroids that = (Centroids) o;
+        return metric == that.metric && dims == that.dims && Arrays.equals(centroids, that.centroids);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(metric, dims, Arrays.hashCode(centroids));
+    }
+}
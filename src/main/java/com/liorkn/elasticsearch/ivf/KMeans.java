@@ -0,0 +1,174 @@
+package com.liorkn.elasticsearch.ivf;
+
+import com.liorkn.elasticsearch.script.Metric;
+import com.liorkn.elasticsearch.script.VectorKernels;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Lloyd's k-means over a sample of vectors, assigning each vector to its most similar centroid the same way
+ * {@link Centroids#nearest(float[])} does at index time. For cosine the vectors and the centroids are normalized
+ * (spherical k-means).
+ */
+public final class KMeans {
+
+    private KMeans() {}
+
+    /**
+     * @param sample the training vectors, not modified
+     * @param nlist the number of clusters
+     * @param iterations the maximum number of iterations, training stops earlier once no vector changes cluster
+     */
+    public static Centroids train(float[][] sample, int nlist, int iterations, Metric metric, Random random) {
+        checkSample(sample, nlist);
+        final int dims = sample[0].length;
+        final float[] vectors = flatten(sample, dims);
+        if (metric == Metric.COSINE) {
+            for (int i = 0; i < sample.length; i++) {
+                normalize(vectors, i * dims, dims);
+            }
+        }
+        final float[] centroids = lloyd(vectors, sample.length, dims, nlist, iterations, metric == Metric.COSINE,
+                metric == Metric.L2, random);
+        return new Centroids(metric, split(centroids, nlist, dims));
+    }
+
+    /**
+     * Lloyd's k-means minimizing the squared euclidean distance of each vector to its centroid, for quantizers that
+     * reconstruct vectors from their centroids rather than rank them.
+     * @return the k centroids
+     */
+    public static float[][] trainEuclidean(float[][] sample, int k, int iterations, Random random) {
+        checkSample(sample, k);
+        final int dims = sample[0].length;
+        final float[] centroids = lloyd(flatten(sample, dims), sample.length, dims, k, iterations, false, true, random);
+        return split(centroids, k, dims);
+    }
+
+    private static void checkSample(float[][] sample, int k) {
+        if (k <= 0) {
+            throw new IllegalArgumentException("the number of clusters must be greater than 0 but was [" + k + "]");
+        }
+        if (sample.length < k) {
+            throw new IllegalArgumentException("can't train [" + k + "] clusters from [" + sample.length + "] vectors");
+        }
+    }
+
+    private static float[] flatten(float[][] sample, int dims) {
+        final float[] vectors = new float[sample.length * dims];
+        for (int i = 0; i < sample.length; i++) {
+            if (sample[i].length != dims) {
+                throw new IllegalArgumentException("vectors must all have [" + dims + "] dims but vector [" + i
+                        + "] has [" + sample[i].length + "]");
+            }
+            System.arraycopy(sample[i], 0, vectors, i * dims, dims);
+        }
+        return vectors;
+    }
+
+    private static float[][] split(float[] centroids, int k, int dims) {
+        final float[][] result = new float[k][];
+        for (int c = 0; c < k; c++) {
+            result[c] = Arrays.copyOfRange(centroids, c * dims, (c + 1) * dims);
+        }
+        return result;
+    }
+
+    /**
+     * @param spherical true to normalize the centroids after each update, the vectors must be normalized already
+     * @param euclidean true to assign vectors to the closest centroid, false to the one with the highest dot product
+     */
+    private static float[] lloyd(float[] vectors, int n, int dims, int k, int iterations, boolean spherical, boolean euclidean,
+                                 Random random) {
+        // start from k distinct random vectors
+        final int[] order = new int[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        final float[] centroids = new float[k * dims];
+        for (int c = 0; c < k; c++) {
+            final int j = c + random.nextInt(n - c);
+            final int pick = order[j];
+            order[j] = order[c];
+            order[c] = pick;
+            System.arraycopy(vectors, pick * dims, centroids, c * dims, dims);
+        }
+
+        final int[] assignments = new int[n];
+        Arrays.fill(assignments, -1);
+        final int[] counts = new int[k];
+        // -|c|^2 / 2 per centroid: the closest centroid is the one maximizing v.c - |c|^2 / 2
+        final float[] bias = new float[k];
+        for (int iteration = 0; iteration < iterations; iteration++) {
+            if (euclidean) {
+                for (int c = 0; c < k; c++) {
+                    bias[c] = -0.5f * VectorKernels.dot(centroids, c * dims, centroids, c * dims, dims);
+                }
+            }
+            boolean changed = false;
+            for (int i = 0; i < n; i++) {
+                final int nearest = nearest(vectors, i * dims, centroids, bias, k, dims);
+                if (nearest != assignments[i]) {
+                    assignments[i] = nearest;
+                    changed = true;
+                }
+            }
+            if (changed == false) {
+                break;
+            }
+
+            Arrays.fill(centroids, 0);
+            Arrays.fill(counts, 0);
+            for (int i = 0; i < n; i++) {
+                final int c = assignments[i];
+                counts[c]++;
+                for (int d = 0; d < dims; d++) {
+                    centroids[c * dims + d] += vectors[i * dims + d];
+                }
+            }
+            for (int c = 0; c < k; c++) {
+                if (counts[c] == 0) {
+                    // an empty cluster restarts from a random vector
+                    System.arraycopy(vectors, random.nextInt(n) * dims, centroids, c * dims, dims);
+                    continue;
+                }
+                final float inverse = 1f / counts[c];
+                for (int d = 0; d < dims; d++) {
+                    centroids[c * dims + d] *= inverse;
+                }
+                if (spherical) {
+                    normalize(centroids, c * dims, dims);
+                }
+            }
+        }
+        return centroids;
+    }
+
+    private static int nearest(float[] vectors, int offset, float[] centroids, float[] bias, int k, int dims) {
+        int best = 0;
+        float bestScore = Float.NEGATIVE_INFINITY;
+        for (int c = 0; c < k; c++) {
+            final float score = VectorKernels.dot(vectors, offset, centroids, c * dims, dims) + bias[c];
+            if (score > bestScore) {
+                bestScore = score;
+                best = c;
+            }
+        }
+        return best;
+    }
+
+    static void normalize(float[] values, int offset, int dims) {
+        float norm = 0.0f;
+        for (int i = offset; i < offset + dims; i++) {
+            norm += values[i] * values[i];
+        }
+        if (norm == 0) {
+            return;
+        }
+        final float inverse = (float) (1 / Math.sqrt(norm));
+        for (int i = offset; i < offset + dims; i++) {
+            values[i] *= inverse;
+        }
+    }
+}
@@ -0,0 +1,504 @@
+package com.liorkn.elasticsearch.mapper;
+
+import com.liorkn.elasticsearch.Util;
+import com.liorkn.elasticsearch.ivf.Centroids;
+import com.liorkn.elasticsearch.pq.ProductQuantizer;
+import com.liorkn.elasticsearch.script.Metric;
+import org.apache.lucene.document.BinaryDocValuesField;
+import org.apache.lucene.document.IntPoint;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+import org.elasticsearch.index.mapper.ArrayValueMapperParser;
+import org.elasticsearch.index.mapper.FieldMapper;
+import org.elasticsearch.index.mapper.MappedFieldType;
+import org.elasticsearch.index.mapper.Mapper;
+import org.elasticsearch.index.mapper.MapperParsingException;
+import org.elasticsearch.index.mapper.ParseContext;
+import org.elasticsearch.index.query.QueryShardContext;
+import org.elasticsearch.index.query.QueryShardException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * A {@code dense_vector} field: a JSON array of exactly {@code dims} floats.
+ * The vector is stored as a binary doc value with a fixed stride: the vector norm followed by
+ * the {@code dims} values, all little-endian float32 and without any length prefix.
+ * <p>
+ * With IVF centroids in the mapping ({@code "ivf": {"metric": "cosine", "centroids": [...]}}, usually put there by
+ * the train endpoint) each vector is also assigned to its nearest centroid, indexed as an int point in
+ * {@code <field>.ivf_cluster}, so a knn query can score only the clusters closest to the query.
+ * <p>
+ * With {@code "hnsw": {"m": 16, "ef_construction": 100}} a knn query with {@code ef_search} searches a per segment
+ * HNSW graph built with these parameters, see {@link com.liorkn.elasticsearch.query.HnswKnnQuery}.
+ * <p>
+ * With product quantization codebooks in the mapping ({@code "pq": {"codebooks": [...]}}, one per sub-space, also put
+ * there by the train endpoint) each vector is also stored as its {@link ProductQuantizer} code, m bytes in the binary
+ * doc value {@code <field>.pq_codes}, which knn queries and scripts with {@code pq} score instead of the floats.
+ * <p>
+ * Updating the mapping without ivf, hnsw or pq keeps the ones the field already has, so training one doesn't drop the others.
+ * The pq codebooks can't be replaced once in the mapping, the indexed codes were computed with them.
+ */
+public class DenseVectorFieldMapper extends FieldMapper implements ArrayValueMapperParser {
+
+    public static final String CONTENT_TYPE = "dense_vector";
+
+    public static final String IVF_CLUSTER_SUFFIX = ".ivf_cluster";
+
+    public static final String PQ_CODES_SUFFIX = ".pq_codes";
+
+    public static class Defaults {
+        public static final MappedFieldType FIELD_TYPE = new DenseVectorFieldType();
+
+        static {
+            FIELD_TYPE.setIndexOptions(IndexOptions.NONE);
+            FIELD_TYPE.setHasDocValues(true);
+            FIELD_TYPE.setStored(false);
+            FIELD_TYPE.freeze();
+        }
+    }
+
+    public static class Builder extends FieldMapper.Builder<Builder, DenseVectorFieldMapper> {
+
+        private int dims;
+        private Centroids ivf;
+        private int hnswM;
+        private int hnswEfConstruction;
+        private ProductQuantizer pq;
+
+        public Builder(String name) {
+            super(name, Defaults.FIELD_TYPE, Defaults.FIELD_TYPE);
+            builder = this;
+        }
+
+        public Builder dims(int dims) {
+            this.dims = dims;
+            return this;
+        }
+
+        public Builder ivf(Centroids ivf) {
+            this.ivf = ivf;
+            return this;
+        }
+
+        public Builder hnsw(int m, int efConstruction) {
+            this.hnswM = m;
+            this.hnswEfConstruction = efConstruction;
+            return this;
+        }
+
+        public Builder pq(ProductQuantizer pq) {
+            this.pq = pq;
+            return this;
+        }
+
+        @Override
+        protected void setupFieldType(BuilderContext context) {
+            super.setupFieldType(context);
+            fieldType().setDims(dims);
+            fieldType().setIvf(ivf);
+            fieldType().setHnsw(hnswM, hnswEfConstruction);
+            fieldType().setPq(pq);
+        }
+
+        @Override
+        public DenseVectorFieldType fieldType() {
+            return (DenseVectorFieldType) super.fieldType();
+        }
+
+        @Override
+        public DenseVectorFieldMapper build(BuilderContext context) {
+            setupFieldType(context);
+            return new DenseVectorFieldMapper(name, fieldType, defaultFieldType, context.indexSettings(),
+                    multiFieldsBuilder.build(this, context), copyTo);
+        }
+    }
+
+    public static class TypeParser implements Mapper.TypeParser {
+        @Override
+        public Mapper.Builder<?, ?> parse(String name, Map<String, Object> node, ParserContext parserContext) throws MapperParsingException {
+            final Builder builder = new Builder(name);
+            Object pq = null;
+            for (Iterator<Map.Entry<String, Object>> iterator = node.entrySet().iterator(); iterator.hasNext();) {
+                final Map.Entry<String, Object> entry = iterator.next();
+                if ("dims".equals(entry.getKey())) {
+                    builder.dims(XContentMapValues.nodeIntegerValue(entry.getValue()));
+                    iterator.remove();
+                } else if ("ivf".equals(entry.getKey())) {
+                    builder.ivf(parseIvf(name, entry.getValue()));
+                    iterator.remove();
+                } else if ("hnsw".equals(entry.getKey())) {
+                    parseHnsw(name, entry.getValue(), builder);
+                    iterator.remove();
+                } else if ("pq".equals(entry.getKey())) {
+                    pq = entry.getValue();
+                    iterator.remove();
+                }
+            }
+            if (builder.dims <= 0) {
+                throw new MapperParsingException("[" + CONTENT_TYPE + "] field [" + name + "] requires a positive [dims]");
+            }
+            if (builder.ivf != null && builder.ivf.dims() != builder.dims) {
+                throw new MapperParsingException("[" + CONTENT_TYPE + "] field [" + name + "] has [" + builder.dims
+                        + "] dims but its ivf centroids have [" + builder.ivf.dims() + "]");
+            }
+            if (pq != null) {
+                builder.pq(parsePq(name, pq, builder.dims));
+            }
+            return builder;
+        }
+
+        private static void parseHnsw(String name, Object node, Builder builder) {
+            if (node instanceof Map == false) {
+                throw new MapperParsingException("[" + CONTENT_TYPE + "] field [" + name + "] expects [hnsw] to be an object");
+            }
+            final Map<?, ?> hnsw = (Map<?, ?>) node;
+            final int m = XContentMapValues.nodeIntegerValue(hnsw.get("m"), 16);
+            final int efConstruction = XContentMapValues.nodeIntegerValue(hnsw.get("ef_construction"), 100);
+            if (m < 2 || efConstruction < 1) {
+                throw new MapperParsingException("[" + CONTENT_TYPE + "] field [" + name
+                        + "] requires hnsw m >= 2 and ef_construction >= 1 but got [" + m + "] and [" + efConstruction + "]");
+            }
+            builder.hnsw(m, efConstruction);
+        }
+
+        private static ProductQuantizer parsePq(String name, Object node, int dims) {
+            if (node instanceof Map == false) {
+                throw new MapperParsingException("[" + CONTENT_TYPE + "] field [" + name + "] expects [pq] to be an object");
+            }
+            final Object codebooks = ((Map<?, ?>) node).get("codebooks");
+            if (codebooks instanceof List == false || ((List<?>) codebooks).isEmpty()) {
+                throw new MapperParsingException("[" + CONTENT_TYPE + "] field [" + name + "] requires [pq.codebooks]");
+            }
+            final List<?> values = (List<?>) codebooks;
+            if (dims % values.size() != 0) {
+                throw new MapperParsingException("[" + CONTENT_TYPE + "] field [" + name + "] has [" + dims
+                        + "] dims which can't be split into [" + values.size() + "] pq sub-spaces");
+            }
+            final float[][] vectors = new float[values.size()][];
+            for (int j = 0; j < vectors.length; j++) {
+                if (values.get(j) instanceof String == false) {
+                    throw new MapperParsingException("[" + CONTENT_TYPE + "] field [" + name + "] expects pq codebooks to be base64 strings");
+                }
+                vectors[j] = Util.convertBase64ToArray((String) values.get(j));
+            }
+            try {
+                return new ProductQuantizer(vectors, dims / vectors.length);
+            } catch (IllegalArgumentException e) {
+                throw new MapperParsingException("[" + CONTENT_TYPE + "] field [" + name + "] has invalid pq codebooks", e);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private static Centroids parseIvf(String name, Object node) {
+            if (node instanceof Map == false) {
+                throw new MapperParsingException("[" + CONTENT_TYPE + "] field [" + name + "] expects [ivf] to be an object");
+            }
+            final Map<String, Object> ivf = (Map<String, Object>) node;
+            final Object centroids = ivf.get("centroids");
+            if (centroids instanceof List == false || ((List<?>) centroids).isEmpty()) {
+                throw new MapperParsingException("[" + CONTENT_TYPE + "] field [" + name + "] requires [ivf.centroids]");
+            }
+            final List<?> values = (List<?>) centroids;
+            final float[][] vectors = new float[values.size()][];
+            for (int c = 0; c < vectors.length; c++) {
+                final Object value = values.get(c);
+                if (value instanceof String) {
+                    vectors[c] = Util.convertBase64ToArray((String) value);
+                } else if (value instanceof List) {
+                    final List<?> list = (List<?>) value;
+                    vectors[c] = new float[list.size()];
+                    for (int i = 0; i < vectors[c].length; i++) {
+                        vectors[c][i] = XContentMapValues.nodeFloatValue(list.get(i));
+                    }
+                } else {
+                    throw new MapperParsingException("[" + CONTENT_TYPE + "] field [" + name
+                            + "] expects ivf centroids to be base64 strings or arrays of floats");
+                }
+            }
+            final Object metric = ivf.get("metric");
+            try {
+                return new Centroids(metric == null ? Metric.COSINE : Metric.fromString(metric.toString()), vectors);
+            } catch (IllegalArgumentException e) {
+                throw new MapperParsingException("[" + CONTENT_TYPE + "] field [" + name + "] has invalid ivf centroids", e);
+            }
+        }
+    }
+
+    public static final class DenseVectorFieldType extends MappedFieldType {
+
+        private int dims;
+        private Centroids ivf;
+        // 0 when the field has no hnsw parameters
+        private int hnswM;
+        private int hnswEfConstruction;
+        private ProductQuantizer pq;
+
+        public DenseVectorFieldType() {}
+
+        protected DenseVectorFieldType(DenseVectorFieldType ref) {
+            super(ref);
+            this.dims = ref.dims;
+            this.ivf = ref.ivf;
+            this.hnswM = ref.hnswM;
+            this.hnswEfConstruction = ref.hnswEfConstruction;
+            this.pq = ref.pq;
+        }
+
+        public int dims() {
+            return dims;
+        }
+
+        public void setDims(int dims) {
+            checkIfFrozen();
+            this.dims = dims;
+        }
+
+        /**
+         * @return the IVF centroids, or null if none were trained for this field
+         */
+        @Nullable
+        public Centroids ivf() {
+            return ivf;
+        }
+
+        public void setIvf(@Nullable Centroids ivf) {
+            checkIfFrozen();
+            this.ivf = ivf;
+        }
+
+        public boolean hasHnsw() {
+            return hnswM > 0;
+        }
+
+        /**
+         * @return the max number of neighbors per node of the hnsw graphs, 0 without hnsw parameters
+         */
+        public int hnswM() {
+            return hnswM;
+        }
+
+        public int hnswEfConstruction() {
+            return hnswEfConstruction;
+        }
+
+        public void setHnsw(int m, int efConstruction) {
+            checkIfFrozen();
+            this.hnswM = m;
+            this.hnswEfConstruction = efConstruction;
+        }
+
+        /**
+         * @return the product quantizer the vectors are also encoded with, or null if none was trained for this field
+         */
+        @Nullable
+        public ProductQuantizer pq() {
+            return pq;
+        }
+
+        public void setPq(@Nullable ProductQuantizer pq) {
+            checkIfFrozen();
+            this.pq = pq;
+        }
+
+        /**
+         * @return the number of bytes stored per document
+         */
+        public int stride() {
+            return Float.BYTES * (dims + 1);
+        }
+
+        @Override
+        public MappedFieldType clone() {
+            return new DenseVectorFieldType(this);
+        }
+
+        @Override
+        public String typeName() {
+            return CONTENT_TYPE;
+        }
+
+        @Override
+        public Query termQuery(Object value, QueryShardContext context) {
+            throw new QueryShardException(context, "[" + CONTENT_TYPE + "] fields do not support searching, use them in scoring");
+        }
+
+        @Override
+        public void checkCompatibility(MappedFieldType other, List<String> conflicts, boolean strict) {
+            super.checkCompatibility(other, conflicts, strict);
+            final DenseVectorFieldType otherType = (DenseVectorFieldType) other;
+            if (dims != otherType.dims) {
+                conflicts.add("mapper [" + name() + "] has different [dims]");
+            }
+            // the indexed clusters and codes are indices into the current centroids and codebooks, other ones would find and
+            // score them with the wrong centroids
+            if (ivf != null && otherType.ivf != null && ivf.equals(otherType.ivf) == false) {
+                conflicts.add("mapper [" + name() + "] has different [ivf] centroids, they can't be changed once trained");
+            }
+            if (pq != null && otherType.pq != null && pq.equals(otherType.pq) == false) {
+                conflicts.add("mapper [" + name() + "] has different [pq] codebooks, they can't be changed once trained");
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (super.equals(o) == false) {
+                return false;
+            }
+            final DenseVectorFieldType other = (DenseVectorFieldType) o;
+            return dims == other.dims && Objects.equals(ivf, other.ivf)
+                    && hnswM == other.hnswM && hnswEfConstruction == other.hnswEfConstruction && Objects.equals(pq, other.pq);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * super.hashCode() + Objects.hash(dims, ivf, hnswM, hnswEfConstruction, pq);
+        }
+    }
+
+    protected DenseVectorFieldMapper(String simpleName, MappedFieldType fieldType, MappedFieldType defaultFieldType,
+                                     Settings indexSettings, MultiFields multiFields, CopyTo copyTo) {
+        super(simpleName, fieldType, defaultFieldType, indexSettings, multiFields, copyTo);
+    }
+
+    @Override
+    public DenseVectorFieldType fieldType() {
+        return (DenseVectorFieldType) super.fieldType();
+    }
+
+    @Override
+    protected void parseCreateField(ParseContext context, List<IndexableField> fields) throws IOException {
+        final XContentParser parser = context.parser();
+        if (parser.currentToken() == XContentParser.Token.VALUE_NULL) {
+            return;
+        }
+        if (parser.currentToken() != XContentParser.Token.START_ARRAY) {
+            throw new IllegalArgumentException("[" + CONTENT_TYPE + "] field [" + name() + "] expects an array of floats");
+        }
+
+        final int dims = fieldType().dims();
+        final float[] vector = new float[dims];
+        int i = 0;
+        for (XContentParser.Token token = parser.nextToken(); token != XContentParser.Token.END_ARRAY; token = parser.nextToken()) {
+            if (i == dims) {
+                throw new IllegalArgumentException("[" + CONTENT_TYPE + "] field [" + name() + "] has more than [" + dims + "] dims");
+            }
+            vector[i++] = parser.floatValue();
+        }
+        if (i != dims) {
+            throw new IllegalArgumentException("[" + CONTENT_TYPE + "] field [" + name() + "] expects [" + dims + "] dims but got [" + i + "]");
+        }
+
+        fields.add(new BinaryDocValuesField(fieldType().name(), new BytesRef(encode(vector))));
+        final Centroids ivf = fieldType().ivf();
+        if (ivf != null) {
+            fields.add(new IntPoint(fieldType().name() + IVF_CLUSTER_SUFFIX, ivf.nearest(vector)));
+        }
+        final ProductQuantizer pq = fieldType().pq();
+        if (pq != null) {
+            fields.add(new BinaryDocValuesField(fieldType().name() + PQ_CODES_SUFFIX, new BytesRef(pq.encode(vector))));
+        }
+    }
+
+    @Override
+    protected void doMerge(Mapper mergeWith, boolean updateAllTypes) {
+        final DenseVectorFieldType current = fieldType();
+        super.doMerge(mergeWith, updateAllTypes);
+        final DenseVectorFieldType merged = fieldType();
+        if ((merged.ivf() == null && current.ivf() != null) || (merged.hasHnsw() == false && current.hasHnsw())
+                || (merged.pq() == null && current.pq() != null)) {
+            final DenseVectorFieldType kept = (DenseVectorFieldType) merged.clone();
+            if (kept.ivf() == null) {
+                kept.setIvf(current.ivf());
+            }
+            if (kept.hasHnsw() == false) {
+                kept.setHnsw(current.hnswM(), current.hnswEfConstruction());
+            }
+            if (kept.pq() == null) {
+                kept.setPq(current.pq());
+            }
+            kept.freeze();
+            this.fieldType = kept;
+        }
+    }
+
+    /**
+     * @return the fixed stride doc value bytes of a vector
+     */
+    public static byte[] encode(float[] vector) {
+        final ByteBuffer bb = ByteBuffer.allocate(Float.BYTES * (vector.length + 1)).order(ByteOrder.LITTLE_ENDIAN);
+        bb.putFloat(Util.norm(vector));
+        for (float v : vector) {
+            bb.putFloat(v);
+        }
+        return bb.array();
+    }
+
+    /**
+     * Decodes the values of a fixed stride doc value into dest.
+     * @return the stored norm
+     */
+    public static float decode(BytesRef value, float[] dest, int destOffset, int dims) {
+        final ByteBuffer bb = ByteBuffer.wrap(value.bytes, value.offset, value.length).order(ByteOrder.LITTLE_ENDIAN);
+        final float norm = bb.getFloat();
+        for (int i = 0; i < dims; i++) {
+            dest[destOffset + i] = bb.getFloat();
+        }
+        return norm;
+    }
+
+    @Override
+    protected String contentType() {
+        return CONTENT_TYPE;
+    }
+
+    @Override
+    protected void doXContentDocValues(XContentBuilder builder, boolean includeDefaults) {
+        // the vectors are always doc values, which the type parser doesn't take as a parameter
+    }
+
+    @Override
+    protected void doXContentBody(XContentBuilder builder, boolean includeDefaults, Params params) throws IOException {
+        super.doXContentBody(builder, includeDefaults, params);
+        builder.field("dims", fieldType().dims());
+        final Centroids ivf = fieldType().ivf();
+        if (ivf != null) {
+            builder.startObject("ivf");
+            builder.field("metric", ivf.metric().toString());
+            builder.startArray("centroids");
+            for (int c = 0; c < ivf.size(); c++) {
+                builder.value(Util.convertArrayToBase64(ivf.get(c)));
+            }
+            builder.endArray();
+            builder.endObject();
+        }
+        if (fieldType().hasHnsw()) {
+            builder.startObject("hnsw");
+            builder.field("m", fieldType().hnswM());
+            builder.field("ef_construction", fieldType().hnswEfConstruction());
+            builder.endObject();
+        }
+        final ProductQuantizer pq = fieldType().pq();
+        if (pq != null) {
+            builder.startObject("pq");
+            builder.startArray("codebooks");
+            for (int j = 0; j < pq.m(); j++) {
+                builder.value(Util.convertArrayToBase64(pq.codebook(j)));
+            }
+            builder.endArray();
+            builder.endObject();
+        }
+    }
+}
@@ -13,22 +13,176 @@
  */
 package com.liorkn.elasticsearch.plugin;
 
+import com.liorkn.elasticsearch.aggregation.InternalKnnBatch;
+import com.liorkn.elasticsearch.aggregation.KnnBatchAggregationBuilder;
+import com.liorkn.elasticsearch.cache.BoundsCache;
+import com.liorkn.elasticsearch.cache.HnswCache;
+import com.liorkn.elasticsearch.cache.KnnResultCache;
+import com.liorkn.elasticsearch.cache.QueryVectorCache;
+import com.liorkn.elasticsearch.cache.VectorCache;
+import com.liorkn.elasticsearch.ingest.VectorEncodeProcessor;
+import com.liorkn.elasticsearch.mapper.DenseVectorFieldMapper;
+import com.liorkn.elasticsearch.query.KnnQueryBuilder;
+import com.liorkn.elasticsearch.query.ParallelKnnQuery;
+import com.liorkn.elasticsearch.rest.RestKnnStatsAction;
+import com.liorkn.elasticsearch.rest.RestKnnTrainAction;
+import com.liorkn.elasticsearch.script.VectorKernels;
 import com.liorkn.elasticsearch.service.VectorScoringScriptEngineService;
+import com.liorkn.elasticsearch.stats.KnnStats;
 
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.node.DiscoveryNodes;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.ClusterSettings;
+import org.elasticsearch.common.settings.IndexScopedSettings;
+import org.elasticsearch.common.settings.Setting;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.settings.SettingsFilter;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.index.IndexModule;
+import org.elasticsearch.index.mapper.Mapper;
+import org.elasticsearch.index.shard.IndexEventListener;
+import org.elasticsearch.index.shard.IndexShard;
+import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.ingest.Processor;
+import org.elasticsearch.plugins.ActionPlugin;
+import org.elasticsearch.plugins.IngestPlugin;
+import org.elasticsearch.plugins.MapperPlugin;
 import org.elasticsearch.plugins.Plugin;
 import org.elasticsearch.plugins.ScriptPlugin;
+import org.elasticsearch.plugins.SearchPlugin;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestHandler;
 import org.elasticsearch.script.ScriptEngineService;
+import org.elasticsearch.script.ScriptService;
+import org.elasticsearch.threadpool.ExecutorBuilder;
+import org.elasticsearch.threadpool.FixedExecutorBuilder;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.watcher.ResourceWatcherService;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
 
 /**
  * This class is instantiated when Elasticsearch loads the plugin for the
  * first time. If you change the name of this plugin, make sure to update
  * src/main/resources/es-plugin.properties file that points to this class.
  */
-public final class VectorScoringPlugin extends Plugin implements ScriptPlugin {
+public final class VectorScoringPlugin extends Plugin implements ScriptPlugin, MapperPlugin, SearchPlugin, ActionPlugin, IngestPlugin {
+
+    private static final Logger LOGGER = Loggers.getLogger(VectorScoringPlugin.class);
+
+    // node level, null when disabled
+    private final VectorCache vectorCache;
+    // node level, graphs are only built for queries with ef_search
+    private final HnswCache hnswCache;
+    // node level, per segment vector bounds of the knn queries with a min_score
+    private final BoundsCache boundsCache;
+    // node level, per segment top docs of repeated knn queries, null when disabled
+    private final KnnResultCache resultCache;
+    // node level, parsed encoded query vectors of the scripts
+    private final QueryVectorCache queryVectorCache;
+    // node level, what the scripts and queries scored, null when disabled
+    private final KnnStats stats;
+    // set once the node created its components, used by parallel knn queries and to build the graphs
+    private ThreadPool threadPool;
+
+    public VectorScoringPlugin(Settings settings) {
+        vectorCache = VectorCache.ENABLED.get(settings) ? new VectorCache(settings) : null;
+        hnswCache = new HnswCache(settings);
+        boundsCache = new BoundsCache(settings);
+        resultCache = KnnResultCache.ENABLED.get(settings) ? new KnnResultCache(settings) : null;
+        queryVectorCache = new QueryVectorCache(settings);
+        stats = KnnStats.ENABLED.get(settings) ? new KnnStats() : null;
+        LOGGER.info("vector kernels: {}", VectorKernels.implementation());
+    }
+
+    @Override
+    public List<Setting<?>> getSettings() {
+        return Arrays.asList(VectorCache.ENABLED, VectorCache.SIZE, HnswCache.SIZE, BoundsCache.SIZE,
+                KnnResultCache.ENABLED, KnnResultCache.SIZE, QueryVectorCache.SIZE, KnnStats.ENABLED);
+    }
+
+    @Override
+    public List<ExecutorBuilder<?>> getExecutorBuilders(Settings settings) {
+        // bounded, so parallel knn queries can't starve the search pool or each other
+        return Arrays.asList(new FixedExecutorBuilder(settings, ParallelKnnQuery.THREAD_POOL,
+                EsExecutors.boundedNumberOfProcessors(settings), 1000, "thread_pool." + ParallelKnnQuery.THREAD_POOL),
+                // a single thread by default, graphs are built once per segment and the queries don't wait for them
+                new FixedExecutorBuilder(settings, HnswCache.THREAD_POOL, 1, 100, "thread_pool." + HnswCache.THREAD_POOL));
+    }
+
+    @Override
+    public Collection<Object> createComponents(Client client, ClusterService clusterService, ThreadPool threadPool,
+                                               ResourceWatcherService resourceWatcherService, ScriptService scriptService,
+                                               NamedXContentRegistry xContentRegistry) {
+        this.threadPool = threadPool;
+        return Collections.emptyList();
+    }
 
     public final ScriptEngineService getScriptEngineService(Settings settings) {
-        return new VectorScoringScriptEngineService(settings);
+        return new VectorScoringScriptEngineService(settings, vectorCache, queryVectorCache, stats);
+    }
+
+    @Override
+    public void onIndexModule(IndexModule indexModule) {
+        if (stats == null) {
+            return;
+        }
+        indexModule.addIndexEventListener(new IndexEventListener() {
+            @Override
+            public void afterIndexShardClosed(ShardId shardId, @Nullable IndexShard indexShard, Settings indexSettings) {
+                stats.removeShard(shardId);
+            }
+        });
+    }
+
+    @Override
+    public Map<String, Mapper.TypeParser> getMappers() {
+        return Collections.singletonMap(DenseVectorFieldMapper.CONTENT_TYPE, new DenseVectorFieldMapper.TypeParser());
+    }
+
+    @Override
+    public Map<String, Processor.Factory> getProcessors(Processor.Parameters parameters) {
+        return Collections.singletonMap(VectorEncodeProcessor.TYPE, new VectorEncodeProcessor.Factory());
+    }
+
+    @Override
+    public List<QuerySpec<?>> getQueries() {
+        // the builders get the node level services whether they were parsed here or sent from another node
+        return Collections.singletonList(new QuerySpec<>(KnnQueryBuilder.NAME,
+                in -> new KnnQueryBuilder(in).vectorCache(vectorCache).hnswCache(hnswCache).boundsCache(boundsCache)
+                        .resultCache(resultCache).threadPool(threadPool).stats(stats),
+                parseContext -> KnnQueryBuilder.fromXContent(parseContext)
+                        .map(builder -> builder.vectorCache(vectorCache).hnswCache(hnswCache).boundsCache(boundsCache)
+                                .resultCache(resultCache).threadPool(threadPool).stats(stats))));
+    }
+
+    @Override
+    public List<AggregationSpec> getAggregations() {
+        return Collections.singletonList(new AggregationSpec(KnnBatchAggregationBuilder.NAME,
+                in -> new KnnBatchAggregationBuilder(in).vectorCache(vectorCache),
+                (name, parseContext) -> KnnBatchAggregationBuilder.parse(name, parseContext).vectorCache(vectorCache))
+                .addResultReader(InternalKnnBatch::new));
+    }
+
+    @Override
+    public List<RestHandler> getRestHandlers(Settings settings, RestController restController, ClusterSettings clusterSettings,
+                                             IndexScopedSettings indexScopedSettings, SettingsFilter settingsFilter,
+                                             IndexNameExpressionResolver indexNameExpressionResolver,
+                                             Supplier<DiscoveryNodes> nodesInCluster) {
+        return Arrays.asList(new RestKnnTrainAction(settings, restController),
+                new RestKnnStatsAction(settings, restController, stats, vectorCache, hnswCache, boundsCache,
+                        resultCache, queryVectorCache));
     }
 
 
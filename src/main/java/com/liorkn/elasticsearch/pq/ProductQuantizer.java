@@ -0,0 +1,260 @@
+package com.liorkn.elasticsearch.pq;
+
+import com.liorkn.elasticsearch.ivf.KMeans;
+import com.liorkn.elasticsearch.script.Metric;
+import com.liorkn.elasticsearch.script.VectorKernels;
+
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.Random;
+
+/**
+ * Product quantization: a vector is split into {@code m} sub-vectors of {@code dims / m} values and each sub-vector is
+ * replaced by the index of its closest centroid in that sub-space's codebook, so a vector is stored as m bytes.
+ * <p>
+ * Similarities to a query are computed from a {@link LookupTable} of the query's dot product with, or for l2 squared
+ * distance to, every centroid of every codebook, built once per query: scoring a doc then takes m lookups instead of
+ * dims multiplications.
+ */
+public final class ProductQuantizer {
+
+    /** codes are stored as single bytes */
+    public static final int MAX_CENTROIDS = 256;
+
+    private final int m;
+    private final int subDims;
+    private final int centroids;
+    // m codebooks of centroids rows of subDims values each, flattened
+    private final float[] codebooks;
+    // the squared norm of each centroid, m rows of centroids values
+    private final float[] squaredNorms;
+
+    /**
+     * @param codebooks one codebook per sub-space, each holding the same number of centroids of {@code subDims} values, flattened
+     */
+    public ProductQuantizer(float[][] codebooks, int subDims) {
+        if (codebooks.length == 0) {
+            throw new IllegalArgumentException("pq requires at least one codebook");
+        }
+        if (subDims <= 0 || codebooks[0].length == 0 || codebooks[0].length % subDims != 0) {
+            throw new IllegalArgumentException("pq codebooks must hold whole centroids of [" + subDims + "] values");
+        }
+        this.m = codebooks.length;
+        this.subDims = subDims;
+        this.centroids = codebooks[0].length / subDims;
+        if (centroids > MAX_CENTROIDS) {
+            throw new IllegalArgumentException("pq codebooks can have at most [" + MAX_CENTROIDS + "] centroids but have ["
+                    + centroids + "]");
+        }
+        final int codebookLength = centroids * subDims;
+        this.codebooks = new float[m * codebookLength];
+        for (int j = 0; j < m; j++) {
+            if (codebooks[j].length != codebookLength) {
+                throw new IllegalArgumentException("pq codebooks must all have [" + centroids + "] centroids but codebook ["
+                        + j + "] has [" + (codebooks[j].length / (float) subDims) + "]");
+            }
+            System.arraycopy(codebooks[j], 0, this.codebooks, j * codebookLength, codebookLength);
+        }
+        this.squaredNorms = new float[m * centroids];
+        for (int c = 0; c < squaredNorms.length; c++) {
+            squaredNorms[c] = VectorKernels.dot(this.codebooks, c * subDims, this.codebooks, c * subDims, subDims);
+        }
+    }
+
+    /**
+     * Trains one codebook per sub-space with k-means on the matching sub-vectors of the sample.
+     * @param m the number of sub-spaces, must divide the number of dims
+     * @param centroids the number of centroids per codebook, at most {@link #MAX_CENTROIDS}
+     */
+    public static ProductQuantizer train(float[][] sample, int m, int centroids, int iterations, Random random) {
+        if (sample.length == 0) {
+            throw new IllegalArgumentException("can't train pq codebooks without vectors");
+        }
+        final int dims = sample[0].length;
+        if (m <= 0 || dims % m != 0) {
+            throw new IllegalArgumentException("pq m must divide the [" + dims + "] dims but was [" + m + "]");
+        }
+        if (centroids > MAX_CENTROIDS) {
+            throw new IllegalArgumentException("pq codebooks can have at most [" + MAX_CENTROIDS + "] centroids but got ["
+                    + centroids + "]");
+        }
+        final int subDims = dims / m;
+        final float[][] codebooks = new float[m][];
+        final float[][] subVectors = new float[sample.length][];
+        for (int j = 0; j < m; j++) {
+            for (int i = 0; i < sample.length; i++) {
+                if (sample[i].length != dims) {
+                    throw new IllegalArgumentException("vectors must all have [" + dims + "] dims but vector [" + i
+                            + "] has [" + sample[i].length + "]");
+                }
+                subVectors[i] = Arrays.copyOfRange(sample[i], j * subDims, (j + 1) * subDims);
+            }
+            final float[][] codebook = KMeans.trainEuclidean(subVectors, centroids, iterations, random);
+            codebooks[j] = new float[centroids * subDims];
+            for (int c = 0; c < centroids; c++) {
+                System.arraycopy(codebook[c], 0, codebooks[j], c * subDims, subDims);
+            }
+        }
+        return new ProductQuantizer(codebooks, subDims);
+    }
+
+    /**
+     * @return the number of sub-spaces, which is the number of bytes of a code
+     */
+    public int m() {
+        return m;
+    }
+
+    public int subDims() {
+        return subDims;
+    }
+
+    public int dims() {
+        return m * subDims;
+    }
+
+    /**
+     * @return the number of centroids of each codebook
+     */
+    public int centroids() {
+        return centroids;
+    }
+
+    /**
+     * @return the flattened centroids of one sub-space
+     */
+    public float[] codebook(int subSpace) {
+        final int length = centroids * subDims;
+        return Arrays.copyOfRange(codebooks, subSpace * length, (subSpace + 1) * length);
+    }
+
+    /**
+     * @return the code of the vector, the index of the closest centroid of each sub-space
+     */
+    public byte[] encode(float[] vector) {
+        if (vector.length != dims()) {
+            throw new IllegalArgumentException("pq expects vectors of [" + dims() + "] dims but got [" + vector.length + "]");
+        }
+        final byte[] code = new byte[m];
+        for (int j = 0; j < m; j++) {
+            int best = 0;
+            float bestDistance = Float.POSITIVE_INFINITY;
+            for (int c = 0; c < centroids; c++) {
+                final int row = j * centroids + c;
+                // |v - c|^2 without the |v|^2 all centroids share
+                final float distance = squaredNorms[row] - 2 * VectorKernels.dot(vector, j * subDims, codebooks, row * subDims, subDims);
+                if (distance < bestDistance) {
+                    bestDistance = distance;
+                    best = c;
+                }
+            }
+            code[j] = (byte) best;
+        }
+        return code;
+    }
+
+    /**
+     * @return the table scoring codes against the query vector with the metric
+     */
+    public LookupTable lookupTable(float[] query, Metric metric) {
+        if (metric == Metric.HAMMING) {
+            throw new IllegalArgumentException("pq doesn't support metric [" + metric + "]");
+        }
+        if (query.length != dims()) {
+            throw new IllegalArgumentException("pq expects vectors of [" + dims() + "] dims but the query vector has ["
+                    + query.length + "]");
+        }
+        final float[] dots = new float[m * centroids];
+        for (int j = 0; j < m; j++) {
+            for (int c = 0; c < centroids; c++) {
+                final int row = j * centroids + c;
+                dots[row] = VectorKernels.dot(query, j * subDims, codebooks, row * subDims, subDims);
+            }
+        }
+        if (metric == Metric.L2) {
+            // |q_j - c|^2 = |q_j|^2 - 2 q_j.c + |c|^2, the distances of the sub-spaces add up
+            for (int j = 0; j < m; j++) {
+                final float subNorm = VectorKernels.dot(query, j * subDims, query, j * subDims, subDims);
+                for (int c = 0; c < centroids; c++) {
+                    final int row = j * centroids + c;
+                    dots[row] = subNorm - 2 * dots[row] + squaredNorms[row];
+                }
+            }
+            return new LookupTable(m, centroids, dots, null, 0f, true);
+        }
+        float queryNorm = 0.0f;
+        for (float v : query) {
+            queryNorm += v * v;
+        }
+        return new LookupTable(m, centroids, dots, metric == Metric.COSINE ? squaredNorms : null, (float) Math.sqrt(queryNorm), false);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        final ProductQuantizer that = (ProductQuantizer) o;
+        return m == that.m && subDims == that.subDims && Arrays.equals(codebooks, that.codebooks);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(m, subDims, Arrays.hashCode(codebooks));
+    }
+
+    /**
+     * The m x centroids table of a query's dot products with, or squared distances to, the centroids, immutable and safe
+     * to share between threads.
+     * A doc's similarity is the one of the query with the doc's reconstructed vector, the concatenation of its centroids.
+     */
+    public static final class LookupTable {
+
+        private final int m;
+        private final int centroids;
+        // the dot products, or the squared distances for l2
+        private final float[] dots;
+        // the squared norms of the centroids for cosine, null otherwise
+        private final float[] squaredNorms;
+        private final float queryNorm;
+        private final boolean l2;
+
+        private LookupTable(int m, int centroids, float[] dots, float[] squaredNorms, float queryNorm, boolean l2) {
+            this.m = m;
+            this.centroids = centroids;
+            this.dots = dots;
+            this.squaredNorms = squaredNorms;
+            this.queryNorm = queryNorm;
+            this.l2 = l2;
+        }
+
+        /**
+         * @return the number of bytes of a code
+         */
+        public int codeLength() {
+            return m;
+        }
+
+        /**
+         * @param codes the m bytes of a code, starting at offset
+         */
+        public double score(byte[] codes, int offset) {
+            float dot = 0.0f;
+            if (squaredNorms == null) {
+                for (int j = 0, row = 0; j < m; j++, row += centroids) {
+                    dot += dots[row + (codes[offset + j] & 0xFF)];
+                }
+                return l2 ? 1 / (1 + (double) Math.max(0f, dot)) : dot;
+            }
+            float squaredNorm = 0.0f;
+            for (int j = 0, row = 0; j < m; j++, row += centroids) {
+                final int c = row + (codes[offset + j] & 0xFF);
+                dot += dots[c];
+                squaredNorm += squaredNorms[c];
+            }
+            if (squaredNorm == 0 || queryNorm == 0) {
+                return 0f;
+            }
+            return dot / (Math.sqrt(squaredNorm) * queryNorm);
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package com.liorkn.elasticsearch.query;
+
+import com.liorkn.elasticsearch.cache.HnswCache;
+import com.liorkn.elasticsearch.cache.VectorCache;
+import com.liorkn.elasticsearch.hnsw.HnswGraph;
+import com.liorkn.elasticsearch.script.Metric;
+import com.liorkn.elasticsearch.script.VectorScoreScript;
+import com.liorkn.elasticsearch.stats.KnnStats;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.util.Bits;
+import org.elasticsearch.common.Nullable;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+
+/**
+ * Approximate knn over the {@link HnswGraph} of each segment of a dense_vector field.
+ * <p>
+ * The search happens when the query is rewritten: every segment's graph is searched with {@code efSearch} and the hits
+ * are merged into the shard's top k, which the query rewrites to. Hits are scored exactly like {@link KnnQuery} does.
+ * A segment whose graph isn't built yet, or doesn't fit in the {@link HnswCache}, is scored exhaustively instead.
+ */
+public final class HnswKnnQuery extends Query {
+
+    private final String field;
+    private final float[] vector;
+    private final Metric metric;
+    private final int k;
+    private final Float minScore;
+    private final int efSearch;
+    private final int m;
+    private final int efConstruction;
+    private final HnswCache hnswCache;
+    @Nullable
+    private final VectorCache vectorCache;
+    @Nullable
+    private final KnnStats stats;
+    // builds the graphs off the searching thread
+    private final Executor executor;
+
+    public HnswKnnQuery(String field, float[] vector, Metric metric, int k, @Nullable Float minScore, int efSearch,
+                        int m, int efConstruction, HnswCache hnswCache, @Nullable VectorCache vectorCache,
+                        @Nullable KnnStats stats, Executor executor) {
+        this.field = Objects.requireNonNull(field);
+        this.vector = Objects.requireNonNull(vector);
+        this.metric = Objects.requireNonNull(metric);
+        this.k = k;
+        this.minScore = minScore;
+        this.efSearch = efSearch;
+        this.m = m;
+        this.efConstruction = efConstruction;
+        this.hnswCache = Objects.requireNonNull(hnswCache);
+        this.vectorCache = vectorCache;
+        this.stats = stats;
+        this.executor = Objects.requireNonNull(executor);
+    }
+
+    @Override
+    public Query rewrite(IndexReader reader) throws IOException {
+        final VectorScoreScript script = new VectorScoreScript(field, metric, vector, null);
+        script.setDenseVectorDims(vector.length);
+        script.setStats(stats, false);
+        final HnswGraph.NodeScorer scorer = doc -> {
+            script.setDocument(doc);
+            return (float) script.runAsDouble();
+        };
+
+        final TopDocHeap topDocs = new TopDocHeap(k);
+        for (LeafReaderContext context : reader.leaves()) {
+            final LeafReader leaf = context.reader();
+            final Bits docsWithField = leaf.getDocsWithField(field);
+            if (docsWithField == null) {
+                continue;
+            }
+            final Bits liveDocs = leaf.getLiveDocs();
+            final HnswGraph graph = hnswCache.get(leaf, field, vector.length, metric, m, efConstruction, vectorCache, executor);
+            if (graph != null) {
+                script.setNextReader(leaf, null); // the graph holds the vectors
+                script.setSegmentVectors(graph.vectors());
+                graph.search(scorer, Math.max(efSearch, k), liveDocs, topDocs, context.docBase);
+            } else {
+                script.setNextReader(leaf, vectorCache);
+                for (int doc = 0; doc < leaf.maxDoc(); doc++) {
+                    if (docsWithField.get(doc) && (liveDocs == null || liveDocs.get(doc))) {
+                        topDocs.add(scorer.score(doc), context.docBase + doc);
+                    }
+                }
+            }
+            script.finishSegment();
+        }
+
+        return KnnScoreDocQuery.of(topDocs, minScore, reader, "approximate nearest neighbor score");
+    }
+
+    @Override
+    public Weight createWeight(IndexSearcher searcher, boolean needsScores) throws IOException {
+        throw new IllegalStateException("[" + getClass().getSimpleName() + "] must be rewritten first");
+    }
+
+    @Override
+    public String toString(String field) {
+        return "hnsw_knn(" + this.field + ", metric=" + metric + ", dims=" + vector.length + ", k=" + k
+                + ", ef_search=" + efSearch + ", m=" + m + ", ef_construction=" + efConstruction
+                + (minScore != null ? ", min_score=" + minScore : "") + ")";
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (sameClassAs(other) == false) {
+            return false;
+        }
+        final HnswKnnQuery that = (HnswKnnQuery) other;
+        return field.equals(that.field) && Arrays.equals(vector, that.vector) && metric == that.metric && k == that.k
+                && Objects.equals(minScore, that.minScore) && efSearch == that.efSearch && m == that.m
+                && efConstruction == that.efConstruction;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * classHash() + Objects.hash(field, Arrays.hashCode(vector), metric, k, minScore, efSearch, m, efConstruction);
+    }
+}
@@ -0,0 +1,448 @@
+package com.liorkn.elasticsearch.query;
+
+import com.liorkn.elasticsearch.cache.BoundsCache;
+import com.liorkn.elasticsearch.cache.KnnResultCache;
+import com.liorkn.elasticsearch.cache.SegmentBounds;
+import com.liorkn.elasticsearch.cache.SegmentTopDocs;
+import com.liorkn.elasticsearch.cache.VectorCache;
+import com.liorkn.elasticsearch.pq.ProductQuantizer;
+import com.liorkn.elasticsearch.script.Metric;
+import com.liorkn.elasticsearch.script.QueryVector;
+import com.liorkn.elasticsearch.script.VectorScoreScript;
+import com.liorkn.elasticsearch.stats.KnnStats;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Explanation;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.util.Bits;
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.index.shard.ShardUtils;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Matches the documents that have a vector in the field and scores them by their similarity to the query vector.
+ * <p>
+ * With {@code k > 0} the shard's segments are scored when the query is rewritten, and it rewrites to the k best docs of
+ * the shard: in a bool query the other clauses only filter and score those k docs. While scoring, every doc that
+ * can't beat the k-th best score so far is skipped.
+ * With {@code minScore} docs scoring below it don't match, and with a {@link BoundsCache} whole segments whose
+ * {@link SegmentBounds} show that no doc can reach it, or the k-th best score once k docs were found, are skipped.
+ * With the l2 metric the score a doc must beat lets the script give up on it early, see
+ * {@link VectorScoreScript#setScoreThreshold}.
+ * With a {@code candidates} query, e.g. the IVF clusters closest to the query vector, only the docs it matches are scored.
+ * With a {@link ProductQuantizer} docs are scored on their product quantization codes instead of their vectors.
+ * With {@code k > 0} and a {@link KnnResultCache} the k best docs of each segment are cached, and a repeated query reads
+ * them instead of scoring the segment again.
+ */
+public final class KnnQuery extends Query {
+
+    private final String field;
+    private final float[] vector;
+    private final Metric metric;
+    private final int k;
+    private final Float minScore;
+    // the dims of a dense_vector field, or -1 for a binary field
+    private final int denseVectorDims;
+    @Nullable
+    private final VectorCache vectorCache;
+    @Nullable
+    private final Query candidates;
+    @Nullable
+    private final ProductQuantizer pq;
+    @Nullable
+    private final KnnStats stats;
+    @Nullable
+    private final BoundsCache boundsCache;
+    @Nullable
+    private final KnnResultCache resultCache;
+    // parsed once for all the scripts of the query
+    private final QueryVector query;
+
+    public KnnQuery(String field, float[] vector, Metric metric, int k, @Nullable Float minScore,
+                    int denseVectorDims, @Nullable VectorCache vectorCache) {
+        this(field, vector, metric, k, minScore, denseVectorDims, vectorCache, null, null, null, null, null);
+    }
+
+    public KnnQuery(String field, float[] vector, Metric metric, int k, @Nullable Float minScore,
+                    int denseVectorDims, @Nullable VectorCache vectorCache, @Nullable Query candidates,
+                    @Nullable ProductQuantizer pq, @Nullable KnnStats stats, @Nullable BoundsCache boundsCache,
+                    @Nullable KnnResultCache resultCache) {
+        this.field = Objects.requireNonNull(field);
+        this.vector = Objects.requireNonNull(vector);
+        this.metric = Objects.requireNonNull(metric);
+        this.k = k;
+        this.minScore = minScore;
+        this.denseVectorDims = denseVectorDims;
+        this.vectorCache = vectorCache;
+        this.candidates = candidates;
+        this.pq = pq;
+        this.stats = stats;
+        this.boundsCache = boundsCache;
+        this.resultCache = k > 0 ? resultCache : null;
+        this.query = new QueryVector(vector);
+    }
+
+    int k() {
+        return k;
+    }
+
+    @Nullable
+    Float minScore() {
+        return minScore;
+    }
+
+    @Nullable
+    VectorCache vectorCache() {
+        return vectorCache;
+    }
+
+    @Nullable
+    Query candidates() {
+        return candidates;
+    }
+
+    /**
+     * @return a new script scoring this query's vector, for one thread at a time. Copy it for more segments, see
+     * {@link VectorScoreScript#copy()}, rather than building the pq lookup table again.
+     */
+    VectorScoreScript newScript() {
+        final VectorScoreScript script = new VectorScoreScript(field, metric, query, false);
+        if (denseVectorDims >= 0) {
+            script.setDenseVectorDims(denseVectorDims);
+        }
+        if (pq != null) {
+            script.setProductQuantizer(pq);
+        }
+        script.setStats(stats, false);
+        return script;
+    }
+
+    @Override
+    public Query rewrite(IndexReader reader) throws IOException {
+        if (k <= 0) {
+            return super.rewrite(reader);
+        }
+        final IndexSearcher searcher = new IndexSearcher(reader);
+        searcher.setQueryCache(null);
+        final Weight candidatesWeight = candidates == null ? null : searcher.createNormalizedWeight(candidates, false);
+        final VectorScoreScript script = newScript();
+        final TopDocHeap topDocs = new TopDocHeap(k);
+        for (LeafReaderContext leaf : reader.leaves()) {
+            if (resultCache == null) {
+                collectLeaf(leaf, script, candidatesWeight, topDocs);
+            } else {
+                final SegmentTopDocs segment = segmentTopDocs(leaf, script, candidatesWeight);
+                for (int i = 0; i < segment.size(); i++) {
+                    topDocs.add(segment.score(i), leaf.docBase + segment.doc(i));
+                }
+            }
+        }
+        return KnnScoreDocQuery.of(topDocs, minScore, reader, "top [" + k + "] of " + this);
+    }
+
+    /**
+     * @param threshold the score a doc must reach to match
+     * @return true if the bounds of the segment show that none of its docs reaches the threshold. Bounds are only computed
+     * for queries with a min_score, the others would read every segment twice on first use.
+     */
+    boolean canSkip(LeafReader reader, float threshold) throws IOException {
+        if (boundsCache == null || minScore == null || pq != null || metric == Metric.HAMMING
+                || (denseVectorDims >= 0 && denseVectorDims != vector.length)) {
+            return false;
+        }
+        final SegmentBounds bounds = boundsCache.get(reader, field, vector.length, denseVectorDims >= 0);
+        if (bounds == null || bounds.maxScore(vector, metric) >= threshold) {
+            return false;
+        }
+        if (stats != null) {
+            stats.recordSegmentSkipped(stats.shard(ShardUtils.extractShardId(reader)));
+        }
+        return true;
+    }
+
+    /**
+     * Scores every doc of one segment that reaches min_score into the heap, with shard level doc ids.
+     * @param script a script of its own, not shared with another thread
+     * @param candidatesWeight the weight of {@link #candidates()}, null to score every doc with a vector
+     */
+    void collectLeaf(LeafReaderContext context, VectorScoreScript script, @Nullable Weight candidatesWeight,
+                     TopDocHeap topDocs) throws IOException {
+        final LeafReader reader = context.reader();
+        final Bits docsWithField = reader.getDocsWithField(field);
+        if (docsWithField == null) {
+            return;
+        }
+        final DocIdSetIterator iterator;
+        if (candidatesWeight == null) {
+            iterator = DocIdSetIterator.all(reader.maxDoc());
+        } else {
+            final Scorer candidatesScorer = candidatesWeight.scorer(context);
+            if (candidatesScorer == null) {
+                return;
+            }
+            iterator = candidatesScorer.iterator();
+        }
+        final Bits liveDocs = reader.getLiveDocs();
+        final float min = minScore == null ? Float.NEGATIVE_INFINITY : minScore;
+        if (canSkip(reader, topDocs.isFull() ? Math.max(min, Math.nextUp(topDocs.threshold())) : min)) {
+            return;
+        }
+        script.setNextReader(reader, vectorCache);
+        for (int doc = iterator.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = iterator.nextDoc()) {
+            if (docsWithField.get(doc) == false || (liveDocs != null && liveDocs.get(doc) == false)) {
+                continue;
+            }
+            // a doc that only ties the k-th best loses to it on doc id
+            script.setScoreThreshold(topDocs.isFull() ? Math.max(min, Math.nextUp(topDocs.threshold())) : min);
+            script.setDocument(doc);
+            final float score = (float) script.runAsDouble();
+            if (minScore == null || score >= minScore) {
+                topDocs.add(score, context.docBase + doc);
+            }
+        }
+        script.finishSegment();
+    }
+
+    /**
+     * @param template copied to score the segment if its top docs aren't cached
+     * @return the k best docs of one segment that reach min_score, from the result cache when there is one
+     */
+    SegmentTopDocs segmentTopDocs(LeafReaderContext context, VectorScoreScript template, @Nullable Weight candidatesWeight)
+            throws IOException {
+        if (resultCache == null) {
+            return collectSegment(context, template.copy(), candidatesWeight);
+        }
+        return resultCache.get(context.reader(), this, query.ramBytesUsed(),
+                () -> collectSegment(context, template.copy(), candidatesWeight));
+    }
+
+    private SegmentTopDocs collectSegment(LeafReaderContext context, VectorScoreScript script, @Nullable Weight candidatesWeight)
+            throws IOException {
+        final TopDocHeap topDocs = new TopDocHeap(k);
+        collectLeaf(context, script, candidatesWeight, topDocs);
+        final float[] scores = new float[topDocs.size()];
+        final int[] docs = new int[topDocs.size()];
+        topDocs.drainTo(scores, docs);
+
+        // by doc id, the order the scorer iterates them in
+        final Integer[] order = new Integer[docs.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Integer.compare(docs[a], docs[b]));
+        final int[] sortedDocs = new int[docs.length];
+        final float[] sortedScores = new float[docs.length];
+        for (int i = 0; i < order.length; i++) {
+            sortedDocs[i] = docs[order[i]] - context.docBase;
+            sortedScores[i] = scores[order[i]];
+        }
+        return new SegmentTopDocs(sortedDocs, sortedScores);
+    }
+
+    @Override
+    public Weight createWeight(IndexSearcher searcher, boolean needsScores) throws IOException {
+        if (k > 0) {
+            throw new IllegalStateException("[" + getClass().getSimpleName() + "] with k must be rewritten first");
+        }
+        return new KnnWeight(candidates == null ? null : searcher.createNormalizedWeight(candidates, false));
+    }
+
+    /**
+     * Scores the docs of a query without k, every doc reaching min_score matches.
+     */
+    private final class KnnWeight extends Weight {
+
+        // copied for every segment, so the scorers of different segments don't share a reader
+        private final VectorScoreScript template = newScript();
+        @Nullable
+        private final Weight candidatesWeight;
+        // the score a doc must reach to match
+        private final float threshold = minScore == null ? Float.NEGATIVE_INFINITY : minScore;
+        private float boost = 1f;
+
+        KnnWeight(@Nullable Weight candidatesWeight) {
+            super(KnnQuery.this);
+            this.candidatesWeight = candidatesWeight;
+        }
+
+        @Override
+        public void extractTerms(Set<Term> terms) {}
+
+        @Override
+        public Explanation explain(LeafReaderContext context, int doc) throws IOException {
+            final LeafReader reader = context.reader();
+            final Bits docsWithField = reader.getDocsWithField(field);
+            if (docsWithField == null || docsWithField.get(doc) == false) {
+                return Explanation.noMatch("no vector in field [" + field + "]");
+            }
+            if (candidatesWeight != null) {
+                final Scorer candidatesScorer = candidatesWeight.scorer(context);
+                if (candidatesScorer == null || candidatesScorer.iterator().advance(doc) != doc) {
+                    return Explanation.noMatch("not a candidate of " + candidates);
+                }
+            }
+            final VectorScoreScript explainScript = template.copy();
+            explainScript.setNextReader(reader, null);
+            explainScript.setDocument(doc);
+            final float score = (float) explainScript.runAsDouble();
+            if (minScore != null && score < minScore) {
+                return Explanation.noMatch("score [" + score + "] is below min_score [" + minScore + "]");
+            }
+            return Explanation.match(score * boost, metric + " similarity to the query vector in field [" + field + "]");
+        }
+
+        @Override
+        public float getValueForNormalization() {
+            return 1f;
+        }
+
+        @Override
+        public void normalize(float norm, float boost) {
+            this.boost = boost;
+        }
+
+        @Override
+        public Scorer scorer(LeafReaderContext context) throws IOException {
+            final LeafReader reader = context.reader();
+            final Bits docsWithField = reader.getDocsWithField(field);
+            if (docsWithField == null) {
+                return null; // no vectors in this segment
+            }
+            DocIdSetIterator candidatesIterator = null;
+            if (candidatesWeight != null) {
+                final Scorer candidatesScorer = candidatesWeight.scorer(context);
+                if (candidatesScorer == null) {
+                    return null; // no candidates in this segment
+                }
+                candidatesIterator = candidatesScorer.iterator();
+            }
+            if (canSkip(reader, threshold)) {
+                return null; // no doc of this segment can match
+            }
+            final VectorScoreScript script = template.copy();
+            script.setNextReader(reader, vectorCache);
+            return new KnnScorer(this, script, reader.maxDoc(), reader.getLiveDocs(), docsWithField, candidatesIterator);
+        }
+    }
+
+    private static final class KnnScorer extends Scorer {
+
+        private final KnnWeight weight;
+        private final VectorScoreScript script;
+        private final DocIdSetIterator iterator;
+        private float score;
+
+        KnnScorer(KnnWeight weight, VectorScoreScript script, int maxDoc, @Nullable Bits liveDocs, Bits docsWithField,
+                  @Nullable DocIdSetIterator candidates) {
+            super(weight);
+            this.weight = weight;
+            this.script = script;
+            this.iterator = new DocIdSetIterator() {
+                private int doc = -1;
+
+                @Override
+                public int docID() {
+                    return doc;
+                }
+
+                @Override
+                public int nextDoc() throws IOException {
+                    return advance(doc + 1);
+                }
+
+                @Override
+                public int advance(int target) throws IOException {
+                    if (candidates == null) {
+                        for (int d = target; d < maxDoc; d++) {
+                            if (matches(d)) {
+                                return doc = d;
+                            }
+                        }
+                    } else {
+                        int d = candidates.docID() < target ? candidates.advance(target) : candidates.docID();
+                        for (; d != NO_MORE_DOCS; d = candidates.nextDoc()) {
+                            if (matches(d)) {
+                                return doc = d;
+                            }
+                        }
+                    }
+                    script.finishSegment();
+                    return doc = NO_MORE_DOCS;
+                }
+
+                private boolean matches(int d) {
+                    if (docsWithField.get(d) == false || (liveDocs != null && liveDocs.get(d) == false)) {
+                        return false;
+                    }
+                    script.setScoreThreshold(weight.threshold);
+                    script.setDocument(d);
+                    final float s = (float) script.runAsDouble();
+                    if (s >= weight.threshold) {
+                        score = s;
+                        return true;
+                    }
+                    return false;
+                }
+
+                @Override
+                public long cost() {
+                    return candidates == null ? maxDoc : candidates.cost();
+                }
+            };
+        }
+
+        @Override
+        public int docID() {
+            return iterator.docID();
+        }
+
+        @Override
+        public float score() {
+            return score * weight.boost;
+        }
+
+        @Override
+        public int freq() {
+            return 1;
+        }
+
+        @Override
+        public DocIdSetIterator iterator() {
+            return iterator;
+        }
+    }
+
+    @Override
+    public String toString(String field) {
+        return "knn(" + this.field + ", metric=" + metric + ", dims=" + vector.length
+                + (k > 0 ? ", k=" + k : "") + (minScore != null ? ", min_score=" + minScore : "")
+                + (candidates != null ? ", candidates=" + candidates.toString(field) : "")
+                + (pq != null ? ", pq=" + pq.m() + "x" + pq.centroids() : "") + ")";
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (sameClassAs(other) == false) {
+            return false;
+        }
+        final KnnQuery that = (KnnQuery) other;
+        return field.equals(that.field) && Arrays.equals(vector, that.vector) && metric == that.metric
+                && k == that.k && Objects.equals(minScore, that.minScore) && denseVectorDims == that.denseVectorDims
+                && Objects.equals(candidates, that.candidates) && Objects.equals(pq, that.pq);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * classHash() + Objects.hash(field, Arrays.hashCode(vector), metric, k, minScore, denseVectorDims, candidates, pq);
+    }
+}
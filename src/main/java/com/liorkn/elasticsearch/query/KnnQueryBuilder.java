@@ -0,0 +1,530 @@
+package com.liorkn.elasticsearch.query;
+
+import com.liorkn.elasticsearch.Util;
+import com.liorkn.elasticsearch.cache.BoundsCache;
+import com.liorkn.elasticsearch.cache.HnswCache;
+import com.liorkn.elasticsearch.cache.KnnResultCache;
+import com.liorkn.elasticsearch.cache.VectorCache;
+import com.liorkn.elasticsearch.ivf.Centroids;
+import com.liorkn.elasticsearch.mapper.DenseVectorFieldMapper;
+import com.liorkn.elasticsearch.mapper.DenseVectorFieldMapper.DenseVectorFieldType;
+import com.liorkn.elasticsearch.pq.ProductQuantizer;
+import com.liorkn.elasticsearch.script.Metric;
+import com.liorkn.elasticsearch.stats.KnnStats;
+import org.apache.lucene.document.IntPoint;
+import org.apache.lucene.search.Query;
+import org.elasticsearch.common.ParsingException;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.index.mapper.MappedFieldType;
+import org.elasticsearch.index.query.AbstractQueryBuilder;
+import org.elasticsearch.index.query.QueryParseContext;
+import org.elasticsearch.index.query.QueryShardContext;
+import org.elasticsearch.index.query.QueryShardException;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+
+/**
+ * A {@code knn} query scoring documents by vector similarity without going through function_score and a script:
+ * <pre>
+ * "knn": {
+ *     "field": "embedding_vector",
+ *     "vector": [0.1, 0.2, 0.3],
+ *     "metric": "cosine",
+ *     "k": 100,
+ *     "min_score": 0.5,
+ *     "nprobe": 8,
+ *     "pq": true,
+ *     "parallel": true
+ * }
+ * </pre>
+ * {@code encoded_vector} can be used instead of {@code vector}. See {@link KnnQuery} for how k and min_score prune docs.
+ * {@code nprobe} only scores the docs of the nprobe IVF clusters closest to the query vector, it requires a
+ * dense_vector field with trained centroids.
+ * {@code ef_search} searches the HNSW graphs of a dense_vector field with hnsw parameters instead, see {@link HnswKnnQuery}.
+ * {@code pq} scores the product quantization codes of a dense_vector field with trained codebooks instead of its vectors.
+ * With {@code rescore_window} the query runs in two phases, see {@link TwoPhaseKnnQuery}: the pq codes or the first
+ * {@code truncate_dims} values of the vectors pick the best rescore_window docs, which are then rescored exactly.
+ * {@code parallel} scores the shard's segments concurrently, see {@link ParallelKnnQuery}, it requires k.
+ */
+public class KnnQueryBuilder extends AbstractQueryBuilder<KnnQueryBuilder> {
+
+    public static final String NAME = "knn";
+
+    private final String field;
+    private final float[] vector;
+    private Metric metric = Metric.COSINE;
+    private int k = 0;
+    private Float minScore;
+    private Integer nprobe;
+    private Integer efSearch;
+    private boolean pq;
+    private Integer rescoreWindow;
+    private Integer truncateDims;
+    private boolean parallel;
+
+    // node level services, not serialized
+    private VectorCache vectorCache;
+    private HnswCache hnswCache;
+    private BoundsCache boundsCache;
+    private KnnResultCache resultCache;
+    private ThreadPool threadPool;
+    private KnnStats stats;
+
+    public KnnQueryBuilder(String field, float[] vector) {
+        if (field == null) {
+            throw new IllegalArgumentException("[" + NAME + "] requires a field");
+        }
+        if (vector == null) {
+            throw new IllegalArgumentException("[" + NAME + "] requires a vector or an encoded_vector");
+        }
+        this.field = field;
+        this.vector = vector;
+    }
+
+    public KnnQueryBuilder(StreamInput in) throws IOException {
+        super(in);
+        field = in.readString();
+        vector = in.readFloatArray();
+        metric = Metric.fromString(in.readString());
+        k = in.readVInt();
+        minScore = in.readOptionalFloat();
+        nprobe = in.readOptionalVInt();
+        efSearch = in.readOptionalVInt();
+        pq = in.readBoolean();
+        rescoreWindow = in.readOptionalVInt();
+        truncateDims = in.readOptionalVInt();
+        parallel = in.readBoolean();
+    }
+
+    @Override
+    protected void doWriteTo(StreamOutput out) throws IOException {
+        out.writeString(field);
+        out.writeFloatArray(vector);
+        out.writeString(metric.toString());
+        out.writeVInt(k);
+        out.writeOptionalFloat(minScore);
+        out.writeOptionalVInt(nprobe);
+        out.writeOptionalVInt(efSearch);
+        out.writeBoolean(pq);
+        out.writeOptionalVInt(rescoreWindow);
+        out.writeOptionalVInt(truncateDims);
+        out.writeBoolean(parallel);
+    }
+
+    public KnnQueryBuilder metric(Metric metric) {
+        this.metric = Objects.requireNonNull(metric);
+        return this;
+    }
+
+    /**
+     * @param k the number of hits wanted per shard, 0 to score every doc
+     */
+    public KnnQueryBuilder k(int k) {
+        if (k < 0) {
+            throw new IllegalArgumentException("[" + NAME + "] k must be positive but was [" + k + "]");
+        }
+        this.k = k;
+        return this;
+    }
+
+    public KnnQueryBuilder minScore(Float minScore) {
+        this.minScore = minScore;
+        return this;
+    }
+
+    /**
+     * @param nprobe the number of IVF clusters to score, null to score every doc
+     */
+    public KnnQueryBuilder nprobe(Integer nprobe) {
+        if (nprobe != null && nprobe <= 0) {
+            throw new IllegalArgumentException("[" + NAME + "] nprobe must be greater than 0 but was [" + nprobe + "]");
+        }
+        this.nprobe = nprobe;
+        return this;
+    }
+
+    /**
+     * @param efSearch the number of candidates to keep while searching each segment's hnsw graph, null for an exact search
+     */
+    public KnnQueryBuilder efSearch(Integer efSearch) {
+        if (efSearch != null && efSearch <= 0) {
+            throw new IllegalArgumentException("[" + NAME + "] ef_search must be greater than 0 but was [" + efSearch + "]");
+        }
+        this.efSearch = efSearch;
+        return this;
+    }
+
+    /**
+     * @param pq true to score the product quantization codes of the field instead of its vectors
+     */
+    public KnnQueryBuilder pq(boolean pq) {
+        this.pq = pq;
+        return this;
+    }
+
+    /**
+     * @param rescoreWindow the number of docs per shard the cheap first phase keeps for the exact rescore, null for a single phase
+     */
+    public KnnQueryBuilder rescoreWindow(Integer rescoreWindow) {
+        if (rescoreWindow != null && rescoreWindow <= 0) {
+            throw new IllegalArgumentException("[" + NAME + "] rescore_window must be greater than 0 but was [" + rescoreWindow + "]");
+        }
+        this.rescoreWindow = rescoreWindow;
+        return this;
+    }
+
+    /**
+     * @param truncateDims the number of leading dims the first phase scores, null to score the pq codes
+     */
+    public KnnQueryBuilder truncateDims(Integer truncateDims) {
+        if (truncateDims != null && truncateDims <= 0) {
+            throw new IllegalArgumentException("[" + NAME + "] truncate_dims must be greater than 0 but was [" + truncateDims + "]");
+        }
+        this.truncateDims = truncateDims;
+        return this;
+    }
+
+    /**
+     * @param parallel true to score the segments of a shard concurrently
+     */
+    public KnnQueryBuilder parallel(boolean parallel) {
+        this.parallel = parallel;
+        return this;
+    }
+
+    public KnnQueryBuilder vectorCache(VectorCache vectorCache) {
+        this.vectorCache = vectorCache;
+        return this;
+    }
+
+    public KnnQueryBuilder hnswCache(HnswCache hnswCache) {
+        this.hnswCache = hnswCache;
+        return this;
+    }
+
+    public KnnQueryBuilder boundsCache(BoundsCache boundsCache) {
+        this.boundsCache = boundsCache;
+        return this;
+    }
+
+    public KnnQueryBuilder resultCache(KnnResultCache resultCache) {
+        this.resultCache = resultCache;
+        return this;
+    }
+
+    public KnnQueryBuilder threadPool(ThreadPool threadPool) {
+        this.threadPool = threadPool;
+        return this;
+    }
+
+    public KnnQueryBuilder stats(KnnStats stats) {
+        this.stats = stats;
+        return this;
+    }
+
+    public String field() {
+        return field;
+    }
+
+    public float[] vector() {
+        return vector;
+    }
+
+    public Metric metric() {
+        return metric;
+    }
+
+    public int k() {
+        return k;
+    }
+
+    public Float minScore() {
+        return minScore;
+    }
+
+    public Integer nprobe() {
+        return nprobe;
+    }
+
+    public Integer efSearch() {
+        return efSearch;
+    }
+
+    public boolean pq() {
+        return pq;
+    }
+
+    public Integer rescoreWindow() {
+        return rescoreWindow;
+    }
+
+    public Integer truncateDims() {
+        return truncateDims;
+    }
+
+    public boolean parallel() {
+        return parallel;
+    }
+
+    @Override
+    protected void doXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject(NAME);
+        builder.field("field", field);
+        builder.startArray("vector");
+        for (float v : vector) {
+            builder.value(v);
+        }
+        builder.endArray();
+        builder.field("metric", metric.toString());
+        if (k > 0) {
+            builder.field("k", k);
+        }
+        if (minScore != null) {
+            builder.field("min_score", minScore);
+        }
+        if (nprobe != null) {
+            builder.field("nprobe", nprobe);
+        }
+        if (efSearch != null) {
+            builder.field("ef_search", efSearch);
+        }
+        if (pq) {
+            builder.field("pq", true);
+        }
+        if (rescoreWindow != null) {
+            builder.field("rescore_window", rescoreWindow);
+        }
+        if (truncateDims != null) {
+            builder.field("truncate_dims", truncateDims);
+        }
+        if (parallel) {
+            builder.field("parallel", true);
+        }
+        printBoostAndQueryName(builder);
+        builder.endObject();
+    }
+
+    public static Optional<KnnQueryBuilder> fromXContent(QueryParseContext parseContext) throws IOException {
+        final XContentParser parser = parseContext.parser();
+
+        String field = null;
+        float[] vector = null;
+        Metric metric = Metric.COSINE;
+        int k = 0;
+        Float minScore = null;
+        Integer nprobe = null;
+        Integer efSearch = null;
+        boolean pq = false;
+        Integer rescoreWindow = null;
+        Integer truncateDims = null;
+        boolean parallel = false;
+        float boost = AbstractQueryBuilder.DEFAULT_BOOST;
+        String queryName = null;
+
+        String currentFieldName = null;
+        XContentParser.Token token;
+        while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+            if (token == XContentParser.Token.FIELD_NAME) {
+                currentFieldName = parser.currentName();
+            } else if (token == XContentParser.Token.START_ARRAY && "vector".equals(currentFieldName)) {
+                final List<Float> values = new ArrayList<>();
+                while (parser.nextToken() != XContentParser.Token.END_ARRAY) {
+                    values.add(parser.floatValue());
+                }
+                vector = new float[values.size()];
+                for (int i = 0; i < vector.length; i++) {
+                    vector[i] = values.get(i);
+                }
+            } else if (token.isValue()) {
+                if ("field".equals(currentFieldName)) {
+                    field = parser.text();
+                } else if ("encoded_vector".equals(currentFieldName)) {
+                    vector = Util.convertBase64ToArray(parser.text());
+                } else if ("metric".equals(currentFieldName)) {
+                    metric = Metric.fromString(parser.text());
+                } else if ("cosine".equals(currentFieldName)) {
+                    metric = parser.booleanValue() ? Metric.COSINE : Metric.DOT_PRODUCT;
+                } else if ("k".equals(currentFieldName)) {
+                    k = parser.intValue();
+                } else if ("min_score".equals(currentFieldName)) {
+                    minScore = parser.floatValue();
+                } else if ("nprobe".equals(currentFieldName)) {
+                    nprobe = parser.intValue();
+                } else if ("ef_search".equals(currentFieldName)) {
+                    efSearch = parser.intValue();
+                } else if ("pq".equals(currentFieldName)) {
+                    pq = parser.booleanValue();
+                } else if ("rescore_window".equals(currentFieldName)) {
+                    rescoreWindow = parser.intValue();
+                } else if ("truncate_dims".equals(currentFieldName)) {
+                    truncateDims = parser.intValue();
+                } else if ("parallel".equals(currentFieldName)) {
+                    parallel = parser.booleanValue();
+                } else if (AbstractQueryBuilder.BOOST_FIELD.match(currentFieldName)) {
+                    boost = parser.floatValue();
+                } else if (AbstractQueryBuilder.NAME_FIELD.match(currentFieldName)) {
+                    queryName = parser.text();
+                } else {
+                    throw new ParsingException(parser.getTokenLocation(), "[" + NAME + "] query does not support [" + currentFieldName + "]");
+                }
+            } else {
+                throw new ParsingException(parser.getTokenLocation(), "[" + NAME + "] unexpected token [" + token + "] after [" + currentFieldName + "]");
+            }
+        }
+
+        try {
+            return Optional.of(new KnnQueryBuilder(field, vector)
+                    .metric(metric)
+                    .k(k)
+                    .minScore(minScore)
+                    .nprobe(nprobe)
+                    .efSearch(efSearch)
+                    .pq(pq)
+                    .rescoreWindow(rescoreWindow)
+                    .truncateDims(truncateDims)
+                    .parallel(parallel)
+                    .boost(boost)
+                    .queryName(queryName));
+        } catch (IllegalArgumentException e) {
+            throw new ParsingException(parser.getTokenLocation(), e.getMessage(), e);
+        }
+    }
+
+    @Override
+    protected Query doToQuery(QueryShardContext context) throws IOException {
+        final MappedFieldType fieldType = context.fieldMapper(field);
+        if (fieldType == null) {
+            throw new QueryShardException(context, "[" + NAME + "] field [" + field + "] does not exist in the mapping");
+        }
+        final int denseVectorDims = fieldType instanceof DenseVectorFieldType ? ((DenseVectorFieldType) fieldType).dims() : -1;
+        if (parallel) {
+            if (k <= 0) {
+                throw new QueryShardException(context, "[" + NAME + "] parallel requires k");
+            }
+            if (efSearch != null || rescoreWindow != null) {
+                throw new QueryShardException(context, "[" + NAME + "] parallel can't be used with ef_search or rescore_window");
+            }
+        }
+        if (efSearch != null) {
+            return hnswQuery(context, fieldType);
+        }
+        Query candidates = null;
+        if (nprobe != null) {
+            final Centroids ivf = fieldType instanceof DenseVectorFieldType ? ((DenseVectorFieldType) fieldType).ivf() : null;
+            if (ivf == null) {
+                throw new QueryShardException(context, "[" + NAME + "] nprobe requires a dense_vector field with ivf centroids but field ["
+                        + field + "] has none");
+            }
+            if (ivf.dims() != vector.length) {
+                throw new QueryShardException(context, "[" + NAME + "] the query vector has [" + vector.length
+                        + "] dims but the ivf centroids of field [" + field + "] have [" + ivf.dims() + "]");
+            }
+            candidates = IntPoint.newSetQuery(fieldType.name() + DenseVectorFieldMapper.IVF_CLUSTER_SUFFIX, ivf.nearest(vector, nprobe));
+        }
+        if (truncateDims != null && rescoreWindow == null) {
+            throw new QueryShardException(context, "[" + NAME + "] truncate_dims requires rescore_window");
+        }
+        ProductQuantizer productQuantizer = null;
+        if (pq) {
+            productQuantizer = fieldType instanceof DenseVectorFieldType ? ((DenseVectorFieldType) fieldType).pq() : null;
+            if (productQuantizer == null) {
+                throw new QueryShardException(context, "[" + NAME + "] pq requires a dense_vector field with pq codebooks but field ["
+                        + field + "] has none");
+            }
+            if (productQuantizer.dims() != vector.length) {
+                throw new QueryShardException(context, "[" + NAME + "] the query vector has [" + vector.length
+                        + "] dims but the pq codebooks of field [" + field + "] have [" + productQuantizer.dims() + "]");
+            }
+            if (metric == Metric.HAMMING) {
+                throw new QueryShardException(context, "[" + NAME + "] pq doesn't support metric [" + metric + "]");
+            }
+        }
+        if (rescoreWindow != null) {
+            return twoPhaseQuery(context, denseVectorDims, candidates, productQuantizer);
+        }
+        final KnnQuery query = new KnnQuery(field, vector, metric, k, minScore, denseVectorDims, vectorCache, candidates,
+                productQuantizer, stats, boundsCache, resultCache);
+        if (parallel && threadPool != null) {
+            return new ParallelKnnQuery(query, threadPool.executor(ParallelKnnQuery.THREAD_POOL));
+        }
+        return query;
+    }
+
+    private Query twoPhaseQuery(QueryShardContext context, int denseVectorDims, Query candidates, ProductQuantizer productQuantizer) {
+        if ((productQuantizer == null) == (truncateDims == null)) {
+            throw new QueryShardException(context, "[" + NAME + "] rescore_window requires either pq or truncate_dims for the first phase");
+        }
+        if (rescoreWindow < k) {
+            throw new QueryShardException(context, "[" + NAME + "] rescore_window [" + rescoreWindow + "] must be at least k [" + k + "]");
+        }
+        if (metric == Metric.HAMMING) {
+            throw new QueryShardException(context, "[" + NAME + "] rescore_window doesn't support metric [" + metric + "]");
+        }
+        final KnnQuery phaseOne;
+        if (productQuantizer != null) {
+            phaseOne = new KnnQuery(field, vector, metric, rescoreWindow, null, denseVectorDims, null, candidates, productQuantizer,
+                    stats, null, resultCache);
+        } else {
+            if (truncateDims >= vector.length) {
+                throw new QueryShardException(context, "[" + NAME + "] truncate_dims [" + truncateDims
+                        + "] must be less than the [" + vector.length + "] dims of the query vector");
+            }
+            // the first dims of the query against the first dims of each doc, a dense_vector only reads those
+            phaseOne = new KnnQuery(field, Arrays.copyOf(vector, truncateDims), metric, rescoreWindow, null,
+                    denseVectorDims >= 0 ? truncateDims : -1, null, candidates, null, stats, null, resultCache);
+        }
+        final KnnQuery exact = new KnnQuery(field, vector, metric, k, minScore, denseVectorDims, vectorCache, null, null, stats, null, null);
+        return new TwoPhaseKnnQuery(phaseOne, exact, rescoreWindow);
+    }
+
+    private Query hnswQuery(QueryShardContext context, MappedFieldType fieldType) {
+        if (fieldType instanceof DenseVectorFieldType == false || ((DenseVectorFieldType) fieldType).hasHnsw() == false) {
+            throw new QueryShardException(context, "[" + NAME + "] ef_search requires a dense_vector field with hnsw parameters but field ["
+                    + field + "] has none");
+        }
+        final DenseVectorFieldType denseVectorFieldType = (DenseVectorFieldType) fieldType;
+        if (denseVectorFieldType.dims() != vector.length) {
+            throw new QueryShardException(context, "[" + NAME + "] field [" + field + "] has [" + denseVectorFieldType.dims()
+                    + "] dims but the query vector has [" + vector.length + "]");
+        }
+        if (k <= 0) {
+            throw new QueryShardException(context, "[" + NAME + "] ef_search requires k");
+        }
+        if (nprobe != null || pq || rescoreWindow != null) {
+            throw new QueryShardException(context, "[" + NAME + "] ef_search can't be used with nprobe, pq or rescore_window");
+        }
+        if (metric == Metric.HAMMING) {
+            throw new QueryShardException(context, "[" + NAME + "] ef_search doesn't support metric [" + metric + "]");
+        }
+        return new HnswKnnQuery(field, vector, metric, k, minScore, efSearch, denseVectorFieldType.hnswM(),
+                denseVectorFieldType.hnswEfConstruction(), hnswCache, vectorCache, stats,
+                threadPool == null ? Runnable::run : threadPool.executor(HnswCache.THREAD_POOL));
+    }
+
+    @Override
+    protected boolean doEquals(KnnQueryBuilder other) {
+        return field.equals(other.field) && Arrays.equals(vector, other.vector) && metric == other.metric
+                && k == other.k && Objects.equals(minScore, other.minScore) && Objects.equals(nprobe, other.nprobe) && Objects.equals(efSearch, other.efSearch)
+                && pq == other.pq && Objects.equals(rescoreWindow, other.rescoreWindow) && Objects.equals(truncateDims, other.truncateDims)
+                && parallel == other.parallel;
+    }
+
+    @Override
+    protected int doHashCode() {
+        return Objects.hash(field, Arrays.hashCode(vector), metric, k, minScore, nprobe, efSearch, pq, rescoreWindow, truncateDims, parallel);
+    }
+
+    @Override
+    public String getWriteableName() {
+        return NAME;
+    }
+}
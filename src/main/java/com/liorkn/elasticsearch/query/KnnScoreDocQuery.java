@@ -0,0 +1,191 @@
+package com.liorkn.elasticsearch.query;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Explanation;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Weight;
+import org.elasticsearch.common.Nullable;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Set;
+
+/**
+ * Matches a fixed set of docs with precomputed scores, what an exact, approximate or two phase knn query with k
+ * rewrites to once it searched every segment. Only valid against the reader it was rewritten with.
+ */
+final class KnnScoreDocQuery extends Query {
+
+    // global doc ids, ascending
+    private final int[] docs;
+    private final float[] scores;
+    private final IndexReader reader;
+    // how the scores were computed, for explain
+    private final String description;
+
+    KnnScoreDocQuery(int[] docs, float[] scores, IndexReader reader, String description) {
+        this.docs = docs;
+        this.scores = scores;
+        this.reader = reader;
+        this.description = description;
+    }
+
+    /**
+     * @param topDocs the hits, with global doc ids, emptied by this call
+     * @param minScore the score hits must reach to match, or null
+     */
+    static KnnScoreDocQuery of(TopDocHeap topDocs, @Nullable Float minScore, IndexReader reader, String description) {
+        final float[] scores = new float[topDocs.size()];
+        final int[] docs = new int[topDocs.size()];
+        int count = topDocs.drainTo(scores, docs);
+        if (minScore != null) {
+            while (count > 0 && scores[count - 1] < minScore) {
+                count--; // best first, the misses are at the end
+            }
+        }
+        // doc order for the scorers
+        final Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Integer.compare(docs[a], docs[b]));
+        final int[] sortedDocs = new int[count];
+        final float[] sortedScores = new float[count];
+        for (int i = 0; i < count; i++) {
+            sortedDocs[i] = docs[order[i]];
+            sortedScores[i] = scores[order[i]];
+        }
+        return new KnnScoreDocQuery(sortedDocs, sortedScores, reader, description);
+    }
+
+    @Override
+    public Weight createWeight(IndexSearcher searcher, boolean needsScores) throws IOException {
+        if (searcher.getIndexReader() != reader) {
+            throw new IllegalStateException("the knn query was rewritten against another reader");
+        }
+        return new Weight(this) {
+            private float boost = 1f;
+
+            @Override
+            public void extractTerms(Set<Term> terms) {}
+
+            @Override
+            public Explanation explain(LeafReaderContext context, int doc) throws IOException {
+                final int i = Arrays.binarySearch(docs, context.docBase + doc);
+                if (i < 0) {
+                    return Explanation.noMatch("not among the nearest neighbors");
+                }
+                return Explanation.match(scores[i] * boost, description);
+            }
+
+            @Override
+            public float getValueForNormalization() {
+                return 1f;
+            }
+
+            @Override
+            public void normalize(float norm, float boost) {
+                this.boost = boost;
+            }
+
+            @Override
+            public Scorer scorer(LeafReaderContext context) throws IOException {
+                final int from = lowerBound(context.docBase);
+                final int to = lowerBound(context.docBase + context.reader().maxDoc());
+                if (from == to) {
+                    return null;
+                }
+                return new ScoreDocScorer(this, context.docBase, from, to, boost);
+            }
+        };
+    }
+
+    /**
+     * @return the index of the first doc greater than or equal to doc
+     */
+    private int lowerBound(int doc) {
+        final int i = Arrays.binarySearch(docs, doc);
+        return i >= 0 ? i : -1 - i;
+    }
+
+    private final class ScoreDocScorer extends Scorer {
+
+        private final float boost;
+        private final DocIdSetIterator iterator;
+        private int index;
+
+        ScoreDocScorer(Weight weight, int docBase, int from, int to, float boost) {
+            super(weight);
+            this.boost = boost;
+            this.index = from - 1;
+            this.iterator = new DocIdSetIterator() {
+                @Override
+                public int docID() {
+                    return index < from ? -1 : index >= to ? NO_MORE_DOCS : docs[index] - docBase;
+                }
+
+                @Override
+                public int nextDoc() {
+                    index++;
+                    return docID();
+                }
+
+                @Override
+                public int advance(int target) {
+                    while (++index < to && docs[index] - docBase < target) {
+                    }
+                    return docID();
+                }
+
+                @Override
+                public long cost() {
+                    return to - from;
+                }
+            };
+        }
+
+        @Override
+        public int docID() {
+            return iterator.docID();
+        }
+
+        @Override
+        public float score() {
+            return scores[index] * boost;
+        }
+
+        @Override
+        public int freq() {
+            return 1;
+        }
+
+        @Override
+        public DocIdSetIterator iterator() {
+            return iterator;
+        }
+    }
+
+    @Override
+    public String toString(String field) {
+        return "knn_docs(" + docs.length + ")";
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (sameClassAs(other) == false) {
+            return false;
+        }
+        final KnnScoreDocQuery that = (KnnScoreDocQuery) other;
+        return reader == that.reader && Arrays.equals(docs, that.docs) && Arrays.equals(scores, that.scores);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * classHash() + Arrays.hashCode(docs)) + Arrays.hashCode(scores);
+    }
+}
@@ -0,0 +1,126 @@
+package com.liorkn.elasticsearch.query;
+
+import com.liorkn.elasticsearch.cache.SegmentTopDocs;
+import com.liorkn.elasticsearch.script.VectorScoreScript;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Weight;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A {@link KnnQuery} with k whose segments are scored concurrently on the {@link #THREAD_POOL} executor, each into a top
+ * k of its own, merged into the shard's top k when the query is rewritten. The searching thread scores the first
+ * segment, and any segment the pool rejects, itself.
+ * <p>
+ * Every segment gets a copy of the query's script, they only share the parsed query vector and the pq lookup table.
+ * Unlike the sequential query, a segment can't skip docs that don't beat the k-th best score of the other segments.
+ */
+public final class ParallelKnnQuery extends Query {
+
+    /** the name of the bounded pool segments are scored on */
+    public static final String THREAD_POOL = "knn_search";
+
+    private final KnnQuery query;
+    private final Executor executor;
+
+    public ParallelKnnQuery(KnnQuery query, Executor executor) {
+        if (query.k() <= 0) {
+            throw new IllegalArgumentException("scoring segments in parallel requires k");
+        }
+        this.query = Objects.requireNonNull(query);
+        this.executor = Objects.requireNonNull(executor);
+    }
+
+    @Override
+    public Query rewrite(IndexReader reader) throws IOException {
+        final IndexSearcher searcher = new IndexSearcher(reader);
+        searcher.setQueryCache(null);
+        final Weight candidatesWeight = query.candidates() == null ? null : searcher.createNormalizedWeight(query.candidates(), false);
+        final VectorScoreScript template = query.newScript();
+        final List<LeafReaderContext> leaves = reader.leaves();
+
+        final List<Future<TopDocHeap>> segments = new ArrayList<>(leaves.size());
+        for (int i = 1; i < leaves.size(); i++) {
+            final LeafReaderContext leaf = leaves.get(i);
+            final FutureTask<TopDocHeap> task = new FutureTask<>(() -> collect(leaf, template, candidatesWeight));
+            try {
+                executor.execute(task);
+            } catch (EsRejectedExecutionException e) {
+                task.run(); // the queue is full, score it here rather than fail the search
+            }
+            segments.add(task);
+        }
+
+        final TopDocHeap topDocs = new TopDocHeap(query.k());
+        if (leaves.isEmpty() == false) {
+            merge(collect(leaves.get(0), template, candidatesWeight), topDocs);
+        }
+        for (Future<TopDocHeap> segment : segments) {
+            try {
+                merge(segment.get(), topDocs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("interrupted while scoring segments", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new IllegalStateException("failed to score a segment", e.getCause());
+            }
+        }
+        return KnnScoreDocQuery.of(topDocs, query.minScore(), reader, "parallel segment scoring of " + query);
+    }
+
+    private TopDocHeap collect(LeafReaderContext leaf, VectorScoreScript template, Weight candidatesWeight) throws IOException {
+        // read from the result cache when the query has one
+        final SegmentTopDocs segment = query.segmentTopDocs(leaf, template, candidatesWeight);
+        final TopDocHeap topDocs = new TopDocHeap(query.k());
+        for (int i = 0; i < segment.size(); i++) {
+            topDocs.add(segment.score(i), leaf.docBase + segment.doc(i));
+        }
+        return topDocs;
+    }
+
+    private static void merge(TopDocHeap segment, TopDocHeap shard) {
+        final float[] scores = new float[segment.size()];
+        final int[] docs = new int[segment.size()];
+        final int count = segment.drainTo(scores, docs);
+        for (int i = 0; i < count; i++) {
+            shard.add(scores[i], docs[i]);
+        }
+    }
+
+    @Override
+    public Weight createWeight(IndexSearcher searcher, boolean needsScores) throws IOException {
+        throw new IllegalStateException("[" + getClass().getSimpleName() + "] must be rewritten first");
+    }
+
+    @Override
+    public String toString(String field) {
+        return "parallel(" + query.toString(field) + ")";
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return sameClassAs(other) && query.equals(((ParallelKnnQuery) other).query);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * classHash() + query.hashCode();
+    }
+}
@@ -0,0 +1,109 @@
+package com.liorkn.elasticsearch.query;
+
+/**
+ * Bounded min-heap of the k best (score, doc) pairs seen so far, on primitive arrays.
+ * On equal scores the lower doc id wins, as it does in a Lucene top docs collector.
+ */
+public final class TopDocHeap {
+
+    private final float[] scores;
+    private final int[] docs;
+    private int size;
+
+    public TopDocHeap(int k) {
+        scores = new float[k];
+        docs = new int[k];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isFull() {
+        return size == scores.length;
+    }
+
+    /**
+     * @return the k-th best score, or negative infinity until k docs were added
+     */
+    public float threshold() {
+        return isFull() ? scores[0] : Float.NEGATIVE_INFINITY;
+    }
+
+    public void add(float score, int doc) {
+        if (size < scores.length) {
+            int i = size++;
+            while (i > 0) {
+                final int parent = (i - 1) >>> 1;
+                if (worse(score, doc, scores[parent], docs[parent]) == false) {
+                    break;
+                }
+                scores[i] = scores[parent];
+                docs[i] = docs[parent];
+                i = parent;
+            }
+            scores[i] = score;
+            docs[i] = doc;
+        } else if (worse(scores[0], docs[0], score, doc)) {
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && worse(scores[child + 1], docs[child + 1], scores[child], docs[child])) {
+                    child++;
+                }
+                if (worse(scores[child], docs[child], score, doc) == false) {
+                    break;
+                }
+                scores[i] = scores[child];
+                docs[i] = docs[child];
+                i = child;
+            }
+            scores[i] = score;
+            docs[i] = doc;
+        }
+    }
+
+    /**
+     * Empties the heap into the arrays, best first.
+     * @return the number of entries written
+     */
+    public int drainTo(float[] scoresOut, int[] docsOut) {
+        final int count = size;
+        for (int i = count - 1; i >= 0; i--) {
+            scoresOut[i] = scores[0];
+            docsOut[i] = docs[0];
+            size--;
+            final float lastScore = scores[size];
+            final int lastDoc = docs[size];
+            int j = 0;
+            while (true) {
+                int child = 2 * j + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && worse(scores[child + 1], docs[child + 1], scores[child], docs[child])) {
+                    child++;
+                }
+                if (worse(scores[child], docs[child], lastScore, lastDoc) == false) {
+                    break;
+                }
+                scores[j] = scores[child];
+                docs[j] = docs[child];
+                j = child;
+            }
+            scores[j] = lastScore;
+            docs[j] = lastDoc;
+        }
+        return count;
+    }
+
+    /**
+     * @return true if (score, doc) ranks below (otherScore, otherDoc)
+     */
+    private static boolean worse(float score, int doc, float otherScore, int otherDoc) {
+        return score < otherScore || (score == otherScore && doc > otherDoc);
+    }
+}
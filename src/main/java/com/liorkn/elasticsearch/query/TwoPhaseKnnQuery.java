@@ -0,0 +1,91 @@
+package com.liorkn.elasticsearch.query;
+
+import com.liorkn.elasticsearch.script.VectorScoreScript;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.Weight;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * A knn query scored in two phases: a cheap {@link KnnQuery} on a compact representation of the vectors, product
+ * quantization codes or the first dims only, keeps the shard's best {@code rescoreWindow} docs, which the exact
+ * query then rescores with the float vectors.
+ * <p>
+ * Both phases run when the query is rewritten, which it rewrites to the rescored docs. The exact query's k and
+ * min_score apply to the exact scores.
+ */
+public final class TwoPhaseKnnQuery extends Query {
+
+    private final KnnQuery phaseOne;
+    private final KnnQuery exact;
+    private final int rescoreWindow;
+
+    /**
+     * @param phaseOne the cheap query, with k set to the rescore window and no min_score
+     * @param exact the query scoring the float vectors
+     */
+    public TwoPhaseKnnQuery(KnnQuery phaseOne, KnnQuery exact, int rescoreWindow) {
+        this.phaseOne = Objects.requireNonNull(phaseOne);
+        this.exact = Objects.requireNonNull(exact);
+        this.rescoreWindow = rescoreWindow;
+    }
+
+    @Override
+    public Query rewrite(IndexReader reader) throws IOException {
+        final IndexSearcher searcher = new IndexSearcher(reader);
+        searcher.setQueryCache(null);
+        final TopDocs candidates = searcher.search(phaseOne, rescoreWindow);
+
+        // rescore in doc order, one segment after the other
+        final ScoreDoc[] hits = candidates.scoreDocs.clone();
+        Arrays.sort(hits, Comparator.comparingInt(hit -> hit.doc));
+        final List<LeafReaderContext> leaves = reader.leaves();
+        final TopDocHeap topDocs = new TopDocHeap(exact.k() > 0 ? Math.min(exact.k(), hits.length) : hits.length);
+        final VectorScoreScript script = exact.newScript();
+        LeafReaderContext leaf = null;
+        for (ScoreDoc hit : hits) {
+            if (leaf == null || hit.doc >= leaf.docBase + leaf.reader().maxDoc()) {
+                leaf = leaves.get(ReaderUtil.subIndex(hit.doc, leaves));
+                script.setNextReader(leaf.reader(), exact.vectorCache());
+            }
+            script.setDocument(hit.doc - leaf.docBase);
+            topDocs.add((float) script.runAsDouble(), hit.doc);
+        }
+        script.finishSegment();
+        return KnnScoreDocQuery.of(topDocs, exact.minScore(), reader, "exact rescore of the best [" + rescoreWindow + "] docs of " + phaseOne);
+    }
+
+    @Override
+    public Weight createWeight(IndexSearcher searcher, boolean needsScores) throws IOException {
+        throw new IllegalStateException("[" + getClass().getSimpleName() + "] must be rewritten first");
+    }
+
+    @Override
+    public String toString(String field) {
+        return "two_phase_knn(" + phaseOne.toString(field) + ", rescore_window=" + rescoreWindow + ", " + exact.toString(field) + ")";
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (sameClassAs(other) == false) {
+            return false;
+        }
+        final TwoPhaseKnnQuery that = (TwoPhaseKnnQuery) other;
+        return phaseOne.equals(that.phaseOne) && exact.equals(that.exact) && rescoreWindow == that.rescoreWindow;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * classHash() + Objects.hash(phaseOne, exact, rescoreWindow);
+    }
+}
@@ -0,0 +1,143 @@
+package com.liorkn.elasticsearch.rest;
+
+import com.liorkn.elasticsearch.cache.BoundsCache;
+import com.liorkn.elasticsearch.cache.HnswCache;
+import com.liorkn.elasticsearch.cache.KnnResultCache;
+import com.liorkn.elasticsearch.cache.QueryVectorCache;
+import com.liorkn.elasticsearch.cache.VectorCache;
+import com.liorkn.elasticsearch.stats.KnnStats;
+import org.elasticsearch.client.node.NodeClient;
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.node.Node;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.BytesRestResponse;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.RestStatus;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The vector scoring stats and cache usage of the node handling the request:
+ * <pre>
+ * GET /_knn/stats
+ * GET /_knn/stats?level=shards
+ * </pre>
+ * With {@code level=shards} the scoring stats of each open shard of the node are listed too.
+ */
+public class RestKnnStatsAction extends BaseRestHandler {
+
+    @Nullable
+    private final KnnStats stats;
+    @Nullable
+    private final VectorCache vectorCache;
+    private final HnswCache hnswCache;
+    private final BoundsCache boundsCache;
+    @Nullable
+    private final KnnResultCache resultCache;
+    private final QueryVectorCache queryVectorCache;
+
+    public RestKnnStatsAction(Settings settings, RestController controller, @Nullable KnnStats stats, @Nullable VectorCache vectorCache,
+                              HnswCache hnswCache, BoundsCache boundsCache, @Nullable KnnResultCache resultCache,
+                              QueryVectorCache queryVectorCache) {
+        super(settings);
+        this.stats = stats;
+        this.vectorCache = vectorCache;
+        this.hnswCache = hnswCache;
+        this.boundsCache = boundsCache;
+        this.resultCache = resultCache;
+        this.queryVectorCache = queryVectorCache;
+        controller.registerHandler(RestRequest.Method.GET, "/_knn/stats", this);
+    }
+
+    public String getName() {
+        return "knn_stats_action";
+    }
+
+    @Override
+    protected RestChannelConsumer prepareRequest(RestRequest request, NodeClient client) throws IOException {
+        final String level = request.param("level", "node");
+        if ("node".equals(level) == false && "shards".equals(level) == false) {
+            throw new IllegalArgumentException("[_knn/stats] level must be [node] or [shards] but was [" + level + "]");
+        }
+        return channel -> {
+            final XContentBuilder builder = channel.newBuilder();
+            builder.startObject();
+            builder.field("node", Node.NODE_NAME_SETTING.get(settings));
+
+            builder.startObject("scoring");
+            builder.field("enabled", stats != null);
+            if (stats != null) {
+                stats.total().toXContent(builder, ToXContent.EMPTY_PARAMS);
+            }
+            builder.endObject();
+
+            if (stats != null && "shards".equals(level)) {
+                final Map<String, Map<Integer, KnnStats.Counters>> indices = new TreeMap<>();
+                for (Map.Entry<ShardId, KnnStats.Counters> shard : stats.shards().entrySet()) {
+                    indices.computeIfAbsent(shard.getKey().getIndexName(), index -> new TreeMap<>())
+                            .put(shard.getKey().id(), shard.getValue());
+                }
+                builder.startObject("indices");
+                for (Map.Entry<String, Map<Integer, KnnStats.Counters>> index : indices.entrySet()) {
+                    builder.startObject(index.getKey());
+                    for (Map.Entry<Integer, KnnStats.Counters> shard : index.getValue().entrySet()) {
+                        builder.startObject(Integer.toString(shard.getKey()));
+                        shard.getValue().toXContent(builder, ToXContent.EMPTY_PARAMS);
+                        builder.endObject();
+                    }
+                    builder.endObject();
+                }
+                builder.endObject();
+            }
+
+            builder.startObject("caches");
+            builder.startObject("vector_cache");
+            builder.field("enabled", vectorCache != null);
+            if (vectorCache != null) {
+                cacheStats(builder, vectorCache.count(), vectorCache.ramBytesUsed(), vectorCache.hits(), vectorCache.misses(),
+                        vectorCache.evictions());
+                builder.field("direct_memory_in_bytes", vectorCache.directBytesUsed());
+            }
+            builder.endObject();
+            builder.startObject("hnsw_cache");
+            cacheStats(builder, hnswCache.count(), hnswCache.ramBytesUsed(), hnswCache.hits(), hnswCache.misses(),
+                    hnswCache.evictions());
+            builder.endObject();
+            builder.startObject("bounds_cache");
+            cacheStats(builder, boundsCache.count(), boundsCache.ramBytesUsed(), boundsCache.hits(), boundsCache.misses(),
+                    boundsCache.evictions());
+            builder.endObject();
+            builder.startObject("result_cache");
+            builder.field("enabled", resultCache != null);
+            if (resultCache != null) {
+                cacheStats(builder, resultCache.count(), resultCache.ramBytesUsed(), resultCache.hits(), resultCache.misses(),
+                        resultCache.evictions());
+            }
+            builder.endObject();
+            builder.startObject("query_vector_cache");
+            cacheStats(builder, queryVectorCache.count(), queryVectorCache.ramBytesUsed(), queryVectorCache.hits(),
+                    queryVectorCache.misses(), queryVectorCache.evictions());
+            builder.endObject();
+            builder.endObject();
+
+            builder.endObject();
+            channel.sendResponse(new BytesRestResponse(RestStatus.OK, builder));
+        };
+    }
+
+    private static void cacheStats(XContentBuilder builder, int count, long bytes, long hits, long misses, long evictions)
+            throws IOException {
+        builder.field("count", count);
+        builder.field("size_in_bytes", bytes);
+        builder.field("hits", hits);
+        builder.field("misses", misses);
+        builder.field("evictions", evictions);
+    }
+}
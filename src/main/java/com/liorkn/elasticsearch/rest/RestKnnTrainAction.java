@@ -0,0 +1,272 @@
+package com.liorkn.elasticsearch.rest;
+
+import com.carrotsearch.hppc.cursors.ObjectObjectCursor;
+import com.liorkn.elasticsearch.Util;
+import com.liorkn.elasticsearch.ivf.Centroids;
+import com.liorkn.elasticsearch.ivf.KMeans;
+import com.liorkn.elasticsearch.mapper.DenseVectorFieldMapper;
+import com.liorkn.elasticsearch.pq.ProductQuantizer;
+import com.liorkn.elasticsearch.script.Metric;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.admin.indices.get.GetIndexRequest;
+import org.elasticsearch.action.admin.indices.get.GetIndexResponse;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.node.NodeClient;
+import org.elasticsearch.cluster.metadata.MappingMetaData;
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.common.collect.ImmutableOpenMap;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.AbstractRunnable;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+import org.elasticsearch.index.IndexSettings;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.index.query.functionscore.ScoreFunctionBuilders;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.BytesRestResponse;
+import org.elasticsearch.rest.RestChannel;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.search.SearchHit;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Trains the IVF centroids and/or the product quantization codebooks of a dense_vector field and puts them in its mapping:
+ * <pre>
+ * POST /{index}/{type}/_knn_train
+ * {
+ *     "field": "embedding_vector",
+ *     "nlist": 1024,
+ *     "metric": "cosine",
+ *     "pq": {"m": 16, "centroids": 256},
+ *     "sample_size": 10000,
+ *     "iterations": 20
+ * }
+ * </pre>
+ * The sample is a random set of docs fetched with a search, so {@code sample_size} can't be over the
+ * {@code index.max_result_window} of the index. k-means runs on the generic thread pool.
+ * Docs indexed before the centroids or codebooks were put in the mapping have no cluster or code until they are reindexed.
+ * Indexed docs hold the cluster or codes they got from what was trained first, so a field's centroids and codebooks are
+ * only trained once.
+ */
+public class RestKnnTrainAction extends BaseRestHandler {
+
+    private static final Logger LOGGER = Loggers.getLogger(RestKnnTrainAction.class);
+
+    public RestKnnTrainAction(Settings settings, RestController controller) {
+        super(settings);
+        controller.registerHandler(RestRequest.Method.POST, "/{index}/{type}/_knn_train", this);
+    }
+
+    public String getName() {
+        return "knn_train_action";
+    }
+
+    @Override
+    protected RestChannelConsumer prepareRequest(RestRequest request, NodeClient client) throws IOException {
+        final String index = request.param("index");
+        final String type = request.param("type");
+        final Map<String, Object> body;
+        try (XContentParser parser = request.contentParser()) {
+            body = parser.map();
+        }
+        final Object field = body.get("field");
+        if (field == null) {
+            throw new IllegalArgumentException("[_knn_train] requires a field");
+        }
+        if (body.containsKey("nlist") == false && body.containsKey("pq") == false) {
+            throw new IllegalArgumentException("[_knn_train] requires nlist, the number of ivf clusters, and/or pq");
+        }
+        final int nlist = XContentMapValues.nodeIntegerValue(body.get("nlist"), 0);
+        final Object pq = body.get("pq");
+        if (pq != null && pq instanceof Map == false) {
+            throw new IllegalArgumentException("[_knn_train] expects pq to be an object");
+        }
+        final int pqM = pq == null ? 0 : XContentMapValues.nodeIntegerValue(((Map<?, ?>) pq).get("m"), 0);
+        final int pqCentroids = pq == null ? 0 :
+                XContentMapValues.nodeIntegerValue(((Map<?, ?>) pq).get("centroids"), ProductQuantizer.MAX_CENTROIDS);
+        if (pq != null && pqM <= 0) {
+            throw new IllegalArgumentException("[_knn_train] requires pq.m, the number of sub-spaces");
+        }
+        final Metric metric = body.containsKey("metric") ? Metric.fromString(body.get("metric").toString()) : Metric.COSINE;
+        final int sampleSize = XContentMapValues.nodeIntegerValue(body.get("sample_size"), 10000);
+        final int iterations = XContentMapValues.nodeIntegerValue(body.get("iterations"), 20);
+        final long seed = XContentMapValues.nodeLongValue(body.get("seed"), System.nanoTime());
+
+        return channel -> client.admin().indices().prepareGetIndex()
+                .setIndices(index)
+                .setFeatures(GetIndexRequest.Feature.MAPPINGS, GetIndexRequest.Feature.SETTINGS)
+                .execute(ActionListener.wrap(indices -> {
+                    checkTrainable(indices, type, field.toString(), nlist > 0, pq != null, sampleSize);
+                    client.prepareSearch(index)
+                            .setTypes(type)
+                            .setQuery(QueryBuilders.functionScoreQuery(ScoreFunctionBuilders.randomFunction(seed)))
+                            .setFetchSource(field.toString(), null)
+                            .setSize(sampleSize)
+                            .execute(ActionListener.wrap(
+                                    response -> client.threadPool().generic().execute(new AbstractRunnable() {
+                                        @Override
+                                        protected void doRun() throws Exception {
+                                            final float[][] sample = sample(response, field.toString());
+                                            final Random random = new Random(seed);
+                                            final Centroids centroids = nlist > 0 ?
+                                                    KMeans.train(sample, nlist, iterations, metric, random) : null;
+                                            final ProductQuantizer quantizer = pq != null ?
+                                                    ProductQuantizer.train(sample, pqM, pqCentroids, iterations, random) : null;
+                                            putMapping(client, channel, index, type, field.toString(), centroids, quantizer,
+                                                    sample.length);
+                                        }
+
+                                        @Override
+                                        public void onFailure(Exception e) {
+                                            sendFailure(channel, e);
+                                        }
+                                    }),
+                                    e -> sendFailure(channel, e)));
+                }, e -> sendFailure(channel, e)));
+    }
+
+    /**
+     * Rejects a sample larger than a search can fetch, and training the ivf centroids or pq codebooks of a field that
+     * already has them: the indexed docs were assigned with those, new ones would silently point them at the wrong
+     * clusters or centroids.
+     */
+    private static void checkTrainable(GetIndexResponse indices, String type, String field, boolean ivf, boolean pq,
+                                       int sampleSize) {
+        for (ObjectObjectCursor<String, Settings> settings : indices.settings()) {
+            final int maxResultWindow = IndexSettings.MAX_RESULT_WINDOW_SETTING.get(settings.value);
+            if (sampleSize > maxResultWindow) {
+                throw new IllegalArgumentException("[_knn_train] sample_size [" + sampleSize + "] is over the ["
+                        + IndexSettings.MAX_RESULT_WINDOW_SETTING.getKey() + "] of index [" + settings.key + "], ["
+                        + maxResultWindow + "]");
+            }
+        }
+        for (ObjectObjectCursor<String, ImmutableOpenMap<String, MappingMetaData>> mappings : indices.mappings()) {
+            final MappingMetaData mapping = mappings.value.get(type);
+            if (mapping == null) {
+                continue;
+            }
+            final Map<?, ?> fieldMapping = fieldMapping(mapping.sourceAsMap(), field);
+            if (fieldMapping == null) {
+                continue;
+            }
+            if (ivf && fieldMapping.containsKey("ivf")) {
+                throw new IllegalArgumentException("[_knn_train] field [" + field + "] of index [" + mappings.key
+                        + "] already has ivf centroids, they can't be changed once trained");
+            }
+            if (pq && fieldMapping.containsKey("pq")) {
+                throw new IllegalArgumentException("[_knn_train] field [" + field + "] of index [" + mappings.key
+                        + "] already has pq codebooks, they can't be changed once trained");
+            }
+        }
+    }
+
+    /**
+     * @return the mapping of a field, following the properties of its parent objects, or null if it isn't mapped
+     */
+    @Nullable
+    private static Map<?, ?> fieldMapping(Map<String, Object> typeMapping, String field) {
+        Object mapping = typeMapping;
+        for (String name : field.split("\\.")) {
+            final Object properties = mapping instanceof Map ? ((Map<?, ?>) mapping).get("properties") : null;
+            mapping = properties instanceof Map ? ((Map<?, ?>) properties).get(name) : null;
+        }
+        return mapping instanceof Map ? (Map<?, ?>) mapping : null;
+    }
+
+    private static float[][] sample(SearchResponse response, String field) {
+        final List<float[]> sample = new ArrayList<>();
+        for (SearchHit hit : response.getHits().getHits()) {
+            final Object value = XContentMapValues.extractValue(field, hit.sourceAsMap());
+            if (value == null) {
+                continue;
+            }
+            if (value instanceof List == false) {
+                throw new IllegalArgumentException("[_knn_train] field [" + field + "] must be a ["
+                        + DenseVectorFieldMapper.CONTENT_TYPE + "] field");
+            }
+            final List<?> values = (List<?>) value;
+            final float[] vector = new float[values.size()];
+            for (int i = 0; i < vector.length; i++) {
+                vector[i] = XContentMapValues.nodeFloatValue(values.get(i));
+            }
+            sample.add(vector);
+        }
+        if (sample.isEmpty()) {
+            throw new IllegalArgumentException("[_knn_train] found no vectors in field [" + field + "]");
+        }
+        return sample.toArray(new float[0][]);
+    }
+
+    /**
+     * Puts what was trained in the field's mapping, the mapper keeps the ivf, hnsw or pq it already has and isn't given.
+     */
+    private static void putMapping(NodeClient client, RestChannel channel, String index, String type, String field,
+                                   @Nullable Centroids centroids, @Nullable ProductQuantizer pq, int sampleSize) throws IOException {
+        final XContentBuilder mapping = XContentFactory.jsonBuilder();
+        mapping.startObject().startObject("properties").startObject(field);
+        mapping.field("type", DenseVectorFieldMapper.CONTENT_TYPE);
+        mapping.field("dims", centroids != null ? centroids.dims() : pq.dims());
+        if (centroids != null) {
+            mapping.startObject("ivf");
+            mapping.field("metric", centroids.metric().toString());
+            mapping.startArray("centroids");
+            for (int c = 0; c < centroids.size(); c++) {
+                mapping.value(Util.convertArrayToBase64(centroids.get(c)));
+            }
+            mapping.endArray();
+            mapping.endObject();
+        }
+        if (pq != null) {
+            mapping.startObject("pq");
+            mapping.startArray("codebooks");
+            for (int j = 0; j < pq.m(); j++) {
+                mapping.value(Util.convertArrayToBase64(pq.codebook(j)));
+            }
+            mapping.endArray();
+            mapping.endObject();
+        }
+        mapping.endObject().endObject().endObject();
+
+        client.admin().indices().preparePutMapping(index)
+                .setType(type)
+                .setSource(mapping)
+                .execute(ActionListener.wrap(putResponse -> {
+                    final XContentBuilder builder = channel.newBuilder();
+                    builder.startObject();
+                    builder.field("acknowledged", putResponse.isAcknowledged());
+                    builder.field("field", field);
+                    if (centroids != null) {
+                        builder.field("nlist", centroids.size());
+                    }
+                    if (pq != null) {
+                        builder.startObject("pq");
+                        builder.field("m", pq.m());
+                        builder.field("centroids", pq.centroids());
+                        builder.endObject();
+                    }
+                    builder.field("sample_size", sampleSize);
+                    builder.endObject();
+                    channel.sendResponse(new BytesRestResponse(RestStatus.OK, builder));
+                }, e -> sendFailure(channel, e)));
+    }
+
+    private static void sendFailure(RestChannel channel, Exception e) {
+        try {
+            channel.sendResponse(new BytesRestResponse(channel, e));
+        } catch (Exception inner) {
+            inner.addSuppressed(e);
+            LOGGER.error("failed to send failure response", inner);
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package com.liorkn.elasticsearch.script;
+
+import java.util.Locale;
+
+/**
+ * Similarity used to score a document vector against the query vector, set with the {@code metric} parameter.
+ */
+public enum Metric {
+    COSINE,
+    DOT_PRODUCT,
+    /** number of equal bits between packed bit vectors */
+    HAMMING,
+    /** {@code 1 / (1 + d^2)} for the squared euclidean distance d^2, so closer vectors score higher, at most 1 */
+    L2;
+
+    public static Metric fromString(String name) {
+        try {
+            return valueOf(name.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("unknown metric [" + name + "], expected one of [cosine, dot_product, hamming, l2]");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name().toLowerCase(Locale.ROOT);
+    }
+}
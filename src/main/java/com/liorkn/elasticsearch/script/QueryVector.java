@@ -0,0 +1,203 @@
+package com.liorkn.elasticsearch.script;
+
+import com.liorkn.elasticsearch.Util;
+
+/**
+ * A parsed query vector with everything scoring derives from it computed once: its norm, its symmetric int8
+ * quantization for int8 documents and its bits for the hamming metric. The quantization and the bits are only computed
+ * the first time they are asked for, most queries score neither int8 documents nor with the hamming metric.
+ * A sparse query only has its non-zero values and their indices, and can only score {@link Util#FORMAT_SPARSE} documents.
+ * Immutable once computed, so one instance is shared by every script scoring it, on any thread. The arrays must not be
+ * modified.
+ */
+public final class QueryVector {
+
+    private final float[] values;
+    private final float magnitude;
+
+    // symmetric int8 quantization of the values, used to score int8 documents, null until asked for
+    private volatile Int8 int8;
+
+    // the vector as packed bits and the number of bits it holds, for the hamming metric, null until asked for
+    private volatile long[] bits;
+    private final int bitCount;
+
+    // the non-zero values of a sparse query and their increasing indices, null for a dense one
+    private final int[] sparseIndices;
+    private final float[] sparseValues;
+
+    public QueryVector(float[] values) {
+        this(values, null, values.length);
+    }
+
+    private QueryVector(float[] values, long[] bits, int bitCount) {
+        this.values = values;
+        this.bits = bits;
+        this.bitCount = bitCount;
+        this.sparseIndices = null;
+        this.sparseValues = null;
+
+        // accumulated in float like the document norms
+        float norm = 0.0f;
+        for (float v : values) {
+            norm += v * v;
+        }
+        magnitude = (float) Math.sqrt(norm);
+    }
+
+    private QueryVector(Util.SparseVector sparse) {
+        this.values = new float[0];
+        this.bits = new long[0];
+        this.bitCount = 0;
+        this.int8 = new Int8(new float[0]);
+        this.sparseIndices = sparse.indices();
+        this.sparseValues = sparse.values();
+        float norm = 0.0f;
+        for (float v : sparseValues) {
+            norm += v * v;
+        }
+        magnitude = (float) Math.sqrt(norm);
+    }
+
+    /**
+     * @return a sparse query, it has no dense values
+     */
+    public static QueryVector ofSparse(int[] indices, float[] values) {
+        if (indices.length != values.length) {
+            throw new IllegalArgumentException("a sparse vector needs as many indices as values but got [" + indices.length
+                    + "] and [" + values.length + "]");
+        }
+        for (int i = 0; i < indices.length; i++) {
+            if (indices[i] < 0 || (i > 0 && indices[i] <= indices[i - 1])) {
+                throw new IllegalArgumentException("sparse vector indices must be positive and strictly increasing but index ["
+                        + i + "] is [" + indices[i] + "]");
+            }
+        }
+        return new QueryVector(new Util.SparseVector(indices, values));
+    }
+
+    /**
+     * @return a query for the hamming metric given as packed bits, it has no float values
+     */
+    public static QueryVector ofBits(long[] words) {
+        return new QueryVector(new float[0], words, words.length * Long.SIZE);
+    }
+
+    /**
+     * @param encoded a base64 vector in any format {@link Util#convertBase64ToArray} decodes, a sparse one gives a sparse query
+     * @param bits true to decode packed bits for the hamming metric, see {@link Util#convertBase64ToBits}
+     */
+    public static QueryVector parse(String encoded, boolean bits) {
+        if (bits == false && Util.isSparse(encoded)) {
+            return new QueryVector(Util.convertBase64ToSparse(encoded));
+        }
+        return bits ? ofBits(Util.convertBase64ToBits(encoded)) : new QueryVector(Util.convertBase64ToArray(encoded));
+    }
+
+    public float[] values() {
+        return values;
+    }
+
+    public int dims() {
+        return values.length;
+    }
+
+    /**
+     * @return the L2 norm of the values
+     */
+    public float magnitude() {
+        return magnitude;
+    }
+
+    public byte[] quantized() {
+        return int8().quantized;
+    }
+
+    /**
+     * @return value i is about {@code quantizedScale() * quantized()[i]}
+     */
+    public float quantizedScale() {
+        return int8().scale;
+    }
+
+    public int quantizedSum() {
+        return int8().sum;
+    }
+
+    private Int8 int8() {
+        Int8 int8 = this.int8;
+        if (int8 == null) {
+            // racing threads compute equal quantizations, any of them can be kept
+            int8 = new Int8(values);
+            this.int8 = int8;
+        }
+        return int8;
+    }
+
+    public boolean isSparse() {
+        return sparseIndices != null;
+    }
+
+    /**
+     * @return the indices of the non-zero values of a sparse query, null for a dense one
+     */
+    public int[] sparseIndices() {
+        return sparseIndices;
+    }
+
+    /**
+     * @return the non-zero values of a sparse query, null for a dense one
+     */
+    public float[] sparseValues() {
+        return sparseValues;
+    }
+
+    public long[] bits() {
+        long[] bits = this.bits;
+        if (bits == null) {
+            bits = Util.toBits(values);
+            this.bits = bits;
+        }
+        return bits;
+    }
+
+    public int bitCount() {
+        return bitCount;
+    }
+
+    /**
+     * @return an estimate of the heap used by this vector, with its quantization and bits whether they are computed yet
+     * or not, so that it doesn't change
+     */
+    public long ramBytesUsed() {
+        final long sparse = sparseIndices == null ? 0 : (long) (Integer.BYTES + Float.BYTES) * sparseIndices.length;
+        final long[] bits = this.bits;
+        final int words = bits != null ? bits.length : (values.length + Long.SIZE - 1) / Long.SIZE;
+        return 64 + (long) Float.BYTES * values.length + values.length + (long) Long.BYTES * words + sparse;
+    }
+
+    /**
+     * The symmetric int8 quantization of the values.
+     */
+    private static final class Int8 {
+
+        private final byte[] quantized;
+        private final float scale;
+        private final int sum;
+
+        private Int8(float[] values) {
+            float maxAbs = 0.0f;
+            for (float v : values) {
+                maxAbs = Math.max(maxAbs, Math.abs(v));
+            }
+            scale = maxAbs / 127;
+            quantized = new byte[values.length];
+            int sum = 0;
+            for (int i = 0; i < values.length; i++) {
+                quantized[i] = scale == 0 ? 0 : (byte) Math.round(values[i] / scale);
+                sum += quantized[i];
+            }
+            this.sum = sum;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.liorkn.elasticsearch.script;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Hook for the {@link VectorKernels} running on the JDK vector API. This version is the one loaded before Java 17 and is
+ * never enabled; the multi-release jar holds a Java 17 version under {@code META-INF/versions/17} that enables itself
+ * when the {@code jdk.incubator.vector} module is available.
+ */
+final class SimdKernels {
+
+    /**
+     * true if the kernels below may be called. Final so the JIT drops the checks, but not a compile time constant: javac
+     * would fold it into {@link VectorKernels}, which must see the value of the Java 17 version at runtime.
+     */
+    static final boolean ENABLED = enabled();
+
+    private SimdKernels() {}
+
+    private static boolean enabled() {
+        return false;
+    }
+
+    /**
+     * @return the kernels in use, for the startup log
+     */
+    static String describe() {
+        return "scalar, the JDK vector API needs Java 17";
+    }
+
+    // only called while ENABLED is true, never in this version
+
+    static float dot(byte[] bytes, int offset, float[] query, boolean littleEndian) {
+        throw new AssertionError("the JDK vector API kernels are disabled");
+    }
+
+    static void dotAndSquaredNorm(byte[] bytes, int offset, float[] query, float[] out) {
+        throw new AssertionError("the JDK vector API kernels are disabled");
+    }
+
+    static float squaredDistance(byte[] bytes, int offset, float[] query, boolean littleEndian, float limit) {
+        throw new AssertionError("the JDK vector API kernels are disabled");
+    }
+
+    static float dot(ByteBuffer vectors, int offset, float[] query) {
+        throw new AssertionError("the JDK vector API kernels are disabled");
+    }
+
+    static float squaredDistance(ByteBuffer vectors, int offset, float[] query, float limit) {
+        throw new AssertionError("the JDK vector API kernels are disabled");
+    }
+}
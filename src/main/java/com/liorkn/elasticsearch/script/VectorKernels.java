@@ -0,0 +1,480 @@
+package com.liorkn.elasticsearch.script;
+
+import com.liorkn.elasticsearch.Util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Vector math over big-endian float32 values read in place from a doc values byte slice.
+ * The loops are unrolled by 4 into independent accumulators so the JIT can keep several
+ * multiply-adds in flight; the remainder is added to the sum of the accumulators in order.
+ * On Java 17 with the {@code jdk.incubator.vector} module the float32 dot product, norm and distance kernels, over doc
+ * values and over the vector cache, run on the JDK vector API instead, see {@link SimdKernels}. Both paths then sum in
+ * the same order, so cached and uncached scores stay identical.
+ */
+public final class VectorKernels {
+
+    /** the number of dims summed between two checks of a partial distance against its limit */
+    static final int ABANDON_BLOCK = 32;
+
+    // every float16 value as a float, a table lookup is cheaper than the bit twiddling
+    private static final float[] FLOAT16 = new float[1 << 16];
+
+    static {
+        for (int i = 0; i < FLOAT16.length; i++) {
+            FLOAT16[i] = Util.float16ToFloat((short) i);
+        }
+    }
+
+    private VectorKernels() {}
+
+    /**
+     * @return a description of the float32 kernels in use, scalar or on the JDK vector API
+     */
+    public static String implementation() {
+        return SimdKernels.describe();
+    }
+
+    public static float readFloat(byte[] bytes, int offset) {
+        return Float.intBitsToFloat(((bytes[offset] & 0xFF) << 24)
+                | ((bytes[offset + 1] & 0xFF) << 16)
+                | ((bytes[offset + 2] & 0xFF) << 8)
+                | (bytes[offset + 3] & 0xFF));
+    }
+
+    public static float readFloatLE(byte[] bytes, int offset) {
+        return Float.intBitsToFloat((bytes[offset] & 0xFF)
+                | ((bytes[offset + 1] & 0xFF) << 8)
+                | ((bytes[offset + 2] & 0xFF) << 16)
+                | ((bytes[offset + 3] & 0xFF) << 24));
+    }
+
+    /**
+     * Reads a big-endian {@link Util#FORMAT_FLOAT16} or {@link Util#FORMAT_BFLOAT16} value.
+     */
+    public static float readHalf(byte[] bytes, int offset, boolean bfloat16) {
+        final int bits = ((bytes[offset] & 0xFF) << 8) | (bytes[offset + 1] & 0xFF);
+        return bfloat16 ? Float.intBitsToFloat(bits << 16) : FLOAT16[bits];
+    }
+
+    /**
+     * @return the dot product of the query vector and the vector starting at offset
+     */
+    public static float dot(byte[] bytes, int offset, float[] query) {
+        if (SimdKernels.ENABLED) {
+            return SimdKernels.dot(bytes, offset, query, false);
+        }
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        final int bound = query.length & ~3;
+        int i = 0;
+        int o = offset;
+        for (; i < bound; i += 4, o += 16) {
+            s0 += readFloat(bytes, o) * query[i];
+            s1 += readFloat(bytes, o + 4) * query[i + 1];
+            s2 += readFloat(bytes, o + 8) * query[i + 2];
+            s3 += readFloat(bytes, o + 12) * query[i + 3];
+        }
+        float score = s0 + s1 + s2 + s3;
+        for (; i < query.length; i++, o += 4) {
+            score += readFloat(bytes, o) * query[i];
+        }
+        return score;
+    }
+
+    /**
+     * Same as {@link #dot(byte[], int, float[])} for little-endian values, as stored by the dense_vector field.
+     */
+    public static float dotLE(byte[] bytes, int offset, float[] query) {
+        if (SimdKernels.ENABLED) {
+            return SimdKernels.dot(bytes, offset, query, true);
+        }
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        final int bound = query.length & ~3;
+        int i = 0;
+        int o = offset;
+        for (; i < bound; i += 4, o += 16) {
+            s0 += readFloatLE(bytes, o) * query[i];
+            s1 += readFloatLE(bytes, o + 4) * query[i + 1];
+            s2 += readFloatLE(bytes, o + 8) * query[i + 2];
+            s3 += readFloatLE(bytes, o + 12) * query[i + 3];
+        }
+        float score = s0 + s1 + s2 + s3;
+        for (; i < query.length; i++, o += 4) {
+            score += readFloatLE(bytes, o) * query[i];
+        }
+        return score;
+    }
+
+    /**
+     * Same as {@link #dot(byte[], int, float[])} for 16 bit values, float16 or bfloat16. The values are widened to float32
+     * and accumulated like float32 vectors.
+     */
+    public static float dotHalf(byte[] bytes, int offset, float[] query, boolean bfloat16) {
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        final int bound = query.length & ~3;
+        int i = 0;
+        int o = offset;
+        for (; i < bound; i += 4, o += 8) {
+            s0 += readHalf(bytes, o, bfloat16) * query[i];
+            s1 += readHalf(bytes, o + 2, bfloat16) * query[i + 1];
+            s2 += readHalf(bytes, o + 4, bfloat16) * query[i + 2];
+            s3 += readHalf(bytes, o + 6, bfloat16) * query[i + 3];
+        }
+        float score = s0 + s1 + s2 + s3;
+        for (; i < query.length; i++, o += 2) {
+            score += readHalf(bytes, o, bfloat16) * query[i];
+        }
+        return score;
+    }
+
+    /**
+     * Same as {@link #dot(byte[], int, float[])} for a vector already decoded into a buffer of floats in the native byte
+     * order, starting at the float at offset.
+     */
+    public static float dot(ByteBuffer vectors, int offset, float[] query) {
+        if (SimdKernels.ENABLED) {
+            return SimdKernels.dot(vectors, offset, query);
+        }
+        return scalarDot(vectors, offset, query);
+    }
+
+    /**
+     * Same as {@link #dotHalf(byte[], int, float[], boolean)} for a vector already widened into a buffer like
+     * {@link #dot(ByteBuffer, int, float[])}'s. Always scalar, like the doc values path of 16 bit vectors.
+     */
+    public static float dotHalf(ByteBuffer vectors, int offset, float[] query) {
+        return scalarDot(vectors, offset, query);
+    }
+
+    private static float scalarDot(ByteBuffer vectors, int offset, float[] query) {
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        final int bound = query.length & ~3;
+        int i = 0;
+        int o = offset * Float.BYTES;
+        for (; i < bound; i += 4, o += 16) {
+            s0 += vectors.getFloat(o) * query[i];
+            s1 += vectors.getFloat(o + 4) * query[i + 1];
+            s2 += vectors.getFloat(o + 8) * query[i + 2];
+            s3 += vectors.getFloat(o + 12) * query[i + 3];
+        }
+        float score = s0 + s1 + s2 + s3;
+        for (; i < query.length; i++, o += 4) {
+            score += vectors.getFloat(o) * query[i];
+        }
+        return score;
+    }
+
+    /**
+     * Dot product of len floats of a starting at aOffset and of b starting at bOffset.
+     */
+    public static float dot(float[] a, int aOffset, float[] b, int bOffset, int len) {
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        final int bound = len & ~3;
+        int i = 0;
+        for (; i < bound; i += 4) {
+            s0 += a[aOffset + i] * b[bOffset + i];
+            s1 += a[aOffset + i + 1] * b[bOffset + i + 1];
+            s2 += a[aOffset + i + 2] * b[bOffset + i + 2];
+            s3 += a[aOffset + i + 3] * b[bOffset + i + 3];
+        }
+        float score = s0 + s1 + s2 + s3;
+        for (; i < len; i++) {
+            score += a[aOffset + i] * b[bOffset + i];
+        }
+        return score;
+    }
+
+    /**
+     * Computes the dot product and the squared norm of the document vector in a single pass.
+     * @param out receives the dot product at index 0 and the squared norm at index 1
+     */
+    public static void dotAndSquaredNorm(byte[] bytes, int offset, float[] query, float[] out) {
+        if (SimdKernels.ENABLED) {
+            SimdKernels.dotAndSquaredNorm(bytes, offset, query, out);
+            return;
+        }
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        float n0 = 0, n1 = 0, n2 = 0, n3 = 0;
+        final int bound = query.length & ~3;
+        int i = 0;
+        int o = offset;
+        for (; i < bound; i += 4, o += 16) {
+            final float v0 = readFloat(bytes, o);
+            final float v1 = readFloat(bytes, o + 4);
+            final float v2 = readFloat(bytes, o + 8);
+            final float v3 = readFloat(bytes, o + 12);
+            s0 += v0 * query[i];
+            s1 += v1 * query[i + 1];
+            s2 += v2 * query[i + 2];
+            s3 += v3 * query[i + 3];
+            n0 += v0 * v0;
+            n1 += v1 * v1;
+            n2 += v2 * v2;
+            n3 += v3 * v3;
+        }
+        float score = s0 + s1 + s2 + s3;
+        float norm = n0 + n1 + n2 + n3;
+        for (; i < query.length; i++, o += 4) {
+            final float v = readFloat(bytes, o);
+            score += v * query[i];
+            norm += v * v;
+        }
+        out[0] = score;
+        out[1] = norm;
+    }
+
+    /**
+     * Squared euclidean distance between the query vector and the vector starting at offset, giving up early: the
+     * partial sum is checked every {@link #ABANDON_BLOCK} dims and returned as soon as it exceeds the limit.
+     * @param limit the distance past which the exact value doesn't matter, positive infinity for an exact distance
+     * @return the exact distance, or a partial one greater than limit
+     */
+    public static float squaredDistance(byte[] bytes, int offset, float[] query, float limit) {
+        if (SimdKernels.ENABLED) {
+            return SimdKernels.squaredDistance(bytes, offset, query, false, limit);
+        }
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        final int bound = query.length & ~3;
+        int i = 0;
+        int o = offset;
+        while (i < bound) {
+            final int blockEnd = Math.min(bound, i + ABANDON_BLOCK);
+            for (; i < blockEnd; i += 4, o += 16) {
+                final float d0 = readFloat(bytes, o) - query[i];
+                final float d1 = readFloat(bytes, o + 4) - query[i + 1];
+                final float d2 = readFloat(bytes, o + 8) - query[i + 2];
+                final float d3 = readFloat(bytes, o + 12) - query[i + 3];
+                s0 += d0 * d0;
+                s1 += d1 * d1;
+                s2 += d2 * d2;
+                s3 += d3 * d3;
+            }
+            final float partial = s0 + s1 + s2 + s3;
+            if (partial > limit) {
+                return partial;
+            }
+        }
+        float distance = s0 + s1 + s2 + s3;
+        for (; i < query.length; i++, o += 4) {
+            final float d = readFloat(bytes, o) - query[i];
+            distance += d * d;
+        }
+        return distance;
+    }
+
+    /**
+     * Same as {@link #squaredDistance(byte[], int, float[], float)} for little-endian values, as stored by the dense_vector field.
+     */
+    public static float squaredDistanceLE(byte[] bytes, int offset, float[] query, float limit) {
+        if (SimdKernels.ENABLED) {
+            return SimdKernels.squaredDistance(bytes, offset, query, true, limit);
+        }
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        final int bound = query.length & ~3;
+        int i = 0;
+        int o = offset;
+        while (i < bound) {
+            final int blockEnd = Math.min(bound, i + ABANDON_BLOCK);
+            for (; i < blockEnd; i += 4, o += 16) {
+                final float d0 = readFloatLE(bytes, o) - query[i];
+                final float d1 = readFloatLE(bytes, o + 4) - query[i + 1];
+                final float d2 = readFloatLE(bytes, o + 8) - query[i + 2];
+                final float d3 = readFloatLE(bytes, o + 12) - query[i + 3];
+                s0 += d0 * d0;
+                s1 += d1 * d1;
+                s2 += d2 * d2;
+                s3 += d3 * d3;
+            }
+            final float partial = s0 + s1 + s2 + s3;
+            if (partial > limit) {
+                return partial;
+            }
+        }
+        float distance = s0 + s1 + s2 + s3;
+        for (; i < query.length; i++, o += 4) {
+            final float d = readFloatLE(bytes, o) - query[i];
+            distance += d * d;
+        }
+        return distance;
+    }
+
+    /**
+     * Same as {@link #squaredDistance(byte[], int, float[], float)} for 16 bit values, float16 or bfloat16.
+     */
+    public static float squaredDistanceHalf(byte[] bytes, int offset, float[] query, boolean bfloat16, float limit) {
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        final int bound = query.length & ~3;
+        int i = 0;
+        int o = offset;
+        while (i < bound) {
+            final int blockEnd = Math.min(bound, i + ABANDON_BLOCK);
+            for (; i < blockEnd; i += 4, o += 8) {
+                final float d0 = readHalf(bytes, o, bfloat16) - query[i];
+                final float d1 = readHalf(bytes, o + 2, bfloat16) - query[i + 1];
+                final float d2 = readHalf(bytes, o + 4, bfloat16) - query[i + 2];
+                final float d3 = readHalf(bytes, o + 6, bfloat16) - query[i + 3];
+                s0 += d0 * d0;
+                s1 += d1 * d1;
+                s2 += d2 * d2;
+                s3 += d3 * d3;
+            }
+            final float partial = s0 + s1 + s2 + s3;
+            if (partial > limit) {
+                return partial;
+            }
+        }
+        float distance = s0 + s1 + s2 + s3;
+        for (; i < query.length; i++, o += 2) {
+            final float d = readHalf(bytes, o, bfloat16) - query[i];
+            distance += d * d;
+        }
+        return distance;
+    }
+
+    /**
+     * Same as {@link #squaredDistance(byte[], int, float[], float)} for a vector already decoded into a buffer like
+     * {@link #dot(ByteBuffer, int, float[])}'s.
+     */
+    public static float squaredDistance(ByteBuffer vectors, int offset, float[] query, float limit) {
+        if (SimdKernels.ENABLED) {
+            return SimdKernels.squaredDistance(vectors, offset, query, limit);
+        }
+        return scalarSquaredDistance(vectors, offset, query, limit);
+    }
+
+    /**
+     * Same as {@link #squaredDistanceHalf(byte[], int, float[], boolean, float)} for a vector already widened into a
+     * buffer like {@link #dot(ByteBuffer, int, float[])}'s. Always scalar, like the doc values path of 16 bit vectors.
+     */
+    public static float squaredDistanceHalf(ByteBuffer vectors, int offset, float[] query, float limit) {
+        return scalarSquaredDistance(vectors, offset, query, limit);
+    }
+
+    private static float scalarSquaredDistance(ByteBuffer vectors, int offset, float[] query, float limit) {
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        final int bound = query.length & ~3;
+        int i = 0;
+        int o = offset * Float.BYTES;
+        while (i < bound) {
+            final int blockEnd = Math.min(bound, i + ABANDON_BLOCK);
+            for (; i < blockEnd; i += 4, o += 16) {
+                final float d0 = vectors.getFloat(o) - query[i];
+                final float d1 = vectors.getFloat(o + 4) - query[i + 1];
+                final float d2 = vectors.getFloat(o + 8) - query[i + 2];
+                final float d3 = vectors.getFloat(o + 12) - query[i + 3];
+                s0 += d0 * d0;
+                s1 += d1 * d1;
+                s2 += d2 * d2;
+                s3 += d3 * d3;
+            }
+            final float partial = s0 + s1 + s2 + s3;
+            if (partial > limit) {
+                return partial;
+            }
+        }
+        float distance = s0 + s1 + s2 + s3;
+        for (; i < query.length; i++, o += 4) {
+            final float d = vectors.getFloat(o) - query[i];
+            distance += d * d;
+        }
+        return distance;
+    }
+
+    /**
+     * Integer dot product of a document's int8 values starting at offset and an int8 query.
+     * 127 * 127 * dims stays within an int for any realistic number of dimensions.
+     */
+    public static int dotInt8(byte[] bytes, int offset, byte[] query) {
+        int s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        final int bound = query.length & ~3;
+        int i = 0;
+        int o = offset;
+        for (; i < bound; i += 4, o += 4) {
+            s0 += bytes[o] * query[i];
+            s1 += bytes[o + 1] * query[i + 1];
+            s2 += bytes[o + 2] * query[i + 2];
+            s3 += bytes[o + 3] * query[i + 3];
+        }
+        int score = s0 + s1 + s2 + s3;
+        for (; i < query.length; i++, o++) {
+            score += bytes[o] * query[i];
+        }
+        return score;
+    }
+
+    public static int readInt(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xFF) << 24) | ((bytes[offset + 1] & 0xFF) << 16)
+                | ((bytes[offset + 2] & 0xFF) << 8) | (bytes[offset + 3] & 0xFF);
+    }
+
+    /**
+     * Dot product of the nnz entries of a {@link Util#FORMAT_SPARSE} document starting at offset and a sparse query,
+     * merging their sorted indices: linear in the non-zero values of both, whatever the number of dimensions.
+     */
+    public static float sparseDot(byte[] bytes, int offset, int nnz, int[] queryIndices, float[] queryValues) {
+        float score = 0;
+        int o = offset;
+        int index = 0;
+        int q = 0;
+        for (int n = 0; n < nnz && q < queryIndices.length; n++) {
+            int b = bytes[o++];
+            int delta = b & 0x7F;
+            for (int shift = 7; b < 0; shift += 7) {
+                b = bytes[o++];
+                delta |= (b & 0x7F) << shift;
+            }
+            index += delta;
+            while (q < queryIndices.length && queryIndices[q] < index) {
+                q++;
+            }
+            if (q < queryIndices.length && queryIndices[q] == index) {
+                score += readFloat(bytes, o) * queryValues[q++];
+            }
+            o += Float.BYTES;
+        }
+        return score;
+    }
+
+    /**
+     * Same as {@link #sparseDot} against a dense query, each index of the document is looked up in it.
+     * Indices past the end of the query are zeros of the query.
+     */
+    public static float sparseDotDense(byte[] bytes, int offset, int nnz, float[] query) {
+        float score = 0;
+        int o = offset;
+        int index = 0;
+        for (int n = 0; n < nnz; n++) {
+            int b = bytes[o++];
+            int delta = b & 0x7F;
+            for (int shift = 7; b < 0; shift += 7) {
+                b = bytes[o++];
+                delta |= (b & 0x7F) << shift;
+            }
+            index += delta;
+            if (index >= query.length) {
+                break; // the indices are increasing
+            }
+            score += readFloat(bytes, o) * query[index];
+            o += Float.BYTES;
+        }
+        return score;
+    }
+
+    public static long readLong(byte[] bytes, int offset) {
+        return ((long) (((bytes[offset] & 0xFF) << 24) | ((bytes[offset + 1] & 0xFF) << 16)
+                | ((bytes[offset + 2] & 0xFF) << 8) | (bytes[offset + 3] & 0xFF)) << 32)
+                | ((((bytes[offset + 4] & 0xFF) << 24) | ((bytes[offset + 5] & 0xFF) << 16)
+                | ((bytes[offset + 6] & 0xFF) << 8) | (bytes[offset + 7] & 0xFF)) & 0xFFFFFFFFL);
+    }
+
+    /**
+     * @return the number of differing bits between the packed words starting at offset and the query words
+     */
+    public static int hammingDistance(byte[] bytes, int offset, long[] query) {
+        int distance = 0;
+        for (int i = 0, o = offset; i < query.length; i++, o += Long.BYTES) {
+            distance += Long.bitCount(readLong(bytes, o) ^ query[i]);
+        }
+        return distance;
+    }
+}
@@ -0,0 +1,96 @@
+package com.liorkn.elasticsearch.script;
+
+import com.liorkn.elasticsearch.Util;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Reusable view over the vector bytes of a {@code binary} doc value, pointing into the doc values buffer without copying.
+ * The doc value holds a VInt with the number of values (always 1), a VInt with the number of bytes, then the bytes.
+ */
+public final class VectorPayload {
+
+    public byte[] bytes;
+    public int offset;
+    public int length;
+
+    /**
+     * Points this view at the vector bytes of a doc value.
+     * @return false if the document has no value
+     */
+    public boolean reset(BytesRef value) {
+        if (value.length == 0) {
+            length = 0;
+            return false;
+        }
+
+        final byte[] bytes = value.bytes;
+        int pos = value.offset;
+        while ((bytes[pos++] & 0x80) != 0) {} // skip the number of values
+
+        int length = 0;
+        for (int shift = 0; ; shift += 7) {
+            final byte b = bytes[pos++];
+            length |= (b & 0x7F) << shift;
+            if (b >= 0) break;
+        }
+
+        this.bytes = bytes;
+        this.offset = pos;
+        this.length = length;
+        return true;
+    }
+
+    /**
+     * Decodes the first dims values of the current vector, float32 with or without a norm, float16, bfloat16 or int8.
+     * @return the norm of the decoded values
+     */
+    public float readFloats(float[] dest, int destOffset, int dims) {
+        int offset = this.offset;
+        int length = this.length;
+        if (Util.hasHeader(bytes, offset, length)) {
+            final byte format = Util.format(bytes, offset);
+            offset += Util.HEADER_BYTES;
+            length -= Util.HEADER_BYTES;
+            if (format == Util.FORMAT_INT8) {
+                checkDims(length - Util.INT8_PREFIX_BYTES, dims);
+                final float scale = VectorKernels.readFloat(bytes, offset);
+                final float shift = VectorKernels.readFloat(bytes, offset + Float.BYTES);
+                offset += Util.INT8_PREFIX_BYTES;
+                for (int i = 0; i < dims; i++) {
+                    dest[destOffset + i] = shift + scale * bytes[offset + i];
+                }
+                return norm(dest, destOffset, dims);
+            } else if (format == Util.FORMAT_FLOAT16 || format == Util.FORMAT_BFLOAT16) {
+                checkDims(length - Float.BYTES, dims * Short.BYTES);
+                offset += Float.BYTES;
+                for (int i = 0; i < dims; i++) {
+                    dest[destOffset + i] = VectorKernels.readHalf(bytes, offset + i * Short.BYTES, format == Util.FORMAT_BFLOAT16);
+                }
+                return norm(dest, destOffset, dims);
+            } else if (format != Util.FORMAT_FLOAT_WITH_NORM) {
+                throw new IllegalArgumentException("vector format [" + format + "] can't be decoded to floats");
+            }
+            offset += Float.BYTES;
+            length -= Float.BYTES;
+        }
+        checkDims(length, dims * Float.BYTES);
+        for (int i = 0; i < dims; i++) {
+            dest[destOffset + i] = VectorKernels.readFloat(bytes, offset + i * Float.BYTES);
+        }
+        return norm(dest, destOffset, dims);
+    }
+
+    private static float norm(float[] values, int offset, int dims) {
+        float norm = 0.0f;
+        for (int i = offset; i < offset + dims; i++) {
+            norm += values[i] * values[i];
+        }
+        return (float) Math.sqrt(norm);
+    }
+
+    private static void checkDims(int length, int expected) {
+        if (length < expected) {
+            throw new IllegalArgumentException("vector has [" + length + "] bytes but [" + expected + "] are needed");
+        }
+    }
+}
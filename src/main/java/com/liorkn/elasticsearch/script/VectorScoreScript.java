@@ -13,14 +13,24 @@ Delimited Payload Token Filter: https://www.elastic.co/guide/en/elasticsearch/re
 package com.liorkn.elasticsearch.script;
 
 import com.liorkn.elasticsearch.Util;
+import com.liorkn.elasticsearch.cache.QueryVectorCache;
+import com.liorkn.elasticsearch.cache.SegmentVectors;
+import com.liorkn.elasticsearch.cache.VectorCache;
+import com.liorkn.elasticsearch.mapper.DenseVectorFieldMapper;
+import com.liorkn.elasticsearch.pq.ProductQuantizer;
+import com.liorkn.elasticsearch.stats.KnnStats;
 import org.apache.lucene.index.BinaryDocValues;
-import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.util.BytesRef;
 import org.elasticsearch.common.Nullable;
+import org.elasticsearch.index.shard.ShardUtils;
 import org.elasticsearch.script.ExecutableScript;
 import org.elasticsearch.script.LeafSearchScript;
 import org.elasticsearch.script.ScriptException;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 
@@ -29,16 +39,77 @@ import java.util.Map;
  */
 public final class VectorScoreScript implements LeafSearchScript, ExecutableScript {
 
+    /**
+     * The docs a script scores between two reports to the stats, when nothing tells it that its segment is done.
+     */
+    public static final int STATS_BLOCK_DOCS = 1024;
+
     // the field containing the vectors to be scored against
     public final String field;
 
     private int docId;
     private BinaryDocValues binaryEmbeddingReader;
 
+    // the parsed query, shared with other scripts; the fields below are copied from it for the scoring loops
+    private final QueryVector query;
+
     private final float[] inputVector;
     private final float magnitude;
 
+    // symmetric int8 quantization of the input vector, null until the first int8 document
+    private byte[] quantizedInputVector;
+    private float quantizedScale;
+    private int quantizedSum;
+
+    private final Metric metric;
     private final boolean cosine;
+    private final boolean l2;
+    // the squared norm of the query, for l2 against int8 documents
+    private final float squaredMagnitude;
+
+    // the score a doc must reach to matter, and the squared distance past which an l2 doc can't reach it
+    private float scoreThreshold = Float.NEGATIVE_INFINITY;
+    private float distanceLimit = Float.POSITIVE_INFINITY;
+
+    // the non-zero values of a sparse query and their indices, null for a dense query
+    private final int[] sparseIndices;
+    private final float[] sparseValues;
+
+    // the query as packed bits and the number of bits it holds, for the hamming metric
+    private final long[] queryBits;
+    private final int queryBitCount;
+
+    // reusable view over the current document's vector bytes
+    private final VectorPayload payload = new VectorPayload();
+    private final float[] dotAndNorm = new float[2];
+
+    // true when the field is a dense_vector, whose doc values are fixed stride little-endian floats
+    private boolean denseVector;
+
+    // the segment's vectors when they are in the vector cache, null to decode the doc values
+    private SegmentVectors segmentVectors;
+
+    // true when the params ask to score product quantization codes
+    private final boolean pq;
+    // the query's lookup table when scoring product quantization codes, built once for all segments
+    private ProductQuantizer.LookupTable pqTable;
+    // the segment's codes, null when it has none
+    private BinaryDocValues pqCodes;
+
+    // the node's stats, null to not record any
+    private KnnStats stats;
+    // true to report blocks of docs, for callers that can't tell when a segment is done
+    private boolean statsInBlocks;
+    // the counters of the current segment's shard, null when it isn't read through a shard
+    private KnnStats.Counters shardStats;
+    // the last doc of the current segment, scoring it is the end of the segment
+    private int lastDocId = -1;
+    // what was scored since the last report
+    private long docsScored;
+    private long bytesDecoded;
+    private long scoreNanos;
+    // the scoring time of the current segment, reported with the segment
+    private long segmentNanos;
 
     @Override
     public final Object run() {
@@ -52,27 +123,104 @@ public final class VectorScoreScript implements LeafSearchScript, ExecutableScri
 
     /**
      * Called for each document
-     * @return cosine similarity of the current document against the input inputVector
+     * @return similarity of the current document against the input inputVector, according to the metric
      */
     @Override
     public double runAsDouble() {
-        final byte[] bytes = binaryEmbeddingReader.get(docId).bytes;
-        final ByteArrayDataInput input = new ByteArrayDataInput(bytes);
+        if (stats == null) {
+            return score();
+        }
+        final long start = System.nanoTime();
+        final double score = score();
+        scoreNanos += System.nanoTime() - start;
+        docsScored++;
+        if (statsInBlocks) {
+            if (docId == lastDocId) {
+                finishSegment();
+            } else if (docsScored == STATS_BLOCK_DOCS) {
+                reportStats();
+            }
+        }
+        return score;
+    }
+
+    private double score() {
+        if (pqCodes != null) {
+            final BytesRef codes = pqCodes.get(docId);
+            bytesDecoded += codes.length;
+            if (codes.length != 0) {
+                return pqTable.score(codes.bytes, codes.offset);
+            }
+            // indexed before the codebooks were trained, scored exactly
+        }
+        if (segmentVectors != null) {
+            return scoreCached();
+        }
+        final BytesRef value = binaryEmbeddingReader.get(docId);
+        bytesDecoded += value.length;
+        if (denseVector) {
+            return scoreDenseVector(value);
+        }
+        if (payload.reset(value) == false) {
+            return 0f; // the document has no vector
+        }
+        final byte[] bytes = payload.bytes;
+        final int offset = payload.offset;
+        final int length = payload.length;
+
+        if (metric == Metric.HAMMING) {
+            return scoreBits(bytes, offset, length);
+        }
+        final boolean header = Util.hasHeader(bytes, offset, length);
+        if (sparseIndices != null && (header == false || Util.format(bytes, offset) != Util.FORMAT_SPARSE)) {
+            throw new IllegalArgumentException("document [" + docId + "] has a dense vector in field [" + field
+                    + "] but the query vector is sparse");
+        }
+        if (header) {
+            final int body = offset + Util.HEADER_BYTES;
+            final int bodyLength = length - Util.HEADER_BYTES;
+            final byte format = Util.format(bytes, offset);
+            switch (format) {
+                case Util.FORMAT_FLOAT_WITH_NORM:
+                    return scoreFloat(bytes, body + Float.BYTES, bodyLength - Float.BYTES, VectorKernels.readFloat(bytes, body));
+                case Util.FORMAT_INT8:
+                    return scoreInt8(bytes, body, bodyLength);
+                case Util.FORMAT_FLOAT16:
+                case Util.FORMAT_BFLOAT16:
+                    return scoreHalf(bytes, body + Float.BYTES, bodyLength - Float.BYTES, VectorKernels.readFloat(bytes, body),
+                            format == Util.FORMAT_BFLOAT16);
+                case Util.FORMAT_SPARSE:
+                    return scoreSparse(bytes, body, bodyLength);
+                default:
+                    throw new IllegalArgumentException("document [" + docId + "] has an unknown vector format [" + format + "] in field [" + field + "]");
+            }
+        }
+        return scoreFloat(bytes, offset, length, -1.0f);
+    }
 
-        // MUST appear hear since it affect the next calls
-        input.readVInt(); // returns the number of values which should be 1
-        input.readVInt(); // returns the number of bytes to read
+    /**
+     * @param docVectorNorm the stored norm of the document vector, or a negative value if it is not stored
+     */
+    private double scoreFloat(byte[] bytes, int offset, int length, float docVectorNorm) {
+        checkDims(length, Float.BYTES);
 
-        float score = 0;
+        if (l2) {
+            return l2Score(VectorKernels.squaredDistance(bytes, offset, inputVector, distanceLimit));
+        }
 
-        if(cosine) {
-            float docVectorNorm = 0.0f;
+        if(cosine && docVectorNorm >= 0) {
+            // the norm is stored with the vector, a single dot product is enough
+            final float score = VectorKernels.dot(bytes, offset, inputVector);
 
-            for (int i = 0; i < inputVector.length; i++) {
-                float v = Float.intBitsToFloat(input.readInt());
-                docVectorNorm += v * v;  // inputVector norm
-                score += v * inputVector[i];  // dot product
+            if (docVectorNorm == 0 || magnitude == 0) {
+                return 0f;
+            } else {
+                return score / ((double) docVectorNorm * magnitude);
             }
+        } else if(cosine) {
+            VectorKernels.dotAndSquaredNorm(bytes, offset, inputVector, dotAndNorm);
+            final float score = dotAndNorm[0];
+            docVectorNorm = dotAndNorm[1];
 
             if (docVectorNorm == 0 || magnitude == 0) {
                 return 0f;
@@ -80,12 +228,165 @@ public final class VectorScoreScript implements LeafSearchScript, ExecutableScri
                 return score / (Math.sqrt(docVectorNorm) * magnitude);
             }
         } else {
-            for (int i = 0; i < inputVector.length; i++) {
-                float v = Float.intBitsToFloat(input.readInt());
-                score += v * inputVector[i];  // dot product
+            return VectorKernels.dot(bytes, offset, inputVector);
+        }
+    }
+
+    /**
+     * Scores a {@link Util#FORMAT_INT8} document: the dot product is accumulated in integers against
+     * the quantized query, then mapped back with the document's scale and offset.
+     */
+    private double scoreInt8(byte[] bytes, int offset, int length) {
+        checkDims(length - Util.INT8_PREFIX_BYTES, 1);
+        final float scale = VectorKernels.readFloat(bytes, offset);
+        final float shift = VectorKernels.readFloat(bytes, offset + Float.BYTES);
+        final float docVectorNorm = VectorKernels.readFloat(bytes, offset + 2 * Float.BYTES);
+
+        if (quantizedInputVector == null) {
+            quantizedInputVector = query.quantized();
+            quantizedScale = query.quantizedScale();
+            quantizedSum = query.quantizedSum();
+        }
+        final int dot = VectorKernels.dotInt8(bytes, offset + Util.INT8_PREFIX_BYTES, quantizedInputVector);
+        final double score = quantizedScale * ((double) scale * dot + (double) shift * quantizedSum);
+
+        if (l2) {
+            // |q - d|^2 = |q|^2 + |d|^2 - 2 q.d, too coarse to give up early
+            return l2Score((float) Math.max(0, squaredMagnitude + (double) docVectorNorm * docVectorNorm - 2 * score));
+        }
+
+        if (cosine) {
+            if (docVectorNorm == 0 || magnitude == 0) {
+                return 0f;
+            }
+            return score / ((double) docVectorNorm * magnitude);
+        }
+        return score;
+    }
+
+    /**
+     * Scores a {@link Util#FORMAT_FLOAT16} or {@link Util#FORMAT_BFLOAT16} document, widening each value to float32 as
+     * it is read. The norm is always stored with these formats.
+     */
+    private double scoreHalf(byte[] bytes, int offset, int length, float docVectorNorm, boolean bfloat16) {
+        checkDims(length, Short.BYTES);
+
+        if (l2) {
+            return l2Score(VectorKernels.squaredDistanceHalf(bytes, offset, inputVector, bfloat16, distanceLimit));
+        }
+        final float score = VectorKernels.dotHalf(bytes, offset, inputVector, bfloat16);
+        if (cosine) {
+            if (docVectorNorm == 0 || magnitude == 0) {
+                return 0f;
+            }
+            return score / ((double) docVectorNorm * magnitude);
+        }
+        return score;
+    }
+
+    /**
+     * Scores a {@link Util#FORMAT_SPARSE} document in time proportional to its non-zero values: merged with the indices
+     * of a sparse query, or looked up in a dense one.
+     */
+    private double scoreSparse(byte[] bytes, int offset, int length) {
+        if (length < Util.SPARSE_PREFIX_BYTES) {
+            throw new IllegalArgumentException("document [" + docId + "] has a truncated sparse vector in field [" + field + "]");
+        }
+        final float docVectorNorm = VectorKernels.readFloat(bytes, offset);
+        final int nnz = VectorKernels.readInt(bytes, offset + Float.BYTES);
+        final int entries = offset + Util.SPARSE_PREFIX_BYTES;
+        final float score = sparseIndices != null
+                ? VectorKernels.sparseDot(bytes, entries, nnz, sparseIndices, sparseValues)
+                : VectorKernels.sparseDotDense(bytes, entries, nnz, inputVector);
+
+        if (l2) {
+            // |q - d|^2 = |q|^2 + |d|^2 - 2 q.d
+            return l2Score((float) Math.max(0, squaredMagnitude + (double) docVectorNorm * docVectorNorm - 2.0 * score));
+        }
+        if (cosine) {
+            if (docVectorNorm == 0 || magnitude == 0) {
+                return 0f;
+            }
+            return score / ((double) docVectorNorm * magnitude);
+        }
+        return score;
+    }
+
+    /**
+     * Scores a bit vector, with or without the {@link Util#FORMAT_BITS} header.
+     * @return the number of equal bits
+     */
+    private double scoreBits(byte[] bytes, int offset, int length) {
+        if (Util.hasBitsHeader(bytes, offset, length)) {
+            offset += Util.HEADER_BYTES;
+            length -= Util.HEADER_BYTES;
+        }
+        if (length < queryBits.length * Long.BYTES) {
+            recordDimMismatch();
+            throw new IllegalArgumentException("document [" + docId + "] has a bit vector of " + (length / Long.BYTES * Long.SIZE)
+                    + " bits in field [" + field + "] but the query vector has " + queryBitCount);
+        }
+        return queryBitCount - VectorKernels.hammingDistance(bytes, offset, queryBits);
+    }
+
+    /**
+     * Scores a dense_vector doc value: the norm then the values, at a fixed stride and already validated at index time.
+     */
+    private double scoreDenseVector(BytesRef value) {
+        if (value.length == 0) {
+            return 0f; // the document has no vector
+        }
+        if (l2) {
+            return l2Score(VectorKernels.squaredDistanceLE(value.bytes, value.offset + Float.BYTES, inputVector, distanceLimit));
+        }
+        final float score = VectorKernels.dotLE(value.bytes, value.offset + Float.BYTES, inputVector);
+        if (cosine) {
+            final float docVectorNorm = VectorKernels.readFloatLE(value.bytes, value.offset);
+            if (docVectorNorm == 0 || magnitude == 0) {
+                return 0f;
+            }
+            return score / ((double) docVectorNorm * magnitude);
+        }
+        return score;
+    }
+
+    /**
+     * Scores against the cached copy of the segment's vectors, no decoding is needed.
+     * Produces the same scores as {@link #scoreFloat}.
+     */
+    private double scoreCached() {
+        if (segmentVectors.hasVector(docId) == false) {
+            return 0f;
+        }
+        if (l2) {
+            return l2Score(segmentVectors.squaredDistance(docId, inputVector, distanceLimit));
+        }
+        final float score = segmentVectors.dot(docId, inputVector);
+        if (cosine) {
+            final double docVectorNorm = segmentVectors.norm(docId);
+            if (docVectorNorm == 0 || magnitude == 0) {
+                return 0f;
             }
+            return score / (docVectorNorm * magnitude);
+        }
+        return score;
+    }
 
-            return score;
+    /**
+     * @return the l2 score of a squared distance, 0 if it is past the limit of the score threshold
+     */
+    private double l2Score(float squaredDistance) {
+        if (squaredDistance > distanceLimit) {
+            return 0f; // possibly a partial distance, the doc can't reach the threshold anyway
+        }
+        return 1 / (1 + (double) squaredDistance);
+    }
+
+    private void checkDims(int length, int bytesPerDim) {
+        if (length < inputVector.length * bytesPerDim) {
+            recordDimMismatch();
+            throw new IllegalArgumentException("document [" + docId + "] has a vector of " + (length / bytesPerDim)
+                    + " dimensions in field [" + field + "] but the query vector has " + inputVector.length);
         }
     }
 
@@ -104,6 +405,156 @@ public final class VectorScoreScript implements LeafSearchScript, ExecutableScri
         this.binaryEmbeddingReader = binaryEmbeddingReader;
     }
 
+    /**
+     * Points the script at a new segment, using the vector cache when there is one.
+     * What was scored in the previous segment is reported to the stats.
+     */
+    public void setNextReader(LeafReader reader, @Nullable VectorCache vectorCache) throws IOException {
+        finishSegment();
+        if (stats != null) {
+            shardStats = stats.shard(ShardUtils.extractShardId(reader));
+        }
+        lastDocId = reader.maxDoc() - 1;
+        setBinaryEmbeddingReader(reader.getBinaryDocValues(field));
+        // the codes are what's scored, caching the floats would load the bytes pq avoids reading
+        final boolean cacheable = vectorCache != null && usesFloatVectors() && pqTable == null;
+        setSegmentVectors(cacheable ? vectorCache.get(reader, field, dims(), denseVector) : null);
+        pqCodes = pqTable == null ? null : reader.getBinaryDocValues(field + DenseVectorFieldMapper.PQ_CODES_SUFFIX);
+    }
+
+    /**
+     * @param segmentVectors the cached vectors of the current segment, or null to read the doc values
+     */
+    public void setSegmentVectors(SegmentVectors segmentVectors) {
+        this.segmentVectors = segmentVectors;
+    }
+
+    /**
+     * Switches to the fixed stride layout of a dense_vector field, checking the query dims once instead of per document.
+     * @param dims the dims declared in the field mapping
+     */
+    public void setDenseVectorDims(int dims) {
+        if (metric == Metric.HAMMING) {
+            throw new IllegalArgumentException("metric [" + metric + "] is not supported on dense_vector field [" + field + "]");
+        }
+        if (sparseIndices != null) {
+            throw new IllegalArgumentException("a sparse query vector can't score dense_vector field [" + field + "]");
+        }
+        if (dims != inputVector.length) {
+            recordDimMismatch();
+            throw new IllegalArgumentException("dense_vector field [" + field + "] has [" + dims + "] dims but the query vector has " + inputVector.length);
+        }
+        this.denseVector = true;
+    }
+
+    public boolean isDenseVector() {
+        return denseVector;
+    }
+
+    /**
+     * Scores the product quantization codes of the dense_vector field from now on, with the query's lookup table
+     * built here once. Docs without codes are still scored exactly.
+     */
+    public void setProductQuantizer(ProductQuantizer pq) {
+        if (denseVector == false) {
+            throw new IllegalArgumentException("pq requires a dense_vector field but [" + field + "] is not one");
+        }
+        pqTable = pq.lookupTable(inputVector, metric);
+    }
+
+    /**
+     * @return true if the params ask to score the field's product quantization codes
+     */
+    public boolean isProductQuantized() {
+        return pq;
+    }
+
+    /**
+     * @return true if this script can score from a {@link SegmentVectors} cache entry
+     */
+    public boolean usesFloatVectors() {
+        return metric != Metric.HAMMING && sparseIndices == null;
+    }
+
+    /**
+     * @return the number of dimensions of the query vector
+     */
+    public int dims() {
+        return inputVector.length;
+    }
+
+    public QueryVector query() {
+        return query;
+    }
+
+    /**
+     * Tells the script that docs scoring below the threshold don't matter, e.g. min_score or the k-th best score so far.
+     * With the l2 metric a doc stops being scored as soon as its partial distance shows it can't reach the threshold,
+     * and it scores 0. The other metrics always score exactly.
+     */
+    public void setScoreThreshold(float threshold) {
+        if (threshold == scoreThreshold) {
+            return;
+        }
+        scoreThreshold = threshold;
+        if (threshold <= 0) {
+            distanceLimit = Float.POSITIVE_INFINITY; // every l2 score is positive
+        } else {
+            // rounded up, a doc is only given up on when its exact score is below the threshold
+            final double limit = 1.0 / threshold - 1.0;
+            distanceLimit = limit >= Float.MAX_VALUE ? Float.POSITIVE_INFINITY : Math.nextUp((float) limit);
+        }
+    }
+
+    /**
+     * Records what this script scores in the node's stats: the docs, the vector bytes read and the time spent scoring.
+     * @param inBlocks true to report every {@value #STATS_BLOCK_DOCS} docs and once the segment's last doc is scored,
+     * otherwise the caller reports each segment with {@link #finishSegment()}
+     */
+    public void setStats(@Nullable KnnStats stats, boolean inBlocks) {
+        this.stats = stats;
+        this.statsInBlocks = inBlocks;
+    }
+
+    /**
+     * Reports the current segment to the stats, once it was scored.
+     */
+    public void finishSegment() {
+        reportStats();
+        if (stats != null && segmentNanos > 0) {
+            stats.recordSegment(shardStats, segmentNanos);
+        }
+        segmentNanos = 0;
+    }
+
+    private void reportStats() {
+        if (stats != null && docsScored > 0) {
+            stats.record(shardStats, docsScored, bytesDecoded, scoreNanos);
+        }
+        segmentNanos += scoreNanos;
+        docsScored = 0;
+        bytesDecoded = 0;
+        scoreNanos = 0;
+    }
+
+    private void recordDimMismatch() {
+        if (stats != null) {
+            stats.recordDimMismatch(shardStats);
+        }
+    }
+
+    /**
+     * @return a new script sharing this one's immutable query state, field layout and pq table, to score another
+     * segment, possibly on another thread. It needs {@link #setNextReader} before scoring.
+     */
+    public VectorScoreScript copy() {
+        final VectorScoreScript copy = new VectorScoreScript(field, metric, query, pq);
+        copy.denseVector = denseVector;
+        copy.pqTable = pqTable;
+        copy.setStats(stats, statsInBlocks);
+        return copy;
+    }
+
     /**
      * Factory that is registered in
      * {@link VectorScoringPlugin#onModule(org.elasticsearch.script.ScriptModule)}
@@ -111,6 +562,20 @@ public final class VectorScoreScript implements LeafSearchScript, ExecutableScri
      */
     public static class Factory {
 
+        @Nullable
+        private final QueryVectorCache queryVectorCache;
+
+        public Factory() {
+            this(null);
+        }
+
+        /**
+         * @param queryVectorCache the node's cache of parsed encoded query vectors, null to parse them every time
+         */
+        public Factory(@Nullable QueryVectorCache queryVectorCache) {
+            this.queryVectorCache = queryVectorCache;
+        }
+
         /**
          * This method is called for every search on every shard.
          * 
@@ -119,7 +584,7 @@ public final class VectorScoreScript implements LeafSearchScript, ExecutableScri
          * @return new native script
          */
         public ExecutableScript newScript(@Nullable Map<String, Object> params) throws ScriptException {
-            return new VectorScoreScript(params);
+            return new VectorScoreScript(params, queryVectorCache);
         }
 
         /**
@@ -136,44 +601,115 @@ public final class VectorScoreScript implements LeafSearchScript, ExecutableScri
      * Init
      * @param params index that a scored are placed in this parameter. Initialize them here.
      */
-    @SuppressWarnings("unchecked")
     public VectorScoreScript(Map<String, Object> params) {
-        final Object cosineBool = params.get("cosine");
-        cosine = cosineBool != null ?
-                (boolean)cosineBool :
-                true;
+        this(params, null);
+    }
+
+    /**
+     * @param queryVectorCache where parsed encoded query vectors are shared between shards and searches, or null
+     */
+    public VectorScoreScript(Map<String, Object> params, @Nullable QueryVectorCache queryVectorCache) {
+        this(parseField(params), parseMetric(params), parseQuery(params, queryVectorCache),
+                params.get("pq") != null && (boolean) params.get("pq"));
+    }
+
+    /**
+     * @param inputVector the query vector, for the hamming metric every positive value is a set bit
+     * @param encodedBits the query bits for the hamming metric when they were given packed, otherwise null
+     */
+    public VectorScoreScript(String field, Metric metric, float[] inputVector, @Nullable long[] encodedBits) {
+        this(field, metric, encodedBits != null ? QueryVector.ofBits(encodedBits) : new QueryVector(inputVector), false);
+    }
 
+    /**
+     * @param query the parsed query vector, for the hamming metric its bits are scored
+     * @param pq true to score the product quantization codes of a dense_vector field, see {@link #setProductQuantizer}
+     */
+    public VectorScoreScript(String field, Metric metric, QueryVector query, boolean pq) {
+        this.field = field;
+        this.metric = metric;
+        this.query = query;
+        this.pq = pq;
+        cosine = metric == Metric.COSINE;
+        l2 = metric == Metric.L2;
+        squaredMagnitude = l2 ? query.magnitude() * query.magnitude() : 0.0f;
+
+        inputVector = query.values();
+        magnitude = cosine ? query.magnitude() : 0.0f;
+        // the hamming metric never reads the float inputVector
+        sparseIndices = query.sparseIndices();
+        sparseValues = query.sparseValues();
+        if (sparseIndices != null && metric == Metric.HAMMING) {
+            throw new IllegalArgumentException("metric [" + metric + "] doesn't support sparse query vectors");
+        }
+        queryBits = metric == Metric.HAMMING ? query.bits() : null;
+        queryBitCount = metric == Metric.HAMMING ? query.bitCount() : 0;
+    }
+
+    private static String parseField(Map<String, Object> params) {
         final Object field = params.get("field");
         if (field == null)
             throw new IllegalArgumentException("binary_vector_score script requires field input");
-        this.field = field.toString();
+        return field.toString();
+    }
+
+    private static Metric parseMetric(Map<String, Object> params) {
+        final Object metricName = params.get("metric");
+        if (metricName != null) {
+            return Metric.fromString(metricName.toString());
+        }
+        final Object cosineBool = params.get("cosine");
+        return cosineBool == null || (boolean) cosineBool ? Metric.COSINE : Metric.DOT_PRODUCT;
+    }
 
-        // get query inputVector - convert to primitive
+    // get query inputVector - convert to primitive
+    @SuppressWarnings("unchecked")
+    private static QueryVector parseQuery(Map<String, Object> params, @Nullable QueryVectorCache queryVectorCache) {
+        final Object sparseVector = params.get("sparse_vector");
+        if (sparseVector != null) {
+            return parseSparseQuery(sparseVector);
+        }
         final Object vector = params.get("vector");
         if(vector != null) {
             final ArrayList<Double> tmp = (ArrayList<Double>) vector;
-            inputVector = new float[tmp.size()];
+            final float[] inputVector = new float[tmp.size()];
             for (int i = 0; i < inputVector.length; i++) {
                 inputVector[i] = tmp.get(i).floatValue();
             }
-        } else {
-            final Object encodedVector = params.get("encoded_vector");
-            if(encodedVector == null) {
-                throw new IllegalArgumentException("Must have at 'vector' or 'encoded_vector' as a parameter");
-            }
-            inputVector = Util.convertBase64ToArray((String) encodedVector);
+            return new QueryVector(inputVector);
         }
+        final Object encodedVector = params.get("encoded_vector");
+        if(encodedVector == null) {
+            throw new IllegalArgumentException("Must have at 'vector', 'encoded_vector' or 'sparse_vector' as a parameter");
+        }
+        final boolean bits = parseMetric(params) == Metric.HAMMING;
+        return queryVectorCache == null ?
+                QueryVector.parse((String) encodedVector, bits) :
+                queryVectorCache.get((String) encodedVector, bits);
+    }
 
-        if(cosine) {
-            // calc magnitude
-            float queryVectorNorm = 0.0f;
-            // compute query inputVector norm once
-            for (float v: inputVector) {
-                queryVectorNorm += v * v;
-            }
-            magnitude = (float) Math.sqrt(queryVectorNorm);
-        } else {
-            magnitude = 0.0f;
+    /**
+     * @param sparseVector {@code {"indices": [...], "values": [...]}} with strictly increasing indices
+     */
+    private static QueryVector parseSparseQuery(Object sparseVector) {
+        if (sparseVector instanceof Map == false) {
+            throw new IllegalArgumentException("sparse_vector must be an object with indices and values");
+        }
+        final Object indices = ((Map<?, ?>) sparseVector).get("indices");
+        final Object values = ((Map<?, ?>) sparseVector).get("values");
+        if (indices instanceof List == false || values instanceof List == false) {
+            throw new IllegalArgumentException("sparse_vector requires arrays of indices and values");
+        }
+        final List<?> indexList = (List<?>) indices;
+        final List<?> valueList = (List<?>) values;
+        final int[] sparseIndices = new int[indexList.size()];
+        for (int i = 0; i < sparseIndices.length; i++) {
+            sparseIndices[i] = ((Number) indexList.get(i)).intValue();
+        }
+        final float[] sparseValues = new float[valueList.size()];
+        for (int i = 0; i < sparseValues.length; i++) {
+            sparseValues[i] = ((Number) valueList.get(i)).floatValue();
         }
+        return QueryVector.ofSparse(sparseIndices, sparseValues);
     }
-}
\ No newline at end of file
+}
@@ -1,11 +1,17 @@
 package com.liorkn.elasticsearch.service;
 
+import com.liorkn.elasticsearch.cache.QueryVectorCache;
+import com.liorkn.elasticsearch.cache.VectorCache;
+import com.liorkn.elasticsearch.mapper.DenseVectorFieldMapper.DenseVectorFieldType;
+import com.liorkn.elasticsearch.pq.ProductQuantizer;
 import com.liorkn.elasticsearch.script.VectorScoreScript;
+import com.liorkn.elasticsearch.stats.KnnStats;
 import org.apache.lucene.index.LeafReaderContext;
 import org.elasticsearch.common.Nullable;
 import org.elasticsearch.common.component.AbstractComponent;
 import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.mapper.MappedFieldType;
 import org.elasticsearch.script.CompiledScript;
 import org.elasticsearch.script.ExecutableScript;
 import org.elasticsearch.script.LeafSearchScript;
@@ -23,14 +29,30 @@ public class VectorScoringScriptEngineService extends AbstractComponent implemen
 
     public static final String NAME = "knn";
 
+    // null when the vector cache is disabled
+    private final VectorCache vectorCache;
+    // shared by the scripts of every search, null to parse each query vector
+    private final QueryVectorCache queryVectorCache;
+    // null to not record stats
+    private final KnnStats stats;
+
     @Inject
     public VectorScoringScriptEngineService(Settings settings) {
+        this(settings, null, null, null);
+    }
+
+    public VectorScoringScriptEngineService(Settings settings, @Nullable VectorCache vectorCache,
+                                            @Nullable QueryVectorCache queryVectorCache, @Nullable KnnStats stats) {
         super(settings);
+        this.vectorCache = vectorCache;
+        this.queryVectorCache = queryVectorCache;
+        this.stats = stats;
     }
 
     @Override
     public Object compile(String scriptName, String scriptSource, Map<String, String> params) {
-        return new VectorScoreScript.Factory();
+        // the query vector is a parameter of each search, it is parsed in search() through the cache
+        return new VectorScoreScript.Factory(queryVectorCache);
     }
 
     @Override
@@ -58,11 +80,33 @@ public class VectorScoringScriptEngineService extends AbstractComponent implemen
     public SearchScript search(CompiledScript compiledScript, final SearchLookup lookup, @Nullable final Map<String, Object> vars) {
         final VectorScoreScript.Factory scriptFactory = (VectorScoreScript.Factory) compiledScript.compiled();
         final VectorScoreScript script = (VectorScoreScript) scriptFactory.newScript(vars);
+        final MappedFieldType fieldType = lookup.doc().mapperService().fullName(script.field);
+        if (fieldType instanceof DenseVectorFieldType) {
+            script.setDenseVectorDims(((DenseVectorFieldType) fieldType).dims());
+        }
+        if (script.isProductQuantized()) {
+            final ProductQuantizer pq = fieldType instanceof DenseVectorFieldType ? ((DenseVectorFieldType) fieldType).pq() : null;
+            if (pq == null) {
+                throw new IllegalArgumentException("pq requires a dense_vector field with pq codebooks but field [" + script.field + "] has none");
+            }
+            script.setProductQuantizer(pq);
+        }
+        // nothing tells a leaf script that its segment is done, it reports blocks of docs and its last doc
+        script.setStats(stats, true);
         return new SearchScript() {
+            // the script of the previous segment, the segments of a shard are searched one after the other
+            private VectorScoreScript previous;
+
             @Override
             public LeafSearchScript getLeafSearchScript(LeafReaderContext context) throws IOException {
-                script.setBinaryEmbeddingReader(context.reader().getBinaryDocValues(script.field));
-                return script;
+                if (previous != null) {
+                    previous.finishSegment();
+                }
+                // one script per segment, they only share the parsed query
+                final VectorScoreScript leafScript = script.copy();
+                leafScript.setNextReader(context.reader(), vectorCache);
+                previous = leafScript;
+                return leafScript;
             }
             @Override
             public boolean needsScores() {
@@ -0,0 +1,154 @@
+package com.liorkn.elasticsearch.stats;
+
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Setting.Property;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.index.shard.ShardId;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Node level vector scoring stats, in total and per shard, on striped counters. The knn queries and scripts count what
+ * they score in plain fields and report it here once per segment or block of docs, so recording doesn't allocate nor
+ * contend with other searches.
+ */
+public final class KnnStats {
+
+    /**
+     * False to not time nor count what is scored, {@code _knn/stats} then only shows the caches.
+     */
+    public static final Setting<Boolean> ENABLED = Setting.boolSetting("knn.stats.enabled", true, Property.NodeScope);
+
+    private final Counters total = new Counters();
+    private final ConcurrentMap<ShardId, Counters> shards = new ConcurrentHashMap<>();
+
+    public Counters total() {
+        return total;
+    }
+
+    /**
+     * @param shardId the shard of the segment being scored, null when it isn't read through a shard
+     * @return the shard's counters, null for no shard
+     */
+    @Nullable
+    public Counters shard(@Nullable ShardId shardId) {
+        return shardId == null ? null : shards.computeIfAbsent(shardId, id -> new Counters());
+    }
+
+    /**
+     * Drops the counters of a closed shard, the totals keep what it scored.
+     */
+    public void removeShard(ShardId shardId) {
+        shards.remove(shardId);
+    }
+
+    public Map<ShardId, Counters> shards() {
+        return Collections.unmodifiableMap(shards);
+    }
+
+    /**
+     * Counts what was scored by a script, into the totals and the shard.
+     * @param shard the counters of the scored shard, or null
+     */
+    public void record(@Nullable Counters shard, long docs, long bytes, long nanos) {
+        total.record(docs, bytes, nanos);
+        if (shard != null) {
+            shard.record(docs, bytes, nanos);
+        }
+    }
+
+    /**
+     * Puts the time spent scoring a whole segment in the histogram, its docs were already counted by {@link #record}.
+     */
+    public void recordSegment(@Nullable Counters shard, long nanos) {
+        total.segmentScoreTime.record(nanos);
+        if (shard != null) {
+            shard.segmentScoreTime.record(nanos);
+        }
+    }
+
+    public void recordDimMismatch(@Nullable Counters shard) {
+        total.dimMismatches.increment();
+        if (shard != null) {
+            shard.dimMismatches.increment();
+        }
+    }
+
+    /**
+     * Counts a segment a knn query skipped because its bounds show that no doc can reach the min score.
+     */
+    public void recordSegmentSkipped(@Nullable Counters shard) {
+        total.segmentsSkipped.increment();
+        if (shard != null) {
+            shard.segmentsSkipped.increment();
+        }
+    }
+
+    /**
+     * The counters of the node or of one shard.
+     */
+    public static final class Counters implements ToXContent {
+
+        private final LongAdder docsScored = new LongAdder();
+        private final LongAdder bytesDecoded = new LongAdder();
+        private final LongAdder dimMismatches = new LongAdder();
+        private final LongAdder scoreTimeNanos = new LongAdder();
+        private final LongAdder segmentsSkipped = new LongAdder();
+        // the time spent scoring each segment
+        private final LatencyHistogram segmentScoreTime = new LatencyHistogram();
+
+        private void record(long docs, long bytes, long nanos) {
+            docsScored.add(docs);
+            bytesDecoded.add(bytes);
+            scoreTimeNanos.add(nanos);
+        }
+
+        public long docsScored() {
+            return docsScored.sum();
+        }
+
+        public long bytesDecoded() {
+            return bytesDecoded.sum();
+        }
+
+        public long dimMismatches() {
+            return dimMismatches.sum();
+        }
+
+        public long scoreTimeNanos() {
+            return scoreTimeNanos.sum();
+        }
+
+        public long segmentsSkipped() {
+            return segmentsSkipped.sum();
+        }
+
+        public LatencyHistogram segmentScoreTime() {
+            return segmentScoreTime;
+        }
+
+        @Override
+        public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+            builder.field("docs_scored", docsScored());
+            builder.field("bytes_decoded", bytesDecoded());
+            builder.field("dim_mismatches", dimMismatches());
+            builder.field("score_time_in_nanos", scoreTimeNanos());
+            builder.startObject("segments");
+            builder.field("count", segmentScoreTime.count());
+            builder.field("skipped", segmentsSkipped());
+            builder.field("time_in_nanos", segmentScoreTime.sumNanos());
+            builder.field("p50_in_nanos", segmentScoreTime.percentileNanos(50));
+            builder.field("p99_in_nanos", segmentScoreTime.percentileNanos(99));
+            builder.field("p999_in_nanos", segmentScoreTime.percentileNanos(99.9));
+            builder.endObject();
+            return builder;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.liorkn.elasticsearch.stats;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of durations in power of two buckets of nanoseconds: bucket b counts the values in {@code [2^(b-1), 2^b)},
+ * bucket 0 the zeros. Recording is two striped adds, with no allocation and no lock, so any thread can record at any time.
+ * Percentiles are the upper bound of the bucket they fall in, so they are at most twice the real value.
+ */
+public final class LatencyHistogram {
+
+    private static final int BUCKETS = Long.SIZE;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder sum = new LongAdder();
+
+    public LatencyHistogram() {
+        for (int b = 0; b < BUCKETS; b++) {
+            buckets[b] = new LongAdder();
+        }
+    }
+
+    /**
+     * @param nanos a duration, negative values count as 0
+     */
+    public void record(long nanos) {
+        final long value = Math.max(0, nanos);
+        buckets[BUCKETS - Long.numberOfLeadingZeros(value)].increment();
+        sum.add(value);
+    }
+
+    /**
+     * @return the number of recorded durations
+     */
+    public long count() {
+        long count = 0;
+        for (LongAdder bucket : buckets) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    /**
+     * @return the sum of the recorded durations
+     */
+    public long sumNanos() {
+        return sum.sum();
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the upper bound of the bucket holding the percentile, 0 when nothing was recorded
+     */
+    public long percentileNanos(double percentile) {
+        final long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            counts[b] = buckets[b].sum();
+            total += counts[b];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            seen += counts[b];
+            if (seen >= rank) {
+                return upperBound(b);
+            }
+        }
+        return upperBound(BUCKETS - 1);
+    }
+
+    private static long upperBound(int bucket) {
+        if (bucket == 0) {
+            return 0;
+        }
+        return bucket == BUCKETS - 1 ? Long.MAX_VALUE : (1L << bucket) - 1;
+    }
+}
@@ -0,0 +1,289 @@
+package com.liorkn.elasticsearch.script;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * {@link VectorKernels} on the JDK vector API, only loaded by {@link SimdKernels} once the module is known to be there.
+ * The values are loaded a whole vector at a time straight from the doc values bytes, byte swapped as needed, and summed
+ * lane by lane into two accumulators, reduced to a float at the end. The sums are the same as the scalar ones up to
+ * float rounding. The kernels over the vector cache's buffers sum in the same order as the ones over doc values, so a
+ * cached vector scores exactly like the doc values it was decoded from.
+ */
+final class PanamaKernels {
+
+    private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+    private static final int LANES = SPECIES.length();
+    // the partial distance is checked every ABANDON_BLOCK dims, or every vector if it's wider
+    private static final int BLOCK = Math.max(LANES, VectorKernels.ABANDON_BLOCK / LANES * LANES);
+    // the byte order of the vector cache's buffers
+    private static final ByteOrder NATIVE = ByteOrder.nativeOrder();
+
+    private PanamaKernels() {}
+
+    static int lanes() {
+        return LANES;
+    }
+
+    static float dot(byte[] bytes, int offset, float[] query, boolean littleEndian) {
+        return littleEndian ? dotLE(bytes, offset, query) : dotBE(bytes, offset, query);
+    }
+
+    // one method per byte order: the loads only compile to vector loads and shuffles for a constant order, and the
+    // methods are too large to be inlined into a caller passing a constant
+
+    private static float dotBE(byte[] bytes, int offset, float[] query) {
+        FloatVector acc0 = FloatVector.zero(SPECIES);
+        FloatVector acc1 = FloatVector.zero(SPECIES);
+        final int bound2 = query.length / (2 * LANES) * (2 * LANES);
+        int i = 0;
+        for (; i < bound2; i += 2 * LANES) {
+            final FloatVector v0 = FloatVector.fromByteArray(SPECIES, bytes, offset + i * Float.BYTES, ByteOrder.BIG_ENDIAN);
+            final FloatVector v1 = FloatVector.fromByteArray(SPECIES, bytes, offset + (i + LANES) * Float.BYTES, ByteOrder.BIG_ENDIAN);
+            acc0 = acc0.add(v0.mul(FloatVector.fromArray(SPECIES, query, i)));
+            acc1 = acc1.add(v1.mul(FloatVector.fromArray(SPECIES, query, i + LANES)));
+        }
+        final int bound = SPECIES.loopBound(query.length);
+        for (; i < bound; i += LANES) {
+            final FloatVector v = FloatVector.fromByteArray(SPECIES, bytes, offset + i * Float.BYTES, ByteOrder.BIG_ENDIAN);
+            acc0 = acc0.add(v.mul(FloatVector.fromArray(SPECIES, query, i)));
+        }
+        float score = acc0.add(acc1).reduceLanes(VectorOperators.ADD);
+        for (; i < query.length; i++) {
+            score += VectorKernels.readFloat(bytes, offset + i * Float.BYTES) * query[i];
+        }
+        return score;
+    }
+
+    private static float dotLE(byte[] bytes, int offset, float[] query) {
+        FloatVector acc0 = FloatVector.zero(SPECIES);
+        FloatVector acc1 = FloatVector.zero(SPECIES);
+        final int bound2 = query.length / (2 * LANES) * (2 * LANES);
+        int i = 0;
+        for (; i < bound2; i += 2 * LANES) {
+            final FloatVector v0 = FloatVector.fromByteArray(SPECIES, bytes, offset + i * Float.BYTES, ByteOrder.LITTLE_ENDIAN);
+            final FloatVector v1 = FloatVector.fromByteArray(SPECIES, bytes, offset + (i + LANES) * Float.BYTES, ByteOrder.LITTLE_ENDIAN);
+            acc0 = acc0.add(v0.mul(FloatVector.fromArray(SPECIES, query, i)));
+            acc1 = acc1.add(v1.mul(FloatVector.fromArray(SPECIES, query, i + LANES)));
+        }
+        final int bound = SPECIES.loopBound(query.length);
+        for (; i < bound; i += LANES) {
+            final FloatVector v = FloatVector.fromByteArray(SPECIES, bytes, offset + i * Float.BYTES, ByteOrder.LITTLE_ENDIAN);
+            acc0 = acc0.add(v.mul(FloatVector.fromArray(SPECIES, query, i)));
+        }
+        float score = acc0.add(acc1).reduceLanes(VectorOperators.ADD);
+        for (; i < query.length; i++) {
+            score += VectorKernels.readFloatLE(bytes, offset + i * Float.BYTES) * query[i];
+        }
+        return score;
+    }
+
+    /**
+     * The doc values are big-endian, see {@link VectorKernels#dotAndSquaredNorm}.
+     */
+    static void dotAndSquaredNorm(byte[] bytes, int offset, float[] query, float[] out) {
+        // the dot product is summed like dotBE's, a cached vector is scored with dot(ByteBuffer) against this norm
+        FloatVector dot0 = FloatVector.zero(SPECIES);
+        FloatVector dot1 = FloatVector.zero(SPECIES);
+        FloatVector norm0 = FloatVector.zero(SPECIES);
+        FloatVector norm1 = FloatVector.zero(SPECIES);
+        final int bound2 = query.length / (2 * LANES) * (2 * LANES);
+        int i = 0;
+        for (; i < bound2; i += 2 * LANES) {
+            final FloatVector v0 = FloatVector.fromByteArray(SPECIES, bytes, offset + i * Float.BYTES, ByteOrder.BIG_ENDIAN);
+            final FloatVector v1 = FloatVector.fromByteArray(SPECIES, bytes, offset + (i + LANES) * Float.BYTES, ByteOrder.BIG_ENDIAN);
+            dot0 = dot0.add(v0.mul(FloatVector.fromArray(SPECIES, query, i)));
+            dot1 = dot1.add(v1.mul(FloatVector.fromArray(SPECIES, query, i + LANES)));
+            norm0 = norm0.add(v0.mul(v0));
+            norm1 = norm1.add(v1.mul(v1));
+        }
+        final int bound = SPECIES.loopBound(query.length);
+        for (; i < bound; i += LANES) {
+            final FloatVector v = FloatVector.fromByteArray(SPECIES, bytes, offset + i * Float.BYTES, ByteOrder.BIG_ENDIAN);
+            dot0 = dot0.add(v.mul(FloatVector.fromArray(SPECIES, query, i)));
+            norm0 = norm0.add(v.mul(v));
+        }
+        float score = dot0.add(dot1).reduceLanes(VectorOperators.ADD);
+        float squaredNorm = norm0.add(norm1).reduceLanes(VectorOperators.ADD);
+        for (; i < query.length; i++) {
+            final float v = VectorKernels.readFloat(bytes, offset + i * Float.BYTES);
+            score += v * query[i];
+            squaredNorm += v * v;
+        }
+        out[0] = score;
+        out[1] = squaredNorm;
+    }
+
+    /**
+     * See {@link VectorKernels#squaredDistance(byte[], int, float[], float)} for the limit.
+     */
+    static float squaredDistance(byte[] bytes, int offset, float[] query, boolean littleEndian, float limit) {
+        return littleEndian ? squaredDistanceLE(bytes, offset, query, limit) : squaredDistanceBE(bytes, offset, query, limit);
+    }
+
+    private static float squaredDistanceBE(byte[] bytes, int offset, float[] query, float limit) {
+        FloatVector acc = FloatVector.zero(SPECIES);
+        final int bound = SPECIES.loopBound(query.length);
+        int i = 0;
+        if (limit == Float.POSITIVE_INFINITY) {
+            // a single loop, the JIT keeps the accumulator in a register only without the nested block loop
+            for (; i < bound; i += LANES) {
+                final FloatVector d = FloatVector.fromByteArray(SPECIES, bytes, offset + i * Float.BYTES, ByteOrder.BIG_ENDIAN)
+                        .sub(FloatVector.fromArray(SPECIES, query, i));
+                acc = acc.add(d.mul(d));
+            }
+        } else {
+            while (i < bound) {
+                final int blockEnd = Math.min(bound, i + BLOCK);
+                for (; i < blockEnd; i += LANES) {
+                    final FloatVector d = FloatVector.fromByteArray(SPECIES, bytes, offset + i * Float.BYTES, ByteOrder.BIG_ENDIAN)
+                            .sub(FloatVector.fromArray(SPECIES, query, i));
+                    acc = acc.add(d.mul(d));
+                }
+                final float partial = acc.reduceLanes(VectorOperators.ADD);
+                if (partial > limit) {
+                    return partial;
+                }
+            }
+        }
+        float distance = acc.reduceLanes(VectorOperators.ADD);
+        for (; i < query.length; i++) {
+            final float d = VectorKernels.readFloat(bytes, offset + i * Float.BYTES) - query[i];
+            distance += d * d;
+        }
+        return distance;
+    }
+
+    private static float squaredDistanceLE(byte[] bytes, int offset, float[] query, float limit) {
+        FloatVector acc = FloatVector.zero(SPECIES);
+        final int bound = SPECIES.loopBound(query.length);
+        int i = 0;
+        if (limit == Float.POSITIVE_INFINITY) {
+            // a single loop, the JIT keeps the accumulator in a register only without the nested block loop
+            for (; i < bound; i += LANES) {
+                final FloatVector d = FloatVector.fromByteArray(SPECIES, bytes, offset + i * Float.BYTES, ByteOrder.LITTLE_ENDIAN)
+                        .sub(FloatVector.fromArray(SPECIES, query, i));
+                acc = acc.add(d.mul(d));
+            }
+        } else {
+            while (i < bound) {
+                final int blockEnd = Math.min(bound, i + BLOCK);
+                for (; i < blockEnd; i += LANES) {
+                    final FloatVector d = FloatVector.fromByteArray(SPECIES, bytes, offset + i * Float.BYTES, ByteOrder.LITTLE_ENDIAN)
+                            .sub(FloatVector.fromArray(SPECIES, query, i));
+                    acc = acc.add(d.mul(d));
+                }
+                final float partial = acc.reduceLanes(VectorOperators.ADD);
+                if (partial > limit) {
+                    return partial;
+                }
+            }
+        }
+        float distance = acc.reduceLanes(VectorOperators.ADD);
+        for (; i < query.length; i++) {
+            final float d = VectorKernels.readFloatLE(bytes, offset + i * Float.BYTES) - query[i];
+            distance += d * d;
+        }
+        return distance;
+    }
+
+    /**
+     * The vector cache's version of {@link #dotBE}, over floats in the native byte order starting at the float at offset.
+     */
+    static float dot(ByteBuffer vectors, int offset, float[] query) {
+        FloatVector acc0 = FloatVector.zero(SPECIES);
+        FloatVector acc1 = FloatVector.zero(SPECIES);
+        final int bound2 = query.length / (2 * LANES) * (2 * LANES);
+        final int base = offset * Float.BYTES;
+        int i = 0;
+        for (; i < bound2; i += 2 * LANES) {
+            final FloatVector v0 = FloatVector.fromByteBuffer(SPECIES, vectors, base + i * Float.BYTES, NATIVE);
+            final FloatVector v1 = FloatVector.fromByteBuffer(SPECIES, vectors, base + (i + LANES) * Float.BYTES, NATIVE);
+            acc0 = acc0.add(v0.mul(FloatVector.fromArray(SPECIES, query, i)));
+            acc1 = acc1.add(v1.mul(FloatVector.fromArray(SPECIES, query, i + LANES)));
+        }
+        final int bound = SPECIES.loopBound(query.length);
+        for (; i < bound; i += LANES) {
+            final FloatVector v = FloatVector.fromByteBuffer(SPECIES, vectors, base + i * Float.BYTES, NATIVE);
+            acc0 = acc0.add(v.mul(FloatVector.fromArray(SPECIES, query, i)));
+        }
+        float score = acc0.add(acc1).reduceLanes(VectorOperators.ADD);
+        for (; i < query.length; i++) {
+            score += vectors.getFloat(base + i * Float.BYTES) * query[i];
+        }
+        return score;
+    }
+
+    /**
+     * The vector cache's version of {@link #squaredDistanceBE}, see {@link #dot(ByteBuffer, int, float[])}.
+     */
+    static float squaredDistance(ByteBuffer vectors, int offset, float[] query, float limit) {
+        FloatVector acc = FloatVector.zero(SPECIES);
+        final int bound = SPECIES.loopBound(query.length);
+        final int base = offset * Float.BYTES;
+        int i = 0;
+        if (limit == Float.POSITIVE_INFINITY) {
+            for (; i < bound; i += LANES) {
+                final FloatVector d = FloatVector.fromByteBuffer(SPECIES, vectors, base + i * Float.BYTES, NATIVE)
+                        .sub(FloatVector.fromArray(SPECIES, query, i));
+                acc = acc.add(d.mul(d));
+            }
+        } else {
+            while (i < bound) {
+                final int blockEnd = Math.min(bound, i + BLOCK);
+                for (; i < blockEnd; i += LANES) {
+                    final FloatVector d = FloatVector.fromByteBuffer(SPECIES, vectors, base + i * Float.BYTES, NATIVE)
+                            .sub(FloatVector.fromArray(SPECIES, query, i));
+                    acc = acc.add(d.mul(d));
+                }
+                final float partial = acc.reduceLanes(VectorOperators.ADD);
+                if (partial > limit) {
+                    return partial;
+                }
+            }
+        }
+        float distance = acc.reduceLanes(VectorOperators.ADD);
+        for (; i < query.length; i++) {
+            final float d = vectors.getFloat(base + i * Float.BYTES) - query[i];
+            distance += d * d;
+        }
+        return distance;
+    }
+
+    /**
+     * Runs every kernel on a small vector and checks the results, throws if the vector API doesn't behave as expected.
+     */
+    static void selfTest() {
+        final float[] query = new float[LANES * 3 + 1];
+        final byte[] bigEndian = new byte[query.length * Float.BYTES];
+        final byte[] littleEndian = new byte[query.length * Float.BYTES];
+        final ByteBuffer buffer = ByteBuffer.allocateDirect((query.length + 1) * Float.BYTES).order(NATIVE);
+        for (int i = 0; i < query.length; i++) {
+            query[i] = 1;
+            buffer.putFloat((i + 1) * Float.BYTES, i);
+            final int bits = Float.floatToIntBits(i);
+            for (int b = 0; b < Float.BYTES; b++) {
+                bigEndian[i * Float.BYTES + b] = (byte) (bits >>> (24 - 8 * b));
+                littleEndian[i * Float.BYTES + b] = (byte) (bits >>> (8 * b));
+            }
+        }
+        // sum of 0 .. n-1, squared sums and squared distances to the ones are all small integers, exact in floats
+        final int n = query.length;
+        final float sum = n * (n - 1) / 2f;
+        final float squares = (n - 1) * n * (2 * n - 1) / 6f;
+        final float[] out = new float[2];
+        dotAndSquaredNorm(bigEndian, 0, query, out);
+        if (dot(bigEndian, 0, query, false) != sum || dot(littleEndian, 0, query, true) != sum
+                || out[0] != sum || out[1] != squares
+                || squaredDistance(bigEndian, 0, query, false, Float.POSITIVE_INFINITY) != squares - 2 * sum + n
+                || squaredDistance(littleEndian, 0, query, true, Float.POSITIVE_INFINITY) != squares - 2 * sum + n
+                || dot(buffer, 1, query) != sum
+                || squaredDistance(buffer, 1, query, Float.POSITIVE_INFINITY) != squares - 2 * sum + n) {
+            throw new IllegalStateException("the JDK vector API kernels don't match the scalar ones");
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.liorkn.elasticsearch.script;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+/**
+ * The Java 17 version of the hook for the {@link VectorKernels} running on the JDK vector API, see {@link PanamaKernels}.
+ * It enables itself when the {@code jdk.incubator.vector} module was added to the JVM, with
+ * {@code --add-modules jdk.incubator.vector}, the preferred vector species has at least {@link #MIN_LANES} floats and the
+ * {@code knn.vector_api} system property isn't {@code false}. The incubator API changes between JDKs, a JDK whose API
+ * doesn't match falls back to the scalar kernels.
+ */
+final class SimdKernels {
+
+    /** below 8 floats, e.g. on 128 bit SSE or NEON, the unrolled scalar loops are as fast */
+    static final int MIN_LANES = 8;
+
+    private static final String DESCRIPTION;
+    static final boolean ENABLED;
+
+    static {
+        String description;
+        boolean enabled = false;
+        if ("false".equals(System.getProperty("knn.vector_api"))) {
+            description = "scalar, the JDK vector API is disabled with -Dknn.vector_api=false";
+        } else if (ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent() == false) {
+            description = "scalar, add --add-modules=jdk.incubator.vector to the JVM options to use the JDK vector API";
+        } else {
+            try {
+                final int lanes = PanamaKernels.lanes();
+                if (lanes < MIN_LANES) {
+                    description = String.format(Locale.ROOT, "scalar, the JDK vector API only has %d float lanes", lanes);
+                } else {
+                    // runs every kernel once, so a mismatched incubator API fails here rather than while scoring
+                    PanamaKernels.selfTest();
+                    description = String.format(Locale.ROOT, "JDK vector API, %d bit vectors of %d floats", lanes * Float.SIZE, lanes);
+                    enabled = true;
+                }
+            } catch (LinkageError | RuntimeException e) {
+                description = "scalar, the JDK vector API of this JDK can't be used: " + e;
+            }
+        }
+        DESCRIPTION = description;
+        ENABLED = enabled;
+    }
+
+    private SimdKernels() {}
+
+    /**
+     * @return the kernels in use, for the startup log
+     */
+    static String describe() {
+        return DESCRIPTION;
+    }
+
+    static float dot(byte[] bytes, int offset, float[] query, boolean littleEndian) {
+        return PanamaKernels.dot(bytes, offset, query, littleEndian);
+    }
+
+    static void dotAndSquaredNorm(byte[] bytes, int offset, float[] query, float[] out) {
+        PanamaKernels.dotAndSquaredNorm(bytes, offset, query, out);
+    }
+
+    static float squaredDistance(byte[] bytes, int offset, float[] query, boolean littleEndian, float limit) {
+        return PanamaKernels.squaredDistance(bytes, offset, query, littleEndian, limit);
+    }
+
+    static float dot(ByteBuffer vectors, int offset, float[] query) {
+        return PanamaKernels.dot(vectors, offset, query);
+    }
+
+    static float squaredDistance(ByteBuffer vectors, int offset, float[] query, float limit) {
+        return PanamaKernels.squaredDistance(vectors, offset, query, limit);
+    }
+}
@@ -27,14 +27,18 @@ public class EmbeddedElasticsearchServer {
     private String dataDirectory;
 
     public EmbeddedElasticsearchServer() throws NodeValidationException {
-        this(DEFAULT_DATA_DIRECTORY);
+        this(DEFAULT_DATA_DIRECTORY, randomPort(), Settings.EMPTY);
     }
 
-    private EmbeddedElasticsearchServer(String dataDirectory) throws NodeValidationException {
-        this(dataDirectory, randomPort());
+    /**
+     * A node of its own, in a cluster of its own, for the tests of node settings the other tests shouldn't run with.
+     * @param name the cluster name, also naming the node's data directory
+     */
+    public EmbeddedElasticsearchServer(String name, Settings nodeSettings) throws NodeValidationException {
+        this(DEFAULT_DATA_DIRECTORY + "-" + name, randomPort(), Settings.builder().put(nodeSettings).put("cluster.name", name).build());
     }
 
-    private EmbeddedElasticsearchServer(String defaultDataDirectory, int port) throws NodeValidationException {
+    private EmbeddedElasticsearchServer(String defaultDataDirectory, int port, Settings nodeSettings) throws NodeValidationException {
         this.dataDirectory = defaultDataDirectory;
         this.port = port;
 
@@ -46,7 +50,8 @@ public class EmbeddedElasticsearchServer {
                 .put("path.home", DEFAULT_HOME_DIRECTORY)
                 .put("script.inline", "on")
                 .put("node.max_local_storage_nodes", 10000)
-                .put("script.stored", "on");
+                .put("script.stored", "on")
+                .put(nodeSettings);
 
         startNodeInAvailablePort(settings);
     }
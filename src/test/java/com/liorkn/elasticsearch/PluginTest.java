@@ -1,24 +1,32 @@
 package com.liorkn.elasticsearch;
 
 import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.liorkn.elasticsearch.cache.KnnResultCache;
 import org.apache.http.HttpHost;
 import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.nio.entity.NStringEntity;
 import org.apache.http.util.EntityUtils;
 import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseException;
 import org.elasticsearch.client.RestClient;
+import org.elasticsearch.common.settings.Settings;
 import org.junit.AfterClass;
 import org.junit.Assert;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Base64;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Created by Lior Knaany on 4/7/18.
@@ -58,6 +66,17 @@ public class PluginTest {
                 "  }\n" +
                 "}";
         esClient.performRequest("PUT", "/test", Collections.emptyMap(), new NStringEntity(mappingJson, ContentType.APPLICATION_JSON));
+        esClient.performRequest("PUT", "/test_knn_batch", Collections.emptyMap(), new NStringEntity(mappingJson, ContentType.APPLICATION_JSON));
+        esClient.performRequest("PUT", "/test_knn_stats", Collections.emptyMap(), new NStringEntity(mappingJson, ContentType.APPLICATION_JSON));
+        esClient.performRequest("PUT", "/test_half", Collections.emptyMap(), new NStringEntity(mappingJson, ContentType.APPLICATION_JSON));
+        esClient.performRequest("PUT", "/test_ingest", Collections.emptyMap(), new NStringEntity(mappingJson, ContentType.APPLICATION_JSON));
+        esClient.performRequest("PUT", "/test_sparse", Collections.emptyMap(), new NStringEntity(mappingJson, ContentType.APPLICATION_JSON));
+        esClient.performRequest("PUT", "/test_hamming", Collections.emptyMap(), new NStringEntity(mappingJson, ContentType.APPLICATION_JSON));
+        // one shard, so every refresh writes a segment of its own
+        final String singleShardJson = "{\"settings\": {\"number_of_shards\": 1}," + mappingJson.substring(1);
+        esClient.performRequest("PUT", "/test_bounds", Collections.emptyMap(), new NStringEntity(singleShardJson, ContentType.APPLICATION_JSON));
+        // k is per shard
+        esClient.performRequest("PUT", "/test_knn", Collections.emptyMap(), new NStringEntity(singleShardJson, ContentType.APPLICATION_JSON));
     }
 
     public static final ObjectMapper mapper = new ObjectMapper();
@@ -119,6 +138,721 @@ public class PluginTest {
         Assert.assertEquals(0.95618284, hitsJson.get(1).get("_score").asDouble(), 0);
     }
 
+    @Test
+    public void testDenseVector() throws Exception {
+        String mappingJson = "{" +
+                "  \"mappings\": {" +
+                "    \"type\": {" +
+                "      \"properties\": {" +
+                "        \"vector\": {" +
+                "          \"type\": \"dense_vector\"," +
+                "          \"dims\": 3" +
+                "        }" +
+                "      }" +
+                "    }" +
+                "  }" +
+                "}";
+        esClient.performRequest("PUT", "/test_dense", Collections.emptyMap(), new NStringEntity(mappingJson, ContentType.APPLICATION_JSON));
+
+        final Map<String, String> params = new HashMap<>();
+        params.put("refresh", "true");
+        esClient.performRequest("PUT", "/test_dense/type/1", params, new StringEntity("{\"vector\": [0.0, 0.5, 1.0]}", ContentType.APPLICATION_JSON));
+        esClient.performRequest("PUT", "/test_dense/type/2", params, new StringEntity("{\"vector\": [0.2, 0.6, 0.99]}", ContentType.APPLICATION_JSON));
+
+        // wrong dims are rejected at index time
+        try {
+            esClient.performRequest("PUT", "/test_dense/type/3", params, new StringEntity("{\"vector\": [0.2, 0.6]}", ContentType.APPLICATION_JSON));
+            Assert.fail("a vector with the wrong number of dims should be rejected");
+        } catch (ResponseException e) {
+            Assert.assertEquals(400, e.getResponse().getStatusLine().getStatusCode());
+        }
+
+        String body = "{" +
+                "  \"query\": {" +
+                "    \"function_score\": {" +
+                "      \"boost_mode\": \"replace\"," +
+                "      \"script_score\": {" +
+                "        \"script\": {" +
+                "          \"source\": \"binary_vector_score\"," +
+                "          \"lang\": \"knn\"," +
+                "          \"params\": {" +
+                "            \"cosine\": true," +
+                "            \"field\": \"vector\"," +
+                "            \"vector\": [0.1, 0.2, 0.3]" +
+                "          }" +
+                "        }" +
+                "      }" +
+                "    }" +
+                "  }" +
+                "}";
+        final Response res = esClient.performRequest("POST", "/test_dense/_search", Collections.emptyMap(), new NStringEntity(body, ContentType.APPLICATION_JSON));
+        final ArrayNode hitsJson = (ArrayNode)mapper.readTree(EntityUtils.toString(res.getEntity())).get("hits").get("hits");
+        Assert.assertEquals(0.9941734, hitsJson.get(0).get("_score").asDouble(), 1e-6);
+        Assert.assertEquals(0.95618284, hitsJson.get(1).get("_score").asDouble(), 1e-6);
+    }
+
+    @Test
+    public void testIvf() throws Exception {
+        String mappingJson = "{" +
+                "  \"mappings\": {" +
+                "    \"type\": {" +
+                "      \"properties\": {" +
+                "        \"vector\": {" +
+                "          \"type\": \"dense_vector\"," +
+                "          \"dims\": 3" +
+                "        }" +
+                "      }" +
+                "    }" +
+                "  }" +
+                "}";
+        esClient.performRequest("PUT", "/test_ivf", Collections.emptyMap(), new NStringEntity(mappingJson, ContentType.APPLICATION_JSON));
+
+        final Map<String, String> params = new HashMap<>();
+        params.put("refresh", "true");
+        final String[] docs = {"[1.0, 0.0, 0.0]", "[0.9, 0.1, 0.0]", "[0.0, 1.0, 0.0]", "[0.1, 0.9, 0.0]"};
+        for (int i = 0; i < docs.length; i++) {
+            esClient.performRequest("PUT", "/test_ivf/type/" + i, params, new StringEntity("{\"vector\": " + docs[i] + "}", ContentType.APPLICATION_JSON));
+        }
+
+        final Response train = esClient.performRequest("POST", "/test_ivf/type/_knn_train", Collections.emptyMap(),
+                new NStringEntity("{\"field\": \"vector\", \"nlist\": 2, \"seed\": 1}", ContentType.APPLICATION_JSON));
+        Assert.assertEquals(200, train.getStatusLine().getStatusCode());
+
+        // docs indexed before training get their cluster when reindexed
+        for (int i = 0; i < docs.length; i++) {
+            esClient.performRequest("PUT", "/test_ivf/type/" + i, params, new StringEntity("{\"vector\": " + docs[i] + "}", ContentType.APPLICATION_JSON));
+        }
+
+        String body = "{" +
+                "  \"query\": {" +
+                "    \"knn\": {" +
+                "      \"field\": \"vector\"," +
+                "      \"vector\": [1.0, 0.05, 0.0]," +
+                "      \"nprobe\": 1" +
+                "    }" +
+                "  }" +
+                "}";
+        final Response res = esClient.performRequest("POST", "/test_ivf/_search", Collections.emptyMap(), new NStringEntity(body, ContentType.APPLICATION_JSON));
+        final ArrayNode hitsJson = (ArrayNode)mapper.readTree(EntityUtils.toString(res.getEntity())).get("hits").get("hits");
+        Assert.assertEquals(2, hitsJson.size());
+        Assert.assertEquals("0", hitsJson.get(0).get("_id").asText());
+        Assert.assertEquals("1", hitsJson.get(1).get("_id").asText());
+
+        // the indexed clusters were assigned with the first centroids
+        try {
+            esClient.performRequest("POST", "/test_ivf/type/_knn_train", Collections.emptyMap(),
+                    new NStringEntity("{\"field\": \"vector\", \"nlist\": 2, \"seed\": 2}", ContentType.APPLICATION_JSON));
+            Assert.fail("training other centroids should be rejected");
+        } catch (ResponseException e) {
+            Assert.assertEquals(400, e.getResponse().getStatusLine().getStatusCode());
+            Assert.assertTrue(EntityUtils.toString(e.getResponse().getEntity()).contains("can't be changed once trained"));
+        }
+        // a search can't fetch more than index.max_result_window docs
+        try {
+            esClient.performRequest("POST", "/test_ivf/type/_knn_train", Collections.emptyMap(),
+                    new NStringEntity("{\"field\": \"vector\", \"nlist\": 2, \"sample_size\": 10001}", ContentType.APPLICATION_JSON));
+            Assert.fail("a sample over the max result window should be rejected");
+        } catch (ResponseException e) {
+            Assert.assertEquals(400, e.getResponse().getStatusLine().getStatusCode());
+            Assert.assertTrue(EntityUtils.toString(e.getResponse().getEntity()).contains("index.max_result_window"));
+        }
+    }
+
+    @Test
+    public void testHnsw() throws Exception {
+        String mappingJson = "{" +
+                "  \"mappings\": {" +
+                "    \"type\": {" +
+                "      \"properties\": {" +
+                "        \"vector\": {" +
+                "          \"type\": \"dense_vector\"," +
+                "          \"dims\": 3," +
+                "          \"hnsw\": {\"m\": 4, \"ef_construction\": 10}" +
+                "        }" +
+                "      }" +
+                "    }" +
+                "  }" +
+                "}";
+        esClient.performRequest("PUT", "/test_hnsw", Collections.emptyMap(), new NStringEntity(mappingJson, ContentType.APPLICATION_JSON));
+
+        final Map<String, String> params = new HashMap<>();
+        params.put("refresh", "true");
+        esClient.performRequest("PUT", "/test_hnsw/type/1", params, new StringEntity("{\"vector\": [0.0, 0.5, 1.0]}", ContentType.APPLICATION_JSON));
+        esClient.performRequest("PUT", "/test_hnsw/type/2", params, new StringEntity("{\"vector\": [0.2, 0.6, 0.99]}", ContentType.APPLICATION_JSON));
+
+        String body = "{" +
+                "  \"query\": {" +
+                "    \"knn\": {" +
+                "      \"field\": \"vector\"," +
+                "      \"vector\": [0.1, 0.2, 0.3]," +
+                "      \"k\": 2," +
+                "      \"ef_search\": 10" +
+                "    }" +
+                "  }" +
+                "}";
+        // the first search scores exactly while the graph is built in the background, the later ones search it
+        for (int i = 0; i < 3; i++) {
+            final Response res = esClient.performRequest("POST", "/test_hnsw/_search", Collections.emptyMap(), new NStringEntity(body, ContentType.APPLICATION_JSON));
+            final ArrayNode hitsJson = (ArrayNode)mapper.readTree(EntityUtils.toString(res.getEntity())).get("hits").get("hits");
+            Assert.assertEquals(2, hitsJson.size());
+            Assert.assertEquals("2", hitsJson.get(0).get("_id").asText());
+            Assert.assertEquals(0.9941734, hitsJson.get(0).get("_score").asDouble(), 1e-6);
+            Assert.assertEquals(0.95618284, hitsJson.get(1).get("_score").asDouble(), 1e-6);
+            Thread.sleep(200);
+        }
+    }
+
+    @Test
+    public void testPq() throws Exception {
+        String mappingJson = "{" +
+                "  \"mappings\": {" +
+                "    \"type\": {" +
+                "      \"properties\": {" +
+                "        \"vector\": {" +
+                "          \"type\": \"dense_vector\"," +
+                "          \"dims\": 4" +
+                "        }" +
+                "      }" +
+                "    }" +
+                "  }" +
+                "}";
+        esClient.performRequest("PUT", "/test_pq", Collections.emptyMap(), new NStringEntity(mappingJson, ContentType.APPLICATION_JSON));
+
+        final Map<String, String> params = new HashMap<>();
+        params.put("refresh", "true");
+        final String[] docs = {"[1.0, 0.0, 0.0, 1.0]", "[0.9, 0.1, 0.0, 1.0]", "[0.0, 1.0, 1.0, 0.0]", "[0.1, 0.9, 1.0, 0.0]"};
+        for (int i = 0; i < docs.length; i++) {
+            esClient.performRequest("PUT", "/test_pq/type/" + i, params, new StringEntity("{\"vector\": " + docs[i] + "}", ContentType.APPLICATION_JSON));
+        }
+
+        final Response train = esClient.performRequest("POST", "/test_pq/type/_knn_train", Collections.emptyMap(),
+                new NStringEntity("{\"field\": \"vector\", \"pq\": {\"m\": 2, \"centroids\": 2}, \"seed\": 1}", ContentType.APPLICATION_JSON));
+        Assert.assertEquals(200, train.getStatusLine().getStatusCode());
+
+        for (int i = 0; i < docs.length; i++) {
+            esClient.performRequest("PUT", "/test_pq/type/" + i, params, new StringEntity("{\"vector\": " + docs[i] + "}", ContentType.APPLICATION_JSON));
+        }
+
+        String body = "{" +
+                "  \"size\": 2," +
+                "  \"query\": {" +
+                "    \"knn\": {" +
+                "      \"field\": \"vector\"," +
+                "      \"vector\": [1.0, 0.0, 0.0, 1.0]," +
+                "      \"metric\": \"dot_product\"," +
+                "      \"pq\": true" +
+                "    }" +
+                "  }" +
+                "}";
+        final Response res = esClient.performRequest("POST", "/test_pq/_search", Collections.emptyMap(), new NStringEntity(body, ContentType.APPLICATION_JSON));
+        final ArrayNode hitsJson = (ArrayNode)mapper.readTree(EntityUtils.toString(res.getEntity())).get("hits").get("hits");
+        Assert.assertEquals(2, hitsJson.size());
+        // docs 0 and 1 share their codes, so their scores
+        final Set<String> ids = new HashSet<>();
+        ids.add(hitsJson.get(0).get("_id").asText());
+        ids.add(hitsJson.get(1).get("_id").asText());
+        Assert.assertEquals(new HashSet<>(Arrays.asList("0", "1")), ids);
+        Assert.assertEquals(hitsJson.get(0).get("_score").asDouble(), hitsJson.get(1).get("_score").asDouble(), 1e-6);
+
+        // the indexed codes were computed with the first codebooks
+        try {
+            esClient.performRequest("POST", "/test_pq/type/_knn_train", Collections.emptyMap(),
+                    new NStringEntity("{\"field\": \"vector\", \"pq\": {\"m\": 4, \"centroids\": 2}, \"seed\": 1}", ContentType.APPLICATION_JSON));
+            Assert.fail("training other codebooks should be rejected");
+        } catch (ResponseException e) {
+            Assert.assertEquals(400, e.getResponse().getStatusLine().getStatusCode());
+        }
+    }
+
+    @Test
+    public void testKnnQuery() throws Exception {
+        final Map<String, String> params = new HashMap<>();
+        params.put("refresh", "true");
+        final TestObject[] objs = {new TestObject(1, new float[] {0.0f, 0.5f, 1.0f}),
+                new TestObject(2, new float[] {0.2f, 0.6f, 0.99f})};
+        for (TestObject t : objs) {
+            esClient.performRequest("PUT", "/test_knn/type/" + t.jobId, params,
+                    new StringEntity(mapper.writeValueAsString(t), ContentType.APPLICATION_JSON));
+        }
+
+        String body = "{" +
+                "  \"query\": {" +
+                "    \"knn\": {" +
+                "      \"field\": \"embedding_vector\"," +
+                "      \"vector\": [0.1, 0.2, 0.3]," +
+                "      \"metric\": \"cosine\"," +
+                "      \"k\": 1" +
+                "    }" +
+                "  }" +
+                "}";
+        final Response res = esClient.performRequest("POST", "/test_knn/_search", Collections.emptyMap(), new NStringEntity(body, ContentType.APPLICATION_JSON));
+        Assert.assertEquals(200, res.getStatusLine().getStatusCode());
+        final ArrayNode hitsJson = (ArrayNode)mapper.readTree(EntityUtils.toString(res.getEntity())).get("hits").get("hits");
+        Assert.assertEquals(1, hitsJson.size());
+        Assert.assertEquals("2", hitsJson.get(0).get("_id").asText());
+        Assert.assertEquals(0.9941734, hitsJson.get(0).get("_score").asDouble(), 1e-6);
+
+        // in a bool query the filter applies to the k nearest docs of the shard
+        for (int jobId = 1; jobId <= 2; jobId++) {
+            final String filtered = "{" +
+                    "  \"query\": {" +
+                    "    \"bool\": {" +
+                    "      \"must\": {\"knn\": {\"field\": \"embedding_vector\", \"vector\": [0.1, 0.2, 0.3], \"k\": 1}}," +
+                    "      \"filter\": {\"term\": {\"job_id\": " + jobId + "}}" +
+                    "    }" +
+                    "  }" +
+                    "}";
+            final Response filteredRes = esClient.performRequest("POST", "/test_knn/_search", Collections.emptyMap(), new NStringEntity(filtered, ContentType.APPLICATION_JSON));
+            Assert.assertEquals(200, filteredRes.getStatusLine().getStatusCode());
+            final ArrayNode filteredHits = (ArrayNode)mapper.readTree(EntityUtils.toString(filteredRes.getEntity())).get("hits").get("hits");
+            if (jobId == 1) {
+                Assert.assertEquals(0, filteredHits.size());
+            } else {
+                Assert.assertEquals(1, filteredHits.size());
+                Assert.assertEquals("2", filteredHits.get(0).get("_id").asText());
+                Assert.assertEquals(0.9941734, filteredHits.get(0).get("_score").asDouble(), 1e-6);
+            }
+        }
+    }
+
+    @Test
+    public void testTwoPhaseKnnQuery() throws Exception {
+        final Map<String, String> params = new HashMap<>();
+        params.put("refresh", "true");
+        final TestObject[] objs = {new TestObject(1, new float[] {0.0f, 0.5f, 1.0f}),
+                new TestObject(2, new float[] {0.2f, 0.6f, 0.99f})};
+        for (TestObject t : objs) {
+            esClient.performRequest("PUT", "/test_knn/type/" + t.jobId, params,
+                    new StringEntity(mapper.writeValueAsString(t), ContentType.APPLICATION_JSON));
+        }
+
+        String body = "{" +
+                "  \"query\": {" +
+                "    \"knn\": {" +
+                "      \"field\": \"embedding_vector\"," +
+                "      \"vector\": [0.1, 0.2, 0.3]," +
+                "      \"k\": 1," +
+                "      \"truncate_dims\": 2," +
+                "      \"rescore_window\": 2" +
+                "    }" +
+                "  }" +
+                "}";
+        final Response res = esClient.performRequest("POST", "/test_knn/_search", Collections.emptyMap(), new NStringEntity(body, ContentType.APPLICATION_JSON));
+        final ArrayNode hitsJson = (ArrayNode)mapper.readTree(EntityUtils.toString(res.getEntity())).get("hits").get("hits");
+        Assert.assertEquals(1, hitsJson.size());
+        // the exact score, not the one of the truncated vectors
+        Assert.assertEquals("2", hitsJson.get(0).get("_id").asText());
+        Assert.assertEquals(0.9941734, hitsJson.get(0).get("_score").asDouble(), 1e-6);
+    }
+
+    @Test
+    public void testParallelKnnQuery() throws Exception {
+        final Map<String, String> params = new HashMap<>();
+        params.put("refresh", "true");
+        final TestObject[] objs = {new TestObject(1, new float[] {0.0f, 0.5f, 1.0f}),
+                new TestObject(2, new float[] {0.2f, 0.6f, 0.99f})};
+        // one refresh per doc, so there are several segments to score
+        for (TestObject t : objs) {
+            esClient.performRequest("PUT", "/test_knn/type/" + t.jobId, params,
+                    new StringEntity(mapper.writeValueAsString(t), ContentType.APPLICATION_JSON));
+        }
+
+        String body = "{" +
+                "  \"query\": {" +
+                "    \"knn\": {" +
+                "      \"field\": \"embedding_vector\"," +
+                "      \"vector\": [0.1, 0.2, 0.3]," +
+                "      \"k\": 1," +
+                "      \"parallel\": true" +
+                "    }" +
+                "  }" +
+                "}";
+        final Response res = esClient.performRequest("POST", "/test_knn/_search", Collections.emptyMap(), new NStringEntity(body, ContentType.APPLICATION_JSON));
+        final ArrayNode hitsJson = (ArrayNode)mapper.readTree(EntityUtils.toString(res.getEntity())).get("hits").get("hits");
+        Assert.assertEquals(1, hitsJson.size());
+        Assert.assertEquals("2", hitsJson.get(0).get("_id").asText());
+        Assert.assertEquals(0.9941734, hitsJson.get(0).get("_score").asDouble(), 1e-6);
+    }
+
+    @Test
+    public void testL2KnnQuery() throws Exception {
+        final Map<String, String> params = new HashMap<>();
+        params.put("refresh", "true");
+        final TestObject[] objs = {new TestObject(1, new float[] {0.0f, 0.5f, 1.0f}),
+                new TestObject(2, new float[] {0.2f, 0.6f, 0.99f})};
+        for (TestObject t : objs) {
+            esClient.performRequest("PUT", "/test_knn/type/" + t.jobId, params,
+                    new StringEntity(mapper.writeValueAsString(t), ContentType.APPLICATION_JSON));
+        }
+
+        String body = "{" +
+                "  \"query\": {" +
+                "    \"knn\": {" +
+                "      \"field\": \"embedding_vector\"," +
+                "      \"vector\": [0.1, 0.2, 0.3]," +
+                "      \"metric\": \"l2\"," +
+                "      \"k\": 1" +
+                "    }" +
+                "  }" +
+                "}";
+        final Response res = esClient.performRequest("POST", "/test_knn/_search", Collections.emptyMap(), new NStringEntity(body, ContentType.APPLICATION_JSON));
+        final ArrayNode hitsJson = (ArrayNode)mapper.readTree(EntityUtils.toString(res.getEntity())).get("hits").get("hits");
+        Assert.assertEquals(1, hitsJson.size());
+        // squared distance 0.59
+        Assert.assertEquals("1", hitsJson.get(0).get("_id").asText());
+        Assert.assertEquals(1 / 1.59, hitsJson.get(0).get("_score").asDouble(), 1e-5);
+    }
+
+    @Test
+    public void testHalfPrecisionVectors() throws Exception {
+        final Map<String, String> params = new HashMap<>();
+        params.put("refresh", "true");
+        final String[] encoded = {Util.convertArrayToBase64Float16(new float[] {0.0f, 0.5f, 1.0f}),
+                Util.convertArrayToBase64BFloat16(new float[] {0.2f, 0.6f, 0.99f})};
+        for (int i = 0; i < encoded.length; i++) {
+            final String json = "{\"job_id\": " + (i + 1) + ", \"embedding_vector\": \"" + encoded[i] + "\"}";
+            esClient.performRequest("PUT", "/test_half/type/" + (i + 1), params, new StringEntity(json, ContentType.APPLICATION_JSON));
+        }
+
+        String body = "{" +
+                "  \"query\": {" +
+                "    \"knn\": {" +
+                "      \"field\": \"embedding_vector\"," +
+                "      \"vector\": [0.1, 0.2, 0.3]," +
+                "      \"k\": 2" +
+                "    }" +
+                "  }" +
+                "}";
+        final Response res = esClient.performRequest("POST", "/test_half/_search", Collections.emptyMap(), new NStringEntity(body, ContentType.APPLICATION_JSON));
+        final ArrayNode hitsJson = (ArrayNode)mapper.readTree(EntityUtils.toString(res.getEntity())).get("hits").get("hits");
+        Assert.assertEquals(2, hitsJson.size());
+        // within the rounding of the 16 bit values of the float32 scores, bfloat16 keeps fewer mantissa bits
+        Assert.assertEquals("2", hitsJson.get(0).get("_id").asText());
+        Assert.assertEquals(0.9941734, hitsJson.get(0).get("_score").asDouble(), 1e-2);
+        Assert.assertEquals("1", hitsJson.get(1).get("_id").asText());
+        Assert.assertEquals(0.95618284, hitsJson.get(1).get("_score").asDouble(), 1e-3);
+    }
+
+    @Test
+    public void testVectorEncodeProcessor() throws Exception {
+        final String pipeline = "{\"processors\": [{\"vector_encode\": {\"field\": \"vector\", " +
+                "\"target_field\": \"embedding_vector\", \"dims\": 3}}]}";
+        esClient.performRequest("PUT", "/_ingest/pipeline/knn_encode", Collections.emptyMap(), new NStringEntity(pipeline, ContentType.APPLICATION_JSON));
+
+        final Map<String, String> params = new HashMap<>();
+        params.put("refresh", "true");
+        params.put("pipeline", "knn_encode");
+        esClient.performRequest("PUT", "/test_ingest/type/1", params, new StringEntity("{\"vector\": [0.0, 0.5, 1.0]}", ContentType.APPLICATION_JSON));
+        esClient.performRequest("PUT", "/test_ingest/type/2", params, new StringEntity("{\"vector\": [0.2, 0.6, 0.99]}", ContentType.APPLICATION_JSON));
+
+        // wrong dims are rejected by the processor
+        try {
+            esClient.performRequest("PUT", "/test_ingest/type/3", params, new StringEntity("{\"vector\": [0.2, 0.6]}", ContentType.APPLICATION_JSON));
+            Assert.fail("a vector with the wrong number of dims should be rejected");
+        } catch (ResponseException e) {
+            // 5.x wraps every ingest failure in an ElasticsearchException, whatever the processor throws it's a 500
+            Assert.assertEquals(500, e.getResponse().getStatusLine().getStatusCode());
+            Assert.assertTrue(EntityUtils.toString(e.getResponse().getEntity()).contains("has [2] dims but [3] are expected"));
+        }
+
+        String body = "{" +
+                "  \"query\": {" +
+                "    \"knn\": {" +
+                "      \"field\": \"embedding_vector\"," +
+                "      \"vector\": [0.1, 0.2, 0.3]," +
+                "      \"k\": 2" +
+                "    }" +
+                "  }" +
+                "}";
+        final Response res = esClient.performRequest("POST", "/test_ingest/_search", Collections.emptyMap(), new NStringEntity(body, ContentType.APPLICATION_JSON));
+        final ArrayNode hitsJson = (ArrayNode)mapper.readTree(EntityUtils.toString(res.getEntity())).get("hits").get("hits");
+        Assert.assertEquals(2, hitsJson.size());
+        Assert.assertEquals(0.9941734, hitsJson.get(0).get("_score").asDouble(), 1e-6);
+        Assert.assertEquals(0.95618284, hitsJson.get(1).get("_score").asDouble(), 1e-6);
+    }
+
+    @Test
+    public void testSparseVectors() throws Exception {
+        final Map<String, String> params = new HashMap<>();
+        params.put("refresh", "true");
+        final String[] encoded = {Util.convertSparseToBase64(new int[] {1, 30000}, new float[] {1f, 1f}),
+                Util.convertSparseToBase64(new int[] {2, 30000}, new float[] {3f, 4f})};
+        for (int i = 0; i < encoded.length; i++) {
+            final String json = "{\"job_id\": " + (i + 1) + ", \"embedding_vector\": \"" + encoded[i] + "\"}";
+            esClient.performRequest("PUT", "/test_sparse/type/" + (i + 1), params, new StringEntity(json, ContentType.APPLICATION_JSON));
+        }
+
+        String body = "{" +
+                "  \"query\": {" +
+                "    \"function_score\": {" +
+                "      \"boost_mode\": \"replace\"," +
+                "      \"script_score\": {" +
+                "        \"script\": {" +
+                "          \"source\": \"binary_vector_score\"," +
+                "          \"lang\": \"knn\"," +
+                "          \"params\": {" +
+                "            \"field\": \"embedding_vector\"," +
+                "            \"sparse_vector\": {\"indices\": [1, 30000], \"values\": [1.0, 1.0]}" +
+                "          }" +
+                "        }" +
+                "      }" +
+                "    }" +
+                "  }" +
+                "}";
+        final Response res = esClient.performRequest("POST", "/test_sparse/_search", Collections.emptyMap(), new NStringEntity(body, ContentType.APPLICATION_JSON));
+        final ArrayNode hitsJson = (ArrayNode)mapper.readTree(EntityUtils.toString(res.getEntity())).get("hits").get("hits");
+        Assert.assertEquals(2, hitsJson.size());
+        Assert.assertEquals("1", hitsJson.get(0).get("_id").asText());
+        Assert.assertEquals(1.0, hitsJson.get(0).get("_score").asDouble(), 1e-6);
+        // only index 30000 is shared: 4 / (5 * sqrt(2))
+        Assert.assertEquals("2", hitsJson.get(1).get("_id").asText());
+        Assert.assertEquals(4 / (5 * Math.sqrt(2)), hitsJson.get(1).get("_score").asDouble(), 1e-6);
+    }
+
+    @Test
+    public void testKnnQuerySkipsSegmentsBelowMinScore() throws Exception {
+        final Map<String, String> params = new HashMap<>();
+        params.put("refresh", "true");
+        final TestObject[] objs = {new TestObject(1, new float[] {0.0f, 0.5f, 1.0f}),
+                new TestObject(2, new float[] {0.2f, 0.6f, 0.99f}),
+                new TestObject(3, new float[] {-1.0f, -0.5f, 0.0f})};
+        for (TestObject t : objs) {
+            esClient.performRequest("PUT", "/test_bounds/type/" + t.jobId, params,
+                    new StringEntity(mapper.writeValueAsString(t), ContentType.APPLICATION_JSON));
+        }
+        final long before = mapper.readTree(EntityUtils.toString(esClient.performRequest("GET", "/_knn/stats").getEntity()))
+                .get("scoring").get("segments").get("skipped").asLong();
+
+        String body = "{" +
+                "  \"query\": {" +
+                "    \"knn\": {" +
+                "      \"field\": \"embedding_vector\"," +
+                "      \"vector\": [0.0, 0.5, 1.0]," +
+                "      \"metric\": \"l2\"," +
+                "      \"min_score\": 0.9" +
+                "    }" +
+                "  }" +
+                "}";
+        final Response res = esClient.performRequest("POST", "/test_bounds/_search", Collections.emptyMap(), new NStringEntity(body, ContentType.APPLICATION_JSON));
+        final ArrayNode hitsJson = (ArrayNode)mapper.readTree(EntityUtils.toString(res.getEntity())).get("hits").get("hits");
+        Assert.assertEquals(2, hitsJson.size());
+        Assert.assertEquals("1", hitsJson.get(0).get("_id").asText());
+        Assert.assertEquals(1.0, hitsJson.get(0).get("_score").asDouble(), 1e-6);
+        // squared distance 0.0501
+        Assert.assertEquals("2", hitsJson.get(1).get("_id").asText());
+        Assert.assertEquals(1 / 1.0501, hitsJson.get(1).get("_score").asDouble(), 1e-5);
+
+        // doc 3 is at a squared distance of 3, its segment scores at most 0.25
+        final JsonNode stats = mapper.readTree(EntityUtils.toString(esClient.performRequest("GET", "/_knn/stats").getEntity()));
+        Assert.assertTrue(stats.get("scoring").get("segments").get("skipped").asLong() > before);
+        Assert.assertTrue(stats.get("caches").get("bounds_cache").get("count").asLong() > 0);
+    }
+
+    @Test
+    public void testKnnResultCache() throws Exception {
+        // the other tests run without the cache, on a node of their own
+        final EmbeddedElasticsearchServer server = new EmbeddedElasticsearchServer("result_cache",
+                Settings.builder().put(KnnResultCache.ENABLED.getKey(), true).build());
+        try (RestClient client = RestClient.builder(new HttpHost("localhost", server.getPort(), "http")).build()) {
+            testKnnResultCache(client);
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    private void testKnnResultCache(RestClient client) throws Exception {
+        // one shard, k is per shard
+        client.performRequest("PUT", "/test_result_cache", Collections.emptyMap(), new NStringEntity(
+                "{\"settings\": {\"number_of_shards\": 1}, \"mappings\": {\"type\": {\"properties\": " +
+                "{\"embedding_vector\": {\"type\": \"binary\", \"doc_values\": true}}}}}", ContentType.APPLICATION_JSON));
+        final Map<String, String> params = new HashMap<>();
+        params.put("refresh", "true");
+        final TestObject[] objs = {new TestObject(1, new float[] {0.0f, 0.5f, 1.0f}),
+                new TestObject(2, new float[] {0.2f, 0.6f, 0.99f})};
+        for (TestObject t : objs) {
+            client.performRequest("PUT", "/test_result_cache/type/" + t.jobId, params,
+                    new StringEntity(mapper.writeValueAsString(t), ContentType.APPLICATION_JSON));
+        }
+
+        String body = "{" +
+                "  \"query\": {" +
+                "    \"knn\": {" +
+                "      \"field\": \"embedding_vector\"," +
+                "      \"vector\": [0.1, 0.2, 0.3]," +
+                "      \"metric\": \"cosine\"," +
+                "      \"k\": 1" +
+                "    }" +
+                "  }" +
+                "}";
+        final JsonNode first = searchHits(client, "/test_result_cache/_search", body);
+        final long hits = mapper.readTree(EntityUtils.toString(client.performRequest("GET", "/_knn/stats").getEntity()))
+                .get("caches").get("result_cache").get("hits").asLong();
+        final JsonNode second = searchHits(client, "/test_result_cache/_search", body);
+        Assert.assertEquals(first, second);
+        Assert.assertEquals("2", second.get(0).get("_id").asText());
+        Assert.assertEquals(0.9941734, second.get(0).get("_score").asDouble(), 1e-6);
+        final JsonNode cache = mapper.readTree(EntityUtils.toString(client.performRequest("GET", "/_knn/stats").getEntity()))
+                .get("caches").get("result_cache");
+        Assert.assertTrue(cache.get("enabled").asBoolean());
+        Assert.assertTrue(cache.get("hits").asLong() > hits);
+
+        // the update deletes the cached doc, its segment gets a new cache key
+        client.performRequest("PUT", "/test_result_cache/type/2", params,
+                new StringEntity(mapper.writeValueAsString(new TestObject(2, new float[] {1.0f, 0.0f, 0.0f})), ContentType.APPLICATION_JSON));
+        final JsonNode updated = searchHits(client, "/test_result_cache/_search", body);
+        Assert.assertEquals("1", updated.get(0).get("_id").asText());
+        Assert.assertEquals(0.95618284, updated.get(0).get("_score").asDouble(), 1e-6);
+    }
+
+    private static JsonNode searchHits(String endpoint, String body) throws IOException {
+        return searchHits(esClient, endpoint, body);
+    }
+
+    private static JsonNode searchHits(RestClient client, String endpoint, String body) throws IOException {
+        final Response res = client.performRequest("POST", endpoint, Collections.emptyMap(), new NStringEntity(body, ContentType.APPLICATION_JSON));
+        Assert.assertEquals(200, res.getStatusLine().getStatusCode());
+        return mapper.readTree(EntityUtils.toString(res.getEntity())).get("hits").get("hits");
+    }
+
+    @Test
+    public void testKnnStats() throws Exception {
+        final Map<String, String> params = new HashMap<>();
+        params.put("refresh", "true");
+        final TestObject[] objs = {new TestObject(1, new float[] {0.0f, 0.5f, 1.0f}),
+                new TestObject(2, new float[] {0.2f, 0.6f, 0.99f})};
+        for (TestObject t : objs) {
+            esClient.performRequest("PUT", "/test_knn_stats/type/" + t.jobId, params,
+                    new StringEntity(mapper.writeValueAsString(t), ContentType.APPLICATION_JSON));
+        }
+        final long before = mapper.readTree(EntityUtils.toString(esClient.performRequest("GET", "/_knn/stats").getEntity()))
+                .get("scoring").get("docs_scored").asLong();
+
+        String body = "{" +
+                "  \"query\": {" +
+                "    \"knn\": {" +
+                "      \"field\": \"embedding_vector\"," +
+                "      \"vector\": [0.1, 0.2, 0.3]" +
+                "    }" +
+                "  }" +
+                "}";
+        esClient.performRequest("POST", "/test_knn_stats/_search", Collections.emptyMap(), new NStringEntity(body, ContentType.APPLICATION_JSON));
+
+        final Response res = esClient.performRequest("GET", "/_knn/stats", Collections.singletonMap("level", "shards"));
+        final JsonNode stats = mapper.readTree(EntityUtils.toString(res.getEntity()));
+        Assert.assertEquals(before + 2, stats.get("scoring").get("docs_scored").asLong());
+        Assert.assertTrue(stats.get("scoring").get("segments").get("count").asLong() > 0);
+        long shardDocs = 0;
+        for (JsonNode shard : stats.get("indices").get("test_knn_stats")) {
+            shardDocs += shard.get("docs_scored").asLong();
+        }
+        Assert.assertEquals(2, shardDocs);
+        Assert.assertTrue(stats.get("caches").has("query_vector_cache"));
+
+        // the script reports each segment once it scored its last doc
+        final long segments = stats.get("scoring").get("segments").get("count").asLong();
+        body = "{" +
+                "  \"query\": {" +
+                "    \"function_score\": {" +
+                "      \"boost_mode\": \"replace\"," +
+                "      \"script_score\": {" +
+                "        \"script\": {" +
+                "          \"source\": \"binary_vector_score\"," +
+                "          \"lang\": \"knn\"," +
+                "          \"params\": {" +
+                "            \"cosine\": true," +
+                "            \"field\": \"embedding_vector\"," +
+                "            \"vector\": [0.1, 0.2, 0.3]" +
+                "          }" +
+                "        }" +
+                "      }" +
+                "    }" +
+                "  }" +
+                "}";
+        esClient.performRequest("POST", "/test_knn_stats/_search", Collections.emptyMap(), new NStringEntity(body, ContentType.APPLICATION_JSON));
+        final JsonNode scriptStats = mapper.readTree(EntityUtils.toString(esClient.performRequest("GET", "/_knn/stats").getEntity()));
+        Assert.assertEquals(before + 4, scriptStats.get("scoring").get("docs_scored").asLong());
+        Assert.assertEquals(segments + 2, scriptStats.get("scoring").get("segments").get("count").asLong());
+    }
+
+    @Test
+    public void testKnnBatch() throws Exception {
+        final Map<String, String> params = new HashMap<>();
+        params.put("refresh", "true");
+        final TestObject[] objs = {new TestObject(1, new float[] {0.0f, 0.5f, 1.0f}),
+                new TestObject(2, new float[] {0.2f, 0.6f, 0.99f})};
+        for (TestObject t : objs) {
+            esClient.performRequest("PUT", "/test_knn_batch/type/" + t.jobId, params,
+                    new StringEntity(mapper.writeValueAsString(t), ContentType.APPLICATION_JSON));
+        }
+
+        String body = "{" +
+                "  \"size\": 0," +
+                "  \"aggs\": {" +
+                "    \"similar\": {" +
+                "      \"knn_batch\": {" +
+                "        \"field\": \"embedding_vector\"," +
+                "        \"vectors\": [[0.1, 0.2, 0.3], [0.3, 0.2, 0.1]]," +
+                "        \"metric\": \"cosine\"," +
+                "        \"k\": 1" +
+                "      }" +
+                "    }" +
+                "  }" +
+                "}";
+        final Response res = esClient.performRequest("POST", "/test_knn_batch/_search", Collections.emptyMap(), new NStringEntity(body, ContentType.APPLICATION_JSON));
+        Assert.assertEquals(200, res.getStatusLine().getStatusCode());
+        final ArrayNode results = (ArrayNode)mapper.readTree(EntityUtils.toString(res.getEntity()))
+                .get("aggregations").get("similar").get("results");
+        Assert.assertEquals(2, results.size());
+        Assert.assertEquals(1, results.get(0).get("hits").size());
+        // doc 2 is the closest to both vectors
+        Assert.assertEquals("2", results.get(0).get("hits").get(0).get("_id").asText());
+        Assert.assertEquals(0.9941734, results.get(0).get("hits").get(0).get("_score").asDouble(), 1e-5);
+        Assert.assertEquals("2", results.get(1).get("hits").get(0).get("_id").asText());
+        Assert.assertEquals(0.6347240, results.get(1).get("hits").get(0).get("_score").asDouble(), 1e-5);
+    }
+
+    @Test
+    public void testHammingVectors() throws Exception {
+        final Map<String, String> params = new HashMap<>();
+        params.put("refresh", "true");
+        // doc 1 with the bits header, doc 2 as the bare words
+        final String withHeader = Util.convertBitsToBase64(new long[] {0b1011L});
+        final byte[] bytes = Base64.getDecoder().decode(Util.convertBitsToBase64(new long[] {0b0100L}));
+        final String withoutHeader = Base64.getEncoder().encodeToString(Arrays.copyOfRange(bytes, Util.HEADER_BYTES, bytes.length));
+        final String[] encoded = {withHeader, withoutHeader};
+        for (int i = 0; i < encoded.length; i++) {
+            final String json = "{\"job_id\": " + (i + 1) + ", \"embedding_vector\": \"" + encoded[i] + "\"}";
+            esClient.performRequest("PUT", "/test_hamming/type/" + (i + 1), params, new StringEntity(json, ContentType.APPLICATION_JSON));
+        }
+
+        String body = "{" +
+                "  \"query\": {" +
+                "    \"function_score\": {" +
+                "      \"boost_mode\": \"replace\"," +
+                "      \"script_score\": {" +
+                "        \"script\": {" +
+                "          \"source\": \"binary_vector_score\"," +
+                "          \"lang\": \"knn\"," +
+                "          \"params\": {" +
+                "            \"field\": \"embedding_vector\"," +
+                "            \"metric\": \"hamming\"," +
+                "            \"encoded_vector\": \"" + Util.convertBitsToBase64(new long[] {0b1111L}) + "\"" +
+                "          }" +
+                "        }" +
+                "      }" +
+                "    }" +
+                "  }" +
+                "}";
+        final Response res = esClient.performRequest("POST", "/test_hamming/_search", Collections.emptyMap(), new NStringEntity(body, ContentType.APPLICATION_JSON));
+        final ArrayNode hitsJson = (ArrayNode)mapper.readTree(EntityUtils.toString(res.getEntity())).get("hits").get("hits");
+        Assert.assertEquals(2, hitsJson.size());
+        // 1 of the 64 bits differs from 0b1011, 3 from 0b0100
+        Assert.assertEquals("1", hitsJson.get(0).get("_id").asText());
+        Assert.assertEquals(63, hitsJson.get(0).get("_score").asDouble(), 0);
+        Assert.assertEquals("2", hitsJson.get(1).get("_id").asText());
+        Assert.assertEquals(61, hitsJson.get(1).get("_score").asDouble(), 0);
+    }
+
     @AfterClass
     public static void shutdown() {
         try {
@@ -0,0 +1,185 @@
+package com.liorkn.elasticsearch;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Base64;
+
+public class UtilTest {
+
+    @Test
+    public void testBase64RoundTrip() {
+        final float[] vector = {0.1f, -0.2f, 0.3f};
+        Assert.assertArrayEquals(vector, Util.convertBase64ToArray(Util.convertArrayToBase64(vector)), 0);
+    }
+
+    @Test
+    public void testBase64WithNormRoundTrip() {
+        final float[] vector = {3.0f, 4.0f};
+        final String encoded = Util.convertArrayToBase64WithNorm(vector);
+        final byte[] bytes = Base64.getDecoder().decode(encoded);
+
+        Assert.assertTrue(Util.hasHeader(bytes, 0, bytes.length));
+        Assert.assertEquals(Util.FORMAT_FLOAT_WITH_NORM, bytes[3]);
+        Assert.assertArrayEquals(vector, Util.convertBase64ToArray(encoded), 0);
+    }
+
+    @Test
+    public void testBase64Int8RoundTrip() {
+        final float[] vector = {0.1f, -0.5f, 0.9f, 0.3f};
+        final float[] decoded = Util.convertBase64ToArray(Util.convertArrayToBase64Int8(vector));
+
+        Assert.assertEquals(vector.length, decoded.length);
+        final float maxError = (0.9f + 0.5f) / 508;
+        for (int i = 0; i < vector.length; i++) {
+            Assert.assertEquals(vector[i], decoded[i], maxError + 1e-6f);
+        }
+    }
+
+    @Test
+    public void testBase64LERoundTrip() {
+        final float[] vector = {0.1f, -0.2f, 3.5f};
+        final String encoded = Util.convertArrayToBase64LE(vector);
+        final byte[] bytes = Base64.getDecoder().decode(encoded);
+
+        Assert.assertEquals(Util.FORMAT_FLOAT_LE, bytes[3]);
+        Assert.assertArrayEquals(vector, Util.convertBase64ToArray(encoded), 0);
+    }
+
+    @Test
+    public void testBase64Float16RoundTrip() {
+        final float[] vector = {0.1f, -0.5f, 0.9f, 3.25f, 1e-5f};
+        final String encoded = Util.convertArrayToBase64Float16(vector);
+        final byte[] bytes = Base64.getDecoder().decode(encoded);
+        final float[] decoded = Util.convertBase64ToArray(encoded);
+
+        Assert.assertEquals(Util.FORMAT_FLOAT16, bytes[3]);
+        Assert.assertEquals(Util.HEADER_BYTES + Float.BYTES + Short.BYTES * vector.length, bytes.length);
+        Assert.assertEquals(vector.length, decoded.length);
+        for (int i = 0; i < vector.length; i++) {
+            // 11 significant bits, subnormals below 2^-14 are off by at most 2^-25
+            Assert.assertEquals(vector[i], decoded[i], Math.max(Math.abs(vector[i]) / 2048, 0x1p-25f));
+        }
+    }
+
+    @Test
+    public void testFloat16Conversion() {
+        Assert.assertEquals(0x3C00, Util.floatToFloat16(1f));
+        Assert.assertEquals((short) 0xC000, Util.floatToFloat16(-2f));
+        Assert.assertEquals(0x7BFF, Util.floatToFloat16(Util.FLOAT16_MAX));
+        Assert.assertEquals(0x7C00, Util.floatToFloat16(65520f)); // rounds past the largest value
+        Assert.assertEquals(0x0001, Util.floatToFloat16(0x1p-24f)); // the smallest subnormal
+        Assert.assertEquals(0x0000, Util.floatToFloat16(0x1p-25f)); // a tie, to even
+        Assert.assertEquals(0x0400, Util.floatToFloat16(0x1p-14f)); // the smallest normal
+        Assert.assertEquals(0x3C00, Util.floatToFloat16(1f + 0x1p-11f)); // a tie, to even
+        Assert.assertEquals(0x3C01, Util.floatToFloat16(1f + 0x1p-11f + 0x1p-20f));
+        Assert.assertTrue(Float.isNaN(Util.float16ToFloat(Util.floatToFloat16(Float.NaN))));
+        for (int bits = 0; bits < 1 << 16; bits++) {
+            final float value = Util.float16ToFloat((short) bits);
+            if (Float.isNaN(value) == false) {
+                Assert.assertEquals(bits, Util.floatToFloat16(value) & 0xFFFF);
+            }
+        }
+    }
+
+    @Test
+    public void testBase64BFloat16RoundTrip() {
+        final float[] vector = {0.1f, -0.5f, 1e30f, -3.25f};
+        final String encoded = Util.convertArrayToBase64BFloat16(vector);
+        final float[] decoded = Util.convertBase64ToArray(encoded);
+
+        Assert.assertEquals(Util.FORMAT_BFLOAT16, Base64.getDecoder().decode(encoded)[3]);
+        for (int i = 0; i < vector.length; i++) {
+            Assert.assertEquals(vector[i], decoded[i], Math.abs(vector[i]) / 256);
+        }
+        Assert.assertEquals(0x3F80, Util.floatToBFloat16(1f));
+        Assert.assertEquals(1f, Util.bfloat16ToFloat(Util.floatToBFloat16(1f + 0x1p-8f)), 0f); // a tie, to even
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testFloat16RejectsOutOfRangeValues() {
+        Util.convertArrayToBase64Float16(new float[] {1f, 70000f});
+    }
+
+    @Test
+    public void testBase64SparseRoundTrip() {
+        final int[] indices = {3, 130, 131, 40000};
+        final float[] values = {0.5f, -1.25f, 2f, 0.75f};
+        final String encoded = Util.convertSparseToBase64(indices, values);
+        final Util.SparseVector decoded = Util.convertBase64ToSparse(encoded);
+
+        Assert.assertTrue(Util.isSparse(encoded));
+        Assert.assertArrayEquals(indices, decoded.indices());
+        Assert.assertArrayEquals(values, decoded.values(), 0);
+        // 1 + 1 + 1 + 3 bytes of index deltas: 3, 127, 1 and 39869
+        Assert.assertEquals(Util.HEADER_BYTES + Util.SPARSE_PREFIX_BYTES + 6 + Float.BYTES * 4,
+                Base64.getDecoder().decode(encoded).length);
+
+        final float[] dense = Util.convertBase64ToArray(encoded);
+        Assert.assertEquals(40001, dense.length);
+        Assert.assertEquals(-1.25f, dense[130], 0);
+        Assert.assertEquals(encoded, Util.convertArrayToBase64Sparse(dense));
+        Assert.assertFalse(Util.isSparse(Util.convertArrayToBase64WithNorm(values)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSparseRejectsUnsortedIndices() {
+        Util.convertSparseToBase64(new int[] {5, 2}, new float[] {1f, 1f});
+    }
+
+    @Test
+    public void testBitsRoundTrip() {
+        final long[] words = {0x8000000000000001L, -1L};
+        final String encoded = Util.convertBitsToBase64(words);
+        final byte[] bytes = Base64.getDecoder().decode(encoded);
+
+        Assert.assertEquals(Util.FORMAT_BITS, bytes[3]);
+        Assert.assertEquals(Util.HEADER_BYTES + Long.BYTES * words.length, bytes.length);
+        Assert.assertArrayEquals(words, Util.convertBase64ToBits(encoded));
+        // the same words without the header
+        final String raw = Base64.getEncoder().encodeToString(Arrays.copyOfRange(bytes, Util.HEADER_BYTES, bytes.length));
+        Assert.assertArrayEquals(words, Util.convertBase64ToBits(raw));
+    }
+
+    @Test
+    public void testToBits() {
+        final float[] vector = new float[70];
+        vector[0] = 0.5f;
+        vector[1] = -0.5f;
+        vector[63] = 1f;
+        vector[65] = 2f;
+        Assert.assertArrayEquals(new long[] {0x8000000000000001L, 0x2L}, Util.toBits(vector));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBitsRejectPartialWords() {
+        Util.convertBase64ToBits(Base64.getEncoder().encodeToString(new byte[12]));
+    }
+
+    @Test
+    public void testHeaderlessBitsStartingWithTheMagic() {
+        // the header is told from the length, 16 bytes are two words whatever their first bytes
+        final long[] bitsHeader = {0x7FC0560300000000L, -1L};
+        Assert.assertArrayEquals(bitsHeader, Util.convertBase64ToBits(raw(bitsHeader)));
+        final long[] otherHeader = {0x7FC0560100000000L, 1L};
+        Assert.assertArrayEquals(otherHeader, Util.convertBase64ToBits(raw(otherHeader)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBitsRejectOtherFormats() {
+        // the header and the norm make it 4 past whole words
+        Util.convertBase64ToBits(Util.convertArrayToBase64WithNorm(new float[] {1f, 2f, 3f}));
+    }
+
+    @Test
+    public void testPlainVectorHasNoHeader() {
+        final byte[] bytes = Base64.getDecoder().decode(Util.convertArrayToBase64(new float[] {0.0f, 0.5f, 1.0f}));
+        Assert.assertFalse(Util.hasHeader(bytes, 0, bytes.length));
+    }
+
+    private static String raw(long[] words) {
+        final byte[] bytes = Base64.getDecoder().decode(Util.convertBitsToBase64(words));
+        return Base64.getEncoder().encodeToString(Arrays.copyOfRange(bytes, Util.HEADER_BYTES, bytes.length));
+    }
+}
@@ -0,0 +1,92 @@
+package com.liorkn.elasticsearch.cache;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.elasticsearch.common.settings.Settings;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+
+public class KnnResultCacheTest {
+
+    private static final Query QUERY = new MatchAllDocsQuery();
+
+    @Test
+    public void testNewDeletesGetANewKey() throws IOException {
+        try (Directory dir = new RAMDirectory();
+             IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig())) {
+            addDocs(writer);
+            final KnnResultCache cache = new KnnResultCache(Settings.EMPTY);
+            try (DirectoryReader reader = DirectoryReader.open(writer)) {
+                final LeafReader leaf = reader.leaves().get(0).reader();
+                Assert.assertEquals(1, cache.get(leaf, QUERY, 0, () -> topDocs(1)).doc(0));
+                Assert.assertEquals(1, cache.get(leaf, QUERY, 0, () -> topDocs(2)).doc(0));
+                Assert.assertEquals(1, cache.misses());
+
+                writer.deleteDocuments(new Term("id", "1"));
+                try (DirectoryReader deleted = DirectoryReader.openIfChanged(reader, writer)) {
+                    Assert.assertEquals(2, cache.get(deleted.leaves().get(0).reader(), QUERY, 0, () -> topDocs(2)).doc(0));
+                    Assert.assertEquals(2, cache.misses());
+                    Assert.assertEquals(2, cache.count());
+                }
+                // the reader without the deletes is still served
+                Assert.assertEquals(1, cache.get(leaf, QUERY, 0, () -> topDocs(3)).doc(0));
+            }
+        }
+    }
+
+    @Test
+    public void testEntriesDontKeepTheirReaderReachable() throws Exception {
+        try (Directory dir = new RAMDirectory();
+             IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig())) {
+            addDocs(writer);
+            final KnnResultCache cache = new KnnResultCache(Settings.EMPTY);
+            // read from the commits, the writer's pool would keep the readers it opened
+            DirectoryReader reader = DirectoryReader.open(dir);
+            cache.get(reader.leaves().get(0).reader(), QUERY, 0, () -> topDocs(1));
+            final WeakReference<LeafReader> former = new WeakReference<>(reader.leaves().get(0).reader());
+
+            // the new reader shares the segment core, the cached entry stays
+            writer.deleteDocuments(new Term("id", "1"));
+            writer.commit();
+            final DirectoryReader deleted = DirectoryReader.openIfChanged(reader);
+            reader.close();
+            reader = null;
+            try {
+                for (int i = 0; i < 100 && former.get() != null; i++) {
+                    System.gc();
+                    Thread.sleep(10);
+                }
+                Assert.assertNull(former.get());
+                Assert.assertEquals(1, cache.count());
+            } finally {
+                deleted.close();
+            }
+        }
+    }
+
+    private static void addDocs(IndexWriter writer) throws IOException {
+        for (int i = 0; i < 3; i++) {
+            final Document doc = new Document();
+            doc.add(new StringField("id", Integer.toString(i), Field.Store.NO));
+            writer.addDocument(doc);
+        }
+        writer.commit();
+    }
+
+    private static SegmentTopDocs topDocs(int doc) {
+        return new SegmentTopDocs(new int[] {doc}, new float[] {1f});
+    }
+}
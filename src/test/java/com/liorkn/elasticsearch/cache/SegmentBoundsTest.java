@@ -0,0 +1,76 @@
+package com.liorkn.elasticsearch.cache;
+
+import com.liorkn.elasticsearch.mapper.DenseVectorFieldMapper;
+import com.liorkn.elasticsearch.script.Metric;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.util.BytesRef;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Random;
+
+public class SegmentBoundsTest {
+
+    @Test
+    public void testBoundsScoresOfEveryDoc() {
+        final Random random = new Random(11);
+        final float[][] docs = new float[200][33];
+        for (float[] doc : docs) {
+            for (int i = 0; i < doc.length; i++) {
+                doc[i] = random.nextFloat() * 2 - 1;
+            }
+        }
+        final SegmentBounds bounds = SegmentBounds.load(denseVectors(docs), docs.length, 33, true);
+        Assert.assertEquals(docs.length, bounds.count());
+        for (int q = 0; q < 20; q++) {
+            final float[] query = new float[33];
+            for (int i = 0; i < query.length; i++) {
+                query[i] = random.nextFloat() * 4 - 2;
+            }
+            double bestDot = Double.NEGATIVE_INFINITY, bestCosine = Double.NEGATIVE_INFINITY, bestL2 = Double.NEGATIVE_INFINITY;
+            for (float[] doc : docs) {
+                float dot = 0, distance = 0, docNorm = 0, queryNorm = 0;
+                for (int i = 0; i < doc.length; i++) {
+                    dot += doc[i] * query[i];
+                    distance += (doc[i] - query[i]) * (doc[i] - query[i]);
+                    docNorm += doc[i] * doc[i];
+                    queryNorm += query[i] * query[i];
+                }
+                bestDot = Math.max(bestDot, dot);
+                bestCosine = Math.max(bestCosine, dot / (Math.sqrt(docNorm) * Math.sqrt(queryNorm)));
+                bestL2 = Math.max(bestL2, 1 / (1 + distance));
+            }
+            Assert.assertTrue(bounds.maxScore(query, Metric.DOT_PRODUCT) >= bestDot);
+            Assert.assertTrue(bounds.maxScore(query, Metric.COSINE) >= bestCosine);
+            Assert.assertTrue(bounds.maxScore(query, Metric.L2) >= bestL2);
+        }
+        Assert.assertEquals(Double.POSITIVE_INFINITY, bounds.maxScore(new float[33], Metric.HAMMING), 0);
+    }
+
+    @Test
+    public void testBoundsExcludeFarQueries() {
+        // every doc is in [0, 1] on both dims
+        final float[][] docs = {{0f, 0.5f}, {1f, 0f}, {0.5f, 1f}};
+        final SegmentBounds bounds = SegmentBounds.load(denseVectors(docs), docs.length, 2, true);
+        final float[] query = {-3f, -4f};
+        Assert.assertTrue(bounds.maxScore(query, Metric.DOT_PRODUCT) <= 1e-5);
+        Assert.assertTrue(bounds.maxScore(query, Metric.COSINE) <= 1e-5);
+        // the closest corner of the box is the origin, at a squared distance of 25
+        Assert.assertEquals(1 / 26.0, bounds.maxScore(query, Metric.L2), 1e-5);
+    }
+
+    @Test
+    public void testNoVectors() {
+        final SegmentBounds bounds = SegmentBounds.load(denseVectors(new float[0][]), 0, 2, true);
+        Assert.assertEquals(Double.NEGATIVE_INFINITY, bounds.maxScore(new float[] {1f, 1f}, Metric.COSINE), 0);
+    }
+
+    private static BinaryDocValues denseVectors(float[][] docs) {
+        return new BinaryDocValues() {
+            @Override
+            public BytesRef get(int docID) {
+                return new BytesRef(DenseVectorFieldMapper.encode(docs[docID]));
+            }
+        };
+    }
+}
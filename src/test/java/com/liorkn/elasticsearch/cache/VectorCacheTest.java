@@ -0,0 +1,175 @@
+package com.liorkn.elasticsearch.cache;
+
+import com.liorkn.elasticsearch.Util;
+import com.liorkn.elasticsearch.script.VectorScoreScript;
+import org.apache.lucene.document.BinaryDocValuesField;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.store.ByteArrayDataOutput;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.common.settings.Settings;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+public class VectorCacheTest {
+
+    // a tail past whole vectors of 8 and 16 floats, and both loops of the vector API kernels
+    private static final int DIMS = 59;
+
+    @Test
+    public void testCachedScoresMatchDocValuesScores() throws IOException {
+        final Random random = new Random(7);
+        try (Directory dir = new RAMDirectory()) {
+            try (IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig())) {
+                for (int d = 0; d < 60; d++) {
+                    final float[] vector = randomVector(random);
+                    switch (d % 3) {
+                        case 0: writer.addDocument(vectorDoc(Util.convertArrayToBase64WithNorm(vector))); break;
+                        case 1: writer.addDocument(vectorDoc(Util.convertArrayToBase64(vector))); break;
+                        default: writer.addDocument(new Document()); // no vector
+                    }
+                }
+            }
+            try (DirectoryReader reader = DirectoryReader.open(dir)) {
+                final LeafReader leaf = reader.leaves().get(0).reader();
+                final VectorCache cache = new VectorCache(Settings.EMPTY);
+                final float[] query = randomVector(random);
+                for (String metric : new String[] {"cosine", "dot_product"}) {
+                    final VectorScoreScript cached = script(metric, query);
+                    cached.setBinaryEmbeddingReader(leaf.getBinaryDocValues("vector"));
+                    cached.setSegmentVectors(cache.get(leaf, "vector", DIMS, false));
+                    final VectorScoreScript uncached = script(metric, query);
+                    uncached.setBinaryEmbeddingReader(leaf.getBinaryDocValues("vector"));
+                    for (int docId = 0; docId < leaf.maxDoc(); docId++) {
+                        cached.setDocument(docId);
+                        uncached.setDocument(docId);
+                        Assert.assertEquals(metric + " of doc " + docId, uncached.runAsDouble(), cached.runAsDouble(), 0);
+                    }
+                }
+                Assert.assertEquals(1, cache.count());
+                Assert.assertEquals(1, cache.misses());
+                Assert.assertEquals(SegmentVectors.estimateBytes(leaf.maxDoc(), DIMS), cache.directBytesUsed());
+            }
+        }
+    }
+
+    @Test
+    public void testSegmentsThatCantBeCachedAllocateNothing() throws IOException {
+        try (Directory dir = new RAMDirectory()) {
+            try (IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig())) {
+                writer.addDocument(vectorDoc(Util.convertArrayToBase64WithNorm(new float[DIMS])));
+                // the second doc is int8, the segment is turned down before anything is allocated
+                writer.addDocument(vectorDoc(Util.convertArrayToBase64Int8(new float[DIMS])));
+            }
+            try (DirectoryReader reader = DirectoryReader.open(dir)) {
+                final VectorCache cache = new VectorCache(Settings.EMPTY);
+                Assert.assertNull(cache.get(reader.leaves().get(0).reader(), "vector", DIMS, false));
+                Assert.assertEquals(0, cache.directBytesUsed());
+                // vectors shorter than the query
+                Assert.assertNull(cache.get(reader.leaves().get(0).reader(), "vector", DIMS + 1, false));
+                Assert.assertEquals(0, cache.directBytesUsed());
+            }
+        }
+    }
+
+    @Test
+    public void testEvictedVectorsCountUntilCollected() throws Exception {
+        final Random random = new Random(3);
+        try (Directory dir = new RAMDirectory()) {
+            // two segments of 100 docs
+            try (IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig().setMergePolicy(NoMergePolicy.INSTANCE))) {
+                for (int segment = 0; segment < 2; segment++) {
+                    for (int d = 0; d < 100; d++) {
+                        writer.addDocument(vectorDoc(Util.convertArrayToBase64WithNorm(randomVector(random))));
+                    }
+                    writer.commit();
+                }
+            }
+            try (DirectoryReader reader = DirectoryReader.open(dir)) {
+                final List<LeafReaderContext> leaves = reader.leaves();
+                Assert.assertEquals(2, leaves.size());
+                final long segmentBytes = SegmentVectors.estimateBytes(100, DIMS);
+                // room for one segment and a half
+                final VectorCache cache = new VectorCache(Settings.builder()
+                        .put(VectorCache.SIZE.getKey(), (segmentBytes * 3 / 2) + "b").build());
+
+                Assert.assertNotNull(cache.get(leaves.get(0).reader(), "vector", DIMS, false));
+                Assert.assertEquals(segmentBytes, cache.directBytesUsed());
+
+                // the first segment is evicted, but its memory is only freed once collected
+                Assert.assertNull(cache.get(leaves.get(1).reader(), "vector", DIMS, false));
+                Assert.assertEquals(1, cache.evictions());
+                Assert.assertEquals(0, cache.count());
+                Assert.assertEquals(0, cache.ramBytesUsed());
+                Assert.assertEquals(segmentBytes, cache.directBytesUsed());
+
+                SegmentVectors vectors = null;
+                for (int i = 0; i < 100 && vectors == null; i++) {
+                    System.gc();
+                    Thread.sleep(10);
+                    vectors = cache.get(leaves.get(1).reader(), "vector", DIMS, false);
+                }
+                Assert.assertNotNull(vectors);
+                Assert.assertEquals(1, cache.count());
+                Assert.assertEquals(1, cache.evictions());
+                Assert.assertEquals(segmentBytes, cache.directBytesUsed());
+            }
+        }
+    }
+
+    private static VectorScoreScript script(String metric, float[] query) {
+        final Map<String, Object> params = new HashMap<>();
+        params.put("field", "vector");
+        params.put("metric", metric);
+        final ArrayList<Double> vector = new ArrayList<>();
+        for (float v : query) {
+            vector.add((double) v);
+        }
+        params.put("vector", vector);
+        return new VectorScoreScript(params);
+    }
+
+    private static float[] randomVector(Random random) {
+        final float[] vector = new float[DIMS];
+        for (int i = 0; i < DIMS; i++) {
+            vector[i] = random.nextFloat() * 2 - 1;
+        }
+        return vector;
+    }
+
+    /**
+     * @return a document holding the base64 vector like a binary field with doc values: the number of values then
+     * the length of the value, as vints
+     */
+    private static Document vectorDoc(String encoded) {
+        final byte[] bytes = Base64.getDecoder().decode(encoded);
+        final byte[] buffer = new byte[bytes.length + 10];
+        final ByteArrayDataOutput out = new ByteArrayDataOutput(buffer);
+        try {
+            out.writeVInt(1);
+            out.writeVInt(bytes.length);
+            out.writeBytes(bytes, bytes.length);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        final Document doc = new Document();
+        doc.add(new BinaryDocValuesField("vector", new BytesRef(Arrays.copyOf(buffer, out.getPosition()))));
+        return doc;
+    }
+}
@@ -0,0 +1,45 @@
+package com.liorkn.elasticsearch.ivf;
+
+import com.liorkn.elasticsearch.script.Metric;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Random;
+
+public class KMeansTest {
+
+    @Test
+    public void testSeparatesClusters() {
+        final Random random = new Random(42);
+        final float[][] sample = new float[200][];
+        for (int i = 0; i < sample.length; i++) {
+            // half around (1, 0), half around (0, 1)
+            final float noise = (random.nextFloat() - 0.5f) * 0.1f;
+            sample[i] = i % 2 == 0 ? new float[] {1f, noise} : new float[] {noise, 1f};
+        }
+
+        final Centroids centroids = KMeans.train(sample, 2, 10, Metric.COSINE, random);
+
+        Assert.assertEquals(2, centroids.size());
+        Assert.assertEquals(2, centroids.dims());
+        final int x = centroids.nearest(new float[] {1f, 0f});
+        final int y = centroids.nearest(new float[] {0f, 1f});
+        Assert.assertNotEquals(x, y);
+        Assert.assertEquals(1f, centroids.get(x)[0], 0.01f);
+        Assert.assertArrayEquals(new int[] {y, x}, centroids.nearest(new float[] {0.2f, 3f}, 5));
+    }
+
+    @Test
+    public void testL2AssignsToTheClosestCentroid() {
+        final float[][] centroids = {{0f, 0f}, {10f, 10f}};
+        // the largest dot product is with the far centroid
+        Assert.assertEquals(1, new Centroids(Metric.DOT_PRODUCT, centroids).nearest(new float[] {1f, 1f}));
+        Assert.assertEquals(0, new Centroids(Metric.L2, centroids).nearest(new float[] {1f, 1f}));
+        Assert.assertArrayEquals(new int[] {1, 0}, new Centroids(Metric.L2, centroids).nearest(new float[] {6f, 6f}, 2));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTooFewVectors() {
+        KMeans.train(new float[][] {{1f, 0f}}, 2, 10, Metric.DOT_PRODUCT, new Random(0));
+    }
+}
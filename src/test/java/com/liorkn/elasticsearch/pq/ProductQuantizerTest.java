@@ -0,0 +1,67 @@
+package com.liorkn.elasticsearch.pq;
+
+import com.liorkn.elasticsearch.script.Metric;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Random;
+
+public class ProductQuantizerTest {
+
+    @Test
+    public void testLookupTableScoresReconstructedVectors() {
+        final Random random = new Random(42);
+        final float[][] sample = new float[300][8];
+        for (float[] vector : sample) {
+            for (int i = 0; i < vector.length; i++) {
+                vector[i] = random.nextFloat() * 2 - 1;
+            }
+        }
+        final ProductQuantizer pq = ProductQuantizer.train(sample, 4, 16, 10, random);
+        Assert.assertEquals(4, pq.m());
+        Assert.assertEquals(8, pq.dims());
+        Assert.assertEquals(16, pq.centroids());
+
+        final float[] query = sample[0];
+        final ProductQuantizer.LookupTable dot = pq.lookupTable(query, Metric.DOT_PRODUCT);
+        final ProductQuantizer.LookupTable cosine = pq.lookupTable(query, Metric.COSINE);
+        final ProductQuantizer.LookupTable l2 = pq.lookupTable(query, Metric.L2);
+        for (int i = 1; i < 20; i++) {
+            final byte[] code = pq.encode(sample[i]);
+            final float[] reconstructed = reconstruct(pq, code);
+            double expectedDot = 0;
+            double norm = 0;
+            double queryNorm = 0;
+            double squaredDistance = 0;
+            for (int d = 0; d < query.length; d++) {
+                expectedDot += query[d] * reconstructed[d];
+                squaredDistance += (query[d] - reconstructed[d]) * (query[d] - reconstructed[d]);
+                norm += reconstructed[d] * reconstructed[d];
+                queryNorm += query[d] * query[d];
+            }
+            Assert.assertEquals(expectedDot, dot.score(code, 0), 1e-5);
+            Assert.assertEquals(expectedDot / Math.sqrt(norm * queryNorm), cosine.score(code, 0), 1e-5);
+            Assert.assertEquals(1 / (1 + squaredDistance), l2.score(code, 0), 1e-5);
+        }
+    }
+
+    @Test
+    public void testEncodesCentroidsToThemselves() {
+        final ProductQuantizer pq = new ProductQuantizer(new float[][] {{0f, 0f, 1f, 1f}, {5f, 5f, -1f, -1f}}, 2);
+        Assert.assertArrayEquals(new byte[] {1, 0}, pq.encode(new float[] {1f, 1f, 5f, 5f}));
+        Assert.assertArrayEquals(new byte[] {0, 1}, pq.encode(new float[] {0.1f, 0f, -1f, -0.9f}));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMMustDivideDims() {
+        ProductQuantizer.train(new float[][] {{1f, 0f, 0f}, {0f, 1f, 0f}}, 2, 2, 10, new Random(0));
+    }
+
+    private static float[] reconstruct(ProductQuantizer pq, byte[] code) {
+        final float[] vector = new float[pq.dims()];
+        for (int j = 0; j < pq.m(); j++) {
+            System.arraycopy(pq.codebook(j), (code[j] & 0xFF) * pq.subDims(), vector, j * pq.subDims(), pq.subDims());
+        }
+        return vector;
+    }
+}
@@ -0,0 +1,97 @@
+package com.liorkn.elasticsearch.script;
+
+import com.liorkn.elasticsearch.Util;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Base64;
+import java.util.Random;
+
+public class VectorKernelsTest {
+
+    @Test
+    public void testSquaredDistance() {
+        final Random random = new Random(7);
+        final float[] query = new float[77];
+        final float[] doc = new float[query.length];
+        double expected = 0;
+        for (int i = 0; i < query.length; i++) {
+            query[i] = random.nextFloat();
+            doc[i] = random.nextFloat();
+            expected += (query[i] - doc[i]) * (query[i] - doc[i]);
+        }
+        final byte[] bigEndian = encode(doc, ByteOrder.BIG_ENDIAN);
+        final byte[] littleEndian = encode(doc, ByteOrder.LITTLE_ENDIAN);
+        final float distance = VectorKernels.squaredDistance(bigEndian, 0, query, Float.POSITIVE_INFINITY);
+        Assert.assertEquals(expected, distance, 1e-4);
+        Assert.assertEquals(distance, VectorKernels.squaredDistanceLE(littleEndian, 0, query, Float.POSITIVE_INFINITY), 0f);
+        // a limit the distance doesn't exceed gives the exact distance
+        Assert.assertEquals(distance, VectorKernels.squaredDistance(bigEndian, 0, query, distance), 0f);
+    }
+
+    @Test
+    public void testSquaredDistanceGivesUpPastTheLimit() {
+        final float[] query = new float[128];
+        final float[] doc = new float[query.length];
+        doc[0] = 10f; // the first block is already far
+        doc[100] = 1f;
+        final byte[] bytes = encode(doc, ByteOrder.BIG_ENDIAN);
+        Assert.assertEquals(101f, VectorKernels.squaredDistance(bytes, 0, query, Float.POSITIVE_INFINITY), 0f);
+        // stopped after the first block, without the last dims
+        Assert.assertEquals(100f, VectorKernels.squaredDistance(bytes, 0, query, 50f), 0f);
+    }
+
+    @Test
+    public void testHalfKernelsMatchTheWidenedFloats() {
+        final Random random = new Random(11);
+        final float[] query = new float[37];
+        final float[] doc = new float[query.length];
+        for (int i = 0; i < query.length; i++) {
+            query[i] = random.nextFloat() - 0.5f;
+            doc[i] = random.nextFloat() - 0.5f;
+        }
+        for (boolean bfloat16 : new boolean[] {false, true}) {
+            final ByteBuffer half = ByteBuffer.allocate(doc.length * Short.BYTES);
+            final float[] widened = new float[doc.length];
+            for (int i = 0; i < doc.length; i++) {
+                final short value = bfloat16 ? Util.floatToBFloat16(doc[i]) : Util.floatToFloat16(doc[i]);
+                half.putShort(value);
+                widened[i] = bfloat16 ? Util.bfloat16ToFloat(value) : Util.float16ToFloat(value);
+            }
+            final byte[] floats = encode(widened, ByteOrder.BIG_ENDIAN);
+            // the float32 kernels on the JDK vector API sum in another order
+            final float delta = SimdKernels.ENABLED ? 1e-6f : 0f;
+            Assert.assertEquals(VectorKernels.dot(floats, 0, query), VectorKernels.dotHalf(half.array(), 0, query, bfloat16), delta);
+            Assert.assertEquals(VectorKernels.squaredDistance(floats, 0, query, Float.POSITIVE_INFINITY),
+                    VectorKernels.squaredDistanceHalf(half.array(), 0, query, bfloat16, Float.POSITIVE_INFINITY), delta);
+        }
+    }
+
+    @Test
+    public void testSparseDot() {
+        final byte[] doc = Base64.getDecoder().decode(Util.convertSparseToBase64(new int[] {1, 200, 70000}, new float[] {2f, 3f, 4f}));
+        final int entries = Util.HEADER_BYTES + Util.SPARSE_PREFIX_BYTES;
+        Assert.assertEquals(3, VectorKernels.readInt(doc, Util.HEADER_BYTES + Float.BYTES));
+
+        // only indices 200 and 70000 are shared
+        Assert.assertEquals(3f * 0.5f + 4f * 2f,
+                VectorKernels.sparseDot(doc, entries, 3, new int[] {0, 200, 500, 70000, 80000}, new float[] {9f, 0.5f, 9f, 2f, 9f}), 0f);
+        Assert.assertEquals(0f, VectorKernels.sparseDot(doc, entries, 3, new int[0], new float[0]), 0f);
+
+        final float[] dense = new float[201];
+        dense[1] = 1f;
+        dense[200] = 2f;
+        // 70000 is past the end of the query
+        Assert.assertEquals(2f + 6f, VectorKernels.sparseDotDense(doc, entries, 3, dense), 0f);
+    }
+
+    private static byte[] encode(float[] vector, ByteOrder order) {
+        final ByteBuffer buffer = ByteBuffer.allocate(vector.length * Float.BYTES).order(order);
+        for (float v : vector) {
+            buffer.putFloat(v);
+        }
+        return buffer.array();
+    }
+}
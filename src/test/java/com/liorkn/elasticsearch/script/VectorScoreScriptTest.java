@@ -0,0 +1,179 @@
+package com.liorkn.elasticsearch.script;
+
+import com.liorkn.elasticsearch.Util;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.store.ByteArrayDataOutput;
+import org.apache.lucene.util.BytesRef;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+public class VectorScoreScriptTest {
+
+    @Test
+    public void testInt8ScoresMatchFloatScoresWithinTheQuantizationError() {
+        final Random random = new Random(11);
+        final float[] query = randomVector(random, 96);
+        float maxAbs = 0;
+        for (float v : query) {
+            maxAbs = Math.max(maxAbs, Math.abs(v));
+        }
+        // the query is quantized symmetrically, each value is off by at most half a step
+        final double queryError = maxAbs / 127 / 2;
+
+        for (int d = 0; d < 20; d++) {
+            final float[] doc = randomVector(random, query.length);
+            float min = Float.POSITIVE_INFINITY;
+            float max = Float.NEGATIVE_INFINITY;
+            for (float v : doc) {
+                min = Math.min(min, v);
+                max = Math.max(max, v);
+            }
+            final double docError = (max - min) / 508.0;
+            double dotError = 0;
+            for (int i = 0; i < query.length; i++) {
+                dotError += Math.abs(query[i]) * docError + Math.abs(doc[i]) * queryError + docError * queryError;
+            }
+            // plus the float rounding of the scores
+            dotError += 1e-4;
+
+            final double dot = score(false, query, Util.convertArrayToBase64WithNorm(doc));
+            Assert.assertEquals(dot, score(false, query, Util.convertArrayToBase64Int8(doc)), dotError);
+
+            final double cosine = score(true, query, Util.convertArrayToBase64WithNorm(doc));
+            final double cosineError = dotError / (Util.norm(doc) * Util.norm(query));
+            Assert.assertEquals(cosine, score(true, query, Util.convertArrayToBase64Int8(doc)), cosineError);
+        }
+    }
+
+    @Test
+    public void testInt8ScoresOfAConstantVector() {
+        // max == min, every value is the offset and only the query's quantization is off: by half a step of 3 / 127 per dim
+        final float[] doc = {0.5f, 0.5f, 0.5f};
+        final float[] query = {1f, -2f, 3f};
+        Assert.assertEquals(1.0, score(false, query, Util.convertArrayToBase64Int8(doc)), 1.5 * 3 / 254);
+    }
+
+    @Test
+    public void testHammingScoresCountTheEqualBits() {
+        // 0b1011 against 0b0110 in the first word: bits 0 and 2 differ, the other 126 are equal
+        final long[] doc = {0b1011L, -1L};
+        final long[] query = {0b1110L, -1L};
+        final String withHeader = Util.convertBitsToBase64(doc);
+        final byte[] bytes = Base64.getDecoder().decode(withHeader);
+        final String withoutHeader = Base64.getEncoder().encodeToString(Arrays.copyOfRange(bytes, Util.HEADER_BYTES, bytes.length));
+
+        Assert.assertEquals(126, scoreHamming(query, withHeader), 0);
+        Assert.assertEquals(126, scoreHamming(query, withoutHeader), 0);
+        Assert.assertEquals(128, scoreHamming(doc, withHeader), 0);
+    }
+
+    @Test
+    public void testHammingScoresHeaderlessBitsStartingWithTheMagic() {
+        // the first bytes are 0x7F 0xC0 0x56 0x03, a FORMAT_BITS header if the header were told from the content
+        final long[] doc = {0x7FC0560300000000L, -1L};
+        final byte[] bytes = Base64.getDecoder().decode(Util.convertBitsToBase64(doc));
+        final String withoutHeader = Base64.getEncoder().encodeToString(Arrays.copyOfRange(bytes, Util.HEADER_BYTES, bytes.length));
+
+        Assert.assertEquals(128, scoreHamming(doc, withoutHeader), 0);
+        Assert.assertEquals(127, scoreHamming(new long[] {0x7FC0560300000001L, -1L}, withoutHeader), 0);
+    }
+
+    @Test
+    public void testHammingScoresOfAFloatQuery() {
+        // every positive value is a set bit, the score counts the equal bits of the query dims
+        final float[] query = {0.5f, -0.5f, 0.1f};
+        Assert.assertEquals(3, scoreHamming(query, Util.convertBitsToBase64(Util.toBits(new float[] {1f, 0f, 1f}))), 0);
+        Assert.assertEquals(1, scoreHamming(query, Util.convertBitsToBase64(Util.toBits(new float[] {0f, 1f, 1f}))), 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testHammingRejectsShorterDocuments() {
+        scoreHamming(new long[] {1L, 1L}, Util.convertBitsToBase64(new long[] {1L}));
+    }
+
+    private static float[] randomVector(Random random, int dims) {
+        final float[] vector = new float[dims];
+        for (int i = 0; i < dims; i++) {
+            vector[i] = random.nextFloat() * 2 - 1;
+        }
+        return vector;
+    }
+
+    /**
+     * @return the score of a single document holding the base64 vector
+     */
+    static double score(boolean cosine, float[] query, String encoded) {
+        final Map<String, Object> params = vectorParams(query);
+        params.put("cosine", cosine);
+        return score(params, encoded);
+    }
+
+    /**
+     * @return the hamming score of a single document holding the base64 bits, against the bits of a float query
+     */
+    static double scoreHamming(float[] query, String encoded) {
+        final Map<String, Object> params = vectorParams(query);
+        params.put("metric", "hamming");
+        return score(params, encoded);
+    }
+
+    /**
+     * @return the hamming score of a single document holding the base64 bits, against packed query bits
+     */
+    static double scoreHamming(long[] query, String encoded) {
+        final Map<String, Object> params = new HashMap<>();
+        params.put("field", "vector");
+        params.put("metric", "hamming");
+        params.put("encoded_vector", Util.convertBitsToBase64(query));
+        return score(params, encoded);
+    }
+
+    private static Map<String, Object> vectorParams(float[] query) {
+        final Map<String, Object> params = new HashMap<>();
+        params.put("field", "vector");
+        final ArrayList<Double> vector = new ArrayList<>();
+        for (float v : query) {
+            vector.add((double) v);
+        }
+        params.put("vector", vector);
+        return params;
+    }
+
+    private static double score(Map<String, Object> params, String encoded) {
+        final VectorScoreScript script = new VectorScoreScript(params);
+        script.setBinaryEmbeddingReader(docValues(Base64.getDecoder().decode(encoded)));
+        script.setDocument(0);
+        return script.runAsDouble();
+    }
+
+    /**
+     * @return doc values where every doc holds the bytes, prefixed like the values of a binary field: the number of
+     * values then the length of the value, as vints
+     */
+    static BinaryDocValues docValues(byte[] bytes) {
+        final byte[] buffer = new byte[bytes.length + 10];
+        final ByteArrayDataOutput out = new ByteArrayDataOutput(buffer);
+        try {
+            out.writeVInt(1);
+            out.writeVInt(bytes.length);
+            out.writeBytes(bytes, bytes.length);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        final BytesRef value = new BytesRef(Arrays.copyOf(buffer, out.getPosition()));
+        return new BinaryDocValues() {
+            @Override
+            public BytesRef get(int docID) {
+                return value;
+            }
+        };
+    }
+}
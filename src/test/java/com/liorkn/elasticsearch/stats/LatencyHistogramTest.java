@@ -0,0 +1,39 @@
+package com.liorkn.elasticsearch.stats;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testPercentilesAreBucketUpperBounds() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 98; i++) {
+            histogram.record(1000); // in [512, 1024)
+        }
+        histogram.record(100_000); // in [65536, 131072)
+        histogram.record(0);
+        Assert.assertEquals(100, histogram.count());
+        Assert.assertEquals(98 * 1000 + 100_000, histogram.sumNanos());
+        Assert.assertEquals(1023, histogram.percentileNanos(50));
+        Assert.assertEquals(1023, histogram.percentileNanos(98));
+        Assert.assertEquals(131071, histogram.percentileNanos(99.5));
+        Assert.assertEquals(0, histogram.percentileNanos(1));
+    }
+
+    @Test
+    public void testEmpty() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        Assert.assertEquals(0, histogram.count());
+        Assert.assertEquals(0, histogram.percentileNanos(99));
+    }
+
+    @Test
+    public void testExtremes() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE);
+        Assert.assertEquals(0, histogram.percentileNanos(50));
+        Assert.assertEquals(Long.MAX_VALUE, histogram.percentileNanos(100));
+    }
+}